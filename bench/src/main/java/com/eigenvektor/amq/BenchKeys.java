@@ -0,0 +1,117 @@
+/*
+ *  Reproducible keys for the amq benchmarks.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+/**
+ * Generates the keys the benchmarks add and query.  Key <code>j</code> is a scramble
+ * of <code>j</code> that can be undone, so the same seed always gives the same keys,
+ * distinct indices always give distinct keys, and the keys still look random to the
+ * filters.  Positive keys come from the indices counting up from zero and negative
+ * keys from the indices counting up from <code>Integer.MIN_VALUE</code>, so no
+ * negative key was ever added.
+ */
+final class BenchKeys
+{
+	// The seed the benchmarks use.
+	static final int SEED = 0x5EED1E55;
+
+	private BenchKeys()
+	{
+	}
+
+	/**
+	 * Gets keys that the benchmarks add to their filters.
+	 *
+	 * @param n The number of keys.
+	 * @return <code>n</code> distinct keys.
+	 */
+	static Integer[] positives(int n)
+	{
+		return keys(SEED, 0, n);
+	}
+
+	/**
+	 * Gets keys that are never among the positive ones.
+	 *
+	 * @param n The number of keys.
+	 * @return <code>n</code> distinct keys.
+	 */
+	static Integer[] negatives(int n)
+	{
+		return keys(SEED, Integer.MIN_VALUE, n);
+	}
+
+	/**
+	 * Gets a run of keys.
+	 *
+	 * @param seed The seed.
+	 * @param first The index of the first key.
+	 * @param n The number of keys.
+	 * @return The keys with indices <code>first</code> to <code>first + n - 1</code>.
+	 */
+	static Integer[] keys(int seed, int first, int n)
+	{
+		if (n < 0) { throw new IllegalArgumentException("n may not be negative."); }
+
+		Integer[] ret = new Integer[n];
+		for (int j = 0 ; j < n ; ++j)
+		{
+			ret[j] = scramble(seed, first + j);
+		}
+		return ret;
+	}
+
+	/**
+	 * Splits keys into batches for the bulk operations.
+	 *
+	 * @param keys The keys.
+	 * @param batchSize The number of keys per batch.
+	 * @return As many whole batches as <code>keys</code> holds.
+	 */
+	static Integer[][] batches(Integer[] keys, int batchSize)
+	{
+		Integer[][] ret = new Integer[Math.max(1, keys.length / batchSize)][batchSize];
+		for (int j = 0 ; j < ret.length ; ++j)
+		{
+			for (int k = 0 ; k < batchSize ; ++k)
+			{
+				ret[j][k] = keys[(j * batchSize + k) % keys.length];
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Scrambles an index with the murmur3 finalizer, each step of which can be undone.
+	 *
+	 * @param seed The seed.
+	 * @param j The index.
+	 * @return The scrambled index.
+	 */
+	private static int scramble(int seed, int j)
+	{
+		int h = j ^ seed;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ *  Runs the amq benchmarks with allocation profiling.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks as JMH would from the command line, always with the GC
+ * profiler, which is the same as passing <code>-prof gc</code>.  It reports the bytes
+ * allocated per operation next to each time.  For example:
+ *
+ * <pre>
+ * sbt "bench/jmh:runMain com.eigenvektor.amq.Benchmarks FilterBenchmark.negativeLookup -p qBits=20"
+ * </pre>
+ */
+public final class Benchmarks
+{
+	private Benchmarks()
+	{
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException
+	{
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
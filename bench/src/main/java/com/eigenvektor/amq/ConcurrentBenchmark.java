@@ -0,0 +1,126 @@
+/*
+ *  Benchmarks of the amq filters that can be shared between threads.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how the thread safe filters scale.  All the threads share one filter that
+ * already holds the positive keys.  Adds are of keys that are already there, so the
+ * filter never fills up however long the benchmark runs, but each add still takes
+ * its lock and searches for its slot.  Run with, for example, <code>-t 8</code> to
+ * set the number of threads, or with <code>ConcurrentScaling</code> to run it at
+ * each number from 1 to 32; the <code>mixed</code> group always runs three readers
+ * to each writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentBenchmark
+{
+	@Param({ "CONCURRENT_QF", "SHARDED_QF", "SHARDED_BLOOM" })
+	public FilterKind filter;
+
+	@Param({ "20", "24" })
+	public int qBits;
+
+	@Param({ "0.75" })
+	public double loadFactor;
+
+	// The keys that were added, and the filter holding them.
+	private Integer[] positives;
+	private ApproxMemQuery<Integer> filled;
+
+	/**
+	 * Each thread's place in the keys.  Threads start in different places so they
+	 * don't all contend for the same slots.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		private int next = -1;
+
+		/**
+		 * Moves on to the next key.
+		 *
+		 * @param nKeys The number of keys.
+		 * @return The index of the key to use.
+		 */
+		int nextKey(int nKeys)
+		{
+			if (next < 0) { next = (int) ((Thread.currentThread().getId() * 0x9E3779B9L) & Integer.MAX_VALUE) % nKeys; }
+
+			int ret = next;
+			next = (ret + 1 == nKeys) ? 0 : ret + 1;
+			return ret;
+		}
+	}
+
+	@Setup
+	public void setUp()
+	{
+		positives = BenchKeys.positives((int) (loadFactor * (1 << qBits)));
+		filled = filter.fill(positives, qBits, true);
+	}
+
+	@Benchmark
+	public boolean lookup(Cursor cursor)
+	{
+		return filled.contains(positives[cursor.nextKey(positives.length)]);
+	}
+
+	@Benchmark
+	public void add(Cursor cursor)
+	{
+		filled.add(positives[cursor.nextKey(positives.length)]);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public boolean mixedLookup(Cursor cursor)
+	{
+		return lookup(cursor);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedAdd(Cursor cursor)
+	{
+		add(cursor);
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ *  Runs the concurrent amq benchmarks over a range of thread counts.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs <code>ConcurrentBenchmark</code> with 1, 2, 4, 8, 16 and 32 threads in turn,
+ * then prints the throughput of each benchmark against the number of threads.  JMH
+ * can't take the number of threads as a parameter, so each count is a run of its own.
+ * Other JMH arguments are passed through, and a benchmark pattern among them picks
+ * which benchmarks run.  For example:
+ *
+ * <pre>
+ * sbt "bench/jmh:runMain com.eigenvektor.amq.ConcurrentScaling ConcurrentBenchmark.lookup -p qBits=20"
+ * </pre>
+ *
+ * JMH runs the <code>mixed</code> group in whole groups of four threads, so it has
+ * four threads at the counts below that.
+ */
+public final class ConcurrentScaling
+{
+	// The numbers of threads to run with.
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+	private ConcurrentScaling()
+	{
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException
+	{
+		CommandLineOptions cmd = new CommandLineOptions(args);
+
+		List<RunResult> results = new ArrayList<RunResult>();
+		for (int nThreads : THREADS)
+		{
+			OptionsBuilder options = new OptionsBuilder();
+			options.parent(cmd).threads(nThreads);
+			if (cmd.getIncludes().isEmpty()) { options.include(ConcurrentBenchmark.class.getSimpleName()); }
+
+			results.addAll(new Runner(options.build()).run());
+		}
+
+		System.out.println();
+		System.out.println(String.format("%-50s %-35s %8s %14s %8s  %s",
+				"Benchmark", "Params", "Threads", "Score", "Error", "Units"));
+		for (RunResult result : results)
+		{
+			BenchmarkParams params = result.getParams();
+			Result<?> primary = result.getPrimaryResult();
+
+			StringBuilder sb = new StringBuilder();
+			for (String key : params.getParamsKeys())
+			{
+				if (sb.length() > 0) { sb.append(','); }
+				sb.append(key).append('=').append(params.getParam(key));
+			}
+
+			System.out.println(String.format("%-50s %-35s %8d %14.3f %8.3f  %s",
+					params.getBenchmark(), sb, params.getThreads(),
+					primary.getScore(), primary.getScoreError(), primary.getScoreUnit()));
+		}
+	}
+}
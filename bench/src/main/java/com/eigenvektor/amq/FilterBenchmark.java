@@ -0,0 +1,159 @@
+/*
+ *  Benchmarks of adding to and querying the amq filters.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds to and queries each kind of filter, across sizes and load factors.  Filling
+ * a filter is timed per filter, in milliseconds; queries are timed per key, in
+ * nanoseconds.  The bulk versions of each operation go through <code>addAll()</code>
+ * and <code>containsAll()</code>, so comparing them with the others shows what
+ * batching buys.  Positive queries are for keys that were added, and negative ones
+ * for keys that never were.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark
+{
+	// The number of keys per call in the bulk queries.
+	private static final int BATCH_SIZE = 1024;
+
+	@Param({ "BLOOM", "BLOCKED_BLOOM", "QF_HASH", "QF_DOUBLING", "RSQF", "COUNTING_QF",
+		"RESIZING_QF", "SCALABLE_QF", "CUCKOO", "BINARY_FUSE" })
+	public FilterKind filter;
+
+	@Param({ "16", "20", "24" })
+	public int qBits;
+
+	@Param({ "0.5", "0.75", "0.9" })
+	public double loadFactor;
+
+	// The keys that are added, and keys that never are.
+	private Integer[] positives;
+	private Integer[] negatives;
+
+	// The same keys in batches for the bulk queries.
+	private Integer[][] positiveBatches;
+	private Integer[][] negativeBatches;
+	private boolean[] batchOut;
+
+	// A filter holding the positive keys.
+	private ApproxMemQuery<Integer> filled;
+
+	// The next key or batch to query.
+	private int next = 0;
+
+	@Setup
+	public void setUp()
+	{
+		int nKeys = (int) (loadFactor * (1 << qBits));
+		positives = BenchKeys.positives(nKeys);
+		negatives = BenchKeys.negatives(nKeys);
+		positiveBatches = BenchKeys.batches(positives, BATCH_SIZE);
+		negativeBatches = BenchKeys.batches(negatives, BATCH_SIZE);
+		batchOut = new boolean[BATCH_SIZE];
+
+		filled = filter.fill(positives, qBits, true);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public ApproxMemQuery<Integer> insert()
+	{
+		return filter.fill(positives, qBits, false);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public ApproxMemQuery<Integer> insertBulk()
+	{
+		return filter.fill(positives, qBits, true);
+	}
+
+	@Benchmark
+	public boolean positiveLookup()
+	{
+		return filled.contains(positives[nextKey()]);
+	}
+
+	@Benchmark
+	public boolean negativeLookup()
+	{
+		return filled.contains(negatives[nextKey()]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public boolean[] positiveLookupBulk()
+	{
+		filled.containsAll(positiveBatches[nextBatch()], batchOut);
+		return batchOut;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public boolean[] negativeLookupBulk()
+	{
+		filled.containsAll(negativeBatches[nextBatch()], batchOut);
+		return batchOut;
+	}
+
+	/**
+	 * Moves on to the next key, so the queries walk the whole filter rather than
+	 * hitting the same cache lines.
+	 *
+	 * @return The index of the key to query.
+	 */
+	private int nextKey()
+	{
+		int ret = next;
+		next = (ret + 1 == positives.length) ? 0 : ret + 1;
+		return ret;
+	}
+
+	/**
+	 * Moves on to the next batch.
+	 *
+	 * @return The index of the batch to query.
+	 */
+	private int nextBatch()
+	{
+		int ret = next % positiveBatches.length;
+		next = ret + 1;
+		return ret;
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ *  The filters the amq benchmarks compare.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.Arrays;
+
+/**
+ * The filters the benchmarks compare, each sized from a number of quotient bits so
+ * that they are comparable: 2^qBits slots of 8 bit remainders for the quotient
+ * filters and the cuckoo filter, and as many bits as those quotient filters take for
+ * the Bloom filters.  This is public only because JMH needs it to be for parameters.
+ */
+public enum FilterKind
+{
+	BLOOM
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			int numBits = QF_SLOT_BITS << qBits;
+			return new BloomFilter<Integer>(numBits, numHashes(numBits, nKeys));
+		}
+	},
+	BLOCKED_BLOOM
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			int numBits = QF_SLOT_BITS << qBits;
+			return new BlockedBloomFilter<Integer>(numBits, numHashes(numBits, nKeys));
+		}
+	},
+	QF_HASH
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			return new QuotientFilter<Integer>(hashStrategy(qBits));
+		}
+	},
+	QF_DOUBLING
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			return new QuotientFilter<Integer>(doublingStrategy(qBits));
+		}
+	},
+	RSQF
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			return new RankSelectQuotientFilter<Integer>(hashStrategy(qBits));
+		}
+	},
+	COUNTING_QF
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			return new CountingQuotientFilter<Integer>(hashStrategy(qBits));
+		}
+	},
+	RESIZING_QF
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			// Starts small enough to double a few times on the way to the same size.
+			return new ResizingQuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(
+					qBits - GROWTH_BITS, REMAINDER_BITS + GROWTH_BITS));
+		}
+	},
+	SCALABLE_QF
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			return new ScalableQuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(16, 16),
+					qBits - GROWTH_BITS, REMAINDER_BITS);
+		}
+	},
+	CUCKOO
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			// Four slots to a bucket.
+			return new CuckooFilter<Integer>(qBits - 2, REMAINDER_BITS);
+		}
+	},
+	BINARY_FUSE
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			throw new UnsupportedOperationException("A binary fuse filter is built from all its keys at once.");
+		}
+
+		@Override
+		ApproxMemQuery<Integer> fill(Integer[] keys, int qBits, boolean bulk)
+		{
+			return BinaryFuseFilter.build(Arrays.asList(keys));
+		}
+	},
+	CONCURRENT_QF
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			return new ConcurrentQuotientFilter<Integer>(hashStrategy(qBits));
+		}
+	},
+	SHARDED_QF
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			return ShardedApproxMemQuery.ofQuotientFilters(hashStrategy(qBits), SHARD_BITS);
+		}
+	},
+	SHARDED_BLOOM
+	{
+		@Override
+		ApproxMemQuery<Integer> create(int qBits, int nKeys)
+		{
+			int numBits = QF_SLOT_BITS << qBits;
+			return ShardedApproxMemQuery.ofBloomFilters(SHARD_BITS, numBits >>> SHARD_BITS,
+					numHashes(numBits, nKeys), INTEGER_BYTES);
+		}
+	};
+
+	// The number of remainder bits in the quotient filters, and fingerprint bits in
+	// the cuckoo filter.
+	static final int REMAINDER_BITS = 8;
+
+	// The bits per slot of a quotient filter with those remainders.
+	private static final int QF_SLOT_BITS = REMAINDER_BITS + 3;
+
+	// The number of doublings the growing filters have to do to reach full size.
+	private static final int GROWTH_BITS = 4;
+
+	// The number of shards in the sharded filters.
+	private static final int SHARD_BITS = 6;
+
+	// The bytes of an integer, for the xxHash of the sharded Bloom filter.
+	private static final KeyBytes<Integer> INTEGER_BYTES = new KeyBytes<Integer>()
+	{
+		@Override
+		public byte[] getBytes(Integer x)
+		{
+			int v = x;
+			return new byte[] { (byte) v, (byte) (v >>> 8), (byte) (v >>> 16), (byte) (v >>> 24) };
+		}
+	};
+
+	/**
+	 * Creates an empty filter.
+	 *
+	 * @param qBits The number of quotient bits that sets the size.
+	 * @param nKeys The number of keys that will be added, which sets the number of
+	 * hashes of the Bloom filters.
+	 * @return The filter.
+	 */
+	abstract ApproxMemQuery<Integer> create(int qBits, int nKeys);
+
+	/**
+	 * Creates a filter holding some keys.
+	 *
+	 * @param keys The keys.
+	 * @param qBits The number of quotient bits that sets the size.
+	 * @param bulk Whether to add the keys with one call to <code>addAll()</code>
+	 * rather than one call to <code>add()</code> each.
+	 * @return The filter.
+	 */
+	ApproxMemQuery<Integer> fill(Integer[] keys, int qBits, boolean bulk)
+	{
+		ApproxMemQuery<Integer> ret = create(qBits, keys.length);
+		if (bulk)
+		{
+			ret.addAll(keys);
+		}
+		else
+		{
+			for (Integer x : keys)
+			{
+				ret.add(x);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the plain hash code strategy of the quotient filters.
+	 *
+	 * @param qBits The number of quotient bits.
+	 * @return The strategy.
+	 */
+	static QuotientingStrategy<Integer> hashStrategy(int qBits)
+	{
+		return new HashQuotientingStrategy<Integer>(qBits, REMAINDER_BITS);
+	}
+
+	/**
+	 * Gets a strategy with the same number of bits as <code>hashStrategy()</code>, but
+	 * made by doubling one with a smaller quotient.
+	 *
+	 * @param qBits The number of quotient bits.
+	 * @return The strategy.
+	 */
+	static QuotientingStrategy<Integer> doublingStrategy(int qBits)
+	{
+		return new DoublingQuotientingStrategy<Integer>(
+				new HashQuotientingStrategy<Integer>(qBits - 1, REMAINDER_BITS + 1), 1);
+	}
+
+	/**
+	 * Gets the number of hashes that gives a Bloom filter the fewest false positives.
+	 *
+	 * @param numBits The number of bits in the filter.
+	 * @param nKeys The number of keys it will hold.
+	 * @return The number of hashes, at least one.
+	 */
+	private static int numHashes(int numBits, int nKeys)
+	{
+		return Math.max(1, (int) Math.round(Math.log(2) * numBits / Math.max(1, nKeys)));
+	}
+}
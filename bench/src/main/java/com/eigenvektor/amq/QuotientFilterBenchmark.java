@@ -0,0 +1,101 @@
+/*
+ *  Benchmarks of doubling and merging quotient filters.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times <code>getDoubled()</code> and <code>merge()</code>, with both quotienting
+ * strategies, either on the calling thread alone or split up as the public methods
+ * do it.  A merge works on a fresh copy each time, so <code>copy</code> gives the
+ * part of its time that is only copying.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuotientFilterBenchmark
+{
+	@Param({ "QF_HASH", "QF_DOUBLING" })
+	public FilterKind filter;
+
+	@Param({ "16", "20", "24" })
+	public int qBits;
+
+	// The load factor of the filter to double, and of the two merged together.
+	@Param({ "0.25", "0.45" })
+	public double loadFactor;
+
+	// Whether to split the work up, or do it all on the calling thread.
+	@Param({ "false", "true" })
+	public boolean parallel;
+
+	// The filter to double and one half of the merge, and the other half.
+	private QuotientFilter<Integer> filled;
+	private QuotientFilter<Integer> other;
+
+	@Setup
+	public void setUp()
+	{
+		int nKeys = (int) (loadFactor * (1 << qBits));
+		filled = (QuotientFilter<Integer>) filter.fill(BenchKeys.positives(nKeys), qBits, true);
+		other = (QuotientFilter<Integer>) filter.fill(BenchKeys.negatives(nKeys), qBits, true);
+	}
+
+	@Benchmark
+	public QuotientFilter<Integer> getDoubled()
+	{
+		return parallel ? filled.getDoubled(1) : filled.getDoubled(1, 1);
+	}
+
+	@Benchmark
+	public QuotientFilter<Integer> merge()
+	{
+		QuotientFilter<Integer> ret = new QuotientFilter<Integer>(filled);
+		if (parallel)
+		{
+			ret.merge(other);
+		}
+		else
+		{
+			ret.merge(other, 1);
+		}
+		return ret;
+	}
+
+	@Benchmark
+	public QuotientFilter<Integer> copy()
+	{
+		return new QuotientFilter<Integer>(filled);
+	}
+}
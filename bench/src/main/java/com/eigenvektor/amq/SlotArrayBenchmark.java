@@ -0,0 +1,242 @@
+/*
+ *  Benchmarks of the slot storage of quotient filters.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the packed <code>long[]</code> slots of <code>SlotArray</code> with the
+ * <code>BitSet</code> that quotient filters used to keep their slots in, read and
+ * written a bit at a time as they were then.  Slots are read and written at random,
+ * and read in runs of <code>RUN_LENGTH</code>, as a probe walks a cluster.  Every slot
+ * holds the three control bits and an eight bit remainder, as in
+ * <code>FilterBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SlotArrayBenchmark
+{
+	// The bits in a slot: the control bits and the remainder.
+	private static final int SLOT_BITS = 3 + FilterKind.REMAINDER_BITS;
+
+	// The number of slots read together by scanRun().
+	private static final int RUN_LENGTH = 8;
+
+	// The number of random slot indices, cycled through.
+	private static final int N_INDICES = 1 << 20;
+
+	/**
+	 * The ways of laying out the slots.
+	 */
+	public enum Layout
+	{
+		PACKED
+		{
+			@Override
+			Slots create(int nSlots)
+			{
+				final SlotArray slots = new HeapSlotArray(nSlots, SLOT_BITS);
+				return new Slots()
+				{
+					@Override
+					long get(int slot)
+					{
+						return slots.get(slot);
+					}
+
+					@Override
+					void set(int slot, long value)
+					{
+						slots.set(slot, value);
+					}
+				};
+			}
+		},
+		BITSET
+		{
+			@Override
+			Slots create(int nSlots)
+			{
+				return new BitSetSlots(nSlots);
+			}
+		};
+
+		/**
+		 * Creates empty slots laid out this way.
+		 *
+		 * @param nSlots The number of slots.
+		 * @return The slots.
+		 */
+		abstract Slots create(int nSlots);
+	}
+
+	/**
+	 * Slots of <code>SLOT_BITS</code> bits, with the control bits in the low three.
+	 */
+	abstract static class Slots
+	{
+		abstract long get(int slot);
+
+		abstract void set(int slot, long value);
+	}
+
+	/**
+	 * Slots in a <code>BitSet</code>, as <code>QuotientFilter</code> had them: the
+	 * control bits first, then the remainder from its top bit down, each bit read and
+	 * written on its own.
+	 */
+	static final class BitSetSlots extends Slots
+	{
+		private final BitSet bits;
+
+		BitSetSlots(int nSlots)
+		{
+			bits = new BitSet(nSlots * SLOT_BITS);
+		}
+
+		@Override
+		long get(int slot)
+		{
+			int slotStart = SLOT_BITS * slot;
+			long ret = 0;
+			for (int j = slotStart + 3 ; j < slotStart + SLOT_BITS ; ++j)
+			{
+				ret = ret << 1;
+				if (bits.get(j))
+				{
+					ret |= 1;
+				}
+			}
+			ret <<= 3;
+			if (bits.get(slotStart)) { ret |= 1; }
+			if (bits.get(slotStart + 1)) { ret |= 2; }
+			if (bits.get(slotStart + 2)) { ret |= 4; }
+			return ret;
+		}
+
+		@Override
+		void set(int slot, long value)
+		{
+			int slotStart = SLOT_BITS * slot;
+			bits.set(slotStart, (value & 1) != 0);
+			bits.set(slotStart + 1, (value & 2) != 0);
+			bits.set(slotStart + 2, (value & 4) != 0);
+			long remainder = value >>> 3;
+			for (int j = slotStart + SLOT_BITS - 1 ; j >= slotStart + 3 ; --j)
+			{
+				bits.set(j, (remainder & 1) == 1);
+				remainder = remainder >> 1;
+			}
+		}
+	}
+
+	@Param({ "PACKED", "BITSET" })
+	public Layout layout;
+
+	@Param({ "16", "20", "24" })
+	public int qBits;
+
+	private Slots slots;
+
+	// Random slots, and random values to write to them.
+	private int[] indices;
+	private long[] values;
+
+	// The next index to use.
+	private int next = 0;
+
+	@Setup
+	public void setUp()
+	{
+		int nSlots = 1 << qBits;
+		slots = layout.create(nSlots);
+
+		Random rand = new Random(BenchKeys.SEED);
+		long mask = (1L << SLOT_BITS) - 1;
+		for (int j = 0 ; j < nSlots ; ++j)
+		{
+			slots.set(j, rand.nextLong() & mask);
+		}
+
+		indices = new int[N_INDICES];
+		values = new long[N_INDICES];
+		for (int j = 0 ; j < N_INDICES ; ++j)
+		{
+			indices[j] = rand.nextInt(nSlots - RUN_LENGTH);
+			values[j] = rand.nextLong() & mask;
+		}
+	}
+
+	@Benchmark
+	public long readSlot()
+	{
+		return slots.get(indices[nextIndex()]);
+	}
+
+	@Benchmark
+	public void writeSlot()
+	{
+		int j = nextIndex();
+		slots.set(indices[j], values[j]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RUN_LENGTH)
+	public long scanRun()
+	{
+		int start = indices[nextIndex()];
+		long ret = 0;
+		for (int j = 0 ; j < RUN_LENGTH ; ++j)
+		{
+			ret += slots.get(start + j);
+		}
+		return ret;
+	}
+
+	/**
+	 * Moves on to the next random slot.
+	 *
+	 * @return The index into <code>indices</code> and <code>values</code>.
+	 */
+	private int nextIndex()
+	{
+		int ret = next;
+		next = (ret + 1) & (N_INDICES - 1);
+		return ret;
+	}
+}
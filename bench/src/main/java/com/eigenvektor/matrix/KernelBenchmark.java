@@ -0,0 +1,151 @@
+/*
+ *  Benchmarks of the element-wise operations on full matrices.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the row operations and element-wise arithmetic of <code>FullMatrix</code>.
+ * The benchmarks run with the <code>jdk.incubator.vector</code> module, so they use
+ * the vector kernels, and need JDK 16 or later.  Each one is also run in a JVM told to
+ * use the scalar kernels, as the <code>...Scalar</code> benchmarks, so the two show
+ * what the vector kernels buy on the machine at hand.  <code>addGeneric</code> is the
+ * element by element path that any other kind of matrix still takes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { KernelBenchmark.ADD_MODULES, KernelBenchmark.VECTOR_MODULE })
+public class KernelBenchmark
+{
+	static final String ADD_MODULES = "--add-modules";
+	static final String VECTOR_MODULE = "jdk.incubator.vector";
+	static final String SCALAR = "-Dcom.eigenvektor.matrix.kernels=scalar";
+
+	@Param({ "64", "512", "2048" })
+	public int size;
+
+	private FullMatrix left;
+	private FullMatrix right;
+	private SparseMatrix rightSparse;
+
+	// The rows of the next row operation.
+	private int next = 0;
+
+	// The factor rows are scaled by, a field so the JIT can't fold the multiply away.
+	private double factor = 1.0;
+
+	@Setup
+	public void setUp()
+	{
+		Random rand = new Random(1);
+		left = new FullMatrix(size, size);
+		right = new FullMatrix(size, size);
+		for (int j = 0 ; j < size ; ++j)
+		{
+			for (int k = 0 ; k < size ; ++k)
+			{
+				left.set(j, k, rand.nextDouble());
+				right.set(j, k, rand.nextDouble());
+			}
+		}
+		rightSparse = new SparseMatrix(right);
+	}
+
+	@Benchmark
+	public FullMatrix rowOperation()
+	{
+		int from = next;
+		next = (from + 1 == size) ? 0 : from + 1;
+		left.rowOperation(from, next, 1e-9);
+		return left;
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { ADD_MODULES, VECTOR_MODULE, SCALAR })
+	public FullMatrix rowOperationScalar()
+	{
+		return rowOperation();
+	}
+
+	@Benchmark
+	public FullMatrix scaleRow()
+	{
+		int row = next;
+		next = (row + 1 == size) ? 0 : row + 1;
+		left.scaleRow(row, factor);
+		return left;
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { ADD_MODULES, VECTOR_MODULE, SCALAR })
+	public FullMatrix scaleRowScalar()
+	{
+		return scaleRow();
+	}
+
+	@Benchmark
+	public Matrix add()
+	{
+		return left.add(right);
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { ADD_MODULES, VECTOR_MODULE, SCALAR })
+	public Matrix addScalar()
+	{
+		return add();
+	}
+
+	@Benchmark
+	public Matrix addGeneric()
+	{
+		return left.add(rightSparse);
+	}
+
+	@Benchmark
+	public FullMatrix inPlaceAdd()
+	{
+		left.inPlaceAdd(right);
+		left.inPlaceSubtract(right);
+		return left;
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { ADD_MODULES, VECTOR_MODULE, SCALAR })
+	public FullMatrix inPlaceAddScalar()
+	{
+		return inPlaceAdd();
+	}
+}
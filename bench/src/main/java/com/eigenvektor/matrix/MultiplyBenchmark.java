@@ -0,0 +1,81 @@
+/*
+ *  Benchmarks of dense matrix multiplication.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the product of two square <code>FullMatrix</code> instances, either on the
+ * calling thread alone or split across the common fork-join pool.  A product of size
+ * n is 2n^3 floating point operations, so 2000 at 4 GFLOP/s is 4 seconds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class MultiplyBenchmark
+{
+	@Param({ "256", "1000", "2000" })
+	public int size;
+
+	// Whether to split the work up, or do it all on the calling thread.
+	@Param({ "false", "true" })
+	public boolean parallel;
+
+	private FullMatrix left;
+	private FullMatrix right;
+
+	@Setup
+	public void setUp()
+	{
+		Random rand = new Random(1);
+		left = new FullMatrix(size, size);
+		right = new FullMatrix(size, size);
+		for (int j = 0 ; j < size ; ++j)
+		{
+			for (int k = 0 ; k < size ; ++k)
+			{
+				left.set(j, k, rand.nextDouble());
+				right.set(j, k, rand.nextDouble());
+			}
+		}
+	}
+
+	@Benchmark
+	public FullMatrix multiply()
+	{
+		return left.multiply(right, parallel ? 4 * ForkJoinPool.getCommonPoolParallelism() : 1);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ *  Probes of the blocks of a blocked Bloom filter, with the vector API.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The probes written with <code>LongVector</code>.  The block is split into as few
+ * vectors as the processor allows, one with AVX-512 and two with AVX2.  For each
+ * vector the element's bits are gathered into a mask without touching memory, and
+ * the block is then set or tested against the mask in one load and, for a set, one
+ * store.  Unlike the scalar test, this one never stops early, so it does the same
+ * work for elements that are present and absent.
+ * <p>
+ * This class needs JDK 16 or later and the <code>jdk.incubator.vector</code> module.
+ * <code>BlockProbes</code> loads it by name, and falls back to the scalar probes if
+ * it can't.
+ */
+final class VectorBlockProbes implements BlockProbes.Impl
+{
+	// The widest species the processor has, but no wider than a block.
+	private static final VectorSpecies<Long> SPECIES =
+			LongVector.SPECIES_PREFERRED.length() >= BlockProbes.BLOCK_WORDS
+			? LongVector.SPECIES_512 : LongVector.SPECIES_PREFERRED;
+
+	// The number of vectors in a block.
+	private static final int NUM_PARTS = BlockProbes.BLOCK_WORDS / SPECIES.length();
+
+	// For each vector of the block, the index within the block of each lane's word.
+	private static final LongVector[] WORD_INDICES = new LongVector[NUM_PARTS];
+	static
+	{
+		for (int p = 0 ; p < NUM_PARTS ; ++p)
+		{
+			WORD_INDICES[p] = LongVector.zero(SPECIES).addIndex(1).add(p * SPECIES.length());
+		}
+	}
+
+	VectorBlockProbes()
+	{
+	}
+
+	@Override
+	public void set(final long[] words, final int base, final int h1, final int h2, final int numHashes)
+	{
+		for (int p = 0 ; p < NUM_PARTS ; ++p)
+		{
+			int off = base + p * SPECIES.length();
+			LongVector mask = maskOf(WORD_INDICES[p], h1, h2, numHashes);
+			LongVector.fromArray(SPECIES, words, off).or(mask).intoArray(words, off);
+		}
+	}
+
+	@Override
+	public boolean test(final long[] words, final int base, final int h1, final int h2, final int numHashes)
+	{
+		boolean ret = true;
+		for (int p = 0 ; p < NUM_PARTS ; ++p)
+		{
+			LongVector mask = maskOf(WORD_INDICES[p], h1, h2, numHashes);
+			LongVector block = LongVector.fromArray(SPECIES, words, base + p * SPECIES.length());
+			ret &= block.and(mask).eq(mask).allTrue();
+		}
+		return ret;
+	}
+
+	/**
+	 * Gathers an element's bits in one vector of a block.
+	 *
+	 * @param wordIndices The index within the block of each lane's word.
+	 * @param h1 The first hash.
+	 * @param h2 The second hash.
+	 * @param numHashes The number of bits.
+	 * @return The mask of the element's bits in those words.
+	 */
+	private static LongVector maskOf(final LongVector wordIndices, final int h1, final int h2,
+			final int numHashes)
+	{
+		LongVector mask = LongVector.zero(SPECIES);
+		for (int j = 0 ; j < numHashes ; ++j)
+		{
+			int bit = (h1 + j * h2) & (BlockProbes.BLOCK_BITS - 1);
+			mask = mask.blend(mask.or(1L << bit), wordIndices.eq(bit >>> 6));
+		}
+		return mask;
+	}
+}
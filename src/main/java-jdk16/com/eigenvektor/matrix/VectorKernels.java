@@ -0,0 +1,113 @@
+/*
+ *  Element-wise kernels over arrays of doubles, with the vector API.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The kernels written with <code>DoubleVector</code>, in the widest shape the
+ * processor has, with a scalar loop for the elements left over.  Unlike the plain
+ * loops these are turned into SIMD instructions even when both runs are in the same
+ * array, as they are for a row operation.
+ * <p>
+ * A multiply and an add are done as two operations rather than a fused one, so the
+ * results are the same, to the bit, as the scalar kernels'.
+ * <p>
+ * This class needs JDK 16 or later and the <code>jdk.incubator.vector</code> module.
+ * <code>DenseKernels</code> loads it by name, and falls back to the scalar kernels if
+ * it can't.
+ */
+final class VectorKernels implements DenseKernels.Impl
+{
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	
+	VectorKernels()
+	{
+	}
+	
+	@Override
+	public void axpy(final int n, final double alpha, final double[] x, final int xOff,
+			final double[] y, final int yOff)
+	{
+		final int bound = SPECIES.loopBound(n);
+		int j = 0;
+		for ( ; j < bound ; j += SPECIES.length())
+		{
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOff + j);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + j);
+			vy.add(vx.mul(alpha)).intoArray(y, yOff + j);
+		}
+		for ( ; j < n ; ++j)
+		{
+			y[yOff + j] += alpha * x[xOff + j];
+		}
+	}
+	
+	@Override
+	public void scale(final int n, final double alpha, final double[] x, final int off)
+	{
+		final int bound = SPECIES.loopBound(n);
+		int j = 0;
+		for ( ; j < bound ; j += SPECIES.length())
+		{
+			DoubleVector.fromArray(SPECIES, x, off + j).mul(alpha).intoArray(x, off + j);
+		}
+		for ( ; j < n ; ++j)
+		{
+			x[off + j] *= alpha;
+		}
+	}
+	
+	@Override
+	public void add(final int n, final double[] x, final int xOff, final double[] y, final int yOff,
+			final double[] out, final int outOff)
+	{
+		final int bound = SPECIES.loopBound(n);
+		int j = 0;
+		for ( ; j < bound ; j += SPECIES.length())
+		{
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOff + j);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + j);
+			vx.add(vy).intoArray(out, outOff + j);
+		}
+		for ( ; j < n ; ++j)
+		{
+			out[outOff + j] = x[xOff + j] + y[yOff + j];
+		}
+	}
+	
+	@Override
+	public void subtract(final int n, final double[] x, final int xOff, final double[] y, final int yOff,
+			final double[] out, final int outOff)
+	{
+		final int bound = SPECIES.loopBound(n);
+		int j = 0;
+		for ( ; j < bound ; j += SPECIES.length())
+		{
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOff + j);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + j);
+			vx.sub(vy).intoArray(out, outOff + j);
+		}
+		for ( ; j < n ; ++j)
+		{
+			out[outOff + j] = x[xOff + j] - y[yOff + j];
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ *  Abstract implementation of approximate membership queries.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+/**
+ * A base for implementations of ApproxMemQuery, with the argument checks their bulk
+ * operations share.  The bulk operations themselves default to <code>add()</code>
+ * and <code>contains()</code> in the interface.
+ * 
+ * @param <T> The type of element.
+ */
+public abstract class AbstractApproxMemQuery<T> implements ApproxMemQuery<T>
+{
+	/**
+	 * Checks the arguments to <code>containsAll()</code>.
+	 * 
+	 * @param xs The elements to query.
+	 * @param out The array for the answers.
+	 */
+	protected static void checkContainsAll(Object[] xs, boolean[] out)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
+		if (out == null) { throw new NullPointerException("out may not be null."); }
+		if (out.length < xs.length) { throw new IllegalArgumentException("out is shorter than xs."); }
+	}
+}
@@ -41,5 +41,56 @@ public interface ApproxMemQuery<T>
 	 * @return <code>true</code> if <code>x</code> is in this set.  Very likely <code>false</code> otherwise.
 	 */
 	public boolean contains(T x);
+	
+	/**
+	 * Adds all of an array of elements to the AMQ.  Implementations may reorder the
+	 * work to make better use of memory, so this can be faster than adding the
+	 * elements one at a time.
+	 * 
+	 * @param xs The elements to add.
+	 */
+	public default void addAll(T[] xs)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
+		
+		for (T x : xs)
+		{
+			add(x);
+		}
+	}
+	
+	/**
+	 * Adds all of a collection of elements to the AMQ.
+	 * 
+	 * @param xs The elements to add.
+	 */
+	public default void addAll(Iterable<? extends T> xs)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
+		
+		for (T x : xs)
+		{
+			add(x);
+		}
+	}
+	
+	/**
+	 * Tells whether each of an array of elements has been added.  Implementations may
+	 * reorder the work to make better use of memory, so this can be faster than
+	 * querying the elements one at a time.
+	 * 
+	 * @param xs The elements to query.
+	 * @param out Receives the answers.  <code>out[j]</code> is set to whether
+	 * <code>xs[j]</code> is in this set.  Must be at least as long as <code>xs</code>.
+	 */
+	public default void containsAll(T[] xs, boolean[] out)
+	{
+		AbstractApproxMemQuery.checkContainsAll(xs, out);
+		
+		for (int j = 0 ; j < xs.length ; ++j)
+		{
+			out[j] = contains(xs[j]);
+		}
+	}
 
 }
\ No newline at end of file
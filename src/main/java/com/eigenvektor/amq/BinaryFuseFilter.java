@@ -0,0 +1,498 @@
+/*
+ *  Binary fuse filter implementation.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * An immutable AMQ built once from a fixed set of keys: a binary fuse filter with
+ * 8 bit fingerprints.
+ *
+ * Each key maps to three slots of a byte array, one in each of three consecutive
+ * segments, and the array is filled so that the XOR of a key's three slots is the
+ * key's fingerprint.  A query reads those three bytes and compares, so it makes three
+ * memory accesses, and the false positive rate is 1/256, about 0.4%.  The array has
+ * about 1.125 slots per key for large sets, so the filter takes about 9 bits per
+ * key, a little more for small sets.
+ *
+ * The slots are filled by peeling: repeatedly taking a slot that only one remaining
+ * key maps to, which lets that key be set last.  Peeling can fail, in which case it
+ * is retried with a different seed.  Duplicate keys are removed first, since they
+ * could never be peeled.  Hashing and removing duplicates run in parallel over the
+ * keys; the peeling itself is sequential, but works through the keys roughly in
+ * slot order to stay in cache.
+ *
+ * @param <T> The type of entry.
+ */
+public final class BinaryFuseFilter<T> extends AbstractApproxMemQuery<T>
+{
+	// The number of slots each key maps to.
+	private static final int ARITY = 3;
+
+	// The largest segment, in slots.
+	private static final int MAX_SEGMENT_LENGTH = 1 << 18;
+
+	// The number of seeds to try before giving up on a build.
+	private static final int MAX_ATTEMPTS = 100;
+
+	// Key sets smaller than this are hashed on the calling thread.
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+	// The number of tasks per thread for parallel hashing, so that uneven tasks
+	// still balance out.
+	private static final int TASKS_PER_THREAD = 4;
+
+	// Gets the bytes of the keys to hash, or null to use their hash codes.
+	private final KeyBytes<T> keyBytes;
+
+	// The seed the peeling succeeded with.
+	private final long seed;
+
+	// The segments: each is segmentLength slots, and the first slot of a key is in
+	// the first segmentCountLength slots.
+	private final int segmentLength;
+	private final int segmentLengthMask;
+	private final int segmentCountLength;
+
+	// The fingerprint slots.
+	private final byte[] fingerprints;
+
+	// The number of distinct keys.
+	private final int nKeys;
+
+	/**
+	 * Creates a filter from already filled slots.
+	 *
+	 * @param keyBytes Gets the bytes of the keys, or null to use their hash codes.
+	 * @param seed The seed.
+	 * @param segmentLength The number of slots in a segment.
+	 * @param segmentCountLength The number of slots a key's first slot can be in.
+	 * @param fingerprints The slots.
+	 * @param nKeys The number of distinct keys.
+	 */
+	private BinaryFuseFilter(final KeyBytes<T> keyBytes, long seed, int segmentLength,
+			int segmentCountLength, final byte[] fingerprints, int nKeys)
+	{
+		this.keyBytes = keyBytes;
+		this.seed = seed;
+		this.segmentLength = segmentLength;
+		this.segmentLengthMask = segmentLength - 1;
+		this.segmentCountLength = segmentCountLength;
+		this.fingerprints = fingerprints;
+		this.nKeys = nKeys;
+	}
+
+	/**
+	 * Builds a filter from a set of keys, hashing them with a 64 bit xxHash of
+	 * their bytes.
+	 *
+	 * @param keys The keys.
+	 * @param keyBytes Gets the bytes to hash from a key.
+	 * @return The filter.
+	 * @throws IllegalStateException In the very unlikely event that no seed works.
+	 */
+	public static <T> BinaryFuseFilter<T> build(final Collection<? extends T> keys, final KeyBytes<T> keyBytes)
+	{
+		if (keys == null) { throw new NullPointerException("keys may not be null."); }
+		if (keyBytes == null) { throw new IllegalArgumentException("keyBytes may not be null."); }
+
+		return build(keys.toArray(), keyBytes);
+	}
+
+	/**
+	 * Builds a filter from a set of keys, hashing them by their hash codes.  Keys
+	 * with the same hash code are indistinguishable.
+	 *
+	 * @param keys The keys.
+	 * @return The filter.
+	 * @throws IllegalStateException In the very unlikely event that no seed works.
+	 */
+	public static <T> BinaryFuseFilter<T> build(final Collection<? extends T> keys)
+	{
+		if (keys == null) { throw new NullPointerException("keys may not be null."); }
+
+		return build(keys.toArray(), null);
+	}
+
+	/**
+	 * Builds a filter from an array of keys.
+	 *
+	 * @param keys The keys.
+	 * @param keyBytes Gets the bytes of the keys, or null to use their hash codes.
+	 * @return The filter.
+	 */
+	private static <T> BinaryFuseFilter<T> build(final Object[] keys, final KeyBytes<T> keyBytes)
+	{
+		// Hash everything, then sort the hashes to drop the duplicates.
+		long[] hashes = new long[keys.length];
+		HashTask<T> hashTask = new HashTask<T>(keys, keyBytes, hashes, 0, keys.length, grainFor(keys.length));
+		if (keys.length < PARALLEL_THRESHOLD)
+		{
+			hashTask.compute();
+		}
+		else
+		{
+			ForkJoinPool.commonPool().invoke(hashTask);
+		}
+		Arrays.parallelSort(hashes);
+		int size = 0;
+		for (int j = 0 ; j < hashes.length ; ++j)
+		{
+			if (j == 0 || hashes[j] != hashes[j - 1]) { hashes[size++] = hashes[j]; }
+		}
+
+		// Lay out the segments.  Bigger sets get bigger segments, and need relatively
+		// fewer spare slots to peel reliably.
+		int segmentLength = Math.min(MAX_SEGMENT_LENGTH,
+				1 << (int) Math.floor(Math.log(Math.max(size, 1)) / Math.log(3.33) + 2.25));
+		double sizeFactor = Math.max(1.125, 0.875 + 0.25 * Math.log(1000000) / Math.log(Math.max(size, 2)));
+		int capacity = (int) Math.round(size * sizeFactor);
+		int segmentCount = (capacity + segmentLength - 1) / segmentLength - (ARITY - 1);
+		segmentCount = Math.max(segmentCount, 1);
+		int arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+		int segmentCountLength = segmentCount * segmentLength;
+		int segmentLengthMask = segmentLength - 1;
+
+		byte[] fingerprints = new byte[arrayLength];
+		long[] order = new long[size + 1];
+		byte[] orderSlot = new byte[size];
+		long[] slotHashes = new long[arrayLength];
+		byte[] slotCounts = new byte[arrayLength];
+		int[] alone = new int[arrayLength];
+		int[] slots = new int[5];
+
+		// Buckets by the leading bits of the hash, to put the keys roughly in slot order.
+		int blockBits = 1;
+		while ((1 << blockBits) < segmentCount) { blockBits++; }
+		int[] startPos = new int[1 << blockBits];
+
+		long seed = 0;
+		for (int attempt = 0 ; ; ++attempt)
+		{
+			if (attempt == MAX_ATTEMPTS) { throw new IllegalStateException("Could not build a binary fuse filter."); }
+			seed = mix(0x9E3779B97F4A7C15L * (attempt + 1));
+
+			// Spread the keys into the buckets.  The order array is one longer than
+			// the keys, and the sentinel at the end is never zero.
+			Arrays.fill(order, 0);
+			order[size] = 1;
+			for (int j = 0 ; j < startPos.length ; ++j)
+			{
+				startPos[j] = (int) (((long) j * size) >>> blockBits);
+			}
+			for (int j = 0 ; j < size ; ++j)
+			{
+				long hash = mix(hashes[j] + seed);
+				int bucket = (int) (hash >>> (64 - blockBits));
+				while (order[startPos[bucket]] != 0)
+				{
+					bucket = (bucket + 1) & (startPos.length - 1);
+				}
+				order[startPos[bucket]] = hash;
+				startPos[bucket]++;
+			}
+
+			// Count the keys on each slot.  The count is kept four times over so that
+			// the low two bits can hold the XOR of which of their three slots it is,
+			// and the hashes are XORed together, so a slot down to one key knows it.
+			Arrays.fill(slotCounts, (byte) 0);
+			Arrays.fill(slotHashes, 0);
+			int countMask = 0;
+			for (int j = 0 ; j < size ; ++j)
+			{
+				long hash = order[j];
+				for (int which = 0 ; which < ARITY ; ++which)
+				{
+					int slot = slotOf(hash, which, segmentLength, segmentLengthMask, segmentCountLength);
+					slotCounts[slot] += 4;
+					slotCounts[slot] ^= which;
+					slotHashes[slot] ^= hash;
+					countMask |= slotCounts[slot];
+				}
+			}
+			if (countMask < 0)
+			{
+				// Some slot has 32 or more keys, which overflows its count.
+				continue;
+			}
+
+			// Peel.
+			int nAlone = 0;
+			for (int slot = 0 ; slot < arrayLength ; ++slot)
+			{
+				if ((slotCounts[slot] >> 2) == 1) { alone[nAlone++] = slot; }
+			}
+			int nPeeled = 0;
+			while (nAlone > 0)
+			{
+				int slot = alone[--nAlone];
+				if ((slotCounts[slot] >> 2) != 1) { continue; }
+
+				long hash = slotHashes[slot];
+				int which = slotCounts[slot] & 3;
+				order[nPeeled] = hash;
+				orderSlot[nPeeled] = (byte) which;
+				nPeeled++;
+
+				fillSlots(hash, slots, segmentLength, segmentLengthMask, segmentCountLength);
+				for (int k = 1 ; k < ARITY ; ++k)
+				{
+					int other = slots[which + k];
+					if ((slotCounts[other] >> 2) == 2) { alone[nAlone++] = other; }
+					slotCounts[other] -= 4;
+					slotCounts[other] ^= (which + k) % ARITY;
+					slotHashes[other] ^= hash;
+				}
+			}
+			if (nPeeled == size) { break; }
+		}
+
+		// Set the keys in the reverse of the order they were peeled, so each one's
+		// peeled slot is free to make its XOR come out right.
+		for (int j = size - 1 ; j >= 0 ; --j)
+		{
+			long hash = order[j];
+			int which = orderSlot[j];
+			fillSlots(hash, slots, segmentLength, segmentLengthMask, segmentCountLength);
+			fingerprints[slots[which]] = (byte) (fingerprintOf(hash)
+					^ fingerprints[slots[which + 1]] ^ fingerprints[slots[which + 2]]);
+		}
+
+		return new BinaryFuseFilter<T>(keyBytes, seed, segmentLength, segmentCountLength, fingerprints, size);
+	}
+
+	/**
+	 * Always throws, since the filter can't change once built.
+	 *
+	 * @param x Ignored.
+	 * @throws UnsupportedOperationException Always.
+	 */
+	@Override
+	public void add(T x)
+	{
+		throw new UnsupportedOperationException("Binary fuse filters can't be added to once built.");
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		if (x == null) { throw new IllegalArgumentException("x may not be null."); }
+
+		return containsHash(hashOf(x, keyBytes));
+	}
+
+	/**
+	 * Tells whether a key is in the set by its hash, without creating any objects.
+	 *
+	 * @param keyHash The hash of the key: a 64 bit xxHash of its bytes if the filter
+	 * was built with a <code>KeyBytes</code>, or its hash code otherwise.
+	 * @return <code>true</code> if the key is in the set.  Very likely <code>false</code> otherwise.
+	 */
+	public boolean containsHash(long keyHash)
+	{
+		long hash = mix(keyHash + seed);
+		int h0 = slotOf(hash, 0, segmentLength, segmentLengthMask, segmentCountLength);
+		int h1 = slotOf(hash, 1, segmentLength, segmentLengthMask, segmentCountLength);
+		int h2 = slotOf(hash, 2, segmentLength, segmentLengthMask, segmentCountLength);
+		return (byte) (fingerprintOf(hash) ^ fingerprints[h0] ^ fingerprints[h1] ^ fingerprints[h2]) == 0;
+	}
+
+	/**
+	 * Gets the number of distinct keys the filter was built from.
+	 *
+	 * @return The number of distinct key hashes.
+	 */
+	public int getNumKeys()
+	{
+		return nKeys;
+	}
+
+	/**
+	 * Gets the size of the filter.
+	 *
+	 * @return The number of bits of fingerprint slots.
+	 */
+	public long getNumBits()
+	{
+		return 8L * fingerprints.length;
+	}
+
+	/**
+	 * Hashes a key.
+	 *
+	 * @param x The key.
+	 * @param keyBytes Gets the bytes of the key, or null to use its hash code.
+	 * @return The hash.
+	 */
+	private static <T> long hashOf(T x, final KeyBytes<T> keyBytes)
+	{
+		return (keyBytes == null) ? x.hashCode() : XxHash64.hash(keyBytes.getBytes(x), 0);
+	}
+
+	/**
+	 * Scrambles a hash.
+	 *
+	 * @param hash The hash.
+	 * @return The scrambled hash.
+	 */
+	private static long mix(long hash)
+	{
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Gets the fingerprint of a scrambled hash.
+	 *
+	 * @param hash The hash.
+	 * @return Its fingerprint in the low eight bits.
+	 */
+	private static int fingerprintOf(long hash)
+	{
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * Gets one of the three slots of a scrambled hash.
+	 *
+	 * @param hash The hash.
+	 * @param which Which slot, 0, 1 or 2.
+	 * @param segmentLength The number of slots in a segment.
+	 * @param segmentLengthMask One less than that.
+	 * @param segmentCountLength The number of slots the first slot can be in.
+	 * @return The slot.
+	 */
+	private static int slotOf(long hash, int which, int segmentLength, int segmentLengthMask,
+			int segmentCountLength)
+	{
+		// The first slot scales the hash to the range, using the high half of the
+		// 128 bit product, and the others are in the next segments along.
+		long lo = (hash & 0xFFFFFFFFL) * segmentCountLength;
+		long hi = (hash >>> 32) * segmentCountLength;
+		int slot = (int) ((hi + (lo >>> 32)) >>> 32);
+		if (which == 0) { return slot; }
+		if (which == 1) { return (slot + segmentLength) ^ (int) ((hash >>> 18) & segmentLengthMask); }
+		return (slot + 2 * segmentLength) ^ (int) (hash & segmentLengthMask);
+	}
+
+	/**
+	 * Gets all three slots of a scrambled hash, repeating the first two after them
+	 * so that the two others of any slot follow it.
+	 *
+	 * @param hash The hash.
+	 * @param slots Receives the slots.  Must be at least five long.
+	 * @param segmentLength The number of slots in a segment.
+	 * @param segmentLengthMask One less than that.
+	 * @param segmentCountLength The number of slots the first slot can be in.
+	 */
+	private static void fillSlots(long hash, int[] slots, int segmentLength, int segmentLengthMask,
+			int segmentCountLength)
+	{
+		for (int which = 0 ; which < ARITY ; ++which)
+		{
+			slots[which] = slotOf(hash, which, segmentLength, segmentLengthMask, segmentCountLength);
+		}
+		slots[3] = slots[0];
+		slots[4] = slots[1];
+	}
+
+	/**
+	 * Gets the number of keys each parallel hashing task should take.
+	 *
+	 * @param n The number of keys.
+	 * @return The grain size.
+	 */
+	private static int grainFor(int n)
+	{
+		int threads = ForkJoinPool.getCommonPoolParallelism();
+		return Math.max(PARALLEL_THRESHOLD, n / Math.max(1, TASKS_PER_THREAD * threads));
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("BinaryFuseFilter<nKeys=");
+		sb.append(nKeys);
+		sb.append(",nSlots=");
+		sb.append(fingerprints.length);
+		sb.append(">");
+		return sb.toString();
+	}
+
+	/**
+	 * A task that hashes a range of keys, splitting itself while the range is big.
+	 */
+	private static final class HashTask<T> extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Object[] keys;
+		private final KeyBytes<T> keyBytes;
+		private final long[] hashes;
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		/**
+		 * Creates a new hashing task.
+		 *
+		 * @param keys The keys.
+		 * @param keyBytes Gets the bytes of the keys, or null to use their hash codes.
+		 * @param hashes Receives the hashes.
+		 * @param from The first key to hash.
+		 * @param to One past the last key to hash.
+		 * @param grain The most keys to hash without splitting.
+		 */
+		HashTask(final Object[] keys, final KeyBytes<T> keyBytes, final long[] hashes, int from, int to, int grain)
+		{
+			this.keys = keys;
+			this.keyBytes = keyBytes;
+			this.hashes = hashes;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void compute()
+		{
+			if (to - from > grain)
+			{
+				int mid = (from + to) >>> 1;
+				invokeAll(new HashTask<T>(keys, keyBytes, hashes, from, mid, grain),
+						new HashTask<T>(keys, keyBytes, hashes, mid, to, grain));
+				return;
+			}
+
+			for (int j = from ; j < to ; ++j)
+			{
+				if (keys[j] == null) { throw new IllegalArgumentException("Keys may not be null."); }
+				hashes[j] = hashOf((T) keys[j], keyBytes);
+			}
+		}
+	}
+}
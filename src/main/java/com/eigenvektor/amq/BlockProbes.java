@@ -0,0 +1,182 @@
+/*
+ *  Probes of the 512 bit blocks of a blocked Bloom filter.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+/**
+ * Sets and tests the bits of an element in one 512 bit block of a
+ * <code>BlockedBloomFilter</code>.  The bits are <code>(h1 + j * h2) mod 512</code>
+ * for <code>j</code> from 0 to <code>numHashes - 1</code>.
+ * <p>
+ * There are two implementations.  The vector probes are written with the incubating
+ * <code>LongVector</code> API: they build the element's mask for the whole block in
+ * vector registers, then set or test it with one wide operation.  They are only built
+ * on JDK 16 and later, and can only be loaded when the <code>jdk.incubator.vector</code>
+ * module is added to the JVM.  Otherwise the scalar probes are used, which touch one
+ * word per bit.  Setting the system property <code>com.eigenvektor.amq.probes</code>
+ * to <code>scalar</code> uses the scalar probes even when the vector ones are there.
+ */
+final class BlockProbes
+{
+	// The system property that picks the probes.
+	static final String PROPERTY = "com.eigenvektor.amq.probes";
+
+	// The names of the two implementations.
+	static final String VECTOR = "vector";
+	static final String SCALAR = "scalar";
+
+	// The number of bits in a block, and the number of longs that makes.
+	static final int BLOCK_BITS = 512;
+	static final int BLOCK_WORDS = BLOCK_BITS / 64;
+
+	// The class of the vector probes, which is only there if it could be built.
+	private static final String VECTOR_CLASS = "com.eigenvektor.amq.VectorBlockProbes";
+
+	/**
+	 * An implementation of the probes.
+	 */
+	interface Impl
+	{
+		/**
+		 * Sets an element's bits in a block.
+		 *
+		 * @param words The bits of the filter.
+		 * @param base The index in words of the block's first word.
+		 * @param h1 The first hash, giving the first bit.
+		 * @param h2 The second hash, giving the step between bits.  It must be odd.
+		 * @param numHashes The number of bits to set.
+		 */
+		void set(long[] words, int base, int h1, int h2, int numHashes);
+
+		/**
+		 * Tells whether all of an element's bits are set in a block.
+		 *
+		 * @param words The bits of the filter.
+		 * @param base The index in words of the block's first word.
+		 * @param h1 The first hash, giving the first bit.
+		 * @param h2 The second hash, giving the step between bits.  It must be odd.
+		 * @param numHashes The number of bits to test.
+		 * @return <code>true</code> iff every bit is set.
+		 */
+		boolean test(long[] words, int base, int h1, int h2, int numHashes);
+	}
+
+	// The probes in use.  Being a constant, calls through it are inlined.
+	private static final Impl PROBES = load();
+
+	private BlockProbes()
+	{
+	}
+
+	/**
+	 * Picks the probes to use: the vector ones if they are there, unless the system
+	 * property asks for the scalar ones.
+	 *
+	 * @return The probes.
+	 */
+	private static Impl load()
+	{
+		if (!SCALAR.equals(System.getProperty(PROPERTY)))
+		{
+			Impl ret = get(VECTOR);
+			if (ret != null) { return ret; }
+		}
+		return new Scalar();
+	}
+
+	/**
+	 * Gets an implementation of the probes by name.
+	 *
+	 * @param name <code>"vector"</code> or <code>"scalar"</code>.
+	 * @return The probes, or null if the vector probes were asked for and can't be
+	 * loaded in this JVM.
+	 */
+	static Impl get(final String name)
+	{
+		if (SCALAR.equals(name)) { return new Scalar(); }
+		if (!VECTOR.equals(name)) { throw new IllegalArgumentException("Unknown probes: " + name); }
+
+		try
+		{
+			return (Impl) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			// Not built, or the vector module isn't in this JVM.
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the name of the probes in use.
+	 *
+	 * @return <code>"vector"</code> or <code>"scalar"</code>.
+	 */
+	static String getName()
+	{
+		return (PROBES instanceof Scalar) ? SCALAR : VECTOR;
+	}
+
+	/**
+	 * Sets an element's bits in a block.
+	 *
+	 * @see Impl#set(long[], int, int, int, int)
+	 */
+	static void set(final long[] words, final int base, final int h1, final int h2, final int numHashes)
+	{
+		PROBES.set(words, base, h1, h2, numHashes);
+	}
+
+	/**
+	 * Tells whether all of an element's bits are set in a block.
+	 *
+	 * @see Impl#test(long[], int, int, int, int)
+	 */
+	static boolean test(final long[] words, final int base, final int h1, final int h2, final int numHashes)
+	{
+		return PROBES.test(words, base, h1, h2, numHashes);
+	}
+
+	/**
+	 * The scalar probes, one word access per bit.  The test stops at the first clear
+	 * bit, which for most absent elements is one of the first two.
+	 */
+	static final class Scalar implements Impl
+	{
+		@Override
+		public void set(final long[] words, final int base, final int h1, final int h2, final int numHashes)
+		{
+			for (int j = 0 ; j < numHashes ; ++j)
+			{
+				int bit = (h1 + j * h2) & (BLOCK_BITS - 1);
+				words[base + (bit >>> 6)] |= 1L << bit;
+			}
+		}
+
+		@Override
+		public boolean test(final long[] words, final int base, final int h1, final int h2, final int numHashes)
+		{
+			for (int j = 0 ; j < numHashes ; ++j)
+			{
+				int bit = (h1 + j * h2) & (BLOCK_BITS - 1);
+				if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) { return false; }
+			}
+			return true;
+		}
+	}
+}
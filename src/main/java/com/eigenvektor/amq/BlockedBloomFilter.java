@@ -0,0 +1,266 @@
+/*
+ *  Cache blocked Bloom Filter implementation.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+/**
+ * Implementation of a cache blocked Bloom filter.
+ *
+ * The bits are divided into 512 bit blocks, the size of a typical cache line.  Each
+ * element first picks a single block and then sets all of its bits within that block,
+ * so a query touches one cache line instead of one per hash.  The price is a slightly
+ * higher false positive rate than a <code>BloomFilter</code> of the same size, since
+ * blocks fill unevenly.
+ *
+ * Where the <code>jdk.incubator.vector</code> module is available the bits within a
+ * block are set and tested with SIMD instructions; see <code>BlockProbes</code>.
+ */
+public final class BlockedBloomFilter<T> extends AbstractApproxMemQuery<T>
+{
+	// The number of bits in a block, and the number of longs that makes.
+	private static final int BLOCK_BITS = BlockProbes.BLOCK_BITS;
+	private static final int BLOCK_WORDS = BlockProbes.BLOCK_WORDS;
+
+	// The number of elements hashed ahead of probing in the bulk operations.
+	private static final int BATCH_SIZE = 256;
+
+	// The bits of the filter, block after block.
+	private final long[] words;
+
+	// The number of blocks and number of hashes.
+	private final int numBlocks;
+	private final int numHashes;
+
+	// The hash code generator.
+	private final MultiHash<T> hasher;
+
+	// The number of things that have been added to this filter.
+	private long numAdds = 0;
+
+	/**
+	 * Creates a new blocked Bloom filter.
+	 *
+	 * @param numBits The number of bits in the filter.  This is rounded up to a whole
+	 * number of 512 bit blocks.
+	 * @param numHashes The number of hashes to use per entry.
+	 * @param hasher The hash generator.  Two hashes are taken from it per element.
+	 */
+	public BlockedBloomFilter(int numBits, int numHashes, MultiHash<T> hasher)
+	{
+		if (numBits <= 0) { throw new IllegalArgumentException("Number of bits must be positive."); }
+		if (numHashes <= 0) { throw new IllegalArgumentException("Number of hashes must be positive."); }
+		if (hasher == null) { throw new IllegalArgumentException("hasher must be non-null"); }
+
+		this.numBlocks = (int) (((long) numBits + BLOCK_BITS - 1) / BLOCK_BITS);
+		this.numHashes = numHashes;
+		this.hasher = hasher;
+
+		this.words = new long[numBlocks * BLOCK_WORDS];
+	}
+
+	/**
+	 * Creates a new blocked Bloom filter using the hash extender.
+	 *
+	 * @param numBits The number of bits in the filter.  This is rounded up to a whole
+	 * number of 512 bit blocks.
+	 * @param numHashes The number of hashes to use per entry.
+	 */
+	public BlockedBloomFilter(int numBits, int numHashes)
+	{
+		this(numBits, numHashes, new HashExtender<T>());
+	}
+
+	@Override
+	public void add(T x)
+	{
+		if (x == null) { throw new IllegalArgumentException("x may not be null."); }
+
+		addHash(hashOf(x));
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		if (x == null) { throw new IllegalArgumentException("x may not be null."); }
+
+		return containsHash(hashOf(x));
+	}
+
+	/**
+	 * Adds an element to the filter by a 64 bit hash of it, without creating any objects.
+	 *
+	 * @param hash The hash of the element.
+	 */
+	public void addHash(long hash)
+	{
+		if (containsHash(hash)) { return; }
+
+		hash = mix(hash);
+		BlockProbes.set(words, blockOf(hash) * BLOCK_WORDS, h1(hash), h2(hash), numHashes);
+
+		numAdds++;
+	}
+
+	/**
+	 * Tells whether an element has been added by a 64 bit hash of it, without creating
+	 * any objects.
+	 *
+	 * @param hash The hash of the element.
+	 * @return <code>true</code> if the element is in the filter.  Very likely <code>false</code> otherwise.
+	 */
+	public boolean containsHash(long hash)
+	{
+		hash = mix(hash);
+		return BlockProbes.test(words, blockOf(hash) * BLOCK_WORDS, h1(hash), h2(hash), numHashes);
+	}
+
+	@Override
+	public void addAll(T[] xs)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
+
+		// Hash a batch before touching the blocks.  The block accesses are then back to
+		// back, and the processor can have several of them in flight at once.
+		long[] batch = new long[BATCH_SIZE];
+		for (int start = 0 ; start < xs.length ; start += BATCH_SIZE)
+		{
+			int end = Math.min(start + BATCH_SIZE, xs.length);
+			for (int j = start ; j < end ; ++j)
+			{
+				if (xs[j] == null) { throw new IllegalArgumentException("x may not be null."); }
+				batch[j - start] = hashOf(xs[j]);
+			}
+
+			for (int j = start ; j < end ; ++j)
+			{
+				addHash(batch[j - start]);
+			}
+		}
+	}
+
+	@Override
+	public void containsAll(T[] xs, boolean[] out)
+	{
+		checkContainsAll(xs, out);
+
+		long[] batch = new long[BATCH_SIZE];
+		for (int start = 0 ; start < xs.length ; start += BATCH_SIZE)
+		{
+			int end = Math.min(start + BATCH_SIZE, xs.length);
+			for (int j = start ; j < end ; ++j)
+			{
+				if (xs[j] == null) { throw new IllegalArgumentException("x may not be null."); }
+				batch[j - start] = hashOf(xs[j]);
+			}
+
+			for (int j = start ; j < end ; ++j)
+			{
+				out[j] = containsHash(batch[j - start]);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of independent adds.  This may be less than the number of times
+	 * <code>add()</code> has been called if <code>add</code> was called with either the
+	 * same object several times, or an object that generated a false positive for
+	 * containment.
+	 *
+	 * @return The number of independent adds.
+	 */
+	public long getNumAdds()
+	{
+		return numAdds;
+	}
+
+	/**
+	 * Gets the number of bits in the filter, which is always a multiple of 512.
+	 *
+	 * @return The number of bits.
+	 */
+	public long getNumBits()
+	{
+		return (long) numBlocks * BLOCK_BITS;
+	}
+
+	/**
+	 * Gets a 64 bit hash of an element from two of the hasher's hashes.
+	 *
+	 * @param x The element.
+	 * @return The hash.
+	 */
+	private long hashOf(T x)
+	{
+		return hasher.getHashPair(x);
+	}
+
+	/**
+	 * Picks the block for a mixed hash.
+	 *
+	 * @param hash The mixed hash.
+	 * @return The index of the block.
+	 */
+	private int blockOf(long hash)
+	{
+		// Scale the top 32 bits into the range, rather than taking a modulus.
+		return (int) (((hash >>> 32) * numBlocks) >>> 32);
+	}
+
+	/**
+	 * Gets the first bit of an element in its block from a mixed hash.  Only the low
+	 * nine bits count, so they are taken from the bottom of the hash, away from the
+	 * top bits that pick the block.
+	 *
+	 * @param hash The mixed hash.
+	 * @return The first hash.
+	 */
+	private static int h1(long hash)
+	{
+		return (int) hash;
+	}
+
+	/**
+	 * Gets the step between the bits of an element in its block from a mixed hash.
+	 * Only its low nine bits count too, so it comes from the middle of the hash, where
+	 * neither the block nor <code>h1</code> looks.
+	 *
+	 * @param hash The mixed hash.
+	 * @return The second hash, which is odd so the bits never repeat within a block.
+	 */
+	private static int h2(long hash)
+	{
+		return (int) (hash >>> 16) | 1;
+	}
+
+	/**
+	 * Mixes the bits of a hash so the block choice and the bits within the block
+	 * are independent (the finalizer of MurmurHash3).
+	 *
+	 * @param hash The hash.
+	 * @return The mixed hash.
+	 */
+	private static long mix(long hash)
+	{
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -18,25 +18,105 @@
 
 package com.eigenvektor.amq;
 
-import java.util.BitSet;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Implementation of a Bloom Filter
  */
-public final class BloomFilter<T> implements ApproxMemQuery<T>
+public final class BloomFilter<T> extends AbstractApproxMemQuery<T>
 {
-	// The bits of the filter.
-	private final BitSet bits;
+	/**
+	 * The most bits a filter can have: 2^30 words, or 8GB.
+	 */
+	public static final long MAX_NUM_BITS = 1L << 36;
+	
+	/**
+	 * The hasher ID of filters using the hash extender.
+	 */
+	public static final long HASH_EXTENDER_ID = 1;
+	
+	// The number of elements hashed ahead of probing in the bulk operations.
+	private static final int BATCH_SIZE = 256;
+	
+	// Identifies a serialized Bloom filter, and the version of the format.
+	private static final int MAGIC = 0x42464C54; // "BFLT"
+	private static final int VERSION = 3;
+	
+	// The ways of hashing an element that a serialized filter can record: with the
+	// caller's hash generator, told apart by the ID the caller gave it, or to 64 bits
+	// with xxHash and double hashing as <code>create()</code> does, with the xxHash
+	// seed in place of the ID.  A change to how either picks its bits gets a new scheme.
+	private static final int SCHEME_MULTI_HASH = 1;
+	private static final int SCHEME_XXHASH64_V1 = 2;
+	
+	// The size of the serialized header in bytes.
+	private static final int HEADER_BYTES = 40;
+	
+	// Offsets of the fields in the header.
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int NUMHASHES_OFFSET = 8;
+	private static final int SCHEME_OFFSET = 12;
+	private static final int NUMBITS_OFFSET = 16;
+	private static final int NUMADDS_OFFSET = 24;
+	private static final int HASHER_ID_OFFSET = 32;
+	
+	// The bits of the filter, 64 to a word.
+	private final long[] words;
 	
 	// The number of bits and number of hashes.
-	private final int numBits;
+	private final long numBits;
 	private final int numHashes;
 	
-	// The hash code generator.
+	// The hash code generator, or null if elements are hashed to 64 bits.
 	private final MultiHash<T> hasher;
 	
+	// Gets the bytes of an element for its 64 bit hash, or null if the hash code
+	// generator is used instead.
+	private final KeyBytes<T> keyBytes;
+	
+	// The ID of the hash generator, or the xxHash seed if elements are hashed to 64 bits.
+	private final long hasherId;
+	
+	// A buffer for the hashes of the element being added or queried, so that
+	// each call doesn't allocate.  There is one per thread, so that queries from
+	// several threads at once don't overwrite each other's hashes.
+	private final ThreadLocal<int[]> hashBuffer = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[numHashes];
+		}
+	};
+	
 	// The number of things that have been added to this bloom filter.
-	private int numAdds = 0;
+	private long numAdds = 0;
+	
+	// The number of bits set, kept up to date as they are set so the metrics and the
+	// cardinality estimate never have to count them.
+	private long numSet = 0;
+	
+	// The running metrics.
+	private final FilterCounters counters = new FilterCounters()
+	{
+		@Override
+		public double getFillRatio()
+		{
+			return (double) numSet / numBits;
+		}
+		
+		@Override
+		public double getEstimatedFalsePositiveRate()
+		{
+			// An element that was never added is a false positive if all its bits are set.
+			return Math.pow(getFillRatio(), numHashes);
+		}
+	};
 	
 	/**
 	 * Creates a new Bloom filter.
@@ -44,8 +124,12 @@ public final class BloomFilter<T> implements ApproxMemQuery<T>
 	 * @param numBits The number of bits in the filter.
 	 * @param numHashes The number of hashes to use per entry.
 	 * @param hasher The hash generator.
+	 * @param hasherId Identifies the hash generator and its settings, so that a filter
+	 * is only read back or combined with another that hashes the same way.  It must be
+	 * the same wherever the filter is used.  Zero means the hash generator is unnamed,
+	 * and filters with it are only combined if their hash generators are the same class.
 	 */
-	public BloomFilter(int numBits, int numHashes, MultiHash<T> hasher)
+	public BloomFilter(int numBits, int numHashes, MultiHash<T> hasher, long hasherId)
 	{
 		if (numBits <= 0) { throw new IllegalArgumentException("Number of bits must be positive."); }
 		if (numHashes <= 0) { throw new IllegalArgumentException("Number of hashes must be positive."); }
@@ -54,8 +138,48 @@ public final class BloomFilter<T> implements ApproxMemQuery<T>
 		this.numBits = numBits;
 		this.numHashes = numHashes;
 		this.hasher = hasher;
+		this.keyBytes = null;
+		this.hasherId = hasherId;
 		
-		this.bits = new BitSet(numBits);
+		this.words = new long[numWords(numBits)];
+	}
+	
+	/**
+	 * Creates a new Bloom filter with the default ID for its hasher:
+	 * <code>HASH_EXTENDER_ID</code> for the hash extender, and zero for anything else.
+	 * 
+	 * @param numBits The number of bits in the filter.
+	 * @param numHashes The number of hashes to use per entry.
+	 * @param hasher The hash generator.
+	 */
+	public BloomFilter(int numBits, int numHashes, MultiHash<T> hasher)
+	{
+		this(numBits, numHashes, hasher, defaultHasherId(hasher));
+	}
+	
+	/**
+	 * Creates a Bloom filter around existing bits.
+	 * 
+	 * @param numBits The number of bits in the filter.
+	 * @param numHashes The number of hashes to use per entry.
+	 * @param hasher The hash generator, or null to hash elements to 64 bits.
+	 * @param keyBytes Gets the bytes of elements to hash to 64 bits, or null to use
+	 * <code>hasher</code>.
+	 * @param hasherId The ID of <code>hasher</code>, or the xxHash seed.
+	 * @param words The bits.
+	 * @param numAdds The number of things already added.
+	 */
+	private BloomFilter(long numBits, int numHashes, MultiHash<T> hasher, KeyBytes<T> keyBytes,
+			long hasherId, long[] words, long numAdds)
+	{
+		this.numBits = numBits;
+		this.numHashes = numHashes;
+		this.hasher = hasher;
+		this.keyBytes = keyBytes;
+		this.hasherId = hasherId;
+		this.words = words;
+		this.numAdds = numAdds;
+		this.numSet = cardinality();
 	}
 	
 	/**
@@ -66,7 +190,56 @@ public final class BloomFilter<T> implements ApproxMemQuery<T>
 	 */
 	public BloomFilter(int numBits, int numHashes)
 	{
-		this(numBits, numHashes, new HashExtender<T>());
+		this(numBits, numHashes, new HashExtender<T>(), HASH_EXTENDER_ID);
+	}
+	
+	/**
+	 * Creates a Bloom filter sized to hold a number of elements with a given false
+	 * positive rate, which takes m = -n ln(p) / (ln 2)^2 bits and k = (m / n) ln 2
+	 * hashes.  It may have more than 2^31 bits.
+	 * 
+	 * Each element is hashed once, to 64 bits with xxHash, and its k bits are chosen
+	 * from that one hash by double hashing as described by Kirsch and Mitzenmacher, in
+	 * the same way as <code>addHash()</code> chooses them.
+	 * 
+	 * @param expectedInsertions The number of distinct elements the filter will hold.
+	 * @param falsePositiveRate The false positive rate wanted once it holds them.
+	 * @param keyBytes Gets the bytes to hash from an element.
+	 * @param seed The seed for xxHash.
+	 * @return The Bloom filter.
+	 */
+	public static <T> BloomFilter<T> create(long expectedInsertions, double falsePositiveRate,
+			final KeyBytes<T> keyBytes, long seed)
+	{
+		if (expectedInsertions <= 0) { throw new IllegalArgumentException("expectedInsertions must be positive."); }
+		if (!(falsePositiveRate > 0.0 && falsePositiveRate < 1.0)) {
+			throw new IllegalArgumentException("falsePositiveRate must be strictly between 0 and 1."); }
+		if (keyBytes == null) { throw new IllegalArgumentException("keyBytes must be non-null"); }
+		
+		double ln2 = Math.log(2);
+		double bits = Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+		if (bits > MAX_NUM_BITS) {
+			throw new IllegalArgumentException("That would take more than " + MAX_NUM_BITS + " bits."); }
+		
+		long numBits = (long) bits;
+		int numHashes = (int) Math.max(1, Math.round(bits / expectedInsertions * ln2));
+		return new BloomFilter<T>(numBits, numHashes, null, keyBytes, seed, new long[numWords(numBits)], 0);
+	}
+	
+	/**
+	 * Creates a Bloom filter sized to hold a number of elements with a given false
+	 * positive rate, hashing with a zero seed.
+	 * 
+	 * @param expectedInsertions The number of distinct elements the filter will hold.
+	 * @param falsePositiveRate The false positive rate wanted once it holds them.
+	 * @param keyBytes Gets the bytes to hash from an element.
+	 * @return The Bloom filter.
+	 * @see #create(long, double, KeyBytes, long)
+	 */
+	public static <T> BloomFilter<T> create(long expectedInsertions, double falsePositiveRate,
+			final KeyBytes<T> keyBytes)
+	{
+		return create(expectedInsertions, falsePositiveRate, keyBytes, 0);
 	}
 	
 	/* (non-Javadoc)
@@ -77,12 +250,21 @@ public final class BloomFilter<T> implements ApproxMemQuery<T>
 	{
 		if (x == null) { throw new IllegalArgumentException("x may not be null."); }
 		
+		if (keyBytes != null)
+		{
+			addHash(hashOf(x));
+			return;
+		}
+		
+		counters.recordAdd();
+		
 		// Get the hashes for x.
-		int[] hashes = hasher.getHashes(x, numHashes);
+		int[] hashes = hashBuffer.get();
+		hasher.getHashes(x, hashes);
 		
 		// If the bits for all those hashes are set, it's likely that the object is
 		// already contained in the filter.  We don't need to do anything.
-		if (containsHashes(hashes)) { return; }
+		if (countSet(hashes) == numHashes) { return; }
 		
 		// insert the hashes.
 		insertHashes(hashes);
@@ -99,12 +281,282 @@ public final class BloomFilter<T> implements ApproxMemQuery<T>
 	{
 		if (x == null) { throw new IllegalArgumentException("x may not be null."); }
 		
+		if (keyBytes != null) { return containsHash(hashOf(x)); }
+		
 		// Get the hashes for x.
-		int[] hashes = hasher.getHashes(x, numHashes);
+		int[] hashes = hashBuffer.get();
+		hasher.getHashes(x, hashes);
 		
 		// If the bits for all those hashes are set, it's likely that the object is
 		// contained in the filter.
-		return containsHashes(hashes);
+		return recordQuery(countSet(hashes));
+	}
+	
+	/**
+	 * Adds an element to the filter by a 64 bit hash of it, without creating any objects.
+	 * The bits are chosen by double hashing, h1 + j * h2 for the j-th bit, where h1 is
+	 * the hash and h2 is the hash with its halves swapped.  For a filter made with
+	 * <code>create()</code> this is the same as adding the element, but otherwise it is
+	 * a different set of bits from the ones <code>add()</code> would choose, so any one
+	 * filter should be used either with hashes or with elements, not both.
+	 * 
+	 * @param hash The hash of the element.
+	 */
+	public void addHash(long hash)
+	{
+		counters.recordAdd();
+		if (countSet(hash) == numHashes) { return; }
+		
+		long h2 = Long.rotateLeft(hash, 32);
+		long combined = hash;
+		for (int j = 0 ; j < numHashes ; ++j, combined += h2)
+		{
+			set(reduce(combined));
+		}
+		
+		numAdds++;
+	}
+	
+	/**
+	 * Tells whether an element has been added by a 64 bit hash of it, without creating
+	 * any objects.
+	 * 
+	 * @param hash The hash of the element.
+	 * @return <code>true</code> if the element is in the filter.  Very likely <code>false</code> otherwise.
+	 */
+	public boolean containsHash(long hash)
+	{
+		return recordQuery(countSet(hash));
+	}
+	
+	@Override
+	public void addAll(T[] xs)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
+		
+		// Hashing to 64 bits costs more than probing, so there is nothing to gain
+		// from batching.
+		if (keyBytes != null)
+		{
+			for (T x : xs)
+			{
+				add(x);
+			}
+			return;
+		}
+		
+		// Hash a batch before touching the bits.  The bit accesses are then back to
+		// back, and the processor can have several of them in flight at once.
+		long[] batch = new long[BATCH_SIZE * numHashes];
+		for (int start = 0 ; start < xs.length ; start += BATCH_SIZE)
+		{
+			int end = Math.min(start + BATCH_SIZE, xs.length);
+			hashBatch(xs, start, end, batch);
+			
+			for (int j = start, pos = 0 ; j < end ; ++j, pos += numHashes)
+			{
+				counters.recordAdd();
+				
+				// Same as add(), count it only if it wasn't already there.
+				if (countSet(batch, pos) == numHashes) { continue; }
+				for (int h = pos ; h < pos + numHashes ; ++h)
+				{
+					set(batch[h]);
+				}
+				numAdds++;
+			}
+		}
+	}
+	
+	@Override
+	public void containsAll(T[] xs, boolean[] out)
+	{
+		checkContainsAll(xs, out);
+		
+		if (keyBytes != null)
+		{
+			for (int j = 0 ; j < xs.length ; ++j)
+			{
+				out[j] = contains(xs[j]);
+			}
+			return;
+		}
+		
+		long[] batch = new long[BATCH_SIZE * numHashes];
+		for (int start = 0 ; start < xs.length ; start += BATCH_SIZE)
+		{
+			int end = Math.min(start + BATCH_SIZE, xs.length);
+			hashBatch(xs, start, end, batch);
+			
+			for (int j = start, pos = 0 ; j < end ; ++j, pos += numHashes)
+			{
+				out[j] = recordQuery(countSet(batch, pos));
+			}
+		}
+	}
+	
+	/**
+	 * Hashes part of a batch of elements into bit indices ahead of probing them.
+	 * 
+	 * @param xs The elements.
+	 * @param start The first element to hash.
+	 * @param end One past the last element to hash.
+	 * @param batch Receives <code>numHashes</code> bit indices per element.
+	 */
+	private void hashBatch(T[] xs, int start, int end, long[] batch)
+	{
+		int[] hashes = hashBuffer.get();
+		int pos = 0;
+		for (int j = start ; j < end ; ++j)
+		{
+			if (xs[j] == null) { throw new IllegalArgumentException("x may not be null."); }
+			
+			hasher.getHashes(xs[j], hashes);
+			for (int hash : hashes)
+			{
+				batch[pos++] = index(hash);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the filter to a channel: a 40 byte header recording its size, number
+	 * of hashes, number of adds and how it hashes elements, then the bits as little
+	 * endian words.  How it hashes is recorded as the scheme, either the caller's hash
+	 * generator or the xxHash of <code>create()</code>, and the hasher ID or xxHash
+	 * seed, so a filter can be read by another program as long as it hashes the same.
+	 * 
+	 * @param out The channel to write to.  It is not closed.
+	 * @throws IOException If the channel fails.
+	 */
+	public void writeTo(final WritableByteChannel out) throws IOException
+	{
+		if (out == null) { throw new NullPointerException("out may not be null."); }
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC_OFFSET, MAGIC);
+		header.putInt(VERSION_OFFSET, VERSION);
+		header.putInt(NUMHASHES_OFFSET, numHashes);
+		header.putInt(SCHEME_OFFSET, scheme());
+		header.putLong(NUMBITS_OFFSET, numBits);
+		header.putLong(NUMADDS_OFFSET, numAdds);
+		header.putLong(HASHER_ID_OFFSET, hasherId);
+		ChannelIO.writeFully(out, header);
+		
+		ChannelIO.writeWords(out, words, 0, words.length);
+	}
+	
+	/**
+	 * Reads a filter written by <code>writeTo()</code>.
+	 * 
+	 * @param in The channel to read from.  It is left just past the filter, and not closed.
+	 * @param hasher The hash generator the filter was written with.
+	 * @param hasherId The ID the filter's hash generator was given.
+	 * @return The Bloom filter.
+	 * @throws IOException If the channel fails or ends early, or doesn't hold a Bloom
+	 * filter written with a hash generator of the same ID.
+	 */
+	public static <T> BloomFilter<T> readFrom(final ReadableByteChannel in, final MultiHash<T> hasher,
+			long hasherId) throws IOException
+	{
+		if (hasher == null) { throw new IllegalArgumentException("hasher must be non-null"); }
+		
+		return read(in, hasher, hasherId, null);
+	}
+	
+	/**
+	 * Reads a filter written by <code>writeTo()</code> with the default ID for its hasher.
+	 * 
+	 * @param in The channel to read from.  It is left just past the filter, and not closed.
+	 * @param hasher The hash generator the filter was written with.
+	 * @return The Bloom filter.
+	 * @throws IOException If the channel fails or ends early, or doesn't hold a Bloom
+	 * filter written with a hash generator of the default ID.
+	 */
+	public static <T> BloomFilter<T> readFrom(final ReadableByteChannel in, final MultiHash<T> hasher)
+			throws IOException
+	{
+		return readFrom(in, hasher, defaultHasherId(hasher));
+	}
+	
+	/**
+	 * Reads a filter written by <code>writeTo()</code> that uses the hash extender.
+	 * 
+	 * @param in The channel to read from.  It is left just past the filter, and not closed.
+	 * @return The Bloom filter.
+	 * @throws IOException If the channel fails or ends early, or doesn't hold a Bloom
+	 * filter using the hash extender.
+	 */
+	public static <T> BloomFilter<T> readFrom(final ReadableByteChannel in) throws IOException
+	{
+		return readFrom(in, new HashExtender<T>(), HASH_EXTENDER_ID);
+	}
+	
+	/**
+	 * Reads a filter made by <code>create()</code> and written by <code>writeTo()</code>.
+	 * 
+	 * @param in The channel to read from.  It is left just past the filter, and not closed.
+	 * @param keyBytes Gets the bytes of an element, the same as the filter was created
+	 * with.  The seed is read from the stream.
+	 * @return The Bloom filter.
+	 * @throws IOException If the channel fails or ends early, or doesn't hold a Bloom
+	 * filter made by <code>create()</code>.
+	 */
+	public static <T> BloomFilter<T> readFrom(final ReadableByteChannel in, final KeyBytes<T> keyBytes)
+			throws IOException
+	{
+		if (keyBytes == null) { throw new IllegalArgumentException("keyBytes must be non-null"); }
+		
+		return read(in, null, 0, keyBytes);
+	}
+	
+	/**
+	 * Reads a filter written by <code>writeTo()</code>.
+	 * 
+	 * @param in The channel to read from.
+	 * @param hasher The hash generator the filter was written with, or null.
+	 * @param hasherId The ID of <code>hasher</code>, if it isn't null.
+	 * @param keyBytes Gets the bytes of an element, if <code>hasher</code> is null.
+	 * @return The Bloom filter.
+	 * @throws IOException If the channel fails or ends early, or doesn't hold a Bloom
+	 * filter hashed in the same way.
+	 */
+	private static <T> BloomFilter<T> read(final ReadableByteChannel in, final MultiHash<T> hasher,
+			long hasherId, final KeyBytes<T> keyBytes) throws IOException
+	{
+		if (in == null) { throw new NullPointerException("in may not be null."); }
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		ChannelIO.readFully(in, header);
+		if (header.getInt(MAGIC_OFFSET) != MAGIC) { throw new IOException("Stream does not hold a Bloom filter."); }
+		if (header.getInt(VERSION_OFFSET) != VERSION) {
+			throw new IOException("Unsupported Bloom filter version " + header.getInt(VERSION_OFFSET)); }
+		if (header.getInt(SCHEME_OFFSET) != ((hasher != null) ? SCHEME_MULTI_HASH : SCHEME_XXHASH64_V1)) {
+			throw new IOException("Bloom filter was written with a different hashing scheme."); }
+		if (hasher != null && header.getLong(HASHER_ID_OFFSET) != hasherId) {
+			throw new IOException("Bloom filter was written with a different hasher."); }
+		if (hasher == null) { hasherId = header.getLong(HASHER_ID_OFFSET); }
+		
+		long numBits = header.getLong(NUMBITS_OFFSET);
+		int numHashes = header.getInt(NUMHASHES_OFFSET);
+		long numAdds = header.getLong(NUMADDS_OFFSET);
+		if (numBits <= 0 || numBits > MAX_NUM_BITS || numHashes <= 0 || numAdds < 0) {
+			throw new IOException("Bloom filter header is corrupt."); }
+		
+		long[] words = new long[numWords(numBits)];
+		ChannelIO.readWords(in, words, 0, words.length);
+		return new BloomFilter<T>(numBits, numHashes, hasher, keyBytes, hasherId, words, numAdds);
+	}
+	
+	/**
+	 * Gets the number of 64 bit words that hold a number of bits.
+	 * 
+	 * @param numBits The number of bits.
+	 * @return The number of words.
+	 */
+	private static int numWords(long numBits)
+	{
+		return (int) ((numBits + 63) >>> 6);
 	}
 	
 	/**
@@ -115,29 +567,238 @@ public final class BloomFilter<T> implements ApproxMemQuery<T>
 	 * 
 	 * @return The number of independent adds.
 	 */
-	public int getNumAdds()
+	public long getNumAdds()
 	{
 		return numAdds;
 	}
 	
 	/**
-	 * Tells if all of a list of hashes are contained.
+	 * Gets the number of bits in the filter.
 	 * 
-	 * @param hashes the list of hashes.
-	 * @return <code>true</code> iff all those hashes are contained.
+	 * @return The number of bits.
 	 */
-	private boolean containsHashes(int[] hashes)
+	public long getNumBits()
 	{
-		boolean ret = true;
-		for (int hash : hashes)
+		return numBits;
+	}
+	
+	/**
+	 * Gets the number of bits set per element.
+	 * 
+	 * @return The number of hashes.
+	 */
+	public int getNumHashes()
+	{
+		return numHashes;
+	}
+	
+	/**
+	 * Adds everything in another Bloom filter to this one, by or-ing its bits into
+	 * these a word at a time.  Afterwards this filter answers <code>true</code> for
+	 * anything either one did.  The other filter must have the same number of bits and
+	 * hashes, and hash elements the same way.
+	 * 
+	 * There's no telling how many of the other's adds were already here, so the
+	 * number of adds becomes the estimated cardinality.
+	 * 
+	 * @param other The filter to add.  It is not changed.
+	 */
+	public void union(final BloomFilter<T> other)
+	{
+		checkCompatible(other);
+		
+		for (int j = 0 ; j < words.length ; ++j)
+		{
+			words[j] |= other.words[j];
+		}
+		numSet = cardinality();
+		numAdds = estimateNumAdds();
+	}
+	
+	/**
+	 * Keeps only what this Bloom filter has in common with another, by and-ing its
+	 * bits into these a word at a time.  Afterwards this filter answers
+	 * <code>true</code> for anything both did, but some bits stay set that were set by
+	 * different elements in each, so it gives more false positives than a filter
+	 * built from the elements in common would.  The other filter must have the same
+	 * number of bits and hashes, and hash elements the same way.
+	 * 
+	 * The number of adds becomes the estimated cardinality.
+	 * 
+	 * @param other The filter to intersect with.  It is not changed.
+	 */
+	public void intersect(final BloomFilter<T> other)
+	{
+		checkCompatible(other);
+		
+		for (int j = 0 ; j < words.length ; ++j)
+		{
+			words[j] &= other.words[j];
+		}
+		numSet = cardinality();
+		numAdds = estimateNumAdds();
+	}
+	
+	/**
+	 * Estimates the number of distinct elements added from the number of bits set,
+	 * as n = -(m / k) ln(1 - X / m) for m bits, k hashes and X bits set.  After an
+	 * intersection this counts too high, for the reason given at
+	 * <code>intersect()</code>.
+	 * 
+	 * @return The estimated number of elements, or infinity if every bit is set.
+	 */
+	public double getEstimatedCardinality()
+	{
+		long nSet = numSet;
+		if (nSet == numBits) { return Double.POSITIVE_INFINITY; }
+		
+		return -((double) numBits / numHashes) * Math.log1p(-(double) nSet / numBits);
+	}
+	
+	/**
+	 * Checks that another filter's bits line up with these.
+	 * 
+	 * @param other The other filter.
+	 */
+	private void checkCompatible(final BloomFilter<T> other)
+	{
+		if (other == null) { throw new NullPointerException("other may not be null."); }
+		if (other.numBits != this.numBits) { throw new IllegalArgumentException("other must have the same number of bits as this."); }
+		if (other.numHashes != this.numHashes) {
+			throw new IllegalArgumentException("other must use the same number of hashes as this."); }
+		if (other.scheme() != this.scheme() || other.hasherId != this.hasherId) {
+			throw new IllegalArgumentException("other must hash elements the same way as this."); }
+		
+		// An unnamed hash generator can only be told apart by its class.
+		if (scheme() == SCHEME_MULTI_HASH && hasherId == 0 && other.hasher.getClass() != this.hasher.getClass()) {
+			throw new IllegalArgumentException("other must hash elements the same way as this."); }
+	}
+	
+	/**
+	 * Gets the ID a hash generator has unless it is given one.
+	 * 
+	 * @param hasher The hash generator.
+	 * @return <code>HASH_EXTENDER_ID</code> for the hash extender, and zero otherwise.
+	 */
+	private static long defaultHasherId(final MultiHash<?> hasher)
+	{
+		return (hasher instanceof HashExtender) ? HASH_EXTENDER_ID : 0;
+	}
+	
+	/**
+	 * Gets the scheme by which elements are hashed.
+	 * 
+	 * @return The scheme recorded when the filter is written.
+	 */
+	private int scheme()
+	{
+		return (keyBytes != null) ? SCHEME_XXHASH64_V1 : SCHEME_MULTI_HASH;
+	}
+	
+	/**
+	 * Gets the estimated cardinality as a number of adds.
+	 * 
+	 * @return The estimated cardinality, rounded, or the largest long if every bit is set.
+	 */
+	private long estimateNumAdds()
+	{
+		return Math.round(getEstimatedCardinality());
+	}
+	
+	/**
+	 * Counts the bits set, which takes a pass over all of them.
+	 * 
+	 * @return The number of bits set.
+	 */
+	private long cardinality()
+	{
+		long ret = 0;
+		for (long word : words)
 		{
-			ret &= bits.get((hash > 0) ? hash % numBits : hash % numBits + numBits);
+			ret += Long.bitCount(word);
 		}
 		return ret;
 	}
 	
 	/**
-	 * Inserts a bunch of hashes into the bitset.
+	 * Gets the running metrics of this filter.  The probe length of a query is the
+	 * number of bits it read before finding one clear, or all of them.
+	 * 
+	 * @return The metrics, which can be registered as an MXBean.
+	 */
+	public FilterMetricsMXBean getMetrics()
+	{
+		return counters;
+	}
+	
+	/**
+	 * Counts a query in the metrics.
+	 * 
+	 * @param nSet The number of the query's bits found set before the first clear one.
+	 * @return <code>true</code> iff all the query's bits were set.
+	 */
+	private boolean recordQuery(int nSet)
+	{
+		boolean found = (nSet == numHashes);
+		counters.recordQuery(found ? nSet : nSet + 1, found);
+		return found;
+	}
+	
+	/**
+	 * Counts how many of a list of hashes are contained, up to the first one that isn't.
+	 * 
+	 * @param hashes the list of hashes.
+	 * @return The number of hashes contained before the first that isn't, which is
+	 * <code>hashes.length</code> iff all of them are.
+	 */
+	private int countSet(int[] hashes)
+	{
+		for (int j = 0 ; j < hashes.length ; ++j)
+		{
+			if (!get(index(hashes[j]))) { return j; }
+		}
+		return hashes.length;
+	}
+	
+	/**
+	 * Counts how many of one element's bit indices in a batch are set, up to the first
+	 * one that isn't.
+	 * 
+	 * @param batch The batch of bit indices.
+	 * @param pos The position of the element's first index in the batch.
+	 * @return The number of bits set before the first clear one, which is
+	 * <code>numHashes</code> iff all of them are.
+	 */
+	private int countSet(long[] batch, int pos)
+	{
+		for (int h = 0 ; h < numHashes ; ++h)
+		{
+			if (!get(batch[pos + h])) { return h; }
+		}
+		return numHashes;
+	}
+	
+	/**
+	 * Counts how many of the bits chosen by a 64 bit hash are set, up to the first one
+	 * that isn't.
+	 * 
+	 * @param hash The hash of the element.
+	 * @return The number of bits set before the first clear one, which is
+	 * <code>numHashes</code> iff all of them are.
+	 */
+	private int countSet(long hash)
+	{
+		long h2 = Long.rotateLeft(hash, 32);
+		long combined = hash;
+		for (int j = 0 ; j < numHashes ; ++j, combined += h2)
+		{
+			if (!get(reduce(combined))) { return j; }
+		}
+		return numHashes;
+	}
+	
+	/**
+	 * Inserts a bunch of hashes into the bits.
 	 * 
 	 * @param hashes the list of hashes.
 	 */
@@ -145,7 +806,65 @@ public final class BloomFilter<T> implements ApproxMemQuery<T>
 	{
 		for (int hash : hashes)
 		{
-			bits.set((hash > 0) ? hash % numBits : hash % numBits + numBits);
+			set(index(hash));
 		}
 	}
+	
+	/**
+	 * Gets the 64 bit hash of an element, for a filter made by <code>create()</code>.
+	 * 
+	 * @param x The element.
+	 * @return Its hash.
+	 */
+	private long hashOf(T x)
+	{
+		return XxHash64.hash(keyBytes.getBytes(x), hasherId);
+	}
+	
+	/**
+	 * Gets the bit index for a hash.
+	 * 
+	 * @param hash The hash.
+	 * @return The index of the bit, between 0 and <code>numBits - 1</code>.
+	 */
+	private long index(int hash)
+	{
+		long idx = hash % numBits;
+		return (idx >= 0) ? idx : idx + numBits;
+	}
+	
+	/**
+	 * Gets the bit index for a 64 bit double hash.
+	 * 
+	 * @param combined The double hash.
+	 * @return The index of the bit, between 0 and <code>numBits - 1</code>.
+	 */
+	private long reduce(long combined)
+	{
+		return (combined & Long.MAX_VALUE) % numBits;
+	}
+	
+	/**
+	 * Tells whether a bit is set.
+	 * 
+	 * @param idx The index of the bit.
+	 * @return <code>true</code> iff it is set.
+	 */
+	private boolean get(long idx)
+	{
+		return (words[(int) (idx >>> 6)] & (1L << idx)) != 0;
+	}
+	
+	/**
+	 * Sets a bit, counting it if it wasn't set already.
+	 * 
+	 * @param idx The index of the bit.
+	 */
+	private void set(long idx)
+	{
+		int w = (int) (idx >>> 6);
+		long word = words[w];
+		numSet += (~word >>> idx) & 1;
+		words[w] = word | (1L << idx);
+	}
 }
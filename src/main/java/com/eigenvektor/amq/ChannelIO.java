@@ -0,0 +1,131 @@
+/*
+ *  Helpers for reading and writing filters through channels.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Static helpers for moving the words of a filter through channels.  Words are
+ * always little endian, and go through a direct buffer a chunk at a time so that
+ * nothing the size of the filter is allocated besides the filter itself.
+ */
+final class ChannelIO
+{
+	// The number of words moved per chunk, 512KiB worth.
+	static final int CHUNK_WORDS = 1 << 16;
+
+	/**
+	 * Not instantiable.
+	 */
+	private ChannelIO()
+	{
+	}
+
+	/**
+	 * Allocates a buffer for moving a chunk of words.
+	 *
+	 * @param nWords The total number of words to move.
+	 * @return A little endian direct buffer, no bigger than it needs to be.
+	 */
+	static ByteBuffer chunkBuffer(long nWords)
+	{
+		int size = (int) Math.min(nWords, CHUNK_WORDS) * 8;
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes all of a buffer to a channel.
+	 *
+	 * @param out The channel.
+	 * @param buf The buffer, from its position to its limit.
+	 * @throws IOException If the channel fails.
+	 */
+	static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			out.write(buf);
+		}
+	}
+
+	/**
+	 * Fills a buffer from a channel.
+	 *
+	 * @param in The channel.
+	 * @param buf The buffer, which is filled from its position to its limit.
+	 * @throws IOException If the channel fails or ends first.
+	 */
+	static void readFully(ReadableByteChannel in, ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			if (in.read(buf) < 0) { throw new EOFException("Channel ended in the middle of a filter."); }
+		}
+	}
+
+	/**
+	 * Writes part of an array of words to a channel.
+	 *
+	 * @param out The channel.
+	 * @param words The words.
+	 * @param off The first word to write.
+	 * @param len The number of words to write.
+	 * @throws IOException If the channel fails.
+	 */
+	static void writeWords(WritableByteChannel out, long[] words, int off, int len) throws IOException
+	{
+		ByteBuffer buf = chunkBuffer(len);
+		for (int start = off ; start < off + len ; start += CHUNK_WORDS)
+		{
+			int n = Math.min(CHUNK_WORDS, off + len - start);
+			buf.clear();
+			buf.asLongBuffer().put(words, start, n);
+			buf.limit(n * 8);
+			writeFully(out, buf);
+		}
+	}
+
+	/**
+	 * Reads words from a channel into part of an array.
+	 *
+	 * @param in The channel.
+	 * @param words The array to read into.
+	 * @param off The first word to read into.
+	 * @param len The number of words to read.
+	 * @throws IOException If the channel fails or ends first.
+	 */
+	static void readWords(ReadableByteChannel in, long[] words, int off, int len) throws IOException
+	{
+		ByteBuffer buf = chunkBuffer(len);
+		for (int start = off ; start < off + len ; start += CHUNK_WORDS)
+		{
+			int n = Math.min(CHUNK_WORDS, off + len - start);
+			buf.clear();
+			buf.limit(n * 8);
+			readFully(in, buf);
+			buf.flip();
+			buf.asLongBuffer().get(words, start, n);
+		}
+	}
+}
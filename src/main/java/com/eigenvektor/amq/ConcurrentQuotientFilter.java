@@ -0,0 +1,498 @@
+/*
+ *  Thread-safe quotient filter with striped locking.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A thread-safe quotient filter.
+ *
+ * The slots are divided into stripes of a fixed number of consecutive slots, each
+ * with its own lock.  An insertion only reads and writes the slots from the start
+ * of its cluster up to the first empty slot, so it write-locks just the stripes
+ * covering that range, always in ascending order.  Queries take no locks in the
+ * common case: they read optimistically and check the stripes' versions afterwards,
+ * only falling back to read locks if they keep colliding with writers.
+ *
+ * @param <T> The type of entry.
+ */
+public final class ConcurrentQuotientFilter<T> extends AbstractApproxMemQuery<T>
+{
+	// The default number of slots per stripe is 2^DEFAULT_STRIPE_BITS.
+	private static final int DEFAULT_STRIPE_BITS = 6;
+
+	// The fewest slots per stripe is 2^MIN_STRIPE_BITS.  Slots are packed into longs,
+	// and 64 slots of any width fill a whole number of them, so no word is ever shared
+	// between two stripes and written under different locks.
+	private static final int MIN_STRIPE_BITS = 6;
+
+	// The number of optimistic reads to try before locking.
+	private static final int OPTIMISTIC_ATTEMPTS = 3;
+
+	// Result of an optimistic read that could not be validated.
+	private static final int RETRY = -1;
+
+	// Result of an optimistic read of a cluster spanning more than two stripes, which
+	// is left to the locked path.
+	private static final int TOO_WIDE = -2;
+
+	private final QuotientingStrategy<T> quot;
+
+	// The underlying slots.  Its own count of occupied slots is not used.
+	private final QuotientFilter<T> table;
+
+	// The number of slots.
+	private final int nSlots;
+
+	// The number of slots per stripe is 2^stripeBits.
+	private final int stripeBits;
+
+	// One lock per stripe.
+	private final StampedLock[] locks;
+
+	// The number of occupied slots, including slots reserved by insertions in progress.
+	private final AtomicInteger nOccupied = new AtomicInteger();
+
+	/**
+	 * Creates a concurrent quotient filter.
+	 *
+	 * @param quot The quotienting strategy to employ.
+	 * @param stripeBits There are 2^stripeBits slots per lock stripe.  It must be at
+	 * least 6, so that each stripe is made of whole words, unless the entire table is
+	 * one stripe.
+	 */
+	public ConcurrentQuotientFilter(QuotientingStrategy<T> quot, int stripeBits)
+	{
+		this(quot, (quot == null) ? null : new QuotientFilter<T>(quot), stripeBits);
+	}
+
+	/**
+	 * Creates a concurrent quotient filter around an existing table, with the default
+	 * stripe size.  Nothing else may use the table afterwards.
+	 *
+	 * @param table The table.
+	 */
+	ConcurrentQuotientFilter(QuotientFilter<T> table)
+	{
+		this(table.getQuotientingStrategy(), table, defaultStripeBits(table.getQuotientingStrategy()));
+	}
+
+	/**
+	 * Creates a concurrent quotient filter around a table.
+	 *
+	 * @param quot The table's quotienting strategy.
+	 * @param table The table.
+	 * @param stripeBits There are 2^stripeBits slots per lock stripe.
+	 */
+	private ConcurrentQuotientFilter(QuotientingStrategy<T> quot, QuotientFilter<T> table, int stripeBits)
+	{
+		if (quot == null) { throw new IllegalArgumentException("quot may not be null."); }
+		if (stripeBits < Math.min(MIN_STRIPE_BITS, quot.getQuotientBits()) || stripeBits > quot.getQuotientBits()) {
+			throw new IllegalArgumentException("stripeBits must be between 6 and the number of quotient bits."); }
+
+		this.quot = quot;
+		this.table = table;
+		this.nSlots = 1 << quot.getQuotientBits();
+		this.stripeBits = stripeBits;
+		this.nOccupied.set(table.getNumOccupied());
+
+		this.locks = new StampedLock[nSlots >>> stripeBits];
+		for (int j = 0 ; j < locks.length ; ++j)
+		{
+			locks[j] = new StampedLock();
+		}
+	}
+
+	/**
+	 * Creates a concurrent quotient filter with the default stripe size.
+	 *
+	 * @param quot The quotienting strategy to employ.
+	 */
+	public ConcurrentQuotientFilter(QuotientingStrategy<T> quot)
+	{
+		this(quot, defaultStripeBits(quot));
+	}
+
+	/**
+	 * Gets the default stripe size for a strategy, before a constructor has checked it.
+	 *
+	 * @param quot The quotienting strategy.
+	 * @return The default number of stripe bits, capped at the number of quotient bits.
+	 */
+	private static int defaultStripeBits(QuotientingStrategy<?> quot)
+	{
+		if (quot == null) { throw new IllegalArgumentException("quot may not be null."); }
+		return Math.min(DEFAULT_STRIPE_BITS, quot.getQuotientBits());
+	}
+
+	/**
+	 * Creates a concurrent quotient filter.
+	 *
+	 * @param nQuotientBits The number of bits to use in the quotient.
+	 */
+	public ConcurrentQuotientFilter(int nQuotientBits)
+	{
+		this(new HashQuotientingStrategy<T>(nQuotientBits));
+	}
+
+	@Override
+	public void add(T x)
+	{
+		addHash(quot.getFingerprint(x));
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		return containsHash(quot.getFingerprint(x));
+	}
+
+	/**
+	 * Adds a fingerprint to the filter without creating any objects.
+	 *
+	 * @param fingerprint A quotient and remainder packed as by
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 */
+	public void addHash(long fingerprint)
+	{
+		int quotient = table.quotientOf(fingerprint);
+
+		// Reserve a slot first, so there is always an empty slot for
+		// every insertion in progress to shift into.
+		if (nOccupied.incrementAndGet() > nSlots)
+		{
+			nOccupied.decrementAndGet();
+			throw new IllegalStateException("Quotient filter is full.");
+		}
+
+		boolean inserted;
+		long range = lockCluster(quotient, true);
+		try
+		{
+			inserted = table.insertQR(quotient, table.remainderOf(fingerprint));
+		}
+		finally
+		{
+			unlockCluster(range, true);
+		}
+
+		// Give the slot back if the fingerprint was already there.
+		if (!inserted) { nOccupied.decrementAndGet(); }
+	}
+
+	/**
+	 * Tells whether a fingerprint has been added, without creating any objects.
+	 *
+	 * @param fingerprint A quotient and remainder packed as by
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 * @return <code>true</code> iff the fingerprint is in the filter.
+	 */
+	public boolean containsHash(long fingerprint)
+	{
+		int quotient = table.quotientOf(fingerprint);
+		long remainder = table.remainderOf(fingerprint);
+
+		for (int attempt = 0 ; attempt < OPTIMISTIC_ATTEMPTS ; ++attempt)
+		{
+			int ret = tryOptimisticContains(quotient, remainder);
+			if (ret == TOO_WIDE) { break; }
+			if (ret != RETRY) { return ret == 1; }
+		}
+
+		// We keep racing with writers, so lock the cluster.
+		long range = lockCluster(quotient, false);
+		try
+		{
+			return table.containsQR(quotient, remainder);
+		}
+		finally
+		{
+			unlockCluster(range, false);
+		}
+	}
+
+	/**
+	 * Gets the number of occupied slots.
+	 *
+	 * @return the number of occupied slots.
+	 */
+	public int getNumOccupied()
+	{
+		return nOccupied.get();
+	}
+
+	/**
+	 * Gets the table underneath, with its count of occupied slots brought up to date,
+	 * for copying or doubling.  Nothing may add to this filter while the table is in use.
+	 *
+	 * @return The table.
+	 */
+	QuotientFilter<T> getTable()
+	{
+		table.setNumOccupied(nOccupied.get());
+		return table;
+	}
+
+	/**
+	 * Gets the stripe a slot is in.
+	 *
+	 * @param slot The slot.
+	 * @return The index of its stripe.
+	 */
+	private int stripeOf(int slot)
+	{
+		return slot >>> stripeBits;
+	}
+
+	/**
+	 * Finds the start of the cluster containing a slot, giving up after a full
+	 * lap of the table in case the slots are being changed underneath us.
+	 *
+	 * @param slot The slot to consider.
+	 * @return The start of the cluster.
+	 */
+	private int findStartOfCluster(int slot)
+	{
+		for (int steps = 0 ; steps < nSlots && table.isShifted(slot) ; ++steps)
+		{
+			slot = table.prevSlot(slot);
+		}
+		return slot;
+	}
+
+	/**
+	 * Finds the first empty slot at or after a slot, which bounds everything an
+	 * insertion at that slot could shift.
+	 *
+	 * @param slot The slot to start from.
+	 * @return The first empty slot, or -1 if there is none.
+	 */
+	private int findFirstEmpty(int slot)
+	{
+		for (int steps = 0 ; steps < nSlots ; ++steps)
+		{
+			if (table.isEmpty(slot)) { return slot; }
+			slot = table.nextSlot(slot);
+		}
+		return -1;
+	}
+
+	/**
+	 * Locks the stripes covering a quotient's cluster, up to and including the first
+	 * empty slot at or after the quotient.
+	 *
+	 * @param quotient The quotient.
+	 * @param write <code>true</code> to take write locks, <code>false</code> for read locks.
+	 * @return The locked range, to be passed to <code>unlockCluster</code>.
+	 */
+	private long lockCluster(int quotient, boolean write)
+	{
+		while (true)
+		{
+			// Find the range without holding any locks.  It may be wrong, in which
+			// case it won't survive the check below.
+			int start = findStartOfCluster(quotient);
+			int end = findFirstEmpty(quotient);
+			long range = ((long) start << 32) | (end & 0xFFFFFFFFL);
+
+			lockStripes(range, write);
+
+			// Once the range is locked nobody else can change it, so if it's still
+			// right it stays right.
+			if (findStartOfCluster(quotient) == start && findFirstEmpty(quotient) == end)
+			{
+				return range;
+			}
+
+			unlockCluster(range, write);
+		}
+	}
+
+	/**
+	 * Unlocks the stripes locked by <code>lockCluster</code>.
+	 *
+	 * @param range The range returned by <code>lockCluster</code>.
+	 * @param write <code>true</code> if write locks were taken.
+	 */
+	private void unlockCluster(long range, boolean write)
+	{
+		setStripesLocked(range, write, false);
+	}
+
+	/**
+	 * Locks the stripes covering a range of slots.
+	 *
+	 * @param range The range, with the first slot in the high word and the last
+	 * slot in the low word.  A last slot of -1 means the entire table.
+	 * @param write <code>true</code> to take write locks, <code>false</code> for read locks.
+	 */
+	private void lockStripes(long range, boolean write)
+	{
+		setStripesLocked(range, write, true);
+	}
+
+	/**
+	 * Locks or unlocks the stripes covering a range of slots.  Stripes are always
+	 * locked in ascending order, so two threads can never deadlock.
+	 *
+	 * @param range The range, with the first slot in the high word and the last
+	 * slot in the low word.  A last slot of -1 means the entire table.
+	 * @param write <code>true</code> for write locks, <code>false</code> for read locks.
+	 * @param lock <code>true</code> to lock, <code>false</code> to unlock.
+	 */
+	private void setStripesLocked(long range, boolean write, boolean lock)
+	{
+		int start = (int) (range >>> 32);
+		int end = (int) range;
+
+		if (end == -1 || (end < start && stripeOf(end) >= stripeOf(start)))
+		{
+			// The range wraps all the way around.
+			setStripesLocked(0, locks.length - 1, write, lock);
+		}
+		else if (end < start)
+		{
+			// The range wraps around the end of the table.
+			setStripesLocked(0, stripeOf(end), write, lock);
+			setStripesLocked(stripeOf(start), locks.length - 1, write, lock);
+		}
+		else
+		{
+			setStripesLocked(stripeOf(start), stripeOf(end), write, lock);
+		}
+	}
+
+	/**
+	 * Locks or unlocks a contiguous run of stripes in ascending order.
+	 *
+	 * @param first The first stripe.
+	 * @param last The last stripe.
+	 * @param write <code>true</code> for write locks, <code>false</code> for read locks.
+	 * @param lock <code>true</code> to lock, <code>false</code> to unlock.
+	 */
+	private void setStripesLocked(int first, int last, boolean write, boolean lock)
+	{
+		for (int j = first ; j <= last ; ++j)
+		{
+			if (lock)
+			{
+				if (write) { locks[j].writeLock(); } else { locks[j].readLock(); }
+			}
+			else
+			{
+				if (write) { locks[j].tryUnlockWrite(); } else { locks[j].tryUnlockRead(); }
+			}
+		}
+	}
+
+	/**
+	 * Tries to look up a quotient and remainder without taking any locks.  Only
+	 * clusters lying within two stripes are looked up this way, so there are never
+	 * more than two stamps to check besides the canonical slot's.
+	 *
+	 * @param quotient The quotient to look for.
+	 * @param remainder The remainder to look for.
+	 * @return 1 if it is there, 0 if it isn't, <code>RETRY</code> if a writer got
+	 * in the way or <code>TOO_WIDE</code> if the cluster spans too many stripes.
+	 */
+	private int tryOptimisticContains(int quotient, long remainder)
+	{
+		StampedLock canonicalLock = locks[stripeOf(quotient)];
+		long canonicalStamp = canonicalLock.tryOptimisticRead();
+		if (canonicalStamp == 0) { return RETRY; }
+
+		// The quick negative needs only the canonical slot.
+		if (!table.isOccupied(quotient))
+		{
+			return canonicalLock.validate(canonicalStamp) ? 0 : RETRY;
+		}
+
+		// Find the stripes the lookup will read.
+		int start = findStartOfCluster(quotient);
+		int end = findFirstEmpty(quotient);
+		if (end == -1 || (end < start && stripeOf(end) >= stripeOf(start))) { return TOO_WIDE; }
+		int first = stripeOf(start);
+		int last = stripeOf(end);
+		if (last != first && last != ((first + 1) & (locks.length - 1))) { return TOO_WIDE; }
+
+		StampedLock firstLock = locks[first];
+		StampedLock lastLock = locks[last];
+		long firstStamp = firstLock.tryOptimisticRead();
+		long lastStamp = lastLock.tryOptimisticRead();
+		if (firstStamp == 0 || lastStamp == 0) { return RETRY; }
+
+		// The range might have changed before we took the stamps.
+		if (findStartOfCluster(quotient) != start || findFirstEmpty(quotient) != end) { return RETRY; }
+
+		boolean found = findInCluster(start, quotient, remainder);
+
+		if (!canonicalLock.validate(canonicalStamp)
+				|| !firstLock.validate(firstStamp)
+				|| !lastLock.validate(lastStamp))
+		{
+			return RETRY;
+		}
+
+		return found ? 1 : 0;
+	}
+
+	/**
+	 * Looks for a remainder in the run for a quotient, in the same way as
+	 * <code>QuotientFilter.containsQR</code> but giving up after a full lap of the table
+	 * in case the slots are being changed underneath us.
+	 *
+	 * @param startOfCluster The start of the quotient's cluster.
+	 * @param quotient The quotient.
+	 * @param remainder The remainder to look for.
+	 * @return <code>true</code> if the remainder was found.
+	 */
+	private boolean findInCluster(int startOfCluster, int quotient, long remainder)
+	{
+		// Find the run, counting occupied slots up to the canonical slot and
+		// run starts until they match.
+		int numOccupied = 0;
+		int numRunStarts = 0;
+		boolean passedCanonical = false;
+		int slot = startOfCluster;
+		int steps = 0;
+		while (true)
+		{
+			if (table.isOccupied(slot) && !passedCanonical) { numOccupied++; }
+			if (!table.isContinuation(slot)) { numRunStarts++; }
+			if (slot == quotient) { passedCanonical = true; }
+			if (passedCanonical && numRunStarts == numOccupied) { break; }
+
+			slot = table.nextSlot(slot);
+			if (++steps == nSlots) { return false; }
+		}
+
+		// Then look through the run.
+		if (table.getRemainder(slot) == remainder) { return true; }
+		slot = table.nextSlot(slot);
+		while (table.isContinuation(slot))
+		{
+			if (table.getRemainder(slot) == remainder) { return true; }
+			slot = table.nextSlot(slot);
+			if (++steps == nSlots) { return false; }
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,644 @@
+/*
+ *  Counting quotient filter implementation.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.Arrays;
+
+/**
+ * A quotient filter that counts how many times each fingerprint was added, and
+ * supports removal.
+ *
+ * The table is laid out like a <code>QuotientFilter</code>: runs of sorted remainders,
+ * with the same three control bits.  Each slot has one more control bit marking it as
+ * a counter.  A fingerprint added once takes a single slot.  One added more often is
+ * followed in its run by counter slots, which hold the count less one as digits of
+ * as many bits as the remainder, least significant first.  A fingerprint added a
+ * million times with a 16 bit remainder therefore takes three slots rather than a
+ * million, so skewed data costs little more space than distinct data.
+ *
+ * Insertions and removals rewrite everything from the start of the affected cluster
+ * to the next empty slot, which is the same stretch a <code>QuotientFilter</code>
+ * insertion shifts.  At least one slot is always left empty so that every cluster
+ * has an end.
+ *
+ * @param <T> The type of entry.
+ */
+public final class CountingQuotientFilter<T> extends AbstractApproxMemQuery<T>
+{
+	// The largest number of quotient bits, limited by the slot index being an int.
+	private static final int MAX_QUOTIENT_BITS = 30;
+
+	// The largest number of remainder bits, leaving room for the four control bits.
+	private static final int MAX_REMAINDER_BITS = 60;
+
+	// The control bits.  The first three mean the same as in QuotientFilter.
+	private static final long OCCUPIED = 1L;
+	private static final long CONTINUATION = 1L << 1;
+	private static final long SHIFTED = 1L << 2;
+	private static final long COUNTER = 1L << 3;
+	private static final long CONTROL_MASK = OCCUPIED | CONTINUATION | SHIFTED;
+	private static final int CONTROL_BITS = 4;
+
+	private final QuotientingStrategy<T> quot;
+
+	// The number of bits in the remainder, and in each counter digit.
+	private final int rBits;
+
+	// The number of slots, always a power of two.
+	private final int nSlots;
+
+	// The slots.
+	private final SlotArray slots;
+
+	// The number of slots in use, the number of distinct fingerprints, and the
+	// total of their counts.
+	private int nOccupied = 0;
+	private int nDistinct = 0;
+	private long totalCount = 0;
+
+	// Scratch space for rewriting a stretch of the table: the quotients, relative to
+	// the start of the stretch, the remainders and the counts of its fingerprints.
+	private int[] entryQuotients = new int[16];
+	private long[] entryRemainders = new long[16];
+	private long[] entryCounts = new long[16];
+	private int nEntries = 0;
+
+	// Scratch space for the canonical slots waiting for their runs while decoding.
+	private int[] pendingRuns = new int[16];
+
+	/**
+	 * Creates a counting quotient filter with a particular quotienting strategy.
+	 *
+	 * @param quot The quotienting strategy to employ.
+	 */
+	public CountingQuotientFilter(QuotientingStrategy<T> quot)
+	{
+		if (quot == null) { throw new IllegalArgumentException("quot may not be null."); }
+		if (quot.getQuotientBits() > MAX_QUOTIENT_BITS) {
+			throw new IllegalArgumentException("At most " + MAX_QUOTIENT_BITS + " quotient bits are supported."); }
+		if (quot.getRemainderBits() > MAX_REMAINDER_BITS) {
+			throw new IllegalArgumentException("At most " + MAX_REMAINDER_BITS + " remainder bits are supported."); }
+
+		this.quot = quot;
+		this.rBits = quot.getRemainderBits();
+		this.nSlots = 1 << quot.getQuotientBits();
+		this.slots = new HeapSlotArray(nSlots, rBits + CONTROL_BITS);
+	}
+
+	/**
+	 * Creates a counting quotient filter using the hash code of the elements.
+	 *
+	 * @param nQuotientBits The number of bits to use in the quotient.
+	 */
+	public CountingQuotientFilter(int nQuotientBits)
+	{
+		this(new HashQuotientingStrategy<T>(nQuotientBits));
+	}
+
+	@Override
+	public void add(T x)
+	{
+		addHash(quot.getFingerprint(x));
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		return countHash(quot.getFingerprint(x)) > 0;
+	}
+
+	/**
+	 * Gets the number of times an element has been added, less the number of times
+	 * it has been removed.  This may be an overcount if other elements share its
+	 * fingerprint.
+	 *
+	 * @param x The element.
+	 * @return The count of the element's fingerprint.
+	 */
+	public long count(T x)
+	{
+		return countHash(quot.getFingerprint(x));
+	}
+
+	/**
+	 * Removes one occurrence of an element.  Removing an element that was never added
+	 * but shares a fingerprint with one that was removes that one instead.
+	 *
+	 * @param x The element.
+	 * @return <code>true</code> iff the element's fingerprint was in the filter.
+	 */
+	public boolean remove(T x)
+	{
+		return removeHash(quot.getFingerprint(x));
+	}
+
+	/**
+	 * Adds one occurrence of a fingerprint to the filter.
+	 *
+	 * @param fingerprint A quotient and remainder packed as by
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 */
+	public void addHash(long fingerprint)
+	{
+		update(quotientOf(fingerprint), remainderOf(fingerprint), 1);
+	}
+
+	/**
+	 * Removes one occurrence of a fingerprint from the filter.
+	 *
+	 * @param fingerprint A quotient and remainder packed as by
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 * @return <code>true</code> iff the fingerprint was in the filter.
+	 */
+	public boolean removeHash(long fingerprint)
+	{
+		int quotient = quotientOf(fingerprint);
+		long remainder = remainderOf(fingerprint);
+		if (countQR(quotient, remainder) == 0) { return false; }
+
+		update(quotient, remainder, -1);
+		return true;
+	}
+
+	/**
+	 * Gets the count of a fingerprint without creating any objects.
+	 *
+	 * @param fingerprint A quotient and remainder packed as by
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 * @return The number of times the fingerprint has been added, less the number of
+	 * times it has been removed.
+	 */
+	public long countHash(long fingerprint)
+	{
+		return countQR(quotientOf(fingerprint), remainderOf(fingerprint));
+	}
+
+	/**
+	 * Gets the number of slots in use, counters included.
+	 *
+	 * @return The number of occupied slots.
+	 */
+	public int getNumOccupied()
+	{
+		return nOccupied;
+	}
+
+	/**
+	 * Gets the number of distinct fingerprints in the filter.
+	 *
+	 * @return The number of distinct fingerprints.
+	 */
+	public int getNumDistinct()
+	{
+		return nDistinct;
+	}
+
+	/**
+	 * Gets the total of the counts of all fingerprints in the filter.
+	 *
+	 * @return The number of additions less the number of successful removals.
+	 */
+	public long getTotalCount()
+	{
+		return totalCount;
+	}
+
+	/**
+	 * Gets the number of slots in the filter.
+	 *
+	 * @return The number of slots.
+	 */
+	public int getNumSlots()
+	{
+		return nSlots;
+	}
+
+	/**
+	 * Extracts the quotient from a packed fingerprint.
+	 *
+	 * @param fingerprint The fingerprint.
+	 * @return The quotient.
+	 */
+	private int quotientOf(long fingerprint)
+	{
+		return (int) (fingerprint >>> rBits) & (nSlots - 1);
+	}
+
+	/**
+	 * Extracts the remainder from a packed fingerprint.
+	 *
+	 * @param fingerprint The fingerprint.
+	 * @return The remainder.
+	 */
+	private long remainderOf(long fingerprint)
+	{
+		return fingerprint & ((1L << rBits) - 1);
+	}
+
+	/**
+	 * Gets the count of a quotient and remainder.
+	 *
+	 * @param quotient The quotient.
+	 * @param remainder The remainder.
+	 * @return The count, zero if they are not in the filter.
+	 */
+	long countQR(int quotient, long remainder)
+	{
+		if (!isOccupied(quotient)) { return 0; }
+
+		int slot = findRun(findStartOfCluster(quotient), quotient);
+		while (true)
+		{
+			long value = slots.get(slot);
+			long slotRemainder = value >>> CONTROL_BITS;
+
+			// Remainders are sorted within the run, so we can stop once past it.
+			if (slotRemainder == remainder) { return readCount(nextSlot(slot)); }
+			if (slotRemainder > remainder) { return 0; }
+
+			// Skip to the next remainder in the run, if there is one.
+			do
+			{
+				slot = nextSlot(slot);
+			}
+			while ((slots.get(slot) & COUNTER) != 0);
+			if (!isContinuation(slot)) { return 0; }
+		}
+	}
+
+	/**
+	 * Reads the count held in the counter slots following a remainder.
+	 *
+	 * @param slot The slot after the remainder.
+	 * @return The count.
+	 */
+	private long readCount(int slot)
+	{
+		long extra = 0;
+		for (int shift = 0 ; (slots.get(slot) & COUNTER) != 0 ; shift += rBits)
+		{
+			extra |= (slots.get(slot) >>> CONTROL_BITS) << shift;
+			slot = nextSlot(slot);
+		}
+		return extra + 1;
+	}
+
+	/**
+	 * Changes the count of a quotient and remainder by one, rewriting the stretch of
+	 * the table from the start of its cluster to the next empty slot.
+	 *
+	 * @param quotient The quotient.
+	 * @param remainder The remainder.
+	 * @param delta +1 to add an occurrence, -1 to remove one.  A removal must be of
+	 * something in the filter.
+	 */
+	private void update(int quotient, long remainder, int delta)
+	{
+		// An empty canonical slot is its own cluster start.
+		int start = findStartOfCluster(quotient);
+		int line = (quotient - start) & (nSlots - 1);
+
+		nEntries = 0;
+		int end = decode(start, 0);
+
+		// Find where the fingerprint is or belongs in the sorted entries.
+		int pos = 0;
+		while (pos < nEntries && (entryQuotients[pos] < line
+				|| (entryQuotients[pos] == line && entryRemainders[pos] < remainder)))
+		{
+			pos++;
+		}
+		boolean found = pos < nEntries && entryQuotients[pos] == line && entryRemainders[pos] == remainder;
+
+		long oldCount = found ? entryCounts[pos] : 0;
+		long newCount = oldCount + delta;
+		int oldSlots = slotsFor(oldCount);
+		int newSlots = slotsFor(newCount);
+
+		if (newSlots > oldSlots && nOccupied + newSlots - oldSlots >= nSlots)
+		{
+			throw new IllegalStateException("Counting quotient filter is full.");
+		}
+
+		if (!found)
+		{
+			insertEntry(pos, line, remainder, newCount);
+		}
+		else if (newCount == 0)
+		{
+			removeEntry(pos);
+		}
+		else
+		{
+			entryCounts[pos] = newCount;
+		}
+
+		// Growing may run into the clusters after the next empty slot.  They have to
+		// move too, so take them in and lay out again until everything fits.
+		int layoutEnd = layOut(false, start);
+		while (end < layoutEnd)
+		{
+			if (isEmpty((start + end) & (nSlots - 1)))
+			{
+				end++;
+			}
+			else
+			{
+				end = decode((start + end) & (nSlots - 1), end);
+				layoutEnd = layOut(false, start);
+			}
+		}
+
+		for (int j = 0 ; j < end ; ++j)
+		{
+			slots.set((start + j) & (nSlots - 1), 0L);
+		}
+		layOut(true, start);
+
+		nOccupied += newSlots - oldSlots;
+		nDistinct += (newCount == 0 ? 0 : 1) - (oldCount == 0 ? 0 : 1);
+		totalCount += delta;
+	}
+
+	/**
+	 * Decodes a cluster, and any clusters right behind it, up to the next empty slot,
+	 * appending their fingerprints to the scratch entries.
+	 *
+	 * @param slot The start of the first cluster, or an empty slot.
+	 * @param line The offset of <code>slot</code> from the start of the stretch being rewritten.
+	 * @return The offset of the first empty slot from the start of the stretch.
+	 */
+	private int decode(int slot, int line)
+	{
+		int head = 0;
+		int tail = 0;
+		int quotient = -1;
+		int digit = 0;
+		while (!isEmpty(slot))
+		{
+			long value = slots.get(slot);
+			if ((value & OCCUPIED) != 0)
+			{
+				if (tail == pendingRuns.length) { pendingRuns = Arrays.copyOf(pendingRuns, 2 * tail); }
+				pendingRuns[tail++] = line;
+			}
+
+			if ((value & COUNTER) != 0)
+			{
+				// Counter digits come least significant first, on top of a count of one.
+				entryCounts[nEntries - 1] += (value >>> CONTROL_BITS) << (digit * rBits);
+				digit++;
+			}
+			else
+			{
+				if ((value & CONTINUATION) == 0) { quotient = pendingRuns[head++]; }
+				appendEntry(quotient, value >>> CONTROL_BITS, 1);
+				digit = 0;
+			}
+
+			slot = nextSlot(slot);
+			line++;
+		}
+		return line;
+	}
+
+	/**
+	 * Lays out the scratch entries from the start of a stretch of the table, the
+	 * same way they would be if inserted one by one.
+	 *
+	 * @param write Whether to write the slots, or only to measure.  Slots are written
+	 * by OR, so the stretch should be cleared first.
+	 * @param start The start of the stretch.
+	 * @return The offset from <code>start</code> of the slot after the last one used.
+	 */
+	private int layOut(boolean write, int start)
+	{
+		int end = 0;
+		int prevQuotient = -1;
+		for (int j = 0 ; j < nEntries ; ++j)
+		{
+			int quotient = entryQuotients[j];
+			boolean sameRun = quotient == prevQuotient;
+			int line = sameRun ? end : Math.max(end, quotient);
+
+			long extra = entryCounts[j] - 1;
+			if (write)
+			{
+				or(start + quotient, OCCUPIED);
+				or(start + line, (entryRemainders[j] << CONTROL_BITS)
+						| (sameRun ? CONTINUATION : 0)
+						| (line != quotient ? SHIFTED : 0));
+				for (int d = 1 ; extra != 0 ; ++d)
+				{
+					or(start + line + d, ((extra & ((1L << rBits) - 1)) << CONTROL_BITS)
+							| CONTINUATION | SHIFTED | COUNTER);
+					extra >>>= rBits;
+				}
+			}
+
+			end = line + slotsFor(entryCounts[j]);
+			prevQuotient = quotient;
+		}
+		return end;
+	}
+
+	/**
+	 * Sets bits in a slot.
+	 *
+	 * @param slot The slot, which may be past the end of the table and wrap around.
+	 * @param bits The bits to set.
+	 */
+	private void or(int slot, long bits)
+	{
+		slot &= nSlots - 1;
+		slots.set(slot, slots.get(slot) | bits);
+	}
+
+	/**
+	 * Gets the number of slots a fingerprint takes with a given count.
+	 *
+	 * @param count The count.
+	 * @return The number of slots, zero for a count of zero.
+	 */
+	private int slotsFor(long count)
+	{
+		return count == 0 ? 0 : 1 + countDigits(count - 1);
+	}
+
+	/**
+	 * Gets the number of counter digits needed to hold a value.
+	 *
+	 * @param value The value, treated as unsigned.
+	 * @return The number of digits, zero for zero.
+	 */
+	private int countDigits(long value)
+	{
+		return (64 - Long.numberOfLeadingZeros(value) + rBits - 1) / rBits;
+	}
+
+	/**
+	 * Appends a fingerprint to the scratch entries.
+	 *
+	 * @param quotient The quotient, relative to the start of the stretch.
+	 * @param remainder The remainder.
+	 * @param count The count.
+	 */
+	private void appendEntry(int quotient, long remainder, long count)
+	{
+		insertEntry(nEntries, quotient, remainder, count);
+	}
+
+	/**
+	 * Inserts a fingerprint into the scratch entries.
+	 *
+	 * @param pos The index to insert at.
+	 * @param quotient The quotient, relative to the start of the stretch.
+	 * @param remainder The remainder.
+	 * @param count The count.
+	 */
+	private void insertEntry(int pos, int quotient, long remainder, long count)
+	{
+		if (nEntries == entryQuotients.length)
+		{
+			entryQuotients = Arrays.copyOf(entryQuotients, 2 * nEntries);
+			entryRemainders = Arrays.copyOf(entryRemainders, 2 * nEntries);
+			entryCounts = Arrays.copyOf(entryCounts, 2 * nEntries);
+		}
+
+		System.arraycopy(entryQuotients, pos, entryQuotients, pos + 1, nEntries - pos);
+		System.arraycopy(entryRemainders, pos, entryRemainders, pos + 1, nEntries - pos);
+		System.arraycopy(entryCounts, pos, entryCounts, pos + 1, nEntries - pos);
+		entryQuotients[pos] = quotient;
+		entryRemainders[pos] = remainder;
+		entryCounts[pos] = count;
+		nEntries++;
+	}
+
+	/**
+	 * Removes a fingerprint from the scratch entries.
+	 *
+	 * @param pos The index to remove.
+	 */
+	private void removeEntry(int pos)
+	{
+		nEntries--;
+		System.arraycopy(entryQuotients, pos + 1, entryQuotients, pos, nEntries - pos);
+		System.arraycopy(entryRemainders, pos + 1, entryRemainders, pos, nEntries - pos);
+		System.arraycopy(entryCounts, pos + 1, entryCounts, pos, nEntries - pos);
+	}
+
+	/**
+	 * Gets the next slot given a slot.
+	 *
+	 * @param slot The slot.
+	 * @return The next slot.
+	 */
+	private int nextSlot(int slot)
+	{
+		return (slot + 1) & (nSlots - 1);
+	}
+
+	/**
+	 * Tells if a given slot is empty.
+	 *
+	 * @param slot The index of the slot.
+	 * @return <code>true</code> iff this slot is completely empty.
+	 */
+	private boolean isEmpty(int slot)
+	{
+		return (slots.get(slot) & CONTROL_MASK) == 0;
+	}
+
+	/**
+	 * Tells if a slot is the canonical slot for some fingerprint.
+	 *
+	 * @param slot The index of the slot.
+	 * @return <code>true</code> iff the occupied bit is set.
+	 */
+	private boolean isOccupied(int slot)
+	{
+		return slots.getBit(slot, 0);
+	}
+
+	/**
+	 * Tells if a slot continues a run.
+	 *
+	 * @param slot The index of the slot.
+	 * @return <code>true</code> iff the continuation bit is set.
+	 */
+	private boolean isContinuation(int slot)
+	{
+		return slots.getBit(slot, 1);
+	}
+
+	/**
+	 * Gets the start of the cluster that contains a given slot.
+	 *
+	 * @param slot The slot to consider.
+	 * @return The start of the cluster that contains <code>slot</code>.
+	 */
+	private int findStartOfCluster(int slot)
+	{
+		while (slots.getBit(slot, 2))
+		{
+			slot = (slot - 1) & (nSlots - 1);
+		}
+		return slot;
+	}
+
+	/**
+	 * Finds the run for a particular canonical slot.  Counter slots are continuations,
+	 * so they are skipped over like the rest of a run.
+	 *
+	 * @param startOfCluster The start of that slot's cluster.
+	 * @param canonicalSlot The index of the canonical slot, which must be occupied.
+	 * @return The start of the run for <code>canonicalSlot</code>.
+	 */
+	private int findRun(int startOfCluster, int canonicalSlot)
+	{
+		int numOccupied = 0;
+		int numRunStarts = 0;
+		boolean passedCanonical = false;
+
+		int slot = startOfCluster;
+		while (true)
+		{
+			if (isOccupied(slot) && !passedCanonical) { numOccupied++; }
+			if (!isContinuation(slot)) { numRunStarts++; }
+			if (slot == canonicalSlot) { passedCanonical = true; }
+
+			if (passedCanonical && numRunStarts == numOccupied) { return slot; }
+
+			slot = nextSlot(slot);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("CountingQuotientFilter<nSlots=");
+		sb.append(nSlots);
+		sb.append(",nOccupied=");
+		sb.append(nOccupied);
+		sb.append(",nDistinct=");
+		sb.append(nDistinct);
+		sb.append(">");
+		return sb.toString();
+	}
+}
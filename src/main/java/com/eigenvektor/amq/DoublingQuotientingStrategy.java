@@ -29,7 +29,7 @@ public class DoublingQuotientingStrategy<T> implements QuotientingStrategy<T>
 	private final int numBits;
 	
 	// The mask to use to adjust the remainder.
-	private final int remainderMask;
+	private final long remainderMask;
 	
 	/**
 	 * Creates a Quotienting strategy that transfers a number of bits from remainder to
@@ -54,9 +54,9 @@ public class DoublingQuotientingStrategy<T> implements QuotientingStrategy<T>
 		remainderMask = createRemainderMask(numBits, strat.getRemainderBits());
 	}
 
-	private static int createRemainderMask(int numBits, int remainderBits)
+	private static long createRemainderMask(int numBits, int remainderBits)
 	{
-		int mask = 0;
+		long mask = 0;
 		for (int j = 0 ; j < remainderBits - numBits ; ++j)
 		{
 			mask = mask << 1;
@@ -84,15 +84,22 @@ public class DoublingQuotientingStrategy<T> implements QuotientingStrategy<T>
 		QuotientAndRemainder oldQR = strat.getQuotientAndRemainder(x);
 		
 		// Kill the top bits of the remainder.
-		int oldRemainder = oldQR.getRemainder();
-		int newR = oldRemainder & remainderMask;
+		long oldRemainder = oldQR.getLongRemainder();
+		long newR = oldRemainder & remainderMask;
 		
 		// Transfer staid bits to the quotient.
 		int newQ = oldQR.getQuotient() << numBits;
-		newQ |= (oldRemainder >>> (strat.getRemainderBits() - numBits));
+		newQ |= (int) (oldRemainder >>> (strat.getRemainderBits() - numBits));
 		
 		return new QuotientAndRemainder(newQ, newR);
 	}
+	
+	@Override
+	public long getFingerprint(T x)
+	{
+		// Moving bits from the remainder to the quotient doesn't change the packed form.
+		return strat.getFingerprint(x);
+	}
 
 	@Override
 	public QuotientingStrategy<T> getDoubledStrategy(int numDoublings)
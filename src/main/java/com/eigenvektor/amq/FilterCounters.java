@@ -0,0 +1,135 @@
+/*
+ *  Counters behind the running metrics of a filter.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters a filter bumps on its hot paths.  Each filter subclasses this to say
+ * how full it is.
+ *
+ * The counters are <code>LongAdder</code>s, since a filter may be queried from many
+ * threads at once, for example under the read lock of a shard.  Threads that collide
+ * on a counter move to separate cells, so they neither lose counts nor all write to
+ * the same cache line.  The number of queries is the sum of the histogram, so a query
+ * costs at most three increments.
+ */
+abstract class FilterCounters implements FilterMetricsMXBean
+{
+	// The number of histogram buckets, enough for any int.
+	private static final int HISTOGRAM_BUCKETS = 32;
+
+	private final LongAdder nAdds = new LongAdder();
+	private final LongAdder nPositives = new LongAdder();
+	private final LongAdder nProbes = new LongAdder();
+	private final LongAdder[] probeHistogram = new LongAdder[HISTOGRAM_BUCKETS];
+
+	FilterCounters()
+	{
+		for (int j = 0 ; j < probeHistogram.length ; ++j)
+		{
+			probeHistogram[j] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Counts an add.
+	 */
+	final void recordAdd()
+	{
+		nAdds.increment();
+	}
+
+	/**
+	 * Counts a query.
+	 *
+	 * @param probes The number of slots or bits it read, at least one.
+	 * @param positive Whether the answer was positive.
+	 */
+	final void recordQuery(int probes, boolean positive)
+	{
+		if (positive) { nPositives.increment(); }
+		nProbes.add(probes);
+		probeHistogram[bucketOf(probes)].increment();
+	}
+
+	/**
+	 * Gets the histogram bucket for a length.
+	 *
+	 * @param length The length, at least one.
+	 * @return The power of two at or below <code>length</code>.
+	 */
+	static int bucketOf(int length)
+	{
+		return 31 - Integer.numberOfLeadingZeros(length);
+	}
+
+	@Override
+	public long getNumAdds()
+	{
+		return nAdds.sum();
+	}
+
+	@Override
+	public long getNumQueries()
+	{
+		long ret = 0;
+		for (LongAdder bucket : probeHistogram)
+		{
+			ret += bucket.sum();
+		}
+		return ret;
+	}
+
+	@Override
+	public long getNumPositives()
+	{
+		return nPositives.sum();
+	}
+
+	@Override
+	public double getMeanProbeLength()
+	{
+		long nQueries = getNumQueries();
+		return (nQueries == 0) ? 0.0 : (double) nProbes.sum() / nQueries;
+	}
+
+	@Override
+	public long[] getProbeLengthHistogram()
+	{
+		long[] ret = new long[HISTOGRAM_BUCKETS];
+		for (int j = 0 ; j < ret.length ; ++j)
+		{
+			ret[j] = probeHistogram[j].sum();
+		}
+		return ret;
+	}
+
+	@Override
+	public void resetCounters()
+	{
+		nAdds.reset();
+		nPositives.reset();
+		nProbes.reset();
+		for (LongAdder bucket : probeHistogram)
+		{
+			bucket.reset();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ *  Interface for the running metrics of a filter.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+/**
+ * Running metrics of a filter, kept as it is used.  Counts from several threads at
+ * once are all kept.  Each getter sums its counter at the time it is called, so
+ * values read while the filter is in use may not be consistent with each other.
+ *
+ * The name makes any implementation an MXBean, so the metrics of a filter can be
+ * published over JMX as they are:
+ *
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(filter.getMetrics(),
+ *         new ObjectName("com.eigenvektor.amq:type=QuotientFilter,name=users"));
+ * </pre>
+ */
+public interface FilterMetricsMXBean
+{
+	/**
+	 * Gets the number of elements added, including ones that were already there.
+	 *
+	 * @return The number of adds since the counters were last reset.
+	 */
+	public long getNumAdds();
+
+	/**
+	 * Gets the number of membership queries.
+	 *
+	 * @return The number of queries since the counters were last reset.
+	 */
+	public long getNumQueries();
+
+	/**
+	 * Gets the number of queries answered positively.
+	 *
+	 * @return The number of positive answers since the counters were last reset.
+	 */
+	public long getNumPositives();
+
+	/**
+	 * Gets the mean number of slots or bits read per query.
+	 *
+	 * @return The mean probe length, or zero if there have been no queries.
+	 */
+	public double getMeanProbeLength();
+
+	/**
+	 * Gets a histogram of the number of slots or bits read per query.
+	 *
+	 * @return Entry <code>j</code> is the number of queries that read from 2^j up to
+	 * 2^(j+1) - 1 slots or bits.
+	 */
+	public long[] getProbeLengthHistogram();
+
+	/**
+	 * Gets how full the filter is.
+	 *
+	 * @return The fraction of slots or bits in use.
+	 */
+	public double getFillRatio();
+
+	/**
+	 * Estimates the chance of a false positive for an element that was never added,
+	 * from how full the filter is now.
+	 *
+	 * @return The estimated false positive rate.
+	 */
+	public double getEstimatedFalsePositiveRate();
+
+	/**
+	 * Sets the counters of adds, queries, positives and probes back to zero.
+	 */
+	public void resetCounters();
+}
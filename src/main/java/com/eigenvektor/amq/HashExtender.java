@@ -37,14 +37,28 @@ public final class HashExtender<T> implements MultiHash<T>
 		if (num == 0) { return new int[0]; }
 		
 		int[] ret = new int[num];
+		getHashes(obj, ret);
+		return ret;
+	}
+
+	@Override
+	public void getHashes(T obj, int[] hashes)
+	{
 		int buf = obj.hashCode();
-		for (int idx = 0 ; idx < num ; ++idx)
+		for (int idx = 0 ; idx < hashes.length ; ++idx)
 		{
-			ret[idx] = buf;
+			hashes[idx] = buf;
 			buf = Integer.rotateRight(buf, 19);
 			buf ^= 0x8088AAFF;
 		}
-		return ret;
+	}
+	
+	@Override
+	public long getHashPair(T obj)
+	{
+		int first = obj.hashCode();
+		int second = Integer.rotateRight(first, 19) ^ 0x8088AAFF;
+		return ((long) first << 32) | (second & 0xFFFFFFFFL);
 	}
 
 }
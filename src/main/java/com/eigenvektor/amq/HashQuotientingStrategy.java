@@ -81,6 +81,17 @@ public final class HashQuotientingStrategy<T> implements QuotientingStrategy<T>
 		
 		return new QuotientAndRemainder(quotient, remainder);
 	}
+	
+	@Override
+	public long getFingerprint(T x)
+	{
+		int hash = x.hashCode();
+		
+		long quotient = hash >>> (32-this.nQBits);
+		long remainder = ((hash << (32 - this.nRBits)) >>> (32- this.nRBits)) & 0xFFFFFFFFL;
+		
+		return (quotient << this.nRBits) | remainder;
+	}
 
 	@Override
 	public QuotientingStrategy<T> getDoubledStrategy(int numDoublings)
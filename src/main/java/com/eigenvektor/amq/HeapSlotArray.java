@@ -0,0 +1,91 @@
+/*
+ *  Slot array backed by a long[] on the heap.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A slot array whose words are held in a <code>long[]</code>.
+ */
+final class HeapSlotArray extends SlotArray
+{
+	// The packed words.
+	private final long[] words;
+
+	/**
+	 * Creates a new, zeroed slot array.
+	 *
+	 * @param nSlots The number of slots.
+	 * @param slotBits The number of bits in each slot.
+	 */
+	HeapSlotArray(int nSlots, int slotBits)
+	{
+		super(nSlots, slotBits);
+
+		long nWords = numWords(nSlots, slotBits);
+		if (nWords > Integer.MAX_VALUE) { throw new IllegalArgumentException("Slot array too large."); }
+		this.words = new long[(int) nWords];
+	}
+
+	/**
+	 * Creates an on-heap copy of another slot array.
+	 *
+	 * @param other The slot array to copy.
+	 */
+	HeapSlotArray(final SlotArray other)
+	{
+		this(other.getNumSlots(), other.getSlotBits());
+		for (int j = 0 ; j < words.length ; ++j)
+		{
+			words[j] = other.getWord(j);
+		}
+	}
+
+	@Override
+	protected long getWord(int word)
+	{
+		return words[word];
+	}
+
+	@Override
+	protected void setWord(int word, long value)
+	{
+		words[word] = value;
+	}
+
+	@Override
+	void writeWords(WritableByteChannel out) throws IOException
+	{
+		ChannelIO.writeWords(out, words, 0, words.length);
+	}
+
+	@Override
+	void readWords(ReadableByteChannel in) throws IOException
+	{
+		ChannelIO.readWords(in, words, 0, words.length);
+	}
+
+	@Override
+	SlotArray copy()
+	{
+		return new HeapSlotArray(this);
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ *  Interface for turning an object into bytes for hashing.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+/**
+ * Specification for a class that gets the bytes of an object for a strong hash 
+ * function to consume.  Objects that are equal must give the same bytes.
+ * 
+ * @param <T> The type of object.
+ */
+public interface KeyBytes<T>
+{
+	/**
+	 * Gets the bytes of an object.
+	 * 
+	 * @param x The object.
+	 * @return The bytes that identify <code>x</code>.
+	 */
+	public byte[] getBytes(T x);
+}
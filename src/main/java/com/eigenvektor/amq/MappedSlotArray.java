@@ -0,0 +1,271 @@
+/*
+ *  Slot array backed by a memory mapped file.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A slot array whose words live in a memory mapped file.
+ * 
+ * The file starts with a fixed size header recording the shape of the filter,
+ * the number of occupied slots and the ID of its quotienting strategy,
+ * followed by the packed words in little endian order.  Files larger than a
+ * single mapping are mapped in 1GiB chunks.
+ */
+final class MappedSlotArray extends SlotArray
+{
+	// Identifies a quotient filter file, and the version of the format.
+	static final int MAGIC = 0x51464C54; // "QFLT"
+	static final int VERSION = 2;
+	
+	// The size of the header in bytes.
+	static final int HEADER_BYTES = 64;
+	
+	// Offsets of the fields in the header.
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int QBITS_OFFSET = 8;
+	private static final int RECBITS_OFFSET = 12;
+	private static final int NOCCUPIED_OFFSET = 16;
+	private static final int STRAT_ID_OFFSET = 24;
+	
+	// The number of words in a mapped chunk.
+	private static final int CHUNK_SHIFT = 27;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+	
+	// The mapped header.
+	private final MappedByteBuffer header;
+	
+	// The mapped chunks, and views of them as longs.
+	private final MappedByteBuffer[] mapped;
+	private final LongBuffer[] chunks;
+	
+	/**
+	 * Maps a file that already has a header.
+	 * 
+	 * @param channel The channel to map.
+	 * @param nSlots The number of slots.
+	 * @param slotBits The number of bits per slot.
+	 * @param header The mapped header.
+	 * @throws IOException If the file cannot be mapped.
+	 */
+	private MappedSlotArray(FileChannel channel, int nSlots, int slotBits, MappedByteBuffer header) 
+			throws IOException
+	{
+		super(nSlots, slotBits);
+		this.header = header;
+		
+		long nWords = numWords(nSlots, slotBits);
+		int nChunks = (int) ((nWords + CHUNK_MASK) >>> CHUNK_SHIFT);
+		this.mapped = new MappedByteBuffer[nChunks];
+		this.chunks = new LongBuffer[nChunks];
+		for (int j = 0 ; j < nChunks ; ++j)
+		{
+			long firstWord = (long) j << CHUNK_SHIFT;
+			long chunkWords = Math.min(nWords - firstWord, 1L << CHUNK_SHIFT);
+			mapped[j] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + firstWord * 8, chunkWords * 8);
+			mapped[j].order(ByteOrder.LITTLE_ENDIAN);
+			chunks[j] = mapped[j].asLongBuffer();
+		}
+	}
+	
+	/**
+	 * Creates a new file holding an empty slot array.  Any existing file is overwritten.
+	 * 
+	 * @param file The file to create.
+	 * @param qBits The number of quotient bits.  There are 2^qBits slots.
+	 * @param slotBits The number of bits per slot.
+	 * @param quot The quotienting strategy the slots are used with.
+	 * @return The mapped slot array.
+	 * @throws IOException If the file cannot be created or mapped.
+	 */
+	static MappedSlotArray create(File file, int qBits, int slotBits, QuotientingStrategy<?> quot) 
+			throws IOException
+	{
+		int nSlots = 1 << qBits;
+		long length = HEADER_BYTES + numWords(nSlots, slotBits) * 8;
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			// Truncating first zeroes any data left over from a previous file.
+			raf.setLength(0);
+			raf.setLength(length);
+			
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			writeHeader(header, qBits, slotBits, 0, quot);
+			
+			return new MappedSlotArray(channel, nSlots, slotBits, header);
+		}
+		finally
+		{
+			// The mappings remain valid after the file is closed.
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Maps an existing file.
+	 * 
+	 * @param file The file to open.
+	 * @param qBits The expected number of quotient bits.
+	 * @param slotBits The expected number of bits per slot.
+	 * @param quot The quotienting strategy the slots will be used with.  This must
+	 * match the strategy the file was created with.
+	 * @return The mapped slot array.
+	 * @throws IOException If the file cannot be read or was not created with
+	 * a matching shape and strategy.
+	 */
+	static MappedSlotArray open(File file, int qBits, int slotBits, QuotientingStrategy<?> quot) 
+			throws IOException
+	{
+		int nSlots = 1 << qBits;
+		long length = HEADER_BYTES + numWords(nSlots, slotBits) * 8;
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			if (raf.length() < length) { throw new IOException("File " + file + " is too short for its filter."); }
+			
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			checkHeader(header, qBits, slotBits, quot, file.toString());
+			
+			return new MappedSlotArray(channel, nSlots, slotBits, header);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Fills in a header.  Streams written by <code>QuotientFilter.writeTo()</code> use
+	 * the same header, so they are valid files too.
+	 * 
+	 * @param header A little endian buffer of at least <code>HEADER_BYTES</code>.
+	 * @param qBits The number of quotient bits.
+	 * @param slotBits The number of bits per slot.
+	 * @param nOccupied The number of occupied slots.
+	 * @param quot The quotienting strategy the slots are used with.
+	 */
+	static void writeHeader(ByteBuffer header, int qBits, int slotBits, long nOccupied, 
+			QuotientingStrategy<?> quot)
+	{
+		header.putInt(MAGIC_OFFSET, MAGIC);
+		header.putInt(VERSION_OFFSET, VERSION);
+		header.putInt(QBITS_OFFSET, qBits);
+		header.putInt(RECBITS_OFFSET, slotBits);
+		header.putLong(NOCCUPIED_OFFSET, nOccupied);
+		header.putLong(STRAT_ID_OFFSET, quot.getStrategyId());
+	}
+	
+	/**
+	 * Checks that a header matches the filter it is about to be loaded into.
+	 * 
+	 * @param header A little endian buffer holding the header.
+	 * @param qBits The expected number of quotient bits.
+	 * @param slotBits The expected number of bits per slot.
+	 * @param quot The quotienting strategy the slots will be used with.
+	 * @param source Where the header came from, for error messages.
+	 * @return The number of occupied slots recorded in the header.
+	 * @throws IOException If the header doesn't match.
+	 */
+	static int checkHeader(ByteBuffer header, int qBits, int slotBits, QuotientingStrategy<?> quot, 
+			String source) throws IOException
+	{
+		if (header.getInt(MAGIC_OFFSET) != MAGIC) { throw new IOException(source + " is not a quotient filter file."); }
+		if (header.getInt(VERSION_OFFSET) != VERSION) { 
+			throw new IOException("Unsupported quotient filter file version " + header.getInt(VERSION_OFFSET)); }
+		if (header.getInt(QBITS_OFFSET) != qBits || header.getInt(RECBITS_OFFSET) != slotBits) {
+			throw new IOException("Filter in " + source + " does not match the size of the quotienting strategy."); }
+		if (header.getLong(STRAT_ID_OFFSET) != quot.getStrategyId()) {
+			throw new IOException("Filter in " + source + " was created with a different quotienting strategy."); }
+		
+		long nOccupied = header.getLong(NOCCUPIED_OFFSET);
+		if (nOccupied < 0 || nOccupied > (1L << qBits)) { 
+			throw new IOException("Filter in " + source + " has a corrupt occupied count."); }
+		return (int) nOccupied;
+	}
+	
+	/**
+	 * Gets the number of occupied slots recorded in the header.
+	 * 
+	 * @return the number of occupied slots.
+	 */
+	int getNumOccupied()
+	{
+		return (int) header.getLong(NOCCUPIED_OFFSET);
+	}
+	
+	@Override
+	void recordNumOccupied(int nOccupied)
+	{
+		header.putLong(NOCCUPIED_OFFSET, nOccupied);
+	}
+	
+	@Override
+	void flush()
+	{
+		header.force();
+		for (MappedByteBuffer buf : mapped)
+		{
+			buf.force();
+		}
+	}
+
+	@Override
+	void writeWords(WritableByteChannel out) throws IOException
+	{
+		// The mapped bytes are already in the stream's order, so they go out as they are.
+		for (MappedByteBuffer buf : mapped)
+		{
+			ChannelIO.writeFully(out, buf.duplicate());
+		}
+	}
+	
+	@Override
+	protected long getWord(int word)
+	{
+		return chunks[word >>> CHUNK_SHIFT].get(word & CHUNK_MASK);
+	}
+
+	@Override
+	protected void setWord(int word, long value)
+	{
+		chunks[word >>> CHUNK_SHIFT].put(word & CHUNK_MASK, value);
+	}
+
+	@Override
+	SlotArray copy()
+	{
+		return new HeapSlotArray(this);
+	}
+}
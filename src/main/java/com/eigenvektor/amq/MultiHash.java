@@ -35,4 +35,35 @@ public interface MultiHash<T>
 	 */
 	public int[] getHashes(T obj, int num);
 	
+	/**
+	 * Gets a number of hash codes of the object, writing them into a buffer supplied by
+	 * the caller rather than allocating a new array.  By default this allocates anyway,
+	 * so implementations should override it if they can do without.
+	 * 
+	 * @param obj The object to get hash codes of.
+	 * @param hashes The buffer to fill.  One hash code is written into each element, in
+	 * the same order as <code>getHashes(obj, hashes.length)</code> would return them.
+	 */
+	public default void getHashes(T obj, int[] hashes)
+	{
+		int[] ret = getHashes(obj, hashes.length);
+		System.arraycopy(ret, 0, hashes, 0, hashes.length);
+	}
+	
+	/**
+	 * Gets the first two hash codes of the object packed into a <code>long</code>, for
+	 * filters that need only two.  Nothing is shared between calls, so it is safe to
+	 * call from several threads at once.  By default this allocates, as
+	 * <code>getHashes(obj, 2)</code> does, so implementations should override it if
+	 * they can do without.
+	 * 
+	 * @param obj The object to get hash codes of.
+	 * @return The first hash code in the high half, and the second in the low half.
+	 */
+	public default long getHashPair(T obj)
+	{
+		int[] hashes = getHashes(obj, 2);
+		return ((long) hashes[0] << 32) | (hashes[1] & 0xFFFFFFFFL);
+	}
+	
 }
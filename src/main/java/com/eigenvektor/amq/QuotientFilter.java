@@ -18,8 +18,20 @@
 
 package com.eigenvektor.amq;
 
-import java.util.BitSet;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import com.eigenvektor.amq.QuotientingStrategy.QuotientAndRemainder;
 
@@ -28,13 +40,41 @@ import com.eigenvektor.amq.QuotientingStrategy.QuotientAndRemainder;
  * 
  * @param <T> The type of entry.
  */
-public final class QuotientFilter<T> implements ApproxMemQuery<T>, 
+public final class QuotientFilter<T> extends AbstractApproxMemQuery<T> implements
 		Iterable<QuotientingStrategy.QuotientAndRemainder>
 {
 	// The largest size of filter for which it makes sense to print out
 	// the entire contents of the table in toString();
 	private static final int TOSTRING_GIVE_UP = 8;
 	
+	// The number of elements hashed, and their slots read, at a time in the bulk operations.
+	private static final int BATCH_SIZE = 1024;
+	
+	// The size in bytes of the slots above which the bulk operations read a batch's
+	// slots before probing them, about the size of a last level cache.
+	private static final long TOUCH_THRESHOLD = 1L << 23;
+	
+	// The largest number of quotient bits, limited by the slot index being an int.
+	static final int MAX_QUOTIENT_BITS = 30;
+	
+	// The largest number of remainder bits, limited by a slot being at most 64 bits.
+	private static final int MAX_REMAINDER_BITS = 61;
+	
+	// The layout of the control bits within a slot.  The remainder
+	// is stored in the bits above them.
+	private static final long OCCUPIED = 1L;
+	private static final long CONTINUATION = 1L << 1;
+	private static final long SHIFTED = 1L << 2;
+	private static final long CONTROL_MASK = OCCUPIED | CONTINUATION | SHIFTED;
+	private static final int CONTROL_BITS = 3;
+	
+	// Filters with fewer slots than this are doubled and merged on the calling thread.
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+	
+	// The number of tasks per thread for parallel doubling and merging, so that
+	// uneven tasks still balance out.
+	private static final int TASKS_PER_THREAD = 4;
+	
 	private final QuotientingStrategy<T> quot;
 	
 	// The number of bits in the quotient.
@@ -46,14 +86,36 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	// The number of records (equals 2^recBits).
 	private final int nSlots;
 	
-	// The Bit set.
-	private final BitSet bits;
+	// The slots.
+	private final SlotArray slots;
 	
 	// The number of occupied records;
 	private int nOccupied = 0;
 	
+	// The sum of the slots read by touchSlots(), which is never used.
+	private long touched;
+	
+	// The running metrics.  The fill and false positive rate come from the slots.
+	private final FilterCounters counters = new FilterCounters()
+	{
+		@Override
+		public double getFillRatio()
+		{
+			return (double) nOccupied / nSlots;
+		}
+		
+		@Override
+		public double getEstimatedFalsePositiveRate()
+		{
+			// A fingerprint that was never added matches one of the nOccupied stored ones
+			// with probability nOccupied / 2^(qBits + rBits).
+			return Math.scalb(getFillRatio(), -(recBits - CONTROL_BITS));
+		}
+	};
+	
 	/**
-	 * Copy constructor.
+	 * Copy constructor.  The copy is always held on the heap, even if <code>other</code>
+	 * is backed by a file.
 	 * 
 	 * @param other The filter to copy.
 	 */
@@ -65,7 +127,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		this.qBits = other.qBits;
 		this.recBits = other.recBits;
 		this.nSlots = other.nSlots;
-		this.bits = (BitSet) other.bits.clone();
+		this.slots = other.slots.copy();
 		this.nOccupied = other.nOccupied;
 	}
 	
@@ -76,18 +138,137 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 */
 	public QuotientFilter(QuotientingStrategy<T> quot)
 	{
-		if (quot == null) { throw new IllegalArgumentException("quot may not be null."); }
+		checkStrategy(quot);
 		
 		this.qBits = quot.getQuotientBits();
-		this.recBits = quot.getRemainderBits() + 3; // Enough space for the remainder, plus the three control bits.
+		this.recBits = quot.getRemainderBits() + CONTROL_BITS; // Enough space for the remainder, plus the three control bits.
 		
-		// Create a bit set
+		// Create the slots.
 		this.nSlots = 1 << this.qBits;
-		this.bits = new BitSet(nSlots * recBits);
+		this.slots = new HeapSlotArray(nSlots, recBits);
 		
 		this.quot = quot;
 	}
 	
+	/**
+	 * Checks that a quotienting strategy's quotient and remainder fit in a filter.
+	 * 
+	 * @param quot The quotienting strategy.
+	 */
+	private static void checkStrategy(final QuotientingStrategy<?> quot)
+	{
+		if (quot == null) { throw new IllegalArgumentException("quot may not be null."); }
+		if (quot.getQuotientBits() > MAX_QUOTIENT_BITS) { 
+			throw new IllegalArgumentException("At most " + MAX_QUOTIENT_BITS + " quotient bits are supported."); }
+		if (quot.getRemainderBits() > MAX_REMAINDER_BITS) { 
+			throw new IllegalArgumentException("At most " + MAX_REMAINDER_BITS + " remainder bits are supported."); }
+	}
+	
+	/**
+	 * Creates a QuotientFilter over an existing set of slots.
+	 * 
+	 * @param quot The quotienting strategy to employ.
+	 * @param slots The slots, which must be sized for <code>quot</code>.
+	 * @param nOccupied The number of occupied slots already in <code>slots</code>.
+	 */
+	private QuotientFilter(QuotientingStrategy<T> quot, SlotArray slots, int nOccupied)
+	{
+		this.quot = quot;
+		this.qBits = quot.getQuotientBits();
+		this.recBits = quot.getRemainderBits() + CONTROL_BITS;
+		this.nSlots = 1 << this.qBits;
+		this.slots = slots;
+		this.nOccupied = nOccupied;
+	}
+	
+	/**
+	 * Creates an empty quotient filter whose slots live in a memory mapped file
+	 * rather than on the heap.  The file is overwritten if it already exists.
+	 * Changes are written through to the file as they are made, and can be
+	 * reopened later with <code>open()</code>.
+	 * 
+	 * @param file The file to hold the filter.
+	 * @param quot The quotienting strategy to employ.
+	 * @return The new quotient filter.
+	 * @throws IOException If the file cannot be created.
+	 */
+	public static <T> QuotientFilter<T> create(final File file, final QuotientingStrategy<T> quot) throws IOException
+	{
+		if (file == null) { throw new NullPointerException("file may not be null."); }
+		checkStrategy(quot);
+		
+		SlotArray slots = MappedSlotArray.create(
+				file, quot.getQuotientBits(), quot.getRemainderBits() + CONTROL_BITS, quot);
+		return new QuotientFilter<T>(quot, slots, 0);
+	}
+	
+	/**
+	 * Opens a quotient filter previously created with <code>create()</code>.  The
+	 * file is mapped rather than read, so opening is fast regardless of the size
+	 * of the filter, and any changes are written back to the file.
+	 * 
+	 * @param file The file holding the filter.
+	 * @param quot The quotienting strategy the filter was created with.
+	 * @return The quotient filter.
+	 * @throws IOException If the file cannot be read, or was created with a
+	 * different quotienting strategy.
+	 */
+	public static <T> QuotientFilter<T> open(final File file, final QuotientingStrategy<T> quot) throws IOException
+	{
+		if (file == null) { throw new NullPointerException("file may not be null."); }
+		checkStrategy(quot);
+		
+		MappedSlotArray slots = MappedSlotArray.open(
+				file, quot.getQuotientBits(), quot.getRemainderBits() + CONTROL_BITS, quot);
+		return new QuotientFilter<T>(quot, slots, slots.getNumOccupied());
+	}
+	
+	/**
+	 * Writes the filter to a channel: a 64 byte header recording its shape, number
+	 * of occupied slots and quotienting strategy, then the raw slot words, little
+	 * endian.  This is the same layout as the files made by <code>create()</code>,
+	 * so a file backed filter can also be shipped by transferring its file directly,
+	 * and a stream can be saved to a file and opened with <code>open()</code>.
+	 * 
+	 * @param out The channel to write to.  It is not closed.
+	 * @throws IOException If the channel fails.
+	 */
+	public void writeTo(final WritableByteChannel out) throws IOException
+	{
+		if (out == null) { throw new NullPointerException("out may not be null."); }
+		
+		ByteBuffer header = ByteBuffer.allocate(MappedSlotArray.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		MappedSlotArray.writeHeader(header, qBits, recBits, nOccupied, quot);
+		ChannelIO.writeFully(out, header);
+		slots.writeWords(out);
+	}
+	
+	/**
+	 * Reads a filter written by <code>writeTo()</code> onto the heap.  The words are
+	 * copied straight into place, so this costs about as much as reading the bytes.
+	 * 
+	 * @param in The channel to read from.  It is left just past the filter, and not closed.
+	 * @param quot The quotienting strategy the filter was written with.
+	 * @return The quotient filter.
+	 * @throws IOException If the channel fails or ends early, or holds a filter with
+	 * a different shape or quotienting strategy.
+	 */
+	public static <T> QuotientFilter<T> readFrom(final ReadableByteChannel in, final QuotientingStrategy<T> quot) 
+			throws IOException
+	{
+		if (in == null) { throw new NullPointerException("in may not be null."); }
+		checkStrategy(quot);
+		
+		int recBits = quot.getRemainderBits() + CONTROL_BITS;
+		ByteBuffer header = ByteBuffer.allocate(MappedSlotArray.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		ChannelIO.readFully(in, header);
+		int nOccupied = MappedSlotArray.checkHeader(header, quot.getQuotientBits(), recBits, quot, "stream");
+		
+		SlotArray slots = new HeapSlotArray(1 << quot.getQuotientBits(), recBits);
+		slots.readWords(in);
+		return new QuotientFilter<T>(quot, slots, nOccupied);
+	}
+	
 	/**
 	 * Creates a new Quotient filter.
 	 * 
@@ -100,23 +281,164 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 
 	@Override
 	public void add(T x)
+	{
+		// Ask the quotienting strategy for the packed quotient and remainder.
+		addHash(quot.getFingerprint(x));
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		// Ask the quotienting strategy for the packed quotient and remainder.
+		return containsHash(quot.getFingerprint(x));
+	}
+	
+	/**
+	 * Adds a fingerprint to the filter without creating any objects.
+	 * 
+	 * @param fingerprint A quotient and remainder packed as by 
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 */
+	public void addHash(long fingerprint)
 	{
 		// If we are out of space, refuse to insert.
 		if (nOccupied == nSlots) { throw new IllegalStateException("Quotient filter is full."); }
 		
-		// Ask the quotienting strategy to split the object.
-		QuotientingStrategy.QuotientAndRemainder split = quot.getQuotientAndRemainder(x);
+		counters.recordAdd();
+		this.addQR(quotientOf(fingerprint), remainderOf(fingerprint));
+	}
+	
+	/**
+	 * Tells whether a fingerprint has been added, without creating any objects.
+	 * 
+	 * @param fingerprint A quotient and remainder packed as by 
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 * @return <code>true</code> iff the fingerprint is in the filter.
+	 */
+	public boolean containsHash(long fingerprint)
+	{
+		int probes = probeQR(quotientOf(fingerprint), remainderOf(fingerprint));
+		counters.recordQuery(Math.abs(probes), probes < 0);
+		return probes < 0;
+	}
+	
+	@Override
+	public void addAll(T[] xs)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
 		
-		this.addQR(split.getQuotient(), split.getRemainder());
+		long[] fingerprints = new long[Math.min(xs.length, BATCH_SIZE)];
+		for (int start = 0 ; start < xs.length ; start += BATCH_SIZE)
+		{
+			int n = Math.min(BATCH_SIZE, xs.length - start);
+			for (int j = 0 ; j < n ; ++j)
+			{
+				fingerprints[j] = quot.getFingerprint(xs[start + j]);
+			}
+			addHashes(fingerprints, n);
+		}
 	}
-
+	
 	@Override
-	public boolean contains(T x)
+	public void addAll(Iterable<? extends T> xs)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
+		
+		long[] fingerprints = new long[BATCH_SIZE];
+		int n = 0;
+		for (T x : xs)
+		{
+			fingerprints[n++] = quot.getFingerprint(x);
+			if (n == BATCH_SIZE)
+			{
+				addHashes(fingerprints, n);
+				n = 0;
+			}
+		}
+		addHashes(fingerprints, n);
+	}
+	
+	/**
+	 * Adds the first few fingerprints of an array.
+	 * 
+	 * @param fingerprints The fingerprints.
+	 * @param n The number of fingerprints to add.
+	 */
+	private void addHashes(long[] fingerprints, int n)
+	{
+		touchSlots(fingerprints, n);
+		for (int j = 0 ; j < n ; ++j)
+		{
+			addHash(fingerprints[j]);
+		}
+	}
+	
+	@Override
+	public void containsAll(T[] xs, boolean[] out)
 	{
-		// Ask the quotienting strategy to split the object.
-		QuotientingStrategy.QuotientAndRemainder split = quot.getQuotientAndRemainder(x);
+		checkContainsAll(xs, out);
 		
-		return containsQR(split.getQuotient(), split.getRemainder());
+		long[] fingerprints = new long[Math.min(xs.length, BATCH_SIZE)];
+		for (int start = 0 ; start < xs.length ; start += BATCH_SIZE)
+		{
+			int n = Math.min(BATCH_SIZE, xs.length - start);
+			for (int j = 0 ; j < n ; ++j)
+			{
+				fingerprints[j] = quot.getFingerprint(xs[start + j]);
+			}
+			touchSlots(fingerprints, n);
+			for (int j = 0 ; j < n ; ++j)
+			{
+				out[start + j] = containsHash(fingerprints[j]);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the canonical slot of each of a batch of fingerprints, before any of them
+	 * is probed.  None of the reads depends on another, so the processor has many of
+	 * the cache misses in flight at once, rather than taking them one at a time in the
+	 * probes, which each have to wait for their slot before going on.  Java has no
+	 * prefetch instruction, so this is the nearest thing.  It is only worth it when the
+	 * slots are too big for the cache; otherwise the reads are just extra work.
+	 * 
+	 * @param fingerprints The fingerprints.
+	 * @param n The number of fingerprints to read the slots of.
+	 */
+	private void touchSlots(long[] fingerprints, int n)
+	{
+		if (((long) nSlots * recBits >>> 3) < TOUCH_THRESHOLD) { return; }
+		
+		long sum = 0;
+		for (int j = 0 ; j < n ; ++j)
+		{
+			sum += slots.get(quotientOf(fingerprints[j]));
+		}
+		
+		// Kept, so the JIT compiler can't drop the reads.
+		touched = sum;
+	}
+	
+	/**
+	 * Extracts the quotient from a packed fingerprint.
+	 * 
+	 * @param fingerprint The fingerprint.
+	 * @return The quotient.
+	 */
+	int quotientOf(long fingerprint)
+	{
+		return (int) (fingerprint >>> (recBits - CONTROL_BITS)) & (nSlots - 1);
+	}
+	
+	/**
+	 * Extracts the remainder from a packed fingerprint.
+	 * 
+	 * @param fingerprint The fingerprint.
+	 * @return The remainder.
+	 */
+	long remainderOf(long fingerprint)
+	{
+		return fingerprint & ((1L << (recBits - CONTROL_BITS)) - 1);
 	}
 	
 	/**
@@ -129,13 +451,56 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		return this.nOccupied;
 	}
 	
+	/**
+	 * Sets the number of occupied slots, for a filter whose slots were filled by
+	 * <code>insertQR()</code>, which doesn't count them.
+	 * 
+	 * @param nOccupied The number of occupied slots.
+	 */
+	void setNumOccupied(int nOccupied)
+	{
+		this.nOccupied = nOccupied;
+		slots.recordNumOccupied(nOccupied);
+	}
+	
+	/**
+	 * Gets the quotienting strategy.
+	 * 
+	 * @return The strategy the filter was made with.
+	 */
+	QuotientingStrategy<T> getQuotientingStrategy()
+	{
+		return quot;
+	}
+	
+	/**
+	 * Gets the running metrics of this filter.  Probe lengths count every slot read
+	 * by a query, including the walk back to the start of the cluster; the lengths of
+	 * the clusters themselves are in <code>getStats()</code>.
+	 * 
+	 * @return The metrics, which can be registered as an MXBean.
+	 */
+	public FilterMetricsMXBean getMetrics()
+	{
+		return counters;
+	}
+	
+	/**
+	 * Forces any changes to a file backed filter out to the file.  Does nothing for
+	 * a filter held on the heap.
+	 */
+	public void flush()
+	{
+		slots.flush();
+	}
+	
 	/**
 	 * Gets the next slot given a slot.
 	 * 
 	 * @param slot The slot.
 	 * @return the next slot.
 	 */
-	private int nextSlot(int slot)
+	int nextSlot(int slot)
 	{
 		int next = slot + 1;
 		if (next == nSlots) { next = 0;	}
@@ -148,7 +513,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param slot The slot.
 	 * @return the previous slot.
 	 */
-	private int prevSlot(int slot)
+	int prevSlot(int slot)
 	{
 		int prev = slot - 1;
 		if (prev == -1) { prev = nSlots - 1; }
@@ -161,9 +526,9 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param slot The index of the slot.
 	 * @return <code>true</code> iff this slot is completely empty.
 	 */
-	private boolean isEmpty(int slot)
+	boolean isEmpty(int slot)
 	{
-		return !isOccupied(slot) && !isContinuation(slot) && !isShifted(slot);
+		return (slots.get(slot) & CONTROL_MASK) == 0;
 	}
 	
 	/**
@@ -172,9 +537,9 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param slot The index of the  slot.
 	 * @return <code>true</code> if the slot is the canonical slot for some element in this filter.
 	 */
-	private boolean isOccupied(int slot)
+	boolean isOccupied(int slot)
 	{
-		return bits.get(this.recBits * slot); // Bit 0 is the "occupied" bit.
+		return slots.getBit(slot, 0); // Bit 0 is the "occupied" bit.
 	}
 	
 	/**
@@ -185,7 +550,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 */
 	private void setOccupied(int slot, boolean value)
 	{
-		bits.set(this.recBits * slot, value);
+		slots.setBit(slot, 0, value);
 	}
 	
 	/**
@@ -194,9 +559,9 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param slot The index of the slot.
 	 * @return <code>true</code> if the slot is a continuation.
 	 */
-	private boolean isContinuation(int slot)
+	boolean isContinuation(int slot)
 	{
-		return bits.get(this.recBits * slot + 1);
+		return slots.getBit(slot, 1);
 	}
 	
 	/**
@@ -207,7 +572,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 */
 	private void setContinuation(int slot, boolean val)
 	{
-		bits.set(this.recBits * slot + 1, val);
+		slots.setBit(slot, 1, val);
 	}
 	
 	/**
@@ -216,9 +581,9 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param slot The index of the slot.
 	 * @return <code>true</code> if the slot is shifted.
 	 */
-	private boolean isShifted(int slot)
+	boolean isShifted(int slot)
 	{
-		return bits.get(this.recBits * slot + 2);
+		return slots.getBit(slot, 2);
 	}
 	
 	/**
@@ -229,7 +594,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 */
 	private void setShifted(int slot, boolean val)
 	{
-		bits.set(this.recBits * slot + 2, val);
+		slots.setBit(slot, 2, val);
 	}
 	
 	/**
@@ -238,19 +603,9 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param slot The index of the slot.
 	 * @return The remainder stored in the slot.
 	 */
-	private int getRemainder(int slot)
+	long getRemainder(int slot)
 	{
-		int slotStart = this.recBits * slot;
-		int ret = 0;
-		for (int j = slotStart + 3 ; j < slotStart + recBits ; ++j)
-		{
-			ret = ret << 1;
-			if (bits.get(j))
-			{
-				ret |= 1;
-			}
-		}
-		return ret;
+		return slots.get(slot) >>> CONTROL_BITS;
 	}
 	
 	/**
@@ -267,17 +622,13 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			boolean isOccupied, 
 			boolean isContinuation, 
 			boolean isShifted, 
-			int remainder)
+			long remainder)
 	{
-		int slotStart = this.recBits * slot;
-		bits.set(slotStart, isOccupied);
-		bits.set(slotStart + 1, isContinuation);
-		bits.set(slotStart + 2, isShifted);
-		for (int j = slotStart + recBits - 1 ; j >= slotStart + 3 ; --j)
-		{
-			bits.set(j, (remainder & 1) == 1);
-			remainder = remainder >> 1;
-		}
+		long value = (remainder << CONTROL_BITS)
+				| (isOccupied ? OCCUPIED : 0)
+				| (isContinuation ? CONTINUATION : 0)
+				| (isShifted ? SHIFTED : 0);
+		slots.set(slot, value);
 	}
 	
 	/**
@@ -288,16 +639,14 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param from The slot to copy from.
 	 * @param to The slot to copy to.  Any data already in this slot (other than
 	 * the isOccupied flag) is clobbered.
+	 * @param setShifted If <code>true</code> the isShifted flag of the destination
+	 * is set, regardless of its value in the source.
 	 */
-	private void copySlot(int from, int to)
+	private void copySlot(int from, int to, boolean setShifted)
 	{
-		int fromStart = this.recBits * from;
-		int toStart = this.recBits * to;
-		
-		for (int j = 1 ; j < recBits ; ++j)
-		{
-			bits.set(toStart+j, bits.get(fromStart+j));
-		}
+		long value = (slots.get(from) & ~OCCUPIED) | (slots.get(to) & OCCUPIED);
+		if (setShifted) { value |= SHIFTED; }
+		slots.set(to, value);
 	}
 	
 	/**
@@ -312,7 +661,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			int slot, 
 			boolean isContinuation, 
 			boolean isShifted, 
-			int remainder)
+			long remainder)
 	{
 		// Find the first empty slot at or past slot.
 		int emptySlot = slot;
@@ -326,8 +675,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		while (toSlot != slot)
 		{
 			int fromSlot = prevSlot(toSlot);
-			copySlot(fromSlot, toSlot);
-			setShifted(toSlot, true); // record the shift
+			copySlot(fromSlot, toSlot, true); // record the shift
 			toSlot = fromSlot;
 		}
 		
@@ -349,11 +697,11 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 */
 	private boolean insertIntoRun(
 			int startOfRun,
-			int remainder,
+			long remainder,
 			boolean isShifted)
 	{
 		// Special case.  We are inserting at the start of the run.
-		int startRemainder = getRemainder(startOfRun);
+		long startRemainder = getRemainder(startOfRun);
 		if (startRemainder == remainder)
 		{
 			return false;
@@ -371,7 +719,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		
 		// Find the position in the run to insert.
 		int slot = nextSlot(startOfRun);
-		int curRemainder = getRemainder(slot);
+		long curRemainder = getRemainder(slot);
 		while (isContinuation(slot) && curRemainder <= remainder)
 		{
 			if (curRemainder == remainder) { return false; }
@@ -391,7 +739,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param slot The slot to consider.
 	 * @return The start of the cluster that contains <code>slot</code>
 	 */
-	private int findStartOfCluster(int slot)
+	int findStartOfCluster(int slot)
 	{
 		// The start of the cluster is the first slot before at at this one that is not shifted.
 		while (isShifted(slot))
@@ -443,52 +791,51 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	}
 	
 	/**
-	 * Finds a remainder in a given run.
+	 * Tells if the filter contains a quotient and remainder.
 	 * 
-	 * @param startOfRun The start of the run
+	 * @param quotient The quotient to look for.
 	 * @param remainder The remainder to look for.
-	 * @return <code>true</code> iff the remainder is in the run.
+	 * @return <code>true</code> iff that quotient and remainder are contained in the filter.
 	 */
-	private boolean findInRun(int startOfRun, int remainder)
+	boolean containsQR(int quotient, long remainder)
 	{
-		// The first element of the run is not a continuation.
-		if (getRemainder(startOfRun) == remainder) { return true; }
-		
-		// The rest of the run is a continuation.
-		int slot = this.nextSlot(startOfRun);
-		while (isContinuation(slot))
-		{
-			if (getRemainder(slot) == remainder) { return true; }
-			slot = this.nextSlot(slot);
-		}
-		
-		return false; // We didn't find it.
+		return probeQR(quotient, remainder) < 0;
 	}
 	
 	/**
-	 * Tells if the filter contains a quotient and remainder.
+	 * Looks for a quotient and remainder, counting the slots read on the way.
 	 * 
 	 * @param quotient The quotient to look for.
 	 * @param remainder The remainder to look for.
-	 * @return <code>true</code> iff that quotient and remainder are contained in the filter.
+	 * @return The number of slots read, negated iff that quotient and remainder are
+	 * contained in the filter.
 	 */
-	private boolean containsQR(int quotient, int remainder)
+	private int probeQR(int quotient, long remainder)
 	{
 		// Check its canonical slot.
-		if (!isOccupied(quotient))
-		{
-			return false;
-		}
-		else
+		if (!isOccupied(quotient)) { return 1; }
+		
+		// First, find the start of its cluster.
+		int startOfCluster = findStartOfCluster(quotient);
+		
+		// Then find its run within the cluster.
+		int startOfRun = findRun(startOfCluster, quotient);
+		
+		// Those read back from the quotient to the start of the cluster, then forward
+		// from there to the start of the run.
+		int probes = ((quotient - startOfCluster) & (nSlots - 1)) 
+				+ ((startOfRun - startOfCluster) & (nSlots - 1)) + 2;
+		
+		// Then try to find the remainder in the run.  The first element of the run is 
+		// not a continuation, and the rest of it are.
+		int slot = startOfRun;
+		while (true)
 		{
-			// First, find the start of its cluster.
-			int startOfCluster = findStartOfCluster(quotient);
-			
-			// Then find its run within the cluster.
-			int startOfRun = findRun(startOfCluster, quotient);
+			if (getRemainder(slot) == remainder) { return -probes; }
 			
-			// Then try to find the remainder in the run.
-			return findInRun(startOfRun, remainder);
+			slot = this.nextSlot(slot);
+			probes++;
+			if (!isContinuation(slot)) { return probes; }
 		}
 	}
 
@@ -498,13 +845,36 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * @param quotient The quotient to add.
 	 * @param remainder The remainder to add.
 	 */
-	private void addQR(int quotient, int remainder)
+	private void addQR(int quotient, long remainder)
+	{
+		if (insertQR(quotient, remainder))
+		{
+			// increment the counter only if it was actually added,
+			// as opposed to just finding out it was already there.
+			this.nOccupied++;
+			
+			// Keep the count with the slots in case they are persisted.
+			slots.recordNumOccupied(this.nOccupied);
+		}
+	}
+	
+	/**
+	 * Inserts a quotient and remainder into the slots without updating the count of
+	 * occupied slots.  Only the slots from the start of the quotient's cluster up to
+	 * the first empty slot at or after the quotient are read or written.
+	 * 
+	 * @param quotient The quotient to add.
+	 * @param remainder The remainder to add.
+	 * @return <code>true</code> if a slot was used, or <code>false</code> if the
+	 * fingerprint was already there.
+	 */
+	boolean insertQR(int quotient, long remainder)
 	{	
 		if (isEmpty(quotient))
 		{
 			// If the canonical slot is empty, use it directly.
 			fillSlot(quotient, true, false, false, remainder);
-			this.nOccupied++;
+			return true;
 		}
 		else if (!isOccupied(quotient))
 		{
@@ -523,8 +893,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			// It is shifted, but not a continuation of anything because
 			// this is a new run.
 			insertIntoSlot(startOfRun, false, true, remainder);
-			
-			this.nOccupied++;
+			return true;
 		}
 		else
 		{
@@ -535,9 +904,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			// the next run after where our run should be.
 			int startOfCluster = findStartOfCluster(quotient);
 			int startOfRun = findRun(startOfCluster, quotient);
-			boolean inserted = insertIntoRun(startOfRun, remainder, startOfRun != quotient);
-			if (inserted) { this.nOccupied++; }  // increment the counter only if it was actually added,
-													// as opposed to just finding out it was already there.
+			return insertIntoRun(startOfRun, remainder, startOfRun != quotient);
 		}
 	}
 	
@@ -653,7 +1020,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			}
 
 			// The next output has the head of the queue for a quotient and this slot's remainder.
-			int remainder = getRemainder(this.cur);
+			long remainder = getRemainder(this.cur);
 			this.next = new QuotientingStrategy.QuotientAndRemainder(this.quotient, remainder);
 			
 			this.cur = nextSlot(this.cur);
@@ -712,11 +1079,28 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * this one with the same data in it.  This is done by transferring a number of bits 
 	 * of each fingerprint from the remainder to the quotient.
 	 * 
+	 * The new table is written in a single pass in slot order, rather than by
+	 * inserting each fingerprint.  Large filters split the work across the common
+	 * fork-join pool.
+	 * 
 	 * @param numDoublings The number of doublings to apply. (i.e. the new filter will have
 	 * 2^numDoublings times more quotients than this.
 	 * @return The doubled quotient filter.
 	 */
 	public QuotientFilter<T> getDoubled(final int numDoublings)
+	{
+		return getDoubled(numDoublings, defaultNumTasks());
+	}
+	
+	/**
+	 * Gets a doubled quotient filter, splitting the work into a number of tasks.
+	 * 
+	 * @param numDoublings The number of doublings to apply.
+	 * @param nTasks The number of tasks to split the work into.  With one task
+	 * everything is done on the calling thread.
+	 * @return The doubled quotient filter.
+	 */
+	QuotientFilter<T> getDoubled(final int numDoublings, final int nTasks)
 	{
 		if (numDoublings <= 0) { throw new IllegalArgumentException("numDoublings must be strictly positive."); }
 		if (numDoublings >= quot.getRemainderBits())
@@ -728,15 +1112,10 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		QuotientingStrategy<T> newStrat = this.quot.getDoubledStrategy(numDoublings);
 		QuotientFilter<T> ret = new QuotientFilter<T>(newStrat);
 		
-		// Iterate through the fingerprints, transferring from here to there.
-		for (final QuotientingStrategy.QuotientAndRemainder qr : this)
-		{
-			int newRemainder = qr.getRemainder(); // We don't have to chop of bits because they are ignored anyway.
-			int newQuotient = qr.getQuotient() << numDoublings;
-			newQuotient |= newRemainder >>> (quot.getRemainderBits() - numDoublings); 
-			
-			ret.addQR(newQuotient, newRemainder);
-		}
+		// Doubling doesn't change the packed fingerprint, only where it is split, so the
+		// fingerprints in order here are still in order there.
+		long[] fingerprints = getSortedFingerprints(nTasks);
+		ret.rebuild(fingerprints, this.nOccupied, nTasks);
 		
 		return ret;
 	}
@@ -745,9 +1124,26 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 	 * Merges another quotient filter into this one.  The other filter must be the same
 	 * size and have the same quotienting strategy.
 	 * 
+	 * The table is rewritten in a single pass in slot order from the combined 
+	 * fingerprints, rather than by inserting each of the other's fingerprints.  Large
+	 * filters split the work across the common fork-join pool.
+	 * 
 	 * @param other The other to merge.
 	 */
 	public void merge(final QuotientFilter<T> other)
+	{
+		merge(other, defaultNumTasks());
+	}
+	
+	/**
+	 * Merges another quotient filter into this one, splitting the work into a number
+	 * of tasks.
+	 * 
+	 * @param other The other to merge.
+	 * @param nTasks The number of tasks to split the work into.  With one task
+	 * everything is done on the calling thread.
+	 */
+	void merge(final QuotientFilter<T> other, final int nTasks)
 	{
 		if (other == null) { throw new NullPointerException("other may not be null."); }
 		if (other.nSlots != this.nSlots) { throw new IllegalArgumentException("other must be the same size as this."); }
@@ -760,9 +1156,487 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		// Easy case, if we're merging into ourselves, do nothing.
 		if (other == this) { return; }
 		
-		for (final QuotientingStrategy.QuotientAndRemainder qr : other)
+		// Merge the two sorted streams of fingerprints, dropping duplicates, and write
+		// the table out again from scratch.
+		long[] mine = this.getSortedFingerprints(nTasks);
+		long[] theirs = other.getSortedFingerprints(nTasks);
+		int nMine = this.nOccupied;
+		int nTheirs = other.nOccupied;
+		long[] merged = new long[nMine + nTheirs];
+		int n = 0;
+		int j = 0;
+		int k = 0;
+		while (j < nMine || k < nTheirs)
+		{
+			long next;
+			if (k == nTheirs || (j < nMine && Long.compareUnsigned(mine[j], theirs[k]) <= 0))
+			{
+				next = mine[j++];
+			}
+			else
+			{
+				next = theirs[k++];
+			}
+			
+			if (n == 0 || merged[n - 1] != next) { merged[n++] = next; }
+		}
+		
+		slots.clear();
+		rebuild(merged, n, nTasks);
+	}
+	
+	/**
+	 * Gets the number of tasks to split a bulk rebuild into.  Small filters aren't
+	 * worth splitting.
+	 * 
+	 * @return The number of tasks.
+	 */
+	private int defaultNumTasks()
+	{
+		int threads = ForkJoinPool.getCommonPoolParallelism();
+		if (nSlots < PARALLEL_THRESHOLD || threads < 2) { return 1; }
+		return TASKS_PER_THREAD * threads;
+	}
+	
+	/**
+	 * Gets all of the fingerprints in the filter, packed as by 
+	 * <code>QuotientingStrategy.getFingerprint()</code> and sorted by quotient then
+	 * remainder.  This reads each slot once, in order, rather than going through the
+	 * iterator.
+	 * 
+	 * @param nTasks The number of tasks to split the work into.
+	 * @return The sorted fingerprints, in the first <code>getNumOccupied()</code> 
+	 * elements of the array.  The array may be longer.
+	 */
+	long[] getSortedFingerprints(int nTasks)
+	{
+		if (nOccupied == 0) { return new long[0]; }
+		
+		// Split the table at empty slots, so no cluster spans two segments.  The
+		// segments are in "line" coordinates, which run past the end of the table to
+		// follow the last cluster if it wraps around.
+		int first = findFirstEmpty(0);
+		if (first < 0)
+		{
+			// No empty slots at all.  Start at the start of any cluster, in one segment.
+			int start = findStartOfCluster(0);
+			long[] ret = new CollectTask(start, (long) start + nSlots).compute();
+			rotateToSorted(ret, nOccupied);
+			return ret;
+		}
+		
+		long end = (long) first + nSlots;
+		long[] bounds = new long[nTasks + 1];
+		int nSegments = 0;
+		bounds[0] = first;
+		for (int t = 1 ; t < nTasks ; ++t)
+		{
+			long bound = Math.max(first + (long) t * nSlots / nTasks, bounds[nSegments] + 1);
+			while (bound < end && !isEmpty((int) (bound % nSlots))) { bound++; }
+			if (bound >= end) { break; }
+			bounds[++nSegments] = bound;
+		}
+		bounds[++nSegments] = end;
+		
+		List<CollectTask> tasks = new ArrayList<CollectTask>(nSegments);
+		for (int t = 0 ; t < nSegments ; ++t)
+		{
+			tasks.add(new CollectTask(bounds[t], bounds[t + 1]));
+		}
+		invokeAll(tasks);
+		
+		long[] ret;
+		if (nSegments == 1)
+		{
+			ret = tasks.get(0).getRawResult();
+		}
+		else
+		{
+			ret = new long[nOccupied];
+			int n = 0;
+			for (CollectTask task : tasks)
+			{
+				System.arraycopy(task.getRawResult(), 0, ret, n, task.n);
+				n += task.n;
+			}
+		}
+		
+		rotateToSorted(ret, nOccupied);
+		return ret;
+	}
+	
+	/**
+	 * Finds the first empty slot at or after a given slot.
+	 * 
+	 * @param slot The slot to start looking from.
+	 * @return The first empty slot, wrapping around, or -1 if there is none.
+	 */
+	private int findFirstEmpty(int slot)
+	{
+		for (int j = 0 ; j < nSlots ; ++j)
+		{
+			if (isEmpty(slot)) { return slot; }
+			slot = nextSlot(slot);
+		}
+		return -1;
+	}
+	
+	/**
+	 * Puts fingerprints read in slot order into sorted order.  Read from the start of
+	 * any cluster, the fingerprints are sorted except for one drop where the quotients
+	 * wrap around from the end of the table to the beginning.
+	 * 
+	 * @param fingerprints The fingerprints in slot order, which are rotated in place.
+	 * @param n The number of fingerprints in the array.
+	 */
+	private static void rotateToSorted(long[] fingerprints, int n)
+	{
+		int drop = 1;
+		while (drop < n && Long.compareUnsigned(fingerprints[drop - 1], fingerprints[drop]) < 0)
+		{
+			drop++;
+		}
+		if (drop >= n) { return; }
+		
+		// Rotate by reversing each side of the drop, then the whole thing.
+		reverse(fingerprints, 0, drop);
+		reverse(fingerprints, drop, n);
+		reverse(fingerprints, 0, n);
+	}
+	
+	/**
+	 * Reverses part of an array.
+	 * 
+	 * @param a The array.
+	 * @param from The first element to reverse.
+	 * @param to One past the last element to reverse.
+	 */
+	private static void reverse(long[] a, int from, int to)
+	{
+		for (int j = from, k = to - 1 ; j < k ; ++j, --k)
+		{
+			long tmp = a[j];
+			a[j] = a[k];
+			a[k] = tmp;
+		}
+	}
+	
+	/**
+	 * Replaces the contents of the filter with a sorted list of fingerprints, writing
+	 * each slot once, in order.  Each run goes either at its canonical slot or right
+	 * after the run before it, whichever is later, which is exactly where repeated
+	 * insertion would have put it.  The slots must be empty to begin with.
+	 * 
+	 * @param fingerprints The fingerprints sorted by quotient then remainder, with no
+	 * duplicates.
+	 * @param n The number of fingerprints in the array to use.
+	 * @param nTasks The number of tasks to split the work into.
+	 */
+	void rebuild(long[] fingerprints, int n, int nTasks)
+	{
+		if (n > nSlots) { throw new IllegalArgumentException("Too many fingerprints to fit."); }
+		
+		// Any fingerprints that run off the end of the table wrap around to the start,
+		// and push the start of the table along.  Find how far, which is where laying
+		// out the fingerprints from the start of the table ends up wrapping to.
+		long start = 0;
+		while (true)
+		{
+			long wrapped = layOut(fingerprints, n, start) - nSlots;
+			if (wrapped <= start) { break; }
+			start = wrapped;
+		}
+		
+		// Split the fingerprints at the starts of clusters, where no run is shifted
+		// into from the one before.  Each task then writes its own range of slots.
+		int[] splits = new int[nTasks + 1];
+		long[] starts = new long[nTasks + 1];
+		int nParts = 0;
+		starts[0] = start;
+		if (nTasks > 1)
 		{
-			this.addQR(qr.getQuotient(), qr.getRemainder());
+			long end = start;
+			for (int j = 0 ; j < n ; ++j)
+			{
+				int q = quotientOf(fingerprints[j]);
+				if (q >= end && nParts + 1 < nTasks && j >= (long) (nParts + 1) * n / nTasks)
+				{
+					splits[++nParts] = j;
+					starts[nParts] = q;
+				}
+				end = Math.max(end, q) + 1;
+			}
+		}
+		splits[++nParts] = n;
+		
+		List<BuildTask> tasks = new ArrayList<BuildTask>(nParts);
+		for (int t = 0 ; t < nParts ; ++t)
+		{
+			long lo = (t == 0) ? 0 : starts[t];
+			long hi = (t == nParts - 1) ? nSlots : starts[t + 1];
+			tasks.add(new BuildTask(fingerprints, splits[t], splits[t + 1], starts[t], lo, hi));
+		}
+		invokeAll(tasks);
+		
+		// Now the writes that touched words shared with a neighbouring task, or that
+		// wrapped around, can be made.
+		for (BuildTask task : tasks)
+		{
+			for (int j = 0 ; j < task.nDeferred ; ++j)
+			{
+				int slot = (int) (task.deferred[2 * j] % nSlots);
+				slots.set(slot, slots.get(slot) | task.deferred[2 * j + 1]);
+			}
+		}
+		
+		this.nOccupied = n;
+		slots.recordNumOccupied(n);
+	}
+	
+	/**
+	 * Works out where laying out sorted fingerprints ends, without writing anything.
+	 * 
+	 * @param fingerprints The sorted fingerprints.
+	 * @param n The number of fingerprints to lay out.
+	 * @param start The slot to start laying out at.
+	 * @return One past the last slot used, in line coordinates.
+	 */
+	private long layOut(long[] fingerprints, int n, long start)
+	{
+		// Each fingerprint goes in its canonical slot or the next free one, whichever
+		// is later.  Within a run the next free one is always later.
+		long end = start;
+		for (int j = 0 ; j < n ; ++j)
+		{
+			end = Math.max(end, quotientOf(fingerprints[j])) + 1;
+		}
+		return end;
+	}
+	
+	/**
+	 * Runs a set of tasks in the common fork-join pool, or just runs it if there is
+	 * only one.
+	 * 
+	 * @param tasks The tasks.
+	 */
+	private static void invokeAll(final List<? extends ForkJoinTask<?>> tasks)
+	{
+		if (tasks.size() == 1)
+		{
+			tasks.get(0).invoke();
+		}
+		else
+		{
+			ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() { ForkJoinTask.invokeAll(tasks); }
+			});
+		}
+	}
+	
+	/**
+	 * A task that reads the fingerprints from a range of slots.  The range must start
+	 * at the start of a cluster or an empty slot, and end at an empty slot.
+	 */
+	private final class CollectTask extends RecursiveTask<long[]>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		// The range of slots to read, in line coordinates.
+		private final long from;
+		private final long to;
+		
+		// The number of fingerprints read.
+		private int n = 0;
+		
+		/**
+		 * Creates a new collection task.
+		 * 
+		 * @param from The first slot to read.
+		 * @param to One past the last slot to read.
+		 */
+		CollectTask(long from, long to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected long[] compute()
+		{
+			int remainderBits = recBits - CONTROL_BITS;
+			
+			// Guess the size from the load, so it rarely has to grow.  There is always
+			// room for one more, as every slot is written whether or not it's kept.
+			long span = to - from;
+			long[] ret = new long[((span == nSlots) ? nOccupied : (int) (span * nOccupied / nSlots * 5 / 4)) + 64];
+			
+			// Within a cluster the k-th run belongs to the k-th occupied slot, so the
+			// occupied slots are queued up as they pass and taken off as runs start.
+			// It's written to avoid branches, since which way they go is random.
+			int[] pending = new int[64];
+			int head = 0;
+			int tail = 0;
+			
+			int slot = (int) (from % nSlots);
+			int quotient = slot;
+			for (long line = from ; line < to ; ++line)
+			{
+				long value = slots.get(slot);
+				int occupied = (int) (value & OCCUPIED);
+				int used = ((value & CONTROL_MASK) != 0) ? 1 : 0;
+				int runStart = used & (int) (~value >>> 1) & 1; // Used, and not a continuation.
+				
+				if (tail - head == pending.length)
+				{
+					int[] bigger = new int[2 * pending.length];
+					for (int j = head ; j < tail ; ++j)
+					{
+						bigger[j & (bigger.length - 1)] = pending[j & (pending.length - 1)];
+					}
+					pending = bigger;
+				}
+				pending[tail & (pending.length - 1)] = slot;
+				tail += occupied;
+				
+				quotient = (runStart != 0) ? pending[head & (pending.length - 1)] : quotient;
+				head += runStart;
+				
+				if (n == ret.length - 1) { ret = Arrays.copyOf(ret, 2 * ret.length); }
+				ret[n] = ((long) quotient << remainderBits) | (value >>> CONTROL_BITS);
+				n += used;
+				
+				slot = nextSlot(slot);
+			}
+			
+			return ret;
+		}
+	}
+	
+	/**
+	 * A task that writes a range of sorted fingerprints into the slots.  Writes are
+	 * made directly only to words that no other task can touch.  The rest are 
+	 * saved to be made once all tasks are done.
+	 */
+	private final class BuildTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		// The fingerprints to write.
+		private final long[] fingerprints;
+		private final int from;
+		private final int to;
+		
+		// The slot to start writing at, in line coordinates.
+		private final long start;
+		
+		// The range of slots that may be written directly.
+		private final long safeFrom;
+		private final long safeTo;
+		
+		// The writes to make afterwards, as pairs of slot and bits to set.
+		private long[] deferred = new long[16];
+		private int nDeferred = 0;
+		
+		/**
+		 * Creates a new build task.
+		 * 
+		 * @param fingerprints The sorted fingerprints.
+		 * @param from The first fingerprint to write.
+		 * @param to One past the last fingerprint to write.
+		 * @param start The slot to start writing at, in line coordinates.
+		 * @param lo The first slot this task owns.
+		 * @param hi One past the last slot this task owns.
+		 */
+		BuildTask(long[] fingerprints, int from, int to, long start, long lo, long hi)
+		{
+			this.fingerprints = fingerprints;
+			this.from = from;
+			this.to = to;
+			this.start = start;
+			
+			// Trim the range in to whole words.  The words at either end may be
+			// shared with a neighbour, unless the end is the end of the table.
+			long loBit = (lo * recBits + 63) & ~63L;
+			long hiBit = (hi == nSlots) ? hi * recBits : (hi * recBits) & ~63L;
+			this.safeFrom = (loBit + recBits - 1) / recBits;
+			this.safeTo = hiBit / recBits;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			long end = start;
+			int prevQuotient = -1;
+			for (int j = from ; j < to ; ++j)
+			{
+				int q = quotientOf(fingerprints[j]);
+				long slot = Math.max(end, q);
+				
+				long value = remainderOf(fingerprints[j]) << CONTROL_BITS;
+				if (q == prevQuotient) { value |= CONTINUATION; }
+				if (slot != q) { value |= SHIFTED; }
+				else { value |= OCCUPIED; }
+				set(slot, value);
+				
+				// The occupied flag goes with the slot rather than what is in it.  For a
+				// shifted run, the canonical slot has already been written.
+				if (slot != q && q != prevQuotient) { or(q, OCCUPIED); }
+				
+				end = slot + 1;
+				prevQuotient = q;
+			}
+		}
+		
+		/**
+		 * Fills an empty slot, or saves it to fill later.
+		 * 
+		 * @param slot The slot, in line coordinates.
+		 * @param value The new contents of the slot.
+		 */
+		private void set(long slot, long value)
+		{
+			if (slot >= safeFrom && slot < safeTo)
+			{
+				slots.set((int) slot, value);
+			}
+			else
+			{
+				defer(slot, value);
+			}
+		}
+		
+		/**
+		 * Sets bits in a slot, or saves them to set later.
+		 * 
+		 * @param slot The slot, in line coordinates.
+		 * @param bits The bits to set.
+		 */
+		private void or(long slot, long bits)
+		{
+			if (slot >= safeFrom && slot < safeTo)
+			{
+				slots.set((int) slot, slots.get((int) slot) | bits);
+			}
+			else
+			{
+				defer(slot, bits);
+			}
+		}
+		
+		/**
+		 * Saves bits to set in a slot once all tasks are done.
+		 * 
+		 * @param slot The slot, in line coordinates.
+		 * @param bits The bits to set.
+		 */
+		private void defer(long slot, long bits)
+		{
+			if (2 * nDeferred == deferred.length) { deferred = Arrays.copyOf(deferred, 2 * deferred.length); }
+			deferred[2 * nDeferred] = slot;
+			deferred[2 * nDeferred + 1] = bits;
+			nDeferred++;
 		}
 	}
 	
@@ -777,6 +1651,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		private final int nShifted;
 		private final int nRuns;
 		private final int nClusters;
+		private final long[] clusterHistogram;
 		
 		/**
 		 * Creates a new set of summary statistics.
@@ -787,9 +1662,10 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		 * @param nShifted
 		 * @param nRuns
 		 * @param nClusters
+		 * @param clusterHistogram
 		 */
 		private Stats(int nSlots, int nOccupied, int nCanonical, int nShifted, int nRuns,
-				int nClusters)
+				int nClusters, long[] clusterHistogram)
 		{
 			this.nSlots = nSlots;
 			this.nOccupied = nOccupied;
@@ -797,6 +1673,7 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			this.nShifted = nShifted;
 			this.nRuns = nRuns;
 			this.nClusters = nClusters;
+			this.clusterHistogram = clusterHistogram;
 		}
 		
 		/**
@@ -859,6 +1736,17 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			return nClusters;
 		}
 		
+		/**
+		 * Gets a histogram of the lengths of the clusters.
+		 * 
+		 * @return Entry <code>j</code> is the number of clusters from 2^j up to
+		 * 2^(j+1) - 1 slots long.
+		 */
+		public long[] getClusterLengthHistogram()
+		{
+			return clusterHistogram.clone();
+		}
+		
 		public String toString()
 		{
 			StringBuilder sb = new StringBuilder("[nSlots=");
@@ -889,6 +1777,10 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 		int nShifted = 0;
 		int nRuns = 0;
 		int nClusters = 0;
+		long[] clusterHistogram = new long[32];
+		
+		// The length of the cluster so far, or zero if not in one that we have seen start.
+		int clusterLength = 0;
 		
 		for (int j =0 ; j < nSlots ; ++j)
 		{
@@ -900,6 +1792,20 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			{ 
 				nClusters++;
 				nRuns++;
+				if (clusterLength > 0) { clusterHistogram[FilterCounters.bucketOf(clusterLength)]++; }
+				clusterLength = 1;
+			}
+			else if (isShifted(j))
+			{
+				// Shifted slots before the first cluster start belong to one that wraps
+				// around from the end, and are counted with it below.
+				if (clusterLength > 0) { clusterLength++; }
+			}
+			else if (clusterLength > 0)
+			{
+				// An empty slot ends the cluster.
+				clusterHistogram[FilterCounters.bucketOf(clusterLength)]++;
+				clusterLength = 0;
 			}
 			
 			// If it's shifted, but not a continuation, it's the start of a run that is not the
@@ -910,7 +1816,18 @@ public final class QuotientFilter<T> implements ApproxMemQuery<T>,
 			}
 		}
 		
-		return new Stats(this.nSlots, this.nOccupied, nCanonical, nShifted, nRuns, nClusters);
+		// Finish the last cluster, which may wrap around.
+		if (clusterLength > 0)
+		{
+			for (int j = 0 ; j < nSlots && isShifted(j) ; ++j)
+			{
+				clusterLength++;
+			}
+			clusterHistogram[FilterCounters.bucketOf(clusterLength)]++;
+		}
+		
+		return new Stats(this.nSlots, this.nOccupied, nCanonical, nShifted, nRuns, nClusters,
+				clusterHistogram);
 	}
 	
 	@Override
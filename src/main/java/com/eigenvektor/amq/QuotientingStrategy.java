@@ -25,6 +25,13 @@ package com.eigenvektor.amq;
  * Implementations should be immutable and override <code>equals()</code> 
  * and <code>hashCode()</code> so identical strategies are matched.
  * 
+ * Filters saved to files or streams record <code>getStrategyId()</code>, and are only
+ * opened again with a strategy of the same ID.  By default that ID comes from the
+ * class name and <code>hashCode()</code>, so it only survives a restart if
+ * <code>hashCode()</code> is computed from the strategy's settings rather than
+ * inherited from <code>Object</code>.  Strategies that can't promise that should
+ * override <code>getStrategyId()</code>.
+ * 
  * @param <T> The class this acts on.
  */
 public interface QuotientingStrategy<T>
@@ -32,7 +39,7 @@ public interface QuotientingStrategy<T>
 	public static final class QuotientAndRemainder
 	{
 		private final int quotient;
-		private final int remainder;
+		private final long remainder;
 		
 		/**
 		 * Creates a new instance with a given quotient and remainder.
@@ -41,6 +48,17 @@ public interface QuotientingStrategy<T>
 		 * @param remainder the remainder.
 		 */
 		public QuotientAndRemainder(int quotient, int remainder)
+		{
+			this(quotient, remainder & 0xFFFFFFFFL);
+		}
+		
+		/**
+		 * Creates a new instance with a given quotient and a remainder of more than 32 bits.
+		 * 
+		 * @param quotient the quotient.
+		 * @param remainder the remainder.
+		 */
+		public QuotientAndRemainder(int quotient, long remainder)
 		{
 			this.quotient = quotient;
 			this.remainder = remainder;
@@ -57,11 +75,22 @@ public interface QuotientingStrategy<T>
 		}
 
 		/**
-		 * Gets the remainder.
+		 * Gets the remainder.  Only the low 32 bits are returned, so strategies with more
+		 * than 32 remainder bits should use <code>getLongRemainder()</code>.
 		 * 
 		 * @return the remainder
 		 */
 		public int getRemainder()
+		{
+			return (int) remainder;
+		}
+		
+		/**
+		 * Gets the full remainder.
+		 * 
+		 * @return the remainder
+		 */
+		public long getLongRemainder()
 		{
 			return remainder;
 		}
@@ -93,7 +122,7 @@ public interface QuotientingStrategy<T>
 		@Override
 		public int hashCode()
 		{
-			return quotient ^ remainder;
+			return quotient ^ (int) remainder ^ (int) (remainder >>> 32);
 		}
 	}
 	
@@ -120,6 +149,29 @@ public interface QuotientingStrategy<T>
 	 */
 	public QuotientAndRemainder getQuotientAndRemainder(T x);
 	
+	/**
+	 * Gets the quotient and remainder for a given object packed into a single
+	 * <code>long</code> without creating any objects.  The remainder is in the low
+	 * <code>getRemainderBits()</code> bits and the quotient is in the 
+	 * <code>getQuotientBits()</code> bits above it.  Any higher bits are zero.
+	 * 
+	 * Since doubling only moves the boundary between quotient and remainder, a strategy
+	 * and its doubled strategies give the same fingerprint for the same object.
+	 * 
+	 * By default this calls <code>getQuotientAndRemainder()</code>, which creates an
+	 * object, so implementations should override it if they can do without.
+	 * 
+	 * @param x The object to use.
+	 * @return The packed quotient and remainder for that object.
+	 */
+	public default long getFingerprint(T x)
+	{
+		QuotientAndRemainder qr = getQuotientAndRemainder(x);
+		long remainder = qr.getLongRemainder();
+		if (getRemainderBits() < 64) { remainder &= (1L << getRemainderBits()) - 1; }
+		return ((long) qr.getQuotient() << getRemainderBits()) | remainder;
+	}
+	
 	/**
 	 * Gets a quotienting strategy with the number of quotients doubled
 	 * (and the number of remainders halved) a certain number of times.
@@ -133,4 +185,20 @@ public interface QuotientingStrategy<T>
 	 * the quotient.
 	 */
 	public QuotientingStrategy<T> getDoubledStrategy(int numDoublings);
+	
+	/**
+	 * Gets an ID for the strategy and its settings that stays the same from one run of
+	 * the program to the next, and differs between strategies that give different
+	 * fingerprints.  It is recorded with saved filters to check that they are opened
+	 * with the strategy they were made with.
+	 * 
+	 * By default this is the hash of the class name in the high 32 bits and
+	 * <code>hashCode()</code> in the low 32, which is only stable if both are.
+	 * 
+	 * @return The ID of the strategy.
+	 */
+	public default long getStrategyId()
+	{
+		return ((long) getClass().getName().hashCode() << 32) | (hashCode() & 0xFFFFFFFFL);
+	}
 }
@@ -0,0 +1,425 @@
+/*
+ *  Rank-and-select quotient filter implementation.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+/**
+ * A quotient filter that finds runs by rank and select on bit vectors rather than by
+ * walking the slots.
+ *
+ * Where a <code>QuotientFilter</code> keeps three control bits in every slot, this
+ * keeps two bit vectors beside the remainders: one bit per canonical slot telling
+ * whether any fingerprint has that quotient, and one bit per slot marking the last
+ * remainder of each run.  The slots are grouped in blocks of 64, and each block
+ * records how far the runs of earlier quotients reach into it.  The end of a
+ * quotient's run is then the n-th run end counted from that point, where n is the
+ * number of occupied quotients in the block up to it.  That is one popcount, a
+ * select within a word or two, and no scanning, however long the cluster is.
+ *
+ * Runs never wrap around the end of the table.  Instead the table has some extra
+ * slots past the last canonical slot for runs to spill into, and the filter is full
+ * when a run would spill past those.
+ *
+ * @param <T> The type of entry.
+ */
+public final class RankSelectQuotientFilter<T> extends AbstractApproxMemQuery<T>
+{
+	// The largest number of quotient bits, limited by the slot index being an int.
+	private static final int MAX_QUOTIENT_BITS = 30;
+
+	// The largest number of remainder bits.
+	private static final int MAX_REMAINDER_BITS = 63;
+
+	// The number of slots in a block, one per bit of a word.
+	private static final int BLOCK_BITS = 6;
+	private static final int BLOCK_SLOTS = 1 << BLOCK_BITS;
+
+	private final QuotientingStrategy<T> quot;
+
+	// The number of bits in the remainder.
+	private final int rBits;
+
+	// The number of canonical slots, always a power of two.
+	private final int nSlots;
+
+	// The number of slots including those past the canonical ones, a whole number
+	// of blocks.
+	private final int nPhysicalSlots;
+
+	// The remainders.
+	private final SlotArray remainders;
+
+	// Bit j of word b is set if any fingerprint has quotient 64b + j.
+	private final long[] occupieds;
+
+	// Bit j of word b is set if slot 64b + j holds the last remainder of a run.
+	private final long[] runEnds;
+
+	// The number of slots at the start of each block taken by the runs of
+	// quotients from earlier blocks.
+	private final int[] offsets;
+
+	// The number of slots in use.
+	private int nOccupied = 0;
+
+	/**
+	 * Creates a rank-and-select quotient filter with a particular quotienting strategy.
+	 *
+	 * @param quot The quotienting strategy to employ.
+	 */
+	public RankSelectQuotientFilter(QuotientingStrategy<T> quot)
+	{
+		if (quot == null) { throw new IllegalArgumentException("quot may not be null."); }
+		if (quot.getQuotientBits() > MAX_QUOTIENT_BITS) {
+			throw new IllegalArgumentException("At most " + MAX_QUOTIENT_BITS + " quotient bits are supported."); }
+		if (quot.getRemainderBits() < 1 || quot.getRemainderBits() > MAX_REMAINDER_BITS) {
+			throw new IllegalArgumentException("Between 1 and " + MAX_REMAINDER_BITS + " remainder bits are supported."); }
+
+		this.quot = quot;
+		this.rBits = quot.getRemainderBits();
+		this.nSlots = 1 << quot.getQuotientBits();
+
+		// Runs spill past the last canonical slot by about the square root of the
+		// table size at high load, so leave ten times that and at least a block.
+		int overflow = BLOCK_SLOTS + 10 * (int) Math.sqrt(nSlots);
+		int nBlocks = (nSlots + overflow + BLOCK_SLOTS - 1) >>> BLOCK_BITS;
+		this.nPhysicalSlots = nBlocks << BLOCK_BITS;
+
+		this.remainders = new HeapSlotArray(nPhysicalSlots, rBits);
+		this.occupieds = new long[nBlocks];
+		this.runEnds = new long[nBlocks];
+		this.offsets = new int[nBlocks];
+	}
+
+	/**
+	 * Creates a rank-and-select quotient filter using the hash code of the elements.
+	 *
+	 * @param nQuotientBits The number of bits to use in the quotient.
+	 */
+	public RankSelectQuotientFilter(int nQuotientBits)
+	{
+		this(new HashQuotientingStrategy<T>(nQuotientBits));
+	}
+
+	@Override
+	public void add(T x)
+	{
+		addHash(quot.getFingerprint(x));
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		return containsHash(quot.getFingerprint(x));
+	}
+
+	/**
+	 * Adds a fingerprint to the filter without creating any objects.
+	 *
+	 * @param fingerprint A quotient and remainder packed as by
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 */
+	public void addHash(long fingerprint)
+	{
+		int quotient = quotientOf(fingerprint);
+		long remainder = remainderOf(fingerprint);
+		boolean occupied = isOccupied(quotient);
+		int end = runEnd(quotient);
+
+		// Find where the remainder goes.  If the quotient has a run, that is after
+		// the last remainder in it that is smaller.  Otherwise it is a new run,
+		// straight after the runs of earlier quotients.
+		int slot;
+		if (occupied)
+		{
+			slot = end + 1;
+			while (inRun(slot - 1, quotient, end))
+			{
+				long r = remainders.get(slot - 1);
+				if (r == remainder) { return; }
+				if (r < remainder) { break; }
+				slot--;
+			}
+		}
+		else
+		{
+			slot = Math.max(quotient, end + 1);
+		}
+
+		int empty = findEmptySlot(slot);
+
+		// Make room and put the remainder in.
+		for (int j = empty ; j > slot ; --j)
+		{
+			remainders.set(j, remainders.get(j - 1));
+		}
+		remainders.set(slot, remainder);
+		shiftRunEnds(slot, empty);
+		if (!occupied)
+		{
+			setRunEnd(slot, true);
+			occupieds[quotient >>> BLOCK_BITS] |= 1L << quotient;
+		}
+		else if (slot == end + 1)
+		{
+			// The new remainder is the largest, so it ends the run.
+			setRunEnd(end, false);
+			setRunEnd(slot, true);
+		}
+		else
+		{
+			setRunEnd(slot, false);
+		}
+		nOccupied++;
+
+		// Only blocks starting after the quotient and up to just past the empty slot
+		// can have had the runs reaching into them move.
+		int lastBlock = Math.min((empty + 1) >>> BLOCK_BITS, offsets.length - 1);
+		for (int block = (quotient >>> BLOCK_BITS) + 1 ; block <= lastBlock ; ++block)
+		{
+			int start = block << BLOCK_BITS;
+			offsets[block] = Math.max(0, runEnd(start - 1) - start + 1);
+		}
+	}
+
+	/**
+	 * Tells whether a fingerprint has been added, without creating any objects.
+	 *
+	 * @param fingerprint A quotient and remainder packed as by
+	 * <code>QuotientingStrategy.getFingerprint()</code>.  Bits above the quotient are ignored.
+	 * @return <code>true</code> iff the fingerprint is in the filter.
+	 */
+	public boolean containsHash(long fingerprint)
+	{
+		int quotient = quotientOf(fingerprint);
+		if (!isOccupied(quotient)) { return false; }
+
+		long remainder = remainderOf(fingerprint);
+		int end = runEnd(quotient);
+
+		// The run is sorted, so scan back from its end until the remainders get too small.
+		for (int slot = end ; inRun(slot, quotient, end) ; --slot)
+		{
+			long r = remainders.get(slot);
+			if (r == remainder) { return true; }
+			if (r < remainder) { return false; }
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of slots in use.
+	 *
+	 * @return The number of distinct fingerprints added.
+	 */
+	public int getNumOccupied()
+	{
+		return nOccupied;
+	}
+
+	/**
+	 * Gets the number of canonical slots.
+	 *
+	 * @return The number of canonical slots, not counting the ones runs spill into
+	 * past the end.
+	 */
+	public int getNumSlots()
+	{
+		return nSlots;
+	}
+
+	/**
+	 * Extracts the quotient from a packed fingerprint.
+	 *
+	 * @param fingerprint The fingerprint.
+	 * @return The quotient.
+	 */
+	private int quotientOf(long fingerprint)
+	{
+		return (int) (fingerprint >>> rBits) & (nSlots - 1);
+	}
+
+	/**
+	 * Extracts the remainder from a packed fingerprint.
+	 *
+	 * @param fingerprint The fingerprint.
+	 * @return The remainder.
+	 */
+	private long remainderOf(long fingerprint)
+	{
+		return fingerprint & ((1L << rBits) - 1);
+	}
+
+	/**
+	 * Gets the last slot used by the runs of quotients up to a given one.
+	 *
+	 * @param quotient The quotient, or any slot.
+	 * @return The end of the run of the largest occupied quotient no greater than
+	 * <code>quotient</code>.  If none of those runs reaches <code>quotient</code>
+	 * the result is some slot before it.
+	 */
+	private int runEnd(int quotient)
+	{
+		int block = quotient >>> BLOCK_BITS;
+		int base = (block << BLOCK_BITS) + offsets[block];
+
+		// The number of occupied quotients in this block up to this one.
+		int rank = Long.bitCount(occupieds[block] & (-1L >>> (63 - (quotient & 63))));
+		if (rank == 0) { return base - 1; }
+
+		// The runs of those quotients end at the first that many run ends from where
+		// the runs of earlier blocks stop.
+		int word = base >>> BLOCK_BITS;
+		long bits = runEnds[word] & (-1L << base);
+		int count = Long.bitCount(bits);
+		while (count < rank)
+		{
+			rank -= count;
+			bits = runEnds[++word];
+			count = Long.bitCount(bits);
+		}
+		return (word << BLOCK_BITS) + select(bits, rank - 1);
+	}
+
+	/**
+	 * Finds the position of a set bit in a word.
+	 *
+	 * @param bits The word.
+	 * @param rank The number of set bits to skip.  Must be less than the number set.
+	 * @return The index of the set bit with <code>rank</code> set bits below it.
+	 */
+	private static int select(long bits, int rank)
+	{
+		// Skip whole bytes, then clear the remaining low bits.
+		int pos = 0;
+		int count;
+		while ((count = Long.bitCount(bits & 0xFF)) <= rank)
+		{
+			rank -= count;
+			bits >>>= 8;
+			pos += 8;
+		}
+		for ( ; rank > 0 ; --rank)
+		{
+			bits &= bits - 1;
+		}
+		return pos + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * Tells whether a slot is in a quotient's run, given that it is no later than
+	 * the run's end.
+	 *
+	 * @param slot The slot.
+	 * @param quotient The quotient.
+	 * @param end The end of the quotient's run.
+	 * @return <code>true</code> iff <code>slot</code> holds a remainder of the run.
+	 */
+	private boolean inRun(int slot, int quotient, int end)
+	{
+		// The run starts at the quotient or just after the end of another run.
+		return slot >= quotient && (slot == end || !isRunEnd(slot));
+	}
+
+	/**
+	 * Finds the first empty slot at or after a given one.
+	 *
+	 * @param slot The slot to start at.
+	 * @return The first empty slot.
+	 * @throws IllegalStateException If the runs reach the end of the table.
+	 */
+	private int findEmptySlot(int slot)
+	{
+		while (slot < nPhysicalSlots)
+		{
+			int end = runEnd(slot);
+			if (end < slot) { return slot; }
+			slot = end + 1;
+		}
+		throw new IllegalStateException("Rank-select quotient filter is full.");
+	}
+
+	/**
+	 * Moves the run end bits of a stretch of slots up by one.
+	 *
+	 * @param from The first slot to move.  Its bit must be set afterwards.
+	 * @param to The empty slot at the end of the stretch, which receives the bit
+	 * before it.
+	 */
+	private void shiftRunEnds(int from, int to)
+	{
+		int first = from >>> BLOCK_BITS;
+		int last = to >>> BLOCK_BITS;
+		for (int word = last ; word >= first ; --word)
+		{
+			long bits = runEnds[word];
+			long shifted = bits << 1;
+			if (word > first) { shifted |= runEnds[word - 1] >>> 63; }
+
+			long mask = -1L;
+			if (word == last) { mask &= -1L >>> (63 - (to & 63)); }
+			if (word == first) { mask &= -1L << from; }
+			runEnds[word] = (bits & ~mask) | (shifted & mask);
+		}
+	}
+
+	/**
+	 * Tells whether a quotient has a run.
+	 *
+	 * @param quotient The quotient.
+	 * @return <code>true</code> iff some fingerprint with the quotient was added.
+	 */
+	private boolean isOccupied(int quotient)
+	{
+		return (occupieds[quotient >>> BLOCK_BITS] & (1L << quotient)) != 0;
+	}
+
+	/**
+	 * Tells whether a slot ends a run.
+	 *
+	 * @param slot The slot.
+	 * @return <code>true</code> iff the slot holds the last remainder of a run.
+	 */
+	private boolean isRunEnd(int slot)
+	{
+		return (runEnds[slot >>> BLOCK_BITS] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * Marks whether a slot ends a run.
+	 *
+	 * @param slot The slot.
+	 * @param value Whether it ends a run.
+	 */
+	private void setRunEnd(int slot, boolean value)
+	{
+		if (value) { runEnds[slot >>> BLOCK_BITS] |= 1L << slot; }
+		else { runEnds[slot >>> BLOCK_BITS] &= ~(1L << slot); }
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("RankSelectQuotientFilter<nSlots=");
+		sb.append(nSlots);
+		sb.append(",nOccupied=");
+		sb.append(nOccupied);
+		sb.append(">");
+		return sb.toString();
+	}
+}
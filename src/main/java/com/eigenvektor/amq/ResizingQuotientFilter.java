@@ -0,0 +1,545 @@
+/*
+ *  Quotient filter that doubles itself as it fills.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A thread-safe quotient filter that grows instead of filling up.
+ *
+ * After each insertion the filter checks its load factor, and every so often the
+ * mean length of its clusters as reported by <code>QuotientFilter.getStats()</code>.
+ * Once either passes its threshold a doubled copy of the table is built in the
+ * background, one bit of each fingerprint moving from the remainder to the quotient.
+ * Until that copy is ready the old table is left untouched and keeps answering
+ * queries; elements added in the meantime go into a small side table of the new
+ * size.  That side table is then merged into the new table in one linear pass, still
+ * in the background, while later elements go into another side table.  Only those few
+ * are added one by one, and then the new table replaces the old one in a single step.
+ *
+ * Queries take no locks.  The tables are <code>ConcurrentQuotientFilter</code>s, and
+ * the set of them in use is published through a volatile reference, so a query reads
+ * whichever tables are current and never waits for an insertion or a doubling.
+ * Insertions take the filter's lock, which a doubling only holds briefly.
+ *
+ * Each doubling costs a bit of remainder, so the false positive rate roughly doubles
+ * with it.  Growth stops when only one remainder bit is left or the quotient reaches
+ * its maximum size, after which the filter behaves like a plain
+ * <code>QuotientFilter</code> and throws once it is full.  If a doubling fails, growth
+ * stops in the same way: the side tables stay in use, later elements go into the
+ * newest of them, and the doubling's failure is thrown on the thread that ran it.
+ *
+ * Insertions can wait for a doubling, so by default the doublings run on threads of
+ * their own rather than in a pool that the inserting threads may belong to.  If they
+ * are given to a <code>ForkJoinPool</code> instead, the waits are managed blocks, so
+ * the pool can add a thread to run the doubling.
+ *
+ * @param <T> The type of entry.
+ */
+public final class ResizingQuotientFilter<T> extends AbstractApproxMemQuery<T>
+{
+	// The default load factor past which the filter grows.
+	private static final double DEFAULT_MAX_LOAD_FACTOR = 0.75;
+
+	// The default mean cluster length past which the filter grows.
+	private static final double DEFAULT_MAX_MEAN_CLUSTER_LENGTH = 8.0;
+
+	// The cluster statistics take a pass over every slot, so they are only gathered
+	// once per 2^STATS_INTERVAL_BITS of the table's slots worth of insertions.
+	private static final int STATS_INTERVAL_BITS = 3;
+
+	// Runs the doublings unless another executor is given.  Its threads are daemons,
+	// and end when they have been idle for a while.
+	private static final Executor GROWTH_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "ResizingQuotientFilter-growth");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The tables in use at one time.  A fingerprint is in the filter if it is in any
+	 * of them.  Insertions go into <code>pending</code> if there is one, and otherwise
+	 * into <code>table</code>.
+	 *
+	 * @param <T> The type of entry.
+	 */
+	private static final class Tables<T>
+	{
+		// The current table.  While a doubling is in progress it is read by the
+		// doubling and so must not be written.
+		final ConcurrentQuotientFilter<T> table;
+
+		// Elements added earlier in a doubling, being merged into the doubled table,
+		// or null.
+		final ConcurrentQuotientFilter<T> merging;
+
+		// Elements added while a doubling is in progress, sized like the doubled
+		// table.  This is null when no doubling is in progress, unless one failed.
+		final ConcurrentQuotientFilter<T> pending;
+
+		Tables(ConcurrentQuotientFilter<T> table, ConcurrentQuotientFilter<T> merging,
+				ConcurrentQuotientFilter<T> pending)
+		{
+			this.table = table;
+			this.merging = merging;
+			this.pending = pending;
+		}
+
+		/**
+		 * Gets the total number of occupied slots.
+		 *
+		 * @return The number of occupied slots in all the tables.
+		 */
+		int getNumOccupied()
+		{
+			return table.getNumOccupied()
+					+ (merging == null ? 0 : merging.getNumOccupied())
+					+ (pending == null ? 0 : pending.getNumOccupied());
+		}
+	}
+
+	// The strategy the filter was created with, which gives every element's fingerprint.
+	// Doubling doesn't change fingerprints, so it serves for every table.
+	private final QuotientingStrategy<T> quot;
+
+	// The thresholds that trigger growth.
+	private final double maxLoadFactor;
+	private final double maxMeanClusterLength;
+
+	// Runs the doublings.
+	private final Executor executor;
+
+	// Guards all of the mutable state below, and all changes to the tables.
+	private final Object lock = new Object();
+
+	// The tables in use, which queries read without the lock.
+	private volatile Tables<T> tables;
+
+	// Whether a doubling is in progress.  Once one fails the side tables are kept, but
+	// this goes back to false.
+	private volatile boolean growing = false;
+
+	// The strategy of the current table, and its number of slots.
+	private QuotientingStrategy<T> tableQuot;
+	private int nSlots;
+
+	// Whether the table may still be doubled.
+	private boolean canGrow;
+
+	// The number of insertions until the cluster statistics are next checked.
+	private int untilStatsCheck;
+
+	// The number of doublings done so far.
+	private int nDoublings = 0;
+
+	/**
+	 * Creates a resizing quotient filter that grows on threads of its own.
+	 *
+	 * @param quot The quotienting strategy to start with.
+	 * @param maxLoadFactor The fraction of slots occupied past which the filter grows.
+	 * @param maxMeanClusterLength The mean cluster length past which the filter grows.
+	 */
+	public ResizingQuotientFilter(QuotientingStrategy<T> quot, double maxLoadFactor,
+			double maxMeanClusterLength)
+	{
+		this(quot, maxLoadFactor, maxMeanClusterLength, GROWTH_EXECUTOR);
+	}
+
+	/**
+	 * Creates a resizing quotient filter.
+	 *
+	 * @param quot The quotienting strategy to start with.
+	 * @param maxLoadFactor The fraction of slots occupied past which the filter grows.
+	 * @param maxMeanClusterLength The mean cluster length past which the filter grows.
+	 * @param executor Runs the doublings.
+	 */
+	public ResizingQuotientFilter(QuotientingStrategy<T> quot, double maxLoadFactor,
+			double maxMeanClusterLength, Executor executor)
+	{
+		if (quot == null) { throw new IllegalArgumentException("quot may not be null."); }
+		if (!(maxLoadFactor > 0.0 && maxLoadFactor < 1.0)) {
+			throw new IllegalArgumentException("maxLoadFactor must be strictly between 0 and 1."); }
+		if (!(maxMeanClusterLength >= 1.0)) {
+			throw new IllegalArgumentException("maxMeanClusterLength must be at least 1."); }
+		if (executor == null) { throw new IllegalArgumentException("executor may not be null."); }
+
+		this.quot = quot;
+		this.maxLoadFactor = maxLoadFactor;
+		this.maxMeanClusterLength = maxMeanClusterLength;
+		this.executor = executor;
+
+		this.tables = new Tables<T>(new ConcurrentQuotientFilter<T>(quot), null, null);
+		this.tableQuot = quot;
+		this.nSlots = 1 << quot.getQuotientBits();
+		this.canGrow = isGrowable(quot);
+		this.untilStatsCheck = statsInterval();
+	}
+
+	/**
+	 * Creates a resizing quotient filter with the default thresholds.
+	 *
+	 * @param quot The quotienting strategy to start with.
+	 */
+	public ResizingQuotientFilter(QuotientingStrategy<T> quot)
+	{
+		this(quot, DEFAULT_MAX_LOAD_FACTOR, DEFAULT_MAX_MEAN_CLUSTER_LENGTH);
+	}
+
+	/**
+	 * Creates a resizing quotient filter with the default thresholds and hashing.
+	 *
+	 * @param nQuotientBits The number of bits to start with in the quotient.
+	 */
+	public ResizingQuotientFilter(int nQuotientBits)
+	{
+		this(new HashQuotientingStrategy<T>(nQuotientBits));
+	}
+
+	@Override
+	public void add(T x)
+	{
+		// Hash outside the lock.
+		addHash(quot.getFingerprint(x));
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		return containsHash(quot.getFingerprint(x));
+	}
+
+	/**
+	 * Adds a fingerprint to the filter without creating any objects.
+	 *
+	 * @param fingerprint A fingerprint from the strategy the filter was created with.
+	 */
+	public void addHash(long fingerprint)
+	{
+		synchronized (lock)
+		{
+			// If insertions outpace the doubling, wait for it rather than overload
+			// the doubled table before it is even published.
+			while (growing && tables.getNumOccupied() >= maxLoadFactor * 2 * nSlots)
+			{
+				waitForGrowth();
+			}
+
+			Tables<T> t = tables;
+			if (t.pending != null)
+			{
+				if (!t.table.containsHash(fingerprint)
+						&& (t.merging == null || !t.merging.containsHash(fingerprint)))
+				{
+					t.pending.addHash(fingerprint);
+				}
+				return;
+			}
+
+			t.table.addHash(fingerprint);
+			if (shouldGrow()) { startGrowing(); }
+		}
+	}
+
+	/**
+	 * Tells whether a fingerprint has been added, without creating any objects or
+	 * taking any locks.
+	 *
+	 * @param fingerprint A fingerprint from the strategy the filter was created with.
+	 * @return <code>true</code> iff the fingerprint is in the filter.
+	 */
+	public boolean containsHash(long fingerprint)
+	{
+		Tables<T> t = tables;
+		return t.table.containsHash(fingerprint)
+				|| (t.merging != null && t.merging.containsHash(fingerprint))
+				|| (t.pending != null && t.pending.containsHash(fingerprint));
+	}
+
+	/**
+	 * Gets the number of distinct fingerprints in the filter.
+	 *
+	 * @return The number of occupied slots, counting those waiting to join the table.
+	 */
+	public int getNumOccupied()
+	{
+		synchronized (lock)
+		{
+			return tables.getNumOccupied();
+		}
+	}
+
+	/**
+	 * Gets the number of slots in the current table.
+	 *
+	 * @return The number of slots.
+	 */
+	public int getNumSlots()
+	{
+		synchronized (lock)
+		{
+			return nSlots;
+		}
+	}
+
+	/**
+	 * Gets the number of times the filter has doubled.
+	 *
+	 * @return The number of doublings.
+	 */
+	public int getNumDoublings()
+	{
+		synchronized (lock)
+		{
+			return nDoublings;
+		}
+	}
+
+	/**
+	 * Tells whether a doubling is in progress.
+	 *
+	 * @return <code>true</code> iff the table is being doubled.
+	 */
+	public boolean isGrowing()
+	{
+		return growing;
+	}
+
+	/**
+	 * Waits until no doubling is in progress.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public void awaitGrowth() throws InterruptedException
+	{
+		synchronized (lock)
+		{
+			while (growing)
+			{
+				lock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the table should be doubled.  Must be called with the lock held
+	 * and no doubling in progress.
+	 *
+	 * @return <code>true</code> iff the table should be doubled.
+	 */
+	private boolean shouldGrow()
+	{
+		if (!canGrow) { return false; }
+
+		ConcurrentQuotientFilter<T> table = tables.table;
+		if (table.getNumOccupied() >= maxLoadFactor * nSlots) { return true; }
+
+		if (--untilStatsCheck > 0) { return false; }
+		untilStatsCheck = statsInterval();
+
+		QuotientFilter.Stats stats = table.getTable().getStats();
+		return stats.getNumClusters() > 0
+				&& stats.getNumOccupied() > maxMeanClusterLength * stats.getNumClusters();
+	}
+
+	/**
+	 * Freezes the current table and hands its doubling to the executor.  Must be called
+	 * with the lock held and no doubling in progress.
+	 */
+	private void startGrowing()
+	{
+		final QuotientFilter<T> from = tables.table.getTable();
+		tables = new Tables<T>(tables.table, null, newPending());
+		growing = true;
+
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					grow(from);
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			// Nothing will be doubled, so don't leave anything waiting for it.
+			abandonGrowth();
+			throw e;
+		}
+	}
+
+	/**
+	 * Doubles a frozen table and publishes the result.  The lock is only held for as
+	 * long as it takes to swap side tables, and to add what was added during the merge.
+	 *
+	 * @param from The table to double.  Nothing writes to it while this runs.
+	 */
+	private void grow(final QuotientFilter<T> from)
+	{
+		QuotientFilter<T> next;
+		ConcurrentQuotientFilter<T> added;
+		try
+		{
+			next = from.getDoubled(1);
+
+			// Freeze what was added while doubling, and take later additions in a
+			// new side table, so that it can be merged in without the lock.
+			synchronized (lock)
+			{
+				added = tables.pending;
+				tables = new Tables<T>(tables.table, added, newPending());
+			}
+			next.merge(added.getTable());
+		}
+		catch (RuntimeException | Error e)
+		{
+			synchronized (lock) { abandonGrowth(); }
+			throw e;
+		}
+
+		synchronized (lock)
+		{
+			// Add whatever was added during the merge.  Insertions wait before this
+			// could leave the new table past its load limit, so there is room.
+			QuotientFilter<T> late = tables.pending.getTable();
+			long[] fingerprints = late.getSortedFingerprints(1);
+			for (int j = 0 ; j < late.getNumOccupied() ; ++j)
+			{
+				next.addHash(fingerprints[j]);
+			}
+
+			tables = new Tables<T>(new ConcurrentQuotientFilter<T>(next), null, null);
+			tableQuot = tableQuot.getDoubledStrategy(1);
+			nSlots *= 2;
+			canGrow = isGrowable(tableQuot);
+			untilStatsCheck = statsInterval();
+			nDoublings++;
+			growing = false;
+			lock.notifyAll();
+
+			// The insertions while doubling may already call for the next one.
+			if (shouldGrow()) { startGrowing(); }
+		}
+	}
+
+	/**
+	 * Makes an empty side table the size of the doubled table.  Must be called with the
+	 * lock held.
+	 *
+	 * @return The side table.
+	 */
+	private ConcurrentQuotientFilter<T> newPending()
+	{
+		return new ConcurrentQuotientFilter<T>(new QuotientFilter<T>(tableQuot.getDoubledStrategy(1)));
+	}
+
+	/**
+	 * Gives up on the doubling in progress and never tries to grow again.  The side
+	 * tables are kept as they are, so that queries still find what is in them, rather
+	 * than moved into a table that may not have room.  Must be called with the lock held.
+	 */
+	private void abandonGrowth()
+	{
+		canGrow = false;
+		growing = false;
+		lock.notifyAll();
+	}
+
+	/**
+	 * Waits for the doubling in progress to make progress.  Must be called with the lock
+	 * held.  In a fork-join pool the wait is a managed block, so that the pool can run
+	 * the doubling on another thread if it is queued behind the waiting ones.
+	 */
+	private void waitForGrowth()
+	{
+		try
+		{
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker()
+			{
+				private boolean woken = false;
+
+				@Override
+				public boolean block() throws InterruptedException
+				{
+					lock.wait();
+					woken = true;
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable()
+				{
+					return woken;
+				}
+			});
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the filter to grow.", e);
+		}
+	}
+
+	/**
+	 * Gets the number of insertions between checks of the cluster statistics.
+	 *
+	 * @return The number of insertions.
+	 */
+	private int statsInterval()
+	{
+		return Math.max(1, nSlots >>> STATS_INTERVAL_BITS);
+	}
+
+	/**
+	 * Tells whether a table with a given strategy may be doubled.
+	 *
+	 * @param quot The strategy.
+	 * @return <code>true</code> iff it has a remainder bit to spare and room in the quotient.
+	 */
+	private static boolean isGrowable(final QuotientingStrategy<?> quot)
+	{
+		return quot.getRemainderBits() > 1 && quot.getQuotientBits() < QuotientFilter.MAX_QUOTIENT_BITS;
+	}
+
+	@Override
+	public String toString()
+	{
+		synchronized (lock)
+		{
+			StringBuilder sb = new StringBuilder("ResizingQuotientFilter<nSlots=");
+			sb.append(nSlots);
+			sb.append(",nOccupied=");
+			sb.append(getNumOccupied());
+			sb.append(",growing=");
+			sb.append(growing);
+			sb.append(">");
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,602 @@
+/*
+ *  Quotient filter for sets of unknown size.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A thread-safe filter for sets whose size isn't known in advance, made of a stack of
+ * quotient filters.
+ *
+ * Elements are added to the newest layer.  Once it reaches its load limit it is
+ * sealed and a new layer is started with twice the slots and one more bit of
+ * remainder, so each layer has about half the false positive rate of the one before.
+ * However many layers there are, the total false positive rate stays below twice that
+ * of the first.  Queries probe the layers newest first.
+ *
+ * Each layer's fingerprint is the leading bits of one hash from the strategy the
+ * filter was created with, so the strategy limits how many bits the layers can use.
+ * Once the remainder can't grow any more, new layers are the same size as the last,
+ * never narrower, and the false positive rate grows with the number of layers.  A strategy with 64 bits, like
+ * <code>XxHashQuotientingStrategy</code>, lasts much longer than one based on
+ * <code>hashCode()</code>.
+ *
+ * To keep the number of probes down, sealed layers are compacted in the background:
+ * two neighbouring layers are merged into one, at the fingerprint width of the older.
+ * That loses the newer layer's extra bits, so a merge is only made when the merged
+ * layer's expected false positive rate is within <code>MAX_COMPACTION_LOSS</code>
+ * times the combined design rate of the layers that went into it.  The total false
+ * positive rate therefore stays within that factor of the uncompacted bound.  While a
+ * merge runs the layers it reads are left alone, and the merged layer replaces them
+ * in a single step under the filter's lock.
+ *
+ * @param <T> The type of entry.
+ */
+public final class ScalableQuotientFilter<T> extends AbstractApproxMemQuery<T>
+{
+	// The default load factor at which a layer is sealed.
+	private static final double DEFAULT_MAX_LOAD_FACTOR = 0.75;
+
+	// A compacted layer's expected false positive rate may be at most this many times
+	// the design rate of the layers it holds.  Merging two fresh neighbours costs a
+	// factor of two, merging any more costs at least four.
+	private static final double MAX_COMPACTION_LOSS = 3.0;
+
+	// The largest number of quotient and remainder bits in a layer.
+	private static final int MAX_QUOTIENT_BITS = 30;
+	private static final int MAX_REMAINDER_BITS = 61;
+
+	// The strategy whose fingerprints are the hash the layers take bits from.
+	private final QuotientingStrategy<T> hash;
+
+	// The number of bits in that hash.
+	private final int hashBits;
+
+	// The load factor at which a layer is sealed.
+	private final double maxLoadFactor;
+
+	// Runs the compactions.
+	private final Executor executor;
+
+	// Guards all of the mutable state below.
+	private final Object lock = new Object();
+
+	// The layers, oldest first.  All but the last are sealed and never written again.
+	private final List<Layer<T>> layers = new ArrayList<Layer<T>>();
+
+	// Whether a compaction is running.
+	private boolean compacting = false;
+
+	/**
+	 * Creates a scalable quotient filter.
+	 *
+	 * @param hash The strategy whose fingerprints the layers take their bits from.
+	 * @param nQuotientBits The number of quotient bits in the first layer.
+	 * @param nRemainderBits The number of remainder bits in the first layer.
+	 * @param maxLoadFactor The load factor at which a layer is sealed.
+	 * @param executor Runs the compactions.
+	 */
+	public ScalableQuotientFilter(QuotientingStrategy<T> hash, int nQuotientBits, int nRemainderBits,
+			double maxLoadFactor, Executor executor)
+	{
+		if (hash == null) { throw new IllegalArgumentException("hash may not be null."); }
+		if (nQuotientBits <= 0 || nQuotientBits > MAX_QUOTIENT_BITS) {
+			throw new IllegalArgumentException("nQuotientBits must be between 1 and " + MAX_QUOTIENT_BITS + "."); }
+		if (nRemainderBits <= 0 || nRemainderBits > MAX_REMAINDER_BITS) {
+			throw new IllegalArgumentException("nRemainderBits must be between 1 and " + MAX_REMAINDER_BITS + "."); }
+		if (nQuotientBits + nRemainderBits > hash.getQuotientBits() + hash.getRemainderBits()) {
+			throw new IllegalArgumentException("hash doesn't have enough bits for the first layer."); }
+		if (!(maxLoadFactor > 0.0 && maxLoadFactor < 1.0)) {
+			throw new IllegalArgumentException("maxLoadFactor must be strictly between 0 and 1."); }
+		if (executor == null) { throw new IllegalArgumentException("executor may not be null."); }
+
+		this.hash = hash;
+		this.hashBits = hash.getQuotientBits() + hash.getRemainderBits();
+		this.maxLoadFactor = maxLoadFactor;
+		this.executor = executor;
+
+		layers.add(newLayer(nQuotientBits, nRemainderBits));
+	}
+
+	/**
+	 * Creates a scalable quotient filter that compacts in the common fork-join pool.
+	 *
+	 * @param hash The strategy whose fingerprints the layers take their bits from.
+	 * @param nQuotientBits The number of quotient bits in the first layer.
+	 * @param nRemainderBits The number of remainder bits in the first layer.
+	 */
+	public ScalableQuotientFilter(QuotientingStrategy<T> hash, int nQuotientBits, int nRemainderBits)
+	{
+		this(hash, nQuotientBits, nRemainderBits, DEFAULT_MAX_LOAD_FACTOR, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a scalable quotient filter using the hash code of the elements.  The
+	 * strategy is split at the first layer's quotient, and the rest of the 32 bits of
+	 * the hash code are left for the remainders, so the quotient and remainder bits
+	 * together may be at most 32.
+	 *
+	 * @param nQuotientBits The number of quotient bits in the first layer.
+	 * @param nRemainderBits The number of remainder bits in the first layer.
+	 */
+	public ScalableQuotientFilter(int nQuotientBits, int nRemainderBits)
+	{
+		this(new HashQuotientingStrategy<T>(nQuotientBits), nQuotientBits, nRemainderBits);
+	}
+
+	@Override
+	public void add(T x)
+	{
+		// Hash outside the lock.
+		long fingerprint = hash.getFingerprint(x);
+
+		synchronized (lock)
+		{
+			if (containsFingerprint(fingerprint)) { return; }
+
+			Layer<T> newest = layers.get(layers.size() - 1);
+			newest.filter.addHash(newest.truncate(fingerprint, hashBits));
+			if (newest.filter.getNumOccupied() >= maxLoadFactor * newest.getNumSlots())
+			{
+				seal(newest);
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		long fingerprint = hash.getFingerprint(x);
+
+		synchronized (lock)
+		{
+			return containsFingerprint(fingerprint);
+		}
+	}
+
+	/**
+	 * Gets the number of layers.
+	 *
+	 * @return The number of layers.
+	 */
+	public int getNumLayers()
+	{
+		synchronized (lock)
+		{
+			return layers.size();
+		}
+	}
+
+	/**
+	 * Gets the number of remainder bits in each layer.
+	 *
+	 * @return The remainder widths, oldest layer first.
+	 */
+	public int[] getLayerRemainderBits()
+	{
+		synchronized (lock)
+		{
+			int[] rBits = new int[layers.size()];
+			for (int j = 0 ; j < rBits.length ; ++j)
+			{
+				rBits[j] = layers.get(j).rBits;
+			}
+			return rBits;
+		}
+	}
+
+	/**
+	 * Gets the number of distinct fingerprints over all layers.
+	 *
+	 * @return The number of occupied slots.
+	 */
+	public long getNumOccupied()
+	{
+		synchronized (lock)
+		{
+			long n = 0;
+			for (Layer<T> layer : layers)
+			{
+				n += layer.filter.getNumOccupied();
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Estimates the current false positive rate.  Each layer contributes its
+	 * load factor times the chance of a remainder matching.
+	 *
+	 * @return The estimated false positive rate.
+	 */
+	public double getFalsePositiveRate()
+	{
+		synchronized (lock)
+		{
+			double rate = 0.0;
+			for (Layer<T> layer : layers)
+			{
+				rate += layer.getFalsePositiveRate();
+			}
+			return rate;
+		}
+	}
+
+	/**
+	 * Tells whether a compaction is running.
+	 *
+	 * @return <code>true</code> iff layers are being merged.
+	 */
+	public boolean isCompacting()
+	{
+		synchronized (lock)
+		{
+			return compacting;
+		}
+	}
+
+	/**
+	 * Waits until no compaction is running.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public void awaitCompaction() throws InterruptedException
+	{
+		synchronized (lock)
+		{
+			while (compacting)
+			{
+				lock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Tells whether any layer holds a fingerprint.  Must be called with the lock held.
+	 *
+	 * @param fingerprint The fingerprint from <code>hash</code>.
+	 * @return <code>true</code> iff some layer holds its leading bits.
+	 */
+	private boolean containsFingerprint(long fingerprint)
+	{
+		// The newest layers are the largest, so the most likely to hold it.
+		for (int j = layers.size() - 1 ; j >= 0 ; --j)
+		{
+			Layer<T> layer = layers.get(j);
+			if (layer.filter.containsHash(layer.truncate(fingerprint, hashBits))) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Seals the newest layer, starts a new one, and compacts if there is anything to
+	 * compact.  Must be called with the lock held.
+	 *
+	 * @param newest The newest layer.
+	 */
+	private void seal(final Layer<T> newest)
+	{
+		int qBits = newest.qBits + 1;
+		int rBits = Math.min(newest.rBits + 1, Math.min(hashBits - qBits, MAX_REMAINDER_BITS));
+		if (qBits > MAX_QUOTIENT_BITS || rBits < newest.rBits)
+		{
+			// Out of bits.  A narrower remainder would double the new layer's false
+			// positive rate, so start another layer the same size instead.
+			qBits = newest.qBits;
+			rBits = newest.rBits;
+		}
+
+		layers.add(newLayer(qBits, rBits));
+		startCompacting();
+	}
+
+	/**
+	 * Creates a new, empty layer.
+	 *
+	 * @param qBits The number of quotient bits.
+	 * @param rBits The number of remainder bits.
+	 * @return The layer, whose design rate is its false positive rate when sealed.
+	 */
+	private Layer<T> newLayer(int qBits, int rBits)
+	{
+		QuotientFilter<T> filter = new QuotientFilter<T>(new PrefixQuotientingStrategy<T>(hash, qBits, rBits));
+		return new Layer<T>(filter, qBits, rBits, maxLoadFactor * Math.pow(2.0, -rBits));
+	}
+
+	/**
+	 * Hands the oldest pair of sealed neighbours that is worth merging to the executor,
+	 * unless a compaction is already running.  Must be called with the lock held.
+	 */
+	private void startCompacting()
+	{
+		if (compacting) { return; }
+
+		// The newest layer is still being written, so it's left out.
+		for (int j = 0 ; j + 2 < layers.size() ; ++j)
+		{
+			final Layer<T> older = layers.get(j);
+			final Layer<T> newer = layers.get(j + 1);
+
+			long n = (long) older.filter.getNumOccupied() + newer.filter.getNumOccupied();
+			int qBits = Math.max(older.qBits, newer.qBits);
+			while (n > maxLoadFactor * (1L << qBits)) { qBits++; }
+			final int mergedQBits = qBits;
+			final int mergedRBits = older.qBits + older.rBits - qBits;
+
+			if (mergedQBits > MAX_QUOTIENT_BITS || mergedRBits <= 0) { continue; }
+			if (n * Math.pow(2.0, -(older.qBits + older.rBits))
+					> MAX_COMPACTION_LOSS * (older.budget + newer.budget)) { continue; }
+
+			compacting = true;
+			try
+			{
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						compact(older, newer, mergedQBits, mergedRBits);
+					}
+				});
+			}
+			catch (RuntimeException e)
+			{
+				compacting = false;
+				throw e;
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Merges two sealed neighbouring layers and puts the result in their place.
+	 *
+	 * @param older The older layer.
+	 * @param newer The newer layer, whose extra fingerprint bits are dropped.
+	 * @param qBits The number of quotient bits in the merged layer.
+	 * @param rBits The number of remainder bits in the merged layer.
+	 */
+	private void compact(final Layer<T> older, final Layer<T> newer, int qBits, int rBits)
+	{
+		Layer<T> merged;
+		try
+		{
+			merged = merge(older, newer, qBits, rBits);
+		}
+		catch (RuntimeException | Error e)
+		{
+			synchronized (lock)
+			{
+				compacting = false;
+				lock.notifyAll();
+			}
+			throw e;
+		}
+
+		synchronized (lock)
+		{
+			// Nothing else removes layers, so they are still side by side.
+			int j = layers.indexOf(older);
+			layers.set(j, merged);
+			layers.remove(j + 1);
+
+			compacting = false;
+			lock.notifyAll();
+
+			startCompacting();
+		}
+	}
+
+	/**
+	 * Merges two sealed layers into a new one.  The layers are only read.
+	 *
+	 * @param older The older layer.
+	 * @param newer The newer layer, with at least as many fingerprint bits as the older.
+	 * @param qBits The number of quotient bits in the merged layer.
+	 * @param rBits The number of remainder bits, which make up the older layer's width.
+	 * @return The merged layer.
+	 */
+	private Layer<T> merge(final Layer<T> older, final Layer<T> newer, int qBits, int rBits)
+	{
+		// Cutting the newer fingerprints down to the older width keeps them in order,
+		// so the two sorted streams can be merged directly, dropping duplicates.
+		int shift = (newer.qBits + newer.rBits) - (older.qBits + older.rBits);
+		long[] olderFps = older.filter.getSortedFingerprints(1);
+		long[] newerFps = newer.filter.getSortedFingerprints(1);
+		int nOlder = older.filter.getNumOccupied();
+		int nNewer = newer.filter.getNumOccupied();
+
+		long[] fps = new long[nOlder + nNewer];
+		int n = 0;
+		int j = 0;
+		int k = 0;
+		while (j < nOlder || k < nNewer)
+		{
+			long next;
+			if (k == nNewer || (j < nOlder && Long.compareUnsigned(olderFps[j], newerFps[k] >>> shift) <= 0))
+			{
+				next = olderFps[j++];
+			}
+			else
+			{
+				next = newerFps[k++] >>> shift;
+			}
+
+			if (n == 0 || fps[n - 1] != next) { fps[n++] = next; }
+		}
+
+		QuotientFilter<T> filter = new QuotientFilter<T>(new PrefixQuotientingStrategy<T>(hash, qBits, rBits));
+		filter.rebuild(fps, n, 1);
+		return new Layer<T>(filter, qBits, rBits, older.budget + newer.budget);
+	}
+
+	@Override
+	public String toString()
+	{
+		synchronized (lock)
+		{
+			StringBuilder sb = new StringBuilder("ScalableQuotientFilter<nLayers=");
+			sb.append(layers.size());
+			sb.append(",nOccupied=");
+			sb.append(getNumOccupied());
+			sb.append(">");
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * One layer of the stack.
+	 */
+	private static final class Layer<T>
+	{
+		// The layer's filter.
+		private final QuotientFilter<T> filter;
+
+		// Its numbers of quotient and remainder bits.
+		private final int qBits;
+		private final int rBits;
+
+		// The sum of the design false positive rates of the layers merged into this one.
+		private final double budget;
+
+		/**
+		 * Creates a layer.
+		 *
+		 * @param filter The filter.
+		 * @param qBits The number of quotient bits.
+		 * @param rBits The number of remainder bits.
+		 * @param budget The design false positive rate.
+		 */
+		private Layer(QuotientFilter<T> filter, int qBits, int rBits, double budget)
+		{
+			this.filter = filter;
+			this.qBits = qBits;
+			this.rBits = rBits;
+			this.budget = budget;
+		}
+
+		/**
+		 * Gets the number of slots in the layer.
+		 *
+		 * @return The number of slots.
+		 */
+		private long getNumSlots()
+		{
+			return 1L << qBits;
+		}
+
+		/**
+		 * Cuts a full width fingerprint down to this layer's leading bits.
+		 *
+		 * @param fingerprint The full width fingerprint.
+		 * @param hashBits The width of the full fingerprint.
+		 * @return The layer's fingerprint.
+		 */
+		private long truncate(long fingerprint, int hashBits)
+		{
+			return fingerprint >>> (hashBits - qBits - rBits);
+		}
+
+		/**
+		 * Estimates the layer's false positive rate.
+		 *
+		 * @return The estimated false positive rate.
+		 */
+		private double getFalsePositiveRate()
+		{
+			return filter.getNumOccupied() * Math.pow(2.0, -(qBits + rBits));
+		}
+	}
+
+	/**
+	 * A strategy that takes the leading bits of another strategy's fingerprints.
+	 */
+	private static final class PrefixQuotientingStrategy<T> implements QuotientingStrategy<T>
+	{
+		private final QuotientingStrategy<T> strat;
+		private final int nQBits;
+		private final int nRBits;
+
+		// The number of trailing bits of the underlying fingerprint to drop.
+		private final int shift;
+
+		/**
+		 * Creates a strategy that keeps the leading bits of another's fingerprints.
+		 *
+		 * @param strat The underlying strategy.
+		 * @param nQBits The number of quotient bits.
+		 * @param nRBits The number of remainder bits.
+		 */
+		private PrefixQuotientingStrategy(final QuotientingStrategy<T> strat, int nQBits, int nRBits)
+		{
+			this.strat = strat;
+			this.nQBits = nQBits;
+			this.nRBits = nRBits;
+			this.shift = strat.getQuotientBits() + strat.getRemainderBits() - nQBits - nRBits;
+		}
+
+		@Override
+		public int getQuotientBits()
+		{
+			return nQBits;
+		}
+
+		@Override
+		public int getRemainderBits()
+		{
+			return nRBits;
+		}
+
+		@Override
+		public QuotientAndRemainder getQuotientAndRemainder(T x)
+		{
+			long fingerprint = getFingerprint(x);
+			return new QuotientAndRemainder((int) (fingerprint >>> nRBits), fingerprint & ((1L << nRBits) - 1));
+		}
+
+		@Override
+		public long getFingerprint(T x)
+		{
+			return strat.getFingerprint(x) >>> shift;
+		}
+
+		@Override
+		public QuotientingStrategy<T> getDoubledStrategy(int numDoublings)
+		{
+			return new PrefixQuotientingStrategy<T>(strat, nQBits + numDoublings, nRBits - numDoublings);
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (!(o instanceof PrefixQuotientingStrategy)) { return false; }
+			PrefixQuotientingStrategy<?> pqs = (PrefixQuotientingStrategy<?>) o;
+			return pqs.nQBits == this.nQBits && pqs.nRBits == this.nRBits && pqs.strat.equals(this.strat);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return nQBits ^ (nRBits + 255) ^ strat.hashCode();
+		}
+	}
+}
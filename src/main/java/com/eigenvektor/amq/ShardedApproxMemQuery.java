@@ -0,0 +1,526 @@
+/*
+ *  Sharded approximate membership query front end.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A thread-safe AMQ split into independent shards.
+ *
+ * Every element is hashed once, and the leading bits of the hash pick one of a
+ * power of two shards.  Each shard is an ordinary filter guarded by its own lock, so
+ * threads working on different shards never touch the same lock, and contention falls
+ * as the number of shards grows.  The locks are padded so that no two share a cache
+ * line, or taking one would still slow down the threads using its neighbours.  The shard gets the
+ * whole hash, and ignores the bits that picked it.
+ *
+ * The bulk operations hash a batch of elements, group the hashes by shard, and then
+ * visit each shard once with everything in the batch for it.  Each lock is taken
+ * once per batch rather than once per element, and the shard's memory is touched
+ * in one burst.
+ *
+ * @param <T> The type of entry.
+ */
+public final class ShardedApproxMemQuery<T> extends AbstractApproxMemQuery<T>
+{
+	// The largest number of shard bits.
+	private static final int MAX_SHARD_BITS = 12;
+
+	// The number of elements hashed and grouped at a time in the bulk operations.
+	private static final int BATCH_SIZE = 1024;
+
+	// Hashes the elements.
+	private final Hasher<T> hasher;
+
+	// The shard of a hash is (hash >>> shardShift) & shardMask.
+	private final int shardShift;
+	private final int shardMask;
+
+	// The shards, and the lock for each.
+	private final Shard[] shards;
+	private final PaddedLock[] locks;
+
+	/**
+	 * Creates a sharded AMQ.
+	 *
+	 * @param hasher Hashes the elements.
+	 * @param hashBits The number of significant bits in the hashes.
+	 * @param shardBits There are 2^shardBits shards, picked by the leading bits of the hash.
+	 * @param shards The shards.
+	 */
+	private ShardedApproxMemQuery(final Hasher<T> hasher, int hashBits, int shardBits, final Shard[] shards)
+	{
+		this.hasher = hasher;
+		this.shardShift = hashBits - shardBits;
+		this.shardMask = (1 << shardBits) - 1;
+		this.shards = shards;
+
+		this.locks = new PaddedLock[shards.length];
+		for (int j = 0 ; j < locks.length ; ++j)
+		{
+			locks[j] = new PaddedLock();
+		}
+	}
+
+	/**
+	 * Creates a sharded AMQ made of quotient filters.  The result holds the same
+	 * fingerprints as one quotient filter using <code>quot</code> would, and answers
+	 * queries the same way, but each shard has only its share of the slots and
+	 * can fill up by itself.
+	 *
+	 * @param quot The quotienting strategy for the whole filter.
+	 * @param shardBits There are 2^shardBits shards, picked by the leading bits of
+	 * the quotient.
+	 * @return The new AMQ.
+	 */
+	public static <T> ShardedApproxMemQuery<T> ofQuotientFilters(final QuotientingStrategy<T> quot, int shardBits)
+	{
+		if (quot == null) { throw new IllegalArgumentException("quot may not be null."); }
+		if (shardBits < 0 || shardBits > Math.min(MAX_SHARD_BITS, quot.getQuotientBits())) {
+			throw new IllegalArgumentException("shardBits must be between 0 and " + MAX_SHARD_BITS
+					+ ", and no more than the number of quotient bits."); }
+
+		Shard[] shards = new Shard[1 << shardBits];
+		for (int j = 0 ; j < shards.length ; ++j)
+		{
+			final QuotientFilter<T> qf = new QuotientFilter<T>(new ShardQuotientingStrategy<T>(quot, shardBits));
+			shards[j] = new Shard()
+			{
+				@Override
+				public void addHash(long hash)
+				{
+					qf.addHash(hash);
+				}
+
+				@Override
+				public boolean containsHash(long hash)
+				{
+					return qf.containsHash(hash);
+				}
+			};
+		}
+
+		Hasher<T> hasher = new Hasher<T>()
+		{
+			@Override
+			public long hash(T x)
+			{
+				return quot.getFingerprint(x);
+			}
+		};
+		return new ShardedApproxMemQuery<T>(hasher, quot.getQuotientBits() + quot.getRemainderBits(),
+				shardBits, shards);
+	}
+
+	/**
+	 * Creates a sharded AMQ made of Bloom filters.  Elements are hashed with a 64 bit
+	 * xxHash of their bytes.
+	 *
+	 * @param shardBits There are 2^shardBits shards.
+	 * @param numBitsPerShard The number of bits in each shard's filter.
+	 * @param numHashes The number of bits set per element.
+	 * @param keyBytes Gets the bytes to hash from an element.
+	 * @return The new AMQ.
+	 */
+	public static <T> ShardedApproxMemQuery<T> ofBloomFilters(int shardBits, int numBitsPerShard, int numHashes,
+			final KeyBytes<T> keyBytes)
+	{
+		if (shardBits < 0 || shardBits > MAX_SHARD_BITS) {
+			throw new IllegalArgumentException("shardBits must be between 0 and " + MAX_SHARD_BITS + "."); }
+		if (keyBytes == null) { throw new IllegalArgumentException("keyBytes may not be null."); }
+
+		Shard[] shards = new Shard[1 << shardBits];
+		for (int j = 0 ; j < shards.length ; ++j)
+		{
+			final BloomFilter<T> bf = new BloomFilter<T>(numBitsPerShard, numHashes);
+			shards[j] = new Shard()
+			{
+				@Override
+				public void addHash(long hash)
+				{
+					bf.addHash(hash);
+				}
+
+				@Override
+				public boolean containsHash(long hash)
+				{
+					return bf.containsHash(hash);
+				}
+			};
+		}
+
+		Hasher<T> hasher = new Hasher<T>()
+		{
+			@Override
+			public long hash(T x)
+			{
+				return XxHash64.hash(keyBytes.getBytes(x), 0);
+			}
+		};
+		return new ShardedApproxMemQuery<T>(hasher, 64, shardBits, shards);
+	}
+
+	@Override
+	public void add(T x)
+	{
+		if (x == null) { throw new IllegalArgumentException("x may not be null."); }
+
+		addHash(hasher.hash(x));
+	}
+
+	@Override
+	public boolean contains(T x)
+	{
+		if (x == null) { throw new IllegalArgumentException("x may not be null."); }
+
+		return containsHash(hasher.hash(x));
+	}
+
+	/**
+	 * Adds an element by its hash, without creating any objects.
+	 *
+	 * @param hash The hash of the element, as the shards' filters take it.
+	 */
+	public void addHash(long hash)
+	{
+		int shard = shardOf(hash);
+		long stamp = locks[shard].writeLock();
+		try
+		{
+			shards[shard].addHash(hash);
+		}
+		finally
+		{
+			locks[shard].unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Tells whether an element has been added by its hash, without creating any objects.
+	 *
+	 * @param hash The hash of the element, as the shards' filters take it.
+	 * @return <code>true</code> if the element is in this set.  Very likely <code>false</code> otherwise.
+	 */
+	public boolean containsHash(long hash)
+	{
+		int shard = shardOf(hash);
+		long stamp = locks[shard].readLock();
+		try
+		{
+			return shards[shard].containsHash(hash);
+		}
+		finally
+		{
+			locks[shard].unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void addAll(T[] xs)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
+
+		long[] hashes = new long[Math.min(BATCH_SIZE, xs.length)];
+		int[] order = new int[hashes.length];
+		int[] starts = new int[shards.length + 1];
+		for (int start = 0 ; start < xs.length ; start += BATCH_SIZE)
+		{
+			int n = Math.min(BATCH_SIZE, xs.length - start);
+			for (int j = 0 ; j < n ; ++j)
+			{
+				if (xs[start + j] == null) { throw new IllegalArgumentException("x may not be null."); }
+				hashes[j] = hasher.hash(xs[start + j]);
+			}
+			addHashes(hashes, n, order, starts);
+		}
+	}
+
+	@Override
+	public void addAll(Iterable<? extends T> xs)
+	{
+		if (xs == null) { throw new NullPointerException("xs may not be null."); }
+
+		long[] hashes = new long[BATCH_SIZE];
+		int[] order = new int[BATCH_SIZE];
+		int[] starts = new int[shards.length + 1];
+		int n = 0;
+		for (T x : xs)
+		{
+			if (x == null) { throw new IllegalArgumentException("x may not be null."); }
+			hashes[n++] = hasher.hash(x);
+			if (n == BATCH_SIZE)
+			{
+				addHashes(hashes, n, order, starts);
+				n = 0;
+			}
+		}
+		addHashes(hashes, n, order, starts);
+	}
+
+	@Override
+	public void containsAll(T[] xs, boolean[] out)
+	{
+		checkContainsAll(xs, out);
+
+		long[] hashes = new long[Math.min(BATCH_SIZE, xs.length)];
+		int[] order = new int[hashes.length];
+		int[] starts = new int[shards.length + 1];
+		for (int start = 0 ; start < xs.length ; start += BATCH_SIZE)
+		{
+			int n = Math.min(BATCH_SIZE, xs.length - start);
+			for (int j = 0 ; j < n ; ++j)
+			{
+				if (xs[start + j] == null) { throw new IllegalArgumentException("x may not be null."); }
+				hashes[j] = hasher.hash(xs[start + j]);
+			}
+			groupByShard(hashes, n, order, starts);
+
+			for (int shard = 0 ; shard < shards.length ; ++shard)
+			{
+				if (starts[shard] == starts[shard + 1]) { continue; }
+
+				long stamp = locks[shard].readLock();
+				try
+				{
+					for (int j = starts[shard] ; j < starts[shard + 1] ; ++j)
+					{
+						out[start + order[j]] = shards[shard].containsHash(hashes[order[j]]);
+					}
+				}
+				finally
+				{
+					locks[shard].unlockRead(stamp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return The number of shards.
+	 */
+	public int getNumShards()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Gets the shard for a hash.
+	 *
+	 * @param hash The hash.
+	 * @return The index of the shard.
+	 */
+	private int shardOf(long hash)
+	{
+		return (int) (hash >>> shardShift) & shardMask;
+	}
+
+	/**
+	 * Adds a batch of hashes, taking each shard's lock once.
+	 *
+	 * @param hashes The hashes.
+	 * @param n The number of hashes to add from the start of <code>hashes</code>.
+	 * @param order Scratch space for the grouping, at least <code>n</code> long.
+	 * @param starts Scratch space for the grouping, one longer than the number of shards.
+	 */
+	private void addHashes(long[] hashes, int n, int[] order, int[] starts)
+	{
+		groupByShard(hashes, n, order, starts);
+
+		for (int shard = 0 ; shard < shards.length ; ++shard)
+		{
+			if (starts[shard] == starts[shard + 1]) { continue; }
+
+			long stamp = locks[shard].writeLock();
+			try
+			{
+				for (int j = starts[shard] ; j < starts[shard + 1] ; ++j)
+				{
+					shards[shard].addHash(hashes[order[j]]);
+				}
+			}
+			finally
+			{
+				locks[shard].unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * Groups a batch of hashes by shard with a counting sort.
+	 *
+	 * @param hashes The hashes.
+	 * @param n The number of hashes to group from the start of <code>hashes</code>.
+	 * @param order Receives the indices of the hashes, grouped by shard and otherwise
+	 * in their original order.
+	 * @param starts Receives where each shard's group starts in <code>order</code>,
+	 * with the total at the end.
+	 */
+	private void groupByShard(long[] hashes, int n, int[] order, int[] starts)
+	{
+		Arrays.fill(starts, 0);
+		for (int j = 0 ; j < n ; ++j)
+		{
+			starts[shardOf(hashes[j]) + 1]++;
+		}
+		for (int shard = 0 ; shard < shards.length ; ++shard)
+		{
+			starts[shard + 1] += starts[shard];
+		}
+
+		// Fill each group from its start, then shift the starts back into place.
+		for (int j = 0 ; j < n ; ++j)
+		{
+			order[starts[shardOf(hashes[j])]++] = j;
+		}
+		for (int shard = shards.length ; shard > 0 ; --shard)
+		{
+			starts[shard] = starts[shard - 1];
+		}
+		starts[0] = 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("ShardedApproxMemQuery<nShards=");
+		sb.append(shards.length);
+		sb.append(">");
+		return sb.toString();
+	}
+
+	/**
+	 * A lock followed by a cache line of padding.  The locks are allocated one after
+	 * another, so this keeps each one's state at least a line away from the next's.
+	 */
+	@SuppressWarnings("unused")
+	private static final class PaddedLock extends StampedLock
+	{
+		private static final long serialVersionUID = 1L;
+
+		private long p0, p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	/**
+	 * Hashes elements for picking a shard.
+	 */
+	private interface Hasher<T>
+	{
+		/**
+		 * Hashes an element.
+		 *
+		 * @param x The element.
+		 * @return Its hash.
+		 */
+		long hash(T x);
+	}
+
+	/**
+	 * One filter of the sharded AMQ.  Only used under its lock.
+	 */
+	private interface Shard
+	{
+		/**
+		 * Adds a hash to the filter.
+		 *
+		 * @param hash The hash.
+		 */
+		void addHash(long hash);
+
+		/**
+		 * Tells if a hash is in the filter.
+		 *
+		 * @param hash The hash.
+		 * @return <code>true</code> if it probably is.
+		 */
+		boolean containsHash(long hash);
+	}
+
+	/**
+	 * A strategy that takes the trailing bits of another strategy's fingerprints,
+	 * dropping the leading quotient bits that pick the shard.
+	 */
+	private static final class ShardQuotientingStrategy<T> implements QuotientingStrategy<T>
+	{
+		private final QuotientingStrategy<T> strat;
+		private final int shardBits;
+
+		/**
+		 * Creates a strategy for one shard of another.
+		 *
+		 * @param strat The strategy for the whole filter.
+		 * @param shardBits The number of leading quotient bits that pick the shard.
+		 */
+		private ShardQuotientingStrategy(final QuotientingStrategy<T> strat, int shardBits)
+		{
+			this.strat = strat;
+			this.shardBits = shardBits;
+		}
+
+		@Override
+		public int getQuotientBits()
+		{
+			return strat.getQuotientBits() - shardBits;
+		}
+
+		@Override
+		public int getRemainderBits()
+		{
+			return strat.getRemainderBits();
+		}
+
+		@Override
+		public QuotientAndRemainder getQuotientAndRemainder(T x)
+		{
+			long fingerprint = getFingerprint(x);
+			int rBits = getRemainderBits();
+			return new QuotientAndRemainder((int) (fingerprint >>> rBits), fingerprint & ((1L << rBits) - 1));
+		}
+
+		@Override
+		public long getFingerprint(T x)
+		{
+			int bits = getQuotientBits() + getRemainderBits();
+			long fingerprint = strat.getFingerprint(x);
+			return (bits == 64) ? fingerprint : fingerprint & ((1L << bits) - 1);
+		}
+
+		@Override
+		public QuotientingStrategy<T> getDoubledStrategy(int numDoublings)
+		{
+			return new ShardQuotientingStrategy<T>(strat.getDoubledStrategy(numDoublings), shardBits);
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (!(o instanceof ShardQuotientingStrategy)) { return false; }
+			ShardQuotientingStrategy<?> sqs = (ShardQuotientingStrategy<?>) o;
+			return sqs.shardBits == this.shardBits && sqs.strat.equals(this.strat);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (shardBits + 255) ^ strat.hashCode();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ *  Packed array of fixed width slots.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An array of fixed width slots packed end to end into 64 bit words.
+ *
+ * A slot of up to 64 bits spans at most two words, so reading or writing a
+ * whole slot costs one or two masked word operations rather than one call
+ * per bit.  Subclasses decide where the words live.
+ */
+abstract class SlotArray
+{
+	// The number of bits in a slot.
+	private final int slotBits;
+
+	// The number of slots.
+	private final int nSlots;
+
+	// A mask with the low slotBits bits set.
+	private final long slotMask;
+
+	/**
+	 * Creates a new slot array.
+	 *
+	 * @param nSlots The number of slots.
+	 * @param slotBits The number of bits in each slot.
+	 */
+	SlotArray(int nSlots, int slotBits)
+	{
+		if (nSlots <= 0) { throw new IllegalArgumentException("nSlots must be positive."); }
+		if (slotBits <= 0 || slotBits > 64) { throw new IllegalArgumentException("slotBits must be between 1 and 64."); }
+
+		this.nSlots = nSlots;
+		this.slotBits = slotBits;
+		this.slotMask = (slotBits == 64) ? -1L : (1L << slotBits) - 1;
+	}
+
+	/**
+	 * Gets the number of 64 bit words needed to hold a number of slots.
+	 *
+	 * @param nSlots The number of slots.
+	 * @param slotBits The number of bits in each slot.
+	 * @return The number of words needed.
+	 */
+	static long numWords(int nSlots, int slotBits)
+	{
+		return ((long) nSlots * slotBits + 63) >>> 6;
+	}
+
+	/**
+	 * Gets a word of the backing storage.
+	 *
+	 * @param word The index of the word.
+	 * @return The word.
+	 */
+	protected abstract long getWord(int word);
+
+	/**
+	 * Sets a word of the backing storage.
+	 *
+	 * @param word The index of the word.
+	 * @param value The new value of the word.
+	 */
+	protected abstract void setWord(int word, long value);
+
+	/**
+	 * Creates an on-heap copy of this slot array.
+	 *
+	 * @return The copy.
+	 */
+	abstract SlotArray copy();
+
+	/**
+	 * Records the number of occupied slots alongside the slots.  Slot arrays
+	 * that persist themselves override this, the default does nothing.
+	 *
+	 * @param nOccupied The number of occupied slots.
+	 */
+	void recordNumOccupied(int nOccupied)
+	{
+	}
+
+	/**
+	 * Writes any buffered changes to backing storage.  Slot arrays that
+	 * persist themselves override this, the default does nothing.
+	 */
+	void flush()
+	{
+	}
+
+	/**
+	 * Writes the words to a channel, little endian.  This default goes a word at a
+	 * time, subclasses with the words to hand override it to move them in bulk.
+	 *
+	 * @param out The channel.
+	 * @throws IOException If the channel fails.
+	 */
+	void writeWords(WritableByteChannel out) throws IOException
+	{
+		long nWords = numWords(nSlots, slotBits);
+		ByteBuffer buf = ChannelIO.chunkBuffer(nWords);
+		for (int word = 0 ; word < nWords ; ++word)
+		{
+			buf.putLong(getWord(word));
+			if (!buf.hasRemaining() || word == nWords - 1)
+			{
+				buf.flip();
+				ChannelIO.writeFully(out, buf);
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * Reads the words from a channel, little endian, as written by <code>writeWords()</code>.
+	 *
+	 * @param in The channel.
+	 * @throws IOException If the channel fails or ends first.
+	 */
+	void readWords(ReadableByteChannel in) throws IOException
+	{
+		long nWords = numWords(nSlots, slotBits);
+		ByteBuffer buf = ChannelIO.chunkBuffer(nWords);
+		for (int start = 0 ; start < nWords ; start += ChannelIO.CHUNK_WORDS)
+		{
+			int n = (int) Math.min(ChannelIO.CHUNK_WORDS, nWords - start);
+			buf.clear();
+			buf.limit(n * 8);
+			ChannelIO.readFully(in, buf);
+			buf.flip();
+			for (int j = 0 ; j < n ; ++j)
+			{
+				setWord(start + j, buf.getLong());
+			}
+		}
+	}
+
+	/**
+	 * Empties every slot.
+	 */
+	final void clear()
+	{
+		long nWords = numWords(nSlots, slotBits);
+		for (int word = 0 ; word < nWords ; ++word)
+		{
+			setWord(word, 0);
+		}
+	}
+
+	/**
+	 * Gets the number of slots.
+	 *
+	 * @return the number of slots.
+	 */
+	final int getNumSlots()
+	{
+		return nSlots;
+	}
+
+	/**
+	 * Gets the number of bits in a slot.
+	 *
+	 * @return the number of bits in a slot.
+	 */
+	final int getSlotBits()
+	{
+		return slotBits;
+	}
+
+	/**
+	 * Gets the contents of a slot.
+	 *
+	 * @param slot The index of the slot.
+	 * @return The contents of the slot in the low <code>slotBits</code> bits.
+	 */
+	final long get(int slot)
+	{
+		long bitPos = (long) slot * slotBits;
+		int word = (int) (bitPos >>> 6);
+		int offset = (int) (bitPos & 63);
+
+		long ret = getWord(word) >>> offset;
+		if (offset + slotBits > 64)
+		{
+			// The slot spills into the next word.
+			ret |= getWord(word + 1) << (64 - offset);
+		}
+		return ret & slotMask;
+	}
+
+	/**
+	 * Sets the contents of a slot.
+	 *
+	 * @param slot The index of the slot.
+	 * @param value The new contents.  Bits above <code>slotBits</code> are ignored.
+	 */
+	final void set(int slot, long value)
+	{
+		value &= slotMask;
+
+		long bitPos = (long) slot * slotBits;
+		int word = (int) (bitPos >>> 6);
+		int offset = (int) (bitPos & 63);
+
+		setWord(word, (getWord(word) & ~(slotMask << offset)) | (value << offset));
+		if (offset + slotBits > 64)
+		{
+			// The slot spills into the next word.
+			int shift = 64 - offset;
+			setWord(word + 1, (getWord(word + 1) & ~(slotMask >>> shift)) | (value >>> shift));
+		}
+	}
+
+	/**
+	 * Tells if a single bit of a slot is set.
+	 *
+	 * @param slot The index of the slot.
+	 * @param bit The index of the bit within the slot.
+	 * @return <code>true</code> iff the bit is set.
+	 */
+	final boolean getBit(int slot, int bit)
+	{
+		long bitPos = (long) slot * slotBits + bit;
+		return (getWord((int) (bitPos >>> 6)) & (1L << bitPos)) != 0;
+	}
+
+	/**
+	 * Sets a single bit of a slot.
+	 *
+	 * @param slot The index of the slot.
+	 * @param bit The index of the bit within the slot.
+	 * @param value The value to set the bit to.
+	 */
+	final void setBit(int slot, int bit, boolean value)
+	{
+		long bitPos = (long) slot * slotBits + bit;
+		int word = (int) (bitPos >>> 6);
+		if (value)
+		{
+			setWord(word, getWord(word) | (1L << bitPos));
+		}
+		else
+		{
+			setWord(word, getWord(word) & ~(1L << bitPos));
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ *  The xxHash64 hash function.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+/**
+ * An implementation of Yann Collet's xxHash64, a fast 64 bit hash with good
+ * distribution in every bit.
+ */
+final class XxHash64
+{
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+	
+	private XxHash64()
+	{
+	}
+	
+	/**
+	 * Hashes an array of bytes.
+	 * 
+	 * @param data The bytes to hash.
+	 * @param seed The seed.
+	 * @return The 64 bit hash.
+	 */
+	static long hash(byte[] data, long seed)
+	{
+		int len = data.length;
+		int pos = 0;
+		long h;
+		
+		if (len >= 32)
+		{
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			
+			do
+			{
+				v1 = round(v1, getLong(data, pos));
+				v2 = round(v2, getLong(data, pos + 8));
+				v3 = round(v3, getLong(data, pos + 16));
+				v4 = round(v4, getLong(data, pos + 24));
+				pos += 32;
+			} while (pos <= len - 32);
+			
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		}
+		else
+		{
+			h = seed + PRIME5;
+		}
+		
+		h += len;
+		
+		while (pos <= len - 8)
+		{
+			h ^= round(0, getLong(data, pos));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+			pos += 8;
+		}
+		
+		if (pos <= len - 4)
+		{
+			h ^= (getInt(data, pos) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			pos += 4;
+		}
+		
+		while (pos < len)
+		{
+			h ^= (data[pos] & 0xFF) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+			pos++;
+		}
+		
+		return avalanche(h);
+	}
+	
+	/**
+	 * Mixes one 8 byte lane into an accumulator.
+	 */
+	private static long round(long acc, long input)
+	{
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+	
+	/**
+	 * Merges an accumulator into the hash.
+	 */
+	private static long merge(long h, long acc)
+	{
+		h ^= round(0, acc);
+		return h * PRIME1 + PRIME4;
+	}
+	
+	/**
+	 * Mixes the final hash so every input bit affects every output bit.
+	 */
+	private static long avalanche(long h)
+	{
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+	
+	/**
+	 * Reads a little endian long.
+	 */
+	private static long getLong(byte[] data, int pos)
+	{
+		return (data[pos] & 0xFFL)
+				| (data[pos + 1] & 0xFFL) << 8
+				| (data[pos + 2] & 0xFFL) << 16
+				| (data[pos + 3] & 0xFFL) << 24
+				| (data[pos + 4] & 0xFFL) << 32
+				| (data[pos + 5] & 0xFFL) << 40
+				| (data[pos + 6] & 0xFFL) << 48
+				| (data[pos + 7] & 0xFFL) << 56;
+	}
+	
+	/**
+	 * Reads a little endian int.
+	 */
+	private static int getInt(byte[] data, int pos)
+	{
+		return (data[pos] & 0xFF)
+				| (data[pos + 1] & 0xFF) << 8
+				| (data[pos + 2] & 0xFF) << 16
+				| (data[pos + 3] & 0xFF) << 24;
+	}
+}
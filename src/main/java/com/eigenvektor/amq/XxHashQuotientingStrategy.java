@@ -0,0 +1,174 @@
+/*
+ *  A quotienting strategy that extracts bits from a 64 bit xxHash.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import java.nio.charset.Charset;
+
+/**
+ * A quotienting strategy that hashes the bytes of an object with xxHash64 and
+ * takes the quotient and then the remainder from the high order bits of the hash.
+ * 
+ * Unlike <code>HashQuotientingStrategy</code>, which is limited to the 32 bits of
+ * <code>hashCode()</code>, the quotient and remainder together may use up to 64 bits,
+ * so large filters can keep a low false positive rate.
+ * 
+ * @param <T> The type to use.
+ */
+public final class XxHashQuotientingStrategy<T> implements QuotientingStrategy<T>
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// The number of quotient and remainder bits.
+	private final int nQBits;
+	private final int nRBits;
+	
+	// Turns objects into bytes to hash.
+	private final KeyBytes<T> keyBytes;
+	
+	// The seed for the hash.
+	private final long seed;
+	
+	/**
+	 * Creates a new XxHashQuotientingStrategy.
+	 * 
+	 * @param nQBits The number of quotient bits.
+	 * @param nRBits The number of remainder bits.
+	 * @param keyBytes Gets the bytes to hash from an object.
+	 * @param seed The seed for the hash.
+	 */
+	public XxHashQuotientingStrategy(int nQBits, int nRBits, KeyBytes<T> keyBytes, long seed)
+	{
+		if (nQBits <= 0) { throw new IllegalArgumentException("nQBits must be positive."); }
+		if (nRBits <= 0) { throw new IllegalArgumentException("nRBits must be positive."); }
+		if (nQBits + nRBits > 64) { throw new IllegalArgumentException(
+				"Number of quotient plus remainder bits must be 64 or less.");
+		}
+		if (keyBytes == null) { throw new IllegalArgumentException("keyBytes may not be null."); }
+		
+		this.nQBits = nQBits;
+		this.nRBits = nRBits;
+		this.keyBytes = keyBytes;
+		this.seed = seed;
+	}
+	
+	/**
+	 * Creates a new XxHashQuotientingStrategy with a zero seed.
+	 * 
+	 * @param nQBits The number of quotient bits.
+	 * @param nRBits The number of remainder bits.
+	 * @param keyBytes Gets the bytes to hash from an object.
+	 */
+	public XxHashQuotientingStrategy(int nQBits, int nRBits, KeyBytes<T> keyBytes)
+	{
+		this(nQBits, nRBits, keyBytes, 0);
+	}
+	
+	/**
+	 * Creates a strategy for strings, hashing their UTF-8 encoding.
+	 * 
+	 * @param nQBits The number of quotient bits.
+	 * @param nRBits The number of remainder bits.
+	 * @return The strategy.
+	 */
+	public static XxHashQuotientingStrategy<String> forStrings(int nQBits, int nRBits)
+	{
+		return new XxHashQuotientingStrategy<String>(nQBits, nRBits, new Utf8KeyBytes());
+	}
+	
+	/**
+	 * Gets the bytes of a string in UTF-8.
+	 */
+	private static final class Utf8KeyBytes implements KeyBytes<String>
+	{
+		@Override
+		public byte[] getBytes(String x)
+		{
+			return x.getBytes(UTF8);
+		}
+		
+		@Override
+		public boolean equals(final Object o)
+		{
+			return o instanceof Utf8KeyBytes;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return 1;
+		}
+	}
+	
+	@Override
+	public int getQuotientBits()
+	{
+		return this.nQBits;
+	}
+
+	@Override
+	public int getRemainderBits()
+	{
+		return this.nRBits;
+	}
+
+	@Override
+	public QuotientingStrategy.QuotientAndRemainder getQuotientAndRemainder(T x)
+	{
+		long fingerprint = getFingerprint(x);
+		
+		int quotient = (int) (fingerprint >>> this.nRBits);
+		long remainder = fingerprint & ((1L << this.nRBits) - 1);
+		
+		return new QuotientAndRemainder(quotient, remainder);
+	}
+	
+	@Override
+	public long getFingerprint(T x)
+	{
+		long hash = XxHash64.hash(keyBytes.getBytes(x), seed);
+		
+		// Keep the top nQBits + nRBits bits.
+		return hash >>> (64 - this.nQBits - this.nRBits);
+	}
+
+	@Override
+	public QuotientingStrategy<T> getDoubledStrategy(int numDoublings)
+	{
+		// The same bits of the hash are used, just split in a different place.
+		return new XxHashQuotientingStrategy<T>(this.nQBits + numDoublings, this.nRBits - numDoublings, 
+				this.keyBytes, this.seed);
+	}
+	
+	@Override
+	public boolean equals(final Object o)
+	{
+		if (!(o instanceof XxHashQuotientingStrategy)) { return false; }
+		XxHashQuotientingStrategy<?> xqs = (XxHashQuotientingStrategy<?>) o;
+		return xqs.nQBits == this.nQBits && xqs.nRBits == this.nRBits && xqs.seed == this.seed
+				&& xqs.keyBytes.equals(this.keyBytes);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		// Doesn't include keyBytes, so that it is stable across runs for file headers.
+		return this.nQBits ^ (this.nRBits + 255) ^ (int) this.seed ^ (int) (this.seed >>> 32);
+	}
+
+}
@@ -0,0 +1,294 @@
+/*
+ *  A cache blocked, multi-threaded dense matrix multiply.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Multiplies dense matrices held in <code>double[]</code> arrays, adding the product
+ * into an output array.  The right hand operand is first packed into panels of
+ * <code>KC</code> rows by <code>NC</code> columns, each contiguous, which together fit
+ * in the level 2 cache.  The output is then made in i-k-j order, four rows at a time,
+ * so each value read from a panel is used four times from a register while the inner
+ * loop runs with unit stride over the panel and the output rows.  The rows of the
+ * output are split between tasks in the common fork-join pool.
+ * <p>
+ * Each operand is described by an offset and a stride between rows and between
+ * columns, so a transposed or strided operand is packed in the same way.  The output
+ * must have unit stride between columns.
+ */
+final class BlockedMultiply
+{
+	// The depth and width of a packed panel of the right hand operand.
+	static final int KC = 128;
+	static final int NC = 256;
+	
+	// The number of output rows made together.
+	static final int MR = 4;
+	
+	// The number of multiply-adds below which the work isn't split up.
+	private static final long PARALLEL_THRESHOLD = 1L << 21;
+	
+	// The number of tasks to split the work into for each thread.
+	private static final int TASKS_PER_THREAD = 4;
+	
+	private BlockedMultiply()
+	{
+	}
+	
+	/**
+	 * Gets the number of tasks to split a multiply into.  Small products aren't worth
+	 * splitting.
+	 * 
+	 * @param m The number of rows in the output.
+	 * @param k The number of columns of the left operand.
+	 * @param n The number of columns in the output.
+	 * @return The number of tasks.
+	 */
+	static int defaultNumTasks(final int m, final int k, final int n)
+	{
+		int threads = ForkJoinPool.getCommonPoolParallelism();
+		if ((long) m * k * n < PARALLEL_THRESHOLD || threads < 2) { return 1; }
+		return Math.max(1, Math.min(TASKS_PER_THREAD * threads, m / MR));
+	}
+	
+	/**
+	 * Adds the product of two matrices to a third.
+	 * 
+	 * @param m The number of rows of the left operand and of the output.
+	 * @param k The number of columns of the left operand, and rows of the right.
+	 * @param n The number of columns of the right operand and of the output.
+	 * @param a The data of the left operand.
+	 * @param aOff The index in <code>a</code> of its first element.
+	 * @param aRowStride The distance in <code>a</code> between rows.
+	 * @param aColStride The distance in <code>a</code> between columns.
+	 * @param b The data of the right operand.
+	 * @param bOff The index in <code>b</code> of its first element.
+	 * @param bRowStride The distance in <code>b</code> between rows.
+	 * @param bColStride The distance in <code>b</code> between columns.
+	 * @param c The data of the output.
+	 * @param cOff The index in <code>c</code> of its first element.
+	 * @param ldc The distance in <code>c</code> between rows.
+	 * @param nTasks The number of tasks to split the work into.  With one task
+	 * everything is done on the calling thread.
+	 */
+	static void multiplyAdd(final int m, final int k, final int n,
+			final double[] a, final int aOff, final int aRowStride, final int aColStride,
+			final double[] b, final int bOff, final int bRowStride, final int bColStride,
+			final double[] c, final int cOff, final int ldc, final int nTasks)
+	{
+		if (m == 0 || k == 0 || n == 0) { return; }
+		
+		final double[] packed = pack(k, n, b, bOff, bRowStride, bColStride);
+		
+		// Split the rows into runs that are whole multiples of MR where possible.
+		int nParts = Math.max(1, Math.min(nTasks, (m + MR - 1) / MR));
+		List<RowTask> tasks = new ArrayList<RowTask>(nParts);
+		for (int t = 0 ; t < nParts ; ++t)
+		{
+			int from = (int) ((long) t * m / nParts / MR * MR);
+			int to = (t == nParts - 1) ? m : (int) ((long) (t + 1) * m / nParts / MR * MR);
+			if (to > from)
+			{
+				tasks.add(new RowTask(from, to, k, n, a, aOff, aRowStride, aColStride, packed, c, cOff, ldc));
+			}
+		}
+		invokeAll(tasks);
+	}
+	
+	/**
+	 * Packs the right operand into panels.  The panels for each block of
+	 * <code>NC</code> columns follow each other, and within those the panels for each
+	 * block of <code>KC</code> rows.  Each panel is row major, as wide as its block.
+	 * 
+	 * @return The packed operand, the same size as the operand.
+	 */
+	private static double[] pack(final int k, final int n,
+			final double[] b, final int bOff, final int bRowStride, final int bColStride)
+	{
+		double[] ret = new double[k * n];
+		int pos = 0;
+		for (int jc = 0 ; jc < n ; jc += NC)
+		{
+			final int nb = Math.min(NC, n - jc);
+			for (int p = 0 ; p < k ; ++p)
+			{
+				int src = bOff + p * bRowStride + jc * bColStride;
+				if (bColStride == 1)
+				{
+					System.arraycopy(b, src, ret, pos, nb);
+					pos += nb;
+				}
+				else
+				{
+					for (int j = 0 ; j < nb ; ++j)
+					{
+						ret[pos++] = b[src];
+						src += bColStride;
+					}
+				}
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Runs the tasks, on this thread if there is only one.
+	 * 
+	 * @param tasks The tasks to run.
+	 */
+	private static void invokeAll(final List<? extends ForkJoinTask<?>> tasks)
+	{
+		if (tasks.size() == 1)
+		{
+			tasks.get(0).invoke();
+		}
+		else
+		{
+			ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() { ForkJoinTask.invokeAll(tasks); }
+			});
+		}
+	}
+	
+	/**
+	 * A task that makes a range of rows of the output.
+	 */
+	private static final class RowTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		// The range of output rows to make.
+		private final int from;
+		private final int to;
+		
+		private final int k;
+		private final int n;
+		private final double[] a;
+		private final int aOff;
+		private final int aRowStride;
+		private final int aColStride;
+		private final double[] packed;
+		private final double[] c;
+		private final int cOff;
+		private final int ldc;
+		
+		RowTask(final int from, final int to, final int k, final int n,
+				final double[] a, final int aOff, final int aRowStride, final int aColStride,
+				final double[] packed, final double[] c, final int cOff, final int ldc)
+		{
+			this.from = from;
+			this.to = to;
+			this.k = k;
+			this.n = n;
+			this.a = a;
+			this.aOff = aOff;
+			this.aRowStride = aRowStride;
+			this.aColStride = aColStride;
+			this.packed = packed;
+			this.c = c;
+			this.cOff = cOff;
+			this.ldc = ldc;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			int panel = 0;
+			for (int jc = 0 ; jc < n ; jc += NC)
+			{
+				final int nb = Math.min(NC, n - jc);
+				for (int pc = 0 ; pc < k ; pc += KC)
+				{
+					final int kb = Math.min(KC, k - pc);
+					
+					int i = from;
+					for ( ; i + MR <= to ; i += MR)
+					{
+						fourRows(i, jc, nb, pc, kb, panel);
+					}
+					for ( ; i < to ; ++i)
+					{
+						oneRow(i, jc, nb, pc, kb, panel);
+					}
+					
+					panel += kb * nb;
+				}
+			}
+		}
+		
+		/**
+		 * Adds the product of four rows of the left operand and a panel to the output.
+		 */
+		private void fourRows(final int i, final int jc, final int nb, final int pc, final int kb, final int panel)
+		{
+			final int c0 = cOff + i * ldc + jc;
+			final int c1 = c0 + ldc;
+			final int c2 = c1 + ldc;
+			final int c3 = c2 + ldc;
+			
+			int aPos = aOff + i * aRowStride + pc * aColStride;
+			int bPos = panel;
+			for (int p = 0 ; p < kb ; ++p)
+			{
+				final double a0 = a[aPos];
+				final double a1 = a[aPos + aRowStride];
+				final double a2 = a[aPos + 2 * aRowStride];
+				final double a3 = a[aPos + 3 * aRowStride];
+				for (int j = 0 ; j < nb ; ++j)
+				{
+					final double x = packed[bPos + j];
+					c[c0 + j] += a0 * x;
+					c[c1 + j] += a1 * x;
+					c[c2 + j] += a2 * x;
+					c[c3 + j] += a3 * x;
+				}
+				aPos += aColStride;
+				bPos += nb;
+			}
+		}
+		
+		/**
+		 * Adds the product of one row of the left operand and a panel to the output.
+		 */
+		private void oneRow(final int i, final int jc, final int nb, final int pc, final int kb, final int panel)
+		{
+			final int c0 = cOff + i * ldc + jc;
+			
+			int aPos = aOff + i * aRowStride + pc * aColStride;
+			int bPos = panel;
+			for (int p = 0 ; p < kb ; ++p)
+			{
+				final double a0 = a[aPos];
+				for (int j = 0 ; j < nb ; ++j)
+				{
+					c[c0 + j] += a0 * packed[bPos + j];
+				}
+				aPos += aColStride;
+				bPos += nb;
+			}
+		}
+	}
+}
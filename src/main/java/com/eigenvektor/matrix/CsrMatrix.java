@@ -0,0 +1,592 @@
+/*
+ *  Implementation of an immutable sparse matrix in compressed sparse row form.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable sparse matrix in compressed sparse row form.  The non-zero values are
+ * held in row order in one array, with their columns in another, and a third array
+ * gives where each row starts.  Within a row the columns are in increasing order, so
+ * products and sums with other <code>CsrMatrix</code> instances are a single pass over
+ * the arrays, with no boxing.
+ * <p>
+ * Explicit zeros are never stored, so iteration gives exactly the non-zero elements,
+ * in row major order.
+ */
+public final class CsrMatrix extends AbstractMatrix
+{
+	private final int nRows;
+	private final int nCols;
+	
+	// The non-zeros of row j are at rowPtr[j] up to, but not including, rowPtr[j+1].
+	private final int[] rowPtr;
+	
+	// The column and value of each non-zero.
+	private final int[] colIdx;
+	private final double[] values;
+	
+	/**
+	 * Creates a new instance from its arrays.  The arrays are copied.
+	 * 
+	 * @param nRows The number of rows.
+	 * @param nCols The number of columns.
+	 * @param rowPtr The index in <code>colIdx</code> and <code>values</code> of the
+	 * first non-zero of each row, followed by the number of non-zeros, so it has
+	 * <code>nRows + 1</code> entries and is non-decreasing.
+	 * @param colIdx The column of each non-zero, strictly increasing within each row.
+	 * @param values The value of each non-zero.  Any zeros are dropped.
+	 */
+	public CsrMatrix(final int nRows, final int nCols, final int[] rowPtr, final int[] colIdx, final double[] values)
+	{
+		if (rowPtr == null) { throw new NullPointerException("rowPtr may not be null."); }
+		if (colIdx == null) { throw new NullPointerException("colIdx may not be null."); }
+		if (values == null) { throw new NullPointerException("values may not be null."); }
+		
+		if (nRows < 0 || nCols < 0)
+		{
+			throw new IllegalArgumentException("nRows and nCols must be non-negative.");
+		}
+		
+		if (rowPtr.length != nRows + 1 || rowPtr[0] != 0 || colIdx.length != values.length ||
+				rowPtr[nRows] != values.length)
+		{
+			throw new IllegalArgumentException("Array lengths are inconsistent.");
+		}
+		
+		this.nRows = nRows;
+		this.nCols = nCols;
+		this.rowPtr = new int[nRows + 1];
+		
+		// Count the non-zeros to size the arrays, checking the structure on the way.
+		int nnz = 0;
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			if (rowPtr[j+1] < rowPtr[j])
+			{
+				throw new IllegalArgumentException("rowPtr must be non-decreasing.");
+			}
+			
+			for (int i = rowPtr[j] ; i < rowPtr[j+1] ; ++i)
+			{
+				if (colIdx[i] < 0 || colIdx[i] >= nCols)
+				{
+					throw new IllegalArgumentException("Column outside of matrix range.");
+				}
+				if (i > rowPtr[j] && colIdx[i] <= colIdx[i-1])
+				{
+					throw new IllegalArgumentException("Columns must be strictly increasing within a row.");
+				}
+				if (values[i] != 0.0) { ++nnz; }
+			}
+		}
+		
+		this.colIdx = new int[nnz];
+		this.values = new double[nnz];
+		
+		int pos = 0;
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			for (int i = rowPtr[j] ; i < rowPtr[j+1] ; ++i)
+			{
+				if (values[i] != 0.0)
+				{
+					this.colIdx[pos] = colIdx[i];
+					this.values[pos] = values[i];
+					++pos;
+				}
+			}
+			this.rowPtr[j+1] = pos;
+		}
+	}
+	
+	/**
+	 * Copies another matrix.  A <code>SparseMatrix</code> is converted straight from
+	 * its row maps, in time proportional to its number of non-zeros.
+	 * 
+	 * @param m The matrix to copy.
+	 */
+	public CsrMatrix(final Matrix m)
+	{
+		if (m == null) { throw new NullPointerException("m may not be null."); }
+		
+		this.nRows = m.getNRows();
+		this.nCols = m.getNCols();
+		
+		if (m instanceof CsrMatrix)
+		{
+			// Immutable, so the arrays can be shared.
+			CsrMatrix c = (CsrMatrix) m;
+			this.rowPtr = c.rowPtr;
+			this.colIdx = c.colIdx;
+			this.values = c.values;
+			return;
+		}
+		
+		this.rowPtr = new int[nRows + 1];
+		if (m instanceof SparseMatrix)
+		{
+			Map<Integer, Map<Integer, Double>> rows = ((SparseMatrix) m).getRowMaps();
+			
+			// Count each row's non-zeros first, to size the arrays.
+			for (Map.Entry<Integer, Map<Integer, Double>> e : rows.entrySet())
+			{
+				int count = 0;
+				for (double val : e.getValue().values())
+				{
+					if (val != 0.0) { ++count; }
+				}
+				rowPtr[e.getKey() + 1] = count;
+			}
+			for (int j = 0 ; j < nRows ; ++j)
+			{
+				rowPtr[j+1] += rowPtr[j];
+			}
+			
+			this.colIdx = new int[rowPtr[nRows]];
+			this.values = new double[rowPtr[nRows]];
+			
+			// Then the columns of each row, sorted, and their values.
+			for (Map.Entry<Integer, Map<Integer, Double>> e : rows.entrySet())
+			{
+				final int start = rowPtr[e.getKey()];
+				int pos = start;
+				for (Map.Entry<Integer, Double> col : e.getValue().entrySet())
+				{
+					if (col.getValue() != 0.0) { colIdx[pos++] = col.getKey(); }
+				}
+				
+				Arrays.sort(colIdx, start, pos);
+				
+				Map<Integer, Double> rowMap = e.getValue();
+				for (int i = start ; i < pos ; ++i)
+				{
+					values[i] = rowMap.get(colIdx[i]);
+				}
+			}
+		}
+		else
+		{
+			// Anything else has to be scanned element by element, twice.
+			for (int j = 0 ; j < nRows ; ++j)
+			{
+				int count = 0;
+				for (int k = 0 ; k < nCols ; ++k)
+				{
+					if (m.get(j, k) != 0.0) { ++count; }
+				}
+				rowPtr[j+1] = rowPtr[j] + count;
+			}
+			
+			this.colIdx = new int[rowPtr[nRows]];
+			this.values = new double[rowPtr[nRows]];
+			
+			int pos = 0;
+			for (int j = 0 ; j < nRows ; ++j)
+			{
+				for (int k = 0 ; k < nCols ; ++k)
+				{
+					double val = m.get(j, k);
+					if (val != 0.0)
+					{
+						colIdx[pos] = k;
+						values[pos] = val;
+						++pos;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates an instance that takes ownership of its arrays, which must already be valid
+	 * and free of zeros.  The arrays may be shared with other instances, as none of them
+	 * ever changes its arrays.
+	 * 
+	 * @param rowPtr Where each row starts, followed by the number of non-zeros.  Its
+	 * length gives the number of rows.
+	 * @param colIdx The column of each non-zero.
+	 * @param values The value of each non-zero.
+	 * @param nCols The number of columns.
+	 */
+	private CsrMatrix(final int[] rowPtr, final int[] colIdx, final double[] values, final int nCols)
+	{
+		this.nRows = rowPtr.length - 1;
+		this.nCols = nCols;
+		this.rowPtr = rowPtr;
+		this.colIdx = colIdx;
+		this.values = values;
+	}
+	
+	@Override
+	public int getNRows()
+	{
+		return this.nRows;
+	}
+	
+	@Override
+	public int getNCols()
+	{
+		return this.nCols;
+	}
+	
+	/**
+	 * Gets the number of non-zero elements.
+	 * 
+	 * @return The number of non-zeros stored.
+	 */
+	public int getNumNonZeros()
+	{
+		return values.length;
+	}
+	
+	@Override
+	public double get(int row, int col)
+	{
+		checkIndices(row, col);
+		
+		int pos = Arrays.binarySearch(colIdx, rowPtr[row], rowPtr[row+1], col);
+		return pos < 0 ? 0.0 : values[pos];
+	}
+	
+	@Override
+	public Matrix multiply(double scalar)
+	{
+		if (scalar == 0.0)
+		{
+			return new CsrMatrix(new int[nRows + 1], new int[0], new double[0], nCols);
+		}
+		
+		// The structure doesn't change, so share it.
+		double[] newValues = new double[values.length];
+		for (int j = 0 ; j < values.length ; ++j)
+		{
+			newValues[j] = values[j] * scalar;
+		}
+		
+		return new CsrMatrix(rowPtr, colIdx, newValues, nCols);
+	}
+	
+	/**
+	 * Multiplies this by a column vector.
+	 * 
+	 * @param x The vector, with one entry for each column of this.
+	 * @return The product, with one entry for each row of this.
+	 */
+	public double[] multiply(final double[] x)
+	{
+		if (x == null) { throw new NullPointerException("x may not be null."); }
+		if (x.length != nCols)
+		{
+			throw new IllegalArgumentException("Argument not compatable for matrix multiply.");
+		}
+		
+		double[] ret = new double[nRows];
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			double val = 0.0;
+			for (int i = rowPtr[j] ; i < rowPtr[j+1] ; ++i)
+			{
+				val += values[i] * x[colIdx[i]];
+			}
+			ret[j] = val;
+		}
+		
+		return ret;
+	}
+	
+	@Override
+	public Matrix multiply(Matrix m)
+	{
+		if (m == null) { throw new NullPointerException("m may not be null."); }
+		
+		// Check that the matrix is compatible for multiply.
+		if (m.getNRows() != this.getNCols())
+		{
+			throw new IllegalArgumentException("Argument not compatable for matrix multiply.");
+		}
+		
+		if (m instanceof CsrMatrix)
+		{
+			return csrMultiply((CsrMatrix) m);
+		}
+		
+		// Otherwise each non-zero of a row contributes a multiple of a row of m.
+		final int mCols = m.getNCols();
+		FullMatrix ret = new FullMatrix(nRows, mCols);
+		double[] rowSum = new double[mCols];
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			if (rowPtr[j] == rowPtr[j+1]) { continue; }
+			
+			Arrays.fill(rowSum, 0.0);
+			for (int i = rowPtr[j] ; i < rowPtr[j+1] ; ++i)
+			{
+				final int k = colIdx[i];
+				final double val = values[i];
+				for (int c = 0 ; c < mCols ; ++c)
+				{
+					rowSum[c] += val * m.get(k, c);
+				}
+			}
+			
+			for (int c = 0 ; c < mCols ; ++c)
+			{
+				ret.set(j, c, rowSum[c]);
+			}
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Multiplies two compressed sparse row matrices, one row of the output at a time.
+	 * Each row is gathered in a dense accumulator, with a list of the columns it has
+	 * touched, so the work is proportional to the number of products.
+	 * 
+	 * @param c A compatible matrix.
+	 * @return The product of this and c.
+	 */
+	private CsrMatrix csrMultiply(final CsrMatrix c)
+	{
+		final int outCols = c.nCols;
+		
+		double[] acc = new double[outCols];
+		// The row each column was last touched in, or -1.
+		int[] lastRow = new int[outCols];
+		Arrays.fill(lastRow, -1);
+		int[] touched = new int[outCols];
+		
+		int[] outPtr = new int[nRows + 1];
+		int[] outCol = new int[Math.max(values.length, c.values.length)];
+		double[] outVal = new double[outCol.length];
+		int pos = 0;
+		
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			int nTouched = 0;
+			for (int i = rowPtr[j] ; i < rowPtr[j+1] ; ++i)
+			{
+				final int k = colIdx[i];
+				final double val = values[i];
+				for (int l = c.rowPtr[k] ; l < c.rowPtr[k+1] ; ++l)
+				{
+					final int col = c.colIdx[l];
+					if (lastRow[col] != j)
+					{
+						lastRow[col] = j;
+						acc[col] = 0.0;
+						touched[nTouched++] = col;
+					}
+					acc[col] += val * c.values[l];
+				}
+			}
+			
+			Arrays.sort(touched, 0, nTouched);
+			
+			if (pos + nTouched > outCol.length)
+			{
+				int newLength = Math.max(pos + nTouched, 2 * outCol.length);
+				outCol = Arrays.copyOf(outCol, newLength);
+				outVal = Arrays.copyOf(outVal, newLength);
+			}
+			
+			for (int t = 0 ; t < nTouched ; ++t)
+			{
+				final int col = touched[t];
+				if (acc[col] != 0.0)
+				{
+					outCol[pos] = col;
+					outVal[pos] = acc[col];
+					++pos;
+				}
+			}
+			outPtr[j+1] = pos;
+		}
+		
+		return new CsrMatrix(outPtr, Arrays.copyOf(outCol, pos), Arrays.copyOf(outVal, pos), outCols);
+	}
+	
+	@Override
+	public Matrix add(Matrix m)
+	{
+		if (m instanceof CsrMatrix)
+		{
+			checkSameSize(m);
+			return merge((CsrMatrix) m, 1.0);
+		}
+		
+		return super.add(m);
+	}
+	
+	@Override
+	public Matrix subtract(Matrix m)
+	{
+		if (m instanceof CsrMatrix)
+		{
+			checkSameSize(m);
+			return merge((CsrMatrix) m, -1.0);
+		}
+		
+		return super.subtract(m);
+	}
+	
+	/**
+	 * Adds a multiple of another compressed sparse row matrix of the same size to this,
+	 * merging each pair of rows by column.
+	 * 
+	 * @param c The other matrix.
+	 * @param scale The multiple of <code>c</code> to add, which is 1 or -1.
+	 * @return The sum.
+	 */
+	private CsrMatrix merge(final CsrMatrix c, final double scale)
+	{
+		int[] outPtr = new int[nRows + 1];
+		int[] outCol = new int[values.length + c.values.length];
+		double[] outVal = new double[outCol.length];
+		int pos = 0;
+		
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			int a = rowPtr[j];
+			int b = c.rowPtr[j];
+			final int aEnd = rowPtr[j+1];
+			final int bEnd = c.rowPtr[j+1];
+			
+			while (a < aEnd || b < bEnd)
+			{
+				int col;
+				double val;
+				if (b == bEnd || (a < aEnd && colIdx[a] < c.colIdx[b]))
+				{
+					col = colIdx[a];
+					val = values[a++];
+				}
+				else if (a == aEnd || c.colIdx[b] < colIdx[a])
+				{
+					col = c.colIdx[b];
+					val = scale * c.values[b++];
+				}
+				else
+				{
+					col = colIdx[a];
+					val = values[a++] + scale * c.values[b++];
+				}
+				
+				// Terms that cancel are dropped.
+				if (val != 0.0)
+				{
+					outCol[pos] = col;
+					outVal[pos] = val;
+					++pos;
+				}
+			}
+			outPtr[j+1] = pos;
+		}
+		
+		return new CsrMatrix(outPtr, Arrays.copyOf(outCol, pos), Arrays.copyOf(outVal, pos), nCols);
+	}
+	
+	/**
+	 * Checks that another matrix is the same size as this, and throw if it is not.
+	 */
+	private void checkSameSize(final Matrix m)
+	{
+		if (m.getNRows() != nRows || m.getNCols() != nCols)
+		{
+			throw new IllegalArgumentException("m not compatable for addition.");
+		}
+	}
+	
+	/**
+	 * Checks that indices are valid, and throw if they are not.
+	 */
+	private void checkIndices(final int row, final int col)
+	{
+		if (row < 0 || col < 0)
+		{
+			throw new IllegalArgumentException("row and col must be non-negative.");
+		}
+		
+		if (row >= nRows || col >= nCols)
+		{
+			throw new IllegalArgumentException("row or col outside of matrix range.");
+		}
+	}
+	
+	/**
+	 * Gets a hash code for this object, the same as for any other matrix with the same
+	 * elements, from the non-zeros alone.
+	 */
+	@Override
+	public int hashCode()
+	{
+		int hash = 0;
+		for (int j = 0 ; j < values.length ; ++j)
+		{
+			hash ^= Double.valueOf(values[j]).hashCode();
+		}
+		
+		return hash;
+	}
+	
+	@Override
+	public Iterator<Element> iterator()
+	{
+		return new CsrMatrixIterator();
+	}
+	
+	/**
+	 * An iterator through the non-zero entries of the matrix, in row major order.
+	 */
+	private class CsrMatrixIterator implements Iterator<Element>
+	{
+		// The row of the next element, and its index in the arrays.
+		private int row = 0;
+		private int pos = 0;
+		
+		@Override
+		public boolean hasNext()
+		{
+			return pos < values.length;
+		}
+		
+		@Override
+		public Element next()
+		{
+			if (!hasNext()) { throw new NoSuchElementException("Iterator is done."); }
+			
+			// Skip over the rows that have been finished, and any empty ones.
+			while (rowPtr[row+1] <= pos) { ++row; }
+			
+			DefaultMatrixElement ret = new DefaultMatrixElement(row, colIdx[pos], values[pos]);
+			++pos;
+			return ret;
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException("Remove not supported through this iterator.");
+		}
+	}
+}
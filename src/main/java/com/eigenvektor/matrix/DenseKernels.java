@@ -0,0 +1,246 @@
+/*
+ *  Element-wise kernels over arrays of doubles.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+/**
+ * The element-wise arithmetic behind the dense matrices, on runs of contiguous
+ * elements given by an array, an offset and a length.
+ * <p>
+ * There are two implementations.  The vector kernels are written with the incubating
+ * <code>DoubleVector</code> API, so every loop is compiled to SIMD instructions (AVX2
+ * or AVX-512 where the processor has them).  They are only built on JDK 16 and later,
+ * and can only be loaded when the <code>jdk.incubator.vector</code> module is added
+ * to the JVM.  Otherwise the scalar kernels are used, which are plain loops.  Setting
+ * the system property <code>com.eigenvektor.matrix.kernels</code> to
+ * <code>scalar</code> uses the scalar kernels even when the vector ones are there.
+ */
+final class DenseKernels
+{
+	// The system property that picks the kernels.
+	static final String PROPERTY = "com.eigenvektor.matrix.kernels";
+	
+	// The names of the two implementations.
+	static final String VECTOR = "vector";
+	static final String SCALAR = "scalar";
+	
+	// The class of the vector kernels, which is only there if it could be built.
+	private static final String VECTOR_CLASS = "com.eigenvektor.matrix.VectorKernels";
+	
+	/**
+	 * An implementation of the kernels.  The runs may be in the same array, but if so
+	 * they must either be the same run or not overlap at all.
+	 */
+	interface Impl
+	{
+		/**
+		 * Adds a multiple of one run to another, <code>y += alpha * x</code>.
+		 * 
+		 * @param n The number of elements.
+		 * @param alpha The multiple of x to add.
+		 * @param x The array holding the run to add.
+		 * @param xOff The index in x of the first element.
+		 * @param y The array holding the run to add to.
+		 * @param yOff The index in y of the first element.
+		 */
+		void axpy(int n, double alpha, double[] x, int xOff, double[] y, int yOff);
+		
+		/**
+		 * Multiplies a run by a scalar in place.
+		 * 
+		 * @param n The number of elements.
+		 * @param alpha The scalar.
+		 * @param x The array holding the run.
+		 * @param off The index in x of the first element.
+		 */
+		void scale(int n, double alpha, double[] x, int off);
+		
+		/**
+		 * Adds two runs into a third, <code>out = x + y</code>.
+		 * 
+		 * @param n The number of elements.
+		 * @param x The array holding the first run.
+		 * @param xOff The index in x of its first element.
+		 * @param y The array holding the second run.
+		 * @param yOff The index in y of its first element.
+		 * @param out The array to write to.
+		 * @param outOff The index in out of the first element to write.
+		 */
+		void add(int n, double[] x, int xOff, double[] y, int yOff, double[] out, int outOff);
+		
+		/**
+		 * Subtracts one run from another into a third, <code>out = x - y</code>.
+		 * 
+		 * @param n The number of elements.
+		 * @param x The array holding the run to subtract from.
+		 * @param xOff The index in x of its first element.
+		 * @param y The array holding the run to subtract.
+		 * @param yOff The index in y of its first element.
+		 * @param out The array to write to.
+		 * @param outOff The index in out of the first element to write.
+		 */
+		void subtract(int n, double[] x, int xOff, double[] y, int yOff, double[] out, int outOff);
+	}
+	
+	// The kernels in use.  Being a constant, calls through it are inlined.
+	private static final Impl KERNELS = load();
+	
+	private DenseKernels()
+	{
+	}
+	
+	/**
+	 * Picks the kernels to use: the vector ones if they are there, unless the system
+	 * property asks for the scalar ones.
+	 * 
+	 * @return The kernels.
+	 */
+	private static Impl load()
+	{
+		if (!SCALAR.equals(System.getProperty(PROPERTY)))
+		{
+			Impl ret = get(VECTOR);
+			if (ret != null) { return ret; }
+		}
+		return new Scalar();
+	}
+	
+	/**
+	 * Gets an implementation of the kernels by name.
+	 * 
+	 * @param name <code>"vector"</code> or <code>"scalar"</code>.
+	 * @return The kernels, or null if the vector kernels were asked for and can't be
+	 * loaded in this JVM.
+	 */
+	static Impl get(final String name)
+	{
+		if (SCALAR.equals(name)) { return new Scalar(); }
+		if (!VECTOR.equals(name)) { throw new IllegalArgumentException("Unknown kernels: " + name); }
+		
+		try
+		{
+			return (Impl) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			// Not built, or the vector module isn't in this JVM.
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets the name of the kernels in use.
+	 * 
+	 * @return <code>"vector"</code> or <code>"scalar"</code>.
+	 */
+	static String getName()
+	{
+		return (KERNELS instanceof Scalar) ? SCALAR : VECTOR;
+	}
+	
+	/**
+	 * Adds a multiple of one run to another, <code>y += alpha * x</code>.
+	 * 
+	 * @see Impl#axpy(int, double, double[], int, double[], int)
+	 */
+	static void axpy(final int n, final double alpha, final double[] x, final int xOff,
+			final double[] y, final int yOff)
+	{
+		KERNELS.axpy(n, alpha, x, xOff, y, yOff);
+	}
+	
+	/**
+	 * Multiplies a run by a scalar in place.
+	 * 
+	 * @see Impl#scale(int, double, double[], int)
+	 */
+	static void scale(final int n, final double alpha, final double[] x, final int off)
+	{
+		KERNELS.scale(n, alpha, x, off);
+	}
+	
+	/**
+	 * Adds two runs into a third, <code>out = x + y</code>.
+	 * 
+	 * @see Impl#add(int, double[], int, double[], int, double[], int)
+	 */
+	static void add(final int n, final double[] x, final int xOff, final double[] y, final int yOff,
+			final double[] out, final int outOff)
+	{
+		KERNELS.add(n, x, xOff, y, yOff, out, outOff);
+	}
+	
+	/**
+	 * Subtracts one run from another into a third, <code>out = x - y</code>.
+	 * 
+	 * @see Impl#subtract(int, double[], int, double[], int, double[], int)
+	 */
+	static void subtract(final int n, final double[] x, final int xOff, final double[] y, final int yOff,
+			final double[] out, final int outOff)
+	{
+		KERNELS.subtract(n, x, xOff, y, yOff, out, outOff);
+	}
+	
+	/**
+	 * The scalar kernels.  Each is a single counted loop with nothing in it but the
+	 * arithmetic, which is the shape the JIT compiler can still turn into SIMD
+	 * instructions when the runs are in different arrays.  Keep them that way:
+	 * unrolling by hand, or adding branches, stops that from happening.
+	 */
+	static final class Scalar implements Impl
+	{
+		@Override
+		public void axpy(final int n, final double alpha, final double[] x, final int xOff,
+				final double[] y, final int yOff)
+		{
+			for (int j = 0 ; j < n ; ++j)
+			{
+				y[yOff + j] += alpha * x[xOff + j];
+			}
+		}
+		
+		@Override
+		public void scale(final int n, final double alpha, final double[] x, final int off)
+		{
+			for (int j = 0 ; j < n ; ++j)
+			{
+				x[off + j] *= alpha;
+			}
+		}
+		
+		@Override
+		public void add(final int n, final double[] x, final int xOff, final double[] y, final int yOff,
+				final double[] out, final int outOff)
+		{
+			for (int j = 0 ; j < n ; ++j)
+			{
+				out[outOff + j] = x[xOff + j] + y[yOff + j];
+			}
+		}
+		
+		@Override
+		public void subtract(final int n, final double[] x, final int xOff, final double[] y, final int yOff,
+				final double[] out, final int outOff)
+		{
+			for (int j = 0 ; j < n ; ++j)
+			{
+				out[outOff + j] = x[xOff + j] - y[yOff + j];
+			}
+		}
+	}
+}
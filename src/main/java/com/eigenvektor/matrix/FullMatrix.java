@@ -42,6 +42,12 @@ public final class FullMatrix extends AbstractMutableMatrix
 			throw new IllegalArgumentException("nRows and nCols must be non-negative.");
 		}
 		
+		// The elements are in one array, indexed by int.
+		if ((long) nRows * nCols > Integer.MAX_VALUE - 8)
+		{
+			throw new IllegalArgumentException("Too many elements for a FullMatrix; use an OffHeapMatrix.");
+		}
+		
 		this.nRows = nRows;
 		this.nCols = nCols;
 		data = new double[nRows * nCols];
@@ -56,6 +62,14 @@ public final class FullMatrix extends AbstractMutableMatrix
 	{
 		this(m.getNRows(), m.getNCols());
 		
+		// Copy a full matrix or a view a row at a time.
+		FullMatrixView v = viewOf(m);
+		if (v != null)
+		{
+			copyFrom(v);
+			return;
+		}
+		
 		// Copy the data.
 		for (int j = 0 ; j < nRows ; j++)
 		{
@@ -66,6 +80,101 @@ public final class FullMatrix extends AbstractMutableMatrix
 		}
 	}
 	
+	/**
+	 * Copies the elements of a view the same size as this.
+	 * 
+	 * @param v The view.
+	 */
+	private void copyFrom(final FullMatrixView v)
+	{
+		final double[] src = v.getData();
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			int from = v.getOffset() + j * v.getRowStride();
+			if (v.getColStride() == 1)
+			{
+				System.arraycopy(src, from, data, j * nCols, nCols);
+			}
+			else
+			{
+				for (int k = 0 ; k < nCols ; ++k)
+				{
+					data[j * nCols + k] = src[from + k * v.getColStride()];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gets a view of the whole of this.
+	 * 
+	 * @return The view.
+	 */
+	FullMatrixView asView()
+	{
+		return new FullMatrixView(data, 0, nRows, nCols, nCols, 1);
+	}
+	
+	/**
+	 * Gets a view of the storage of a dense matrix.
+	 * 
+	 * @param m A matrix.
+	 * @return A view of the whole of <code>m</code> if it is a <code>FullMatrix</code>,
+	 * <code>m</code> itself if it is a <code>FullMatrixView</code>, and otherwise null.
+	 */
+	static FullMatrixView viewOf(final Matrix m)
+	{
+		if (m instanceof FullMatrix) { return ((FullMatrix) m).asView(); }
+		if (m instanceof FullMatrixView) { return (FullMatrixView) m; }
+		return null;
+	}
+	
+	/**
+	 * Gets a view of part of this, without copying.
+	 * 
+	 * @param startRow The first row to include in the view.
+	 * @param endRow The row after the last row to include in the view.
+	 * @param startCol The first column to include in the view.
+	 * @param endCol The column after the last column to include in the view.
+	 * @return The view.
+	 */
+	public FullMatrixView submatrix(int startRow, int endRow, int startCol, int endCol)
+	{
+		return asView().submatrix(startRow, endRow, startCol, endCol);
+	}
+	
+	/**
+	 * Gets a view of the transpose of this, without copying.
+	 * 
+	 * @return The view.
+	 */
+	public FullMatrixView transpose()
+	{
+		return asView().transpose();
+	}
+	
+	/**
+	 * Gets a view of one row of this, without copying.
+	 * 
+	 * @param row The row.
+	 * @return The view, a matrix with one row.
+	 */
+	public FullMatrixView row(int row)
+	{
+		return asView().row(row);
+	}
+	
+	/**
+	 * Gets a view of one column of this, without copying.
+	 * 
+	 * @param col The column.
+	 * @return The view, a matrix with one column.
+	 */
+	public FullMatrixView column(int col)
+	{
+		return asView().column(col);
+	}
+	
 	@Override
 	public int getNRows()
 	{
@@ -94,6 +203,42 @@ public final class FullMatrix extends AbstractMutableMatrix
 		return ret;
 	}
 
+	/**
+	 * Multiplies this by another matrix.  If the other is also a <code>FullMatrix</code>,
+	 * or a view of one, this works straight on the arrays, blocked for the cache, and
+	 * large products are split across the common fork-join pool.
+	 */
+	@Override
+	public Matrix multiply(Matrix m)
+	{
+		if (m instanceof FullMatrix)
+		{
+			FullMatrix f = (FullMatrix) m;
+			return multiply(f, BlockedMultiply.defaultNumTasks(nRows, nCols, f.nCols));
+		}
+		else if (m instanceof FullMatrixView)
+		{
+			return asView().multiply(m);
+		}
+		else
+		{
+			return super.multiply(m);
+		}
+	}
+	
+	/**
+	 * Multiplies this by another full matrix, splitting the work into a number of tasks.
+	 * 
+	 * @param f The matrix to multiply by.
+	 * @param nTasks The number of tasks to split the work into.  With one task
+	 * everything is done on the calling thread.
+	 * @return The product of this and f.
+	 */
+	FullMatrix multiply(final FullMatrix f, final int nTasks)
+	{
+		return FullMatrixView.multiply(this.asView(), f.asView(), nTasks);
+	}
+	
 	@Override
 	public void set(int row, int col, double val)
 	{
@@ -104,12 +249,90 @@ public final class FullMatrix extends AbstractMutableMatrix
 	@Override
 	public void inPlaceMultiply(double scalar)
 	{
-		for (int j = 0 ; j < data.length ; ++j)
+		DenseKernels.scale(data.length, scalar, data, 0);
+	}
+	
+	@Override
+	public Matrix add(Matrix m)
+	{
+		if (isSameSizeFull(m))
+		{
+			FullMatrix ret = new FullMatrix(nRows, nCols);
+			DenseKernels.add(data.length, this.data, 0, ((FullMatrix) m).data, 0, ret.data, 0);
+			return ret;
+		}
+		else if (m instanceof FullMatrixView)
+		{
+			return asView().add(m);
+		}
+		else
+		{
+			return super.add(m);
+		}
+	}
+	
+	@Override
+	public Matrix subtract(Matrix m)
+	{
+		if (isSameSizeFull(m))
+		{
+			FullMatrix ret = new FullMatrix(nRows, nCols);
+			DenseKernels.subtract(data.length, this.data, 0, ((FullMatrix) m).data, 0, ret.data, 0);
+			return ret;
+		}
+		else if (m instanceof FullMatrixView)
+		{
+			return asView().subtract(m);
+		}
+		else
+		{
+			return super.subtract(m);
+		}
+	}
+	
+	@Override
+	public void inPlaceAdd(final Matrix m)
+	{
+		if (isSameSizeFull(m))
+		{
+			DenseKernels.add(data.length, this.data, 0, ((FullMatrix) m).data, 0, this.data, 0);
+		}
+		else if (m instanceof FullMatrixView)
+		{
+			asView().inPlaceAdd(m);
+		}
+		else
 		{
-			data[j] *= scalar;
+			super.inPlaceAdd(m);
 		}
 	}
 	
+	@Override
+	public void inPlaceSubtract(final Matrix m)
+	{
+		if (isSameSizeFull(m))
+		{
+			DenseKernels.subtract(data.length, this.data, 0, ((FullMatrix) m).data, 0, this.data, 0);
+		}
+		else if (m instanceof FullMatrixView)
+		{
+			asView().inPlaceSubtract(m);
+		}
+		else
+		{
+			super.inPlaceSubtract(m);
+		}
+	}
+	
+	/**
+	 * Tells if another matrix is a <code>FullMatrix</code> the same size as this, so the
+	 * element-wise operations can work straight on the arrays.
+	 */
+	private boolean isSameSizeFull(final Matrix m)
+	{
+		return m instanceof FullMatrix && m.getNRows() == nRows && m.getNCols() == nCols;
+	}
+	
 	/**
 	 * Checks that indices are valid, and throw if they are not.
 	 */
@@ -140,12 +363,10 @@ public final class FullMatrix extends AbstractMutableMatrix
 			throw new IllegalArgumentException("Invalid row.");
 		}
 		
-		int fromStart = from * nCols;
-		int toStart = to * nCols;
-		for (int j = 0 ; j < nCols ; ++j)
-		{
-			this.data[toStart+j] += c * this.data[fromStart+j];
-		}
+		// Elimination often has nothing to eliminate.
+		if (c == 0.0) { return; }
+		
+		DenseKernels.axpy(nCols, c, this.data, from * nCols, this.data, to * nCols);
 	}
 
 	@Override
@@ -177,11 +398,7 @@ public final class FullMatrix extends AbstractMutableMatrix
 			throw new IllegalArgumentException("Invalid row.");
 		}
 		
-		int rowStart = row * nCols;
-		for (int j = 0 ; j < nCols ; ++j)
-		{
-			data[rowStart + j] *= c;
-		}
+		DenseKernels.scale(nCols, c, data, row * nCols);
 	}
 
 }
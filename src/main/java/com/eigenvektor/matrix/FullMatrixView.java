@@ -0,0 +1,436 @@
+/*
+ *  A view onto part of the storage of a full matrix.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import java.util.Iterator;
+
+/**
+ * A view onto the storage of a <code>FullMatrix</code>, without copying it.  Element
+ * (row, col) of the view is element <code>offset + row*rowStride + col*colStride</code>
+ * of the matrix's array, so a submatrix, a transpose, a row or a column are all views,
+ * and views can be taken of views.  Writes through a view change the matrix, and
+ * changes to the matrix show through the view.
+ * <p>
+ * A view in row major order has a column stride of one, and its row stride is what
+ * BLAS calls the leading dimension.  Products, sums and row operations work straight
+ * on the array, just as they do for <code>FullMatrix</code>.
+ */
+public final class FullMatrixView extends AbstractMutableMatrix
+{
+	private final double[] data;
+	private final int offset;
+	private final int nRows;
+	private final int nCols;
+	private final int rowStride;
+	private final int colStride;
+	
+	/**
+	 * Creates a new view.  The caller is responsible for the view lying within the array.
+	 * 
+	 * @param data The array of the viewed matrix.
+	 * @param offset The index in <code>data</code> of element (0, 0).
+	 * @param nRows The number of rows.
+	 * @param nCols The number of columns.
+	 * @param rowStride The distance in <code>data</code> between rows.
+	 * @param colStride The distance in <code>data</code> between columns.
+	 */
+	FullMatrixView(final double[] data, final int offset, final int nRows, final int nCols,
+			final int rowStride, final int colStride)
+	{
+		this.data = data;
+		this.offset = offset;
+		this.nRows = nRows;
+		this.nCols = nCols;
+		this.rowStride = rowStride;
+		this.colStride = colStride;
+	}
+	
+	/**
+	 * Gets the index of element (0, 0) in the viewed array.
+	 * 
+	 * @return The offset.
+	 */
+	public int getOffset()
+	{
+		return offset;
+	}
+	
+	/**
+	 * Gets the distance in the viewed array between rows, the leading dimension of a
+	 * row major view.
+	 * 
+	 * @return The row stride.
+	 */
+	public int getRowStride()
+	{
+		return rowStride;
+	}
+	
+	/**
+	 * Gets the distance in the viewed array between columns, which is one for a row
+	 * major view.
+	 * 
+	 * @return The column stride.
+	 */
+	public int getColStride()
+	{
+		return colStride;
+	}
+	
+	/**
+	 * Gets the viewed array.
+	 * 
+	 * @return The array, not a copy.
+	 */
+	double[] getData()
+	{
+		return data;
+	}
+	
+	@Override
+	public int getNRows()
+	{
+		return nRows;
+	}
+	
+	@Override
+	public int getNCols()
+	{
+		return nCols;
+	}
+	
+	@Override
+	public double get(int row, int col)
+	{
+		checkIndices(row, col);
+		return data[offset + row * rowStride + col * colStride];
+	}
+	
+	@Override
+	public void set(int row, int col, double val)
+	{
+		checkIndices(row, col);
+		data[offset + row * rowStride + col * colStride] = val;
+	}
+	
+	/**
+	 * Gets a view of part of this.
+	 * 
+	 * @param startRow The first row to include in the view.
+	 * @param endRow The row after the last row to include in the view.
+	 * @param startCol The first column to include in the view.
+	 * @param endCol The column after the last column to include in the view.
+	 * @return The view.
+	 */
+	public FullMatrixView submatrix(int startRow, int endRow, int startCol, int endCol)
+	{
+		if (startRow < 0 || startRow > endRow || endRow > nRows)
+		{
+			throw new IllegalArgumentException("Invalid start and end rows.");
+		}
+		
+		if (startCol < 0 || startCol > endCol || endCol > nCols)
+		{
+			throw new IllegalArgumentException("Invalid start and end cols.");
+		}
+		
+		return new FullMatrixView(data, offset + startRow * rowStride + startCol * colStride,
+				endRow - startRow, endCol - startCol, rowStride, colStride);
+	}
+	
+	/**
+	 * Gets a view of the transpose of this.
+	 * 
+	 * @return The view.
+	 */
+	public FullMatrixView transpose()
+	{
+		return new FullMatrixView(data, offset, nCols, nRows, colStride, rowStride);
+	}
+	
+	/**
+	 * Gets a view of one row of this, as a matrix with one row.
+	 * 
+	 * @param row The row.
+	 * @return The view.
+	 */
+	public FullMatrixView row(int row)
+	{
+		if (row < 0 || row >= nRows) { throw new IllegalArgumentException("Invalid row."); }
+		return submatrix(row, row + 1, 0, nCols);
+	}
+	
+	/**
+	 * Gets a view of one column of this, as a matrix with one column.
+	 * 
+	 * @param col The column.
+	 * @return The view.
+	 */
+	public FullMatrixView column(int col)
+	{
+		if (col < 0 || col >= nCols) { throw new IllegalArgumentException("Invalid column."); }
+		return submatrix(0, nRows, col, col + 1);
+	}
+	
+	@Override
+	public Matrix multiply(double scalar)
+	{
+		// Copy the data and do the multiply in-place on the copy.
+		FullMatrix ret = new FullMatrix(this);
+		ret.inPlaceMultiply(scalar);
+		return ret;
+	}
+	
+	@Override
+	public Matrix multiply(Matrix m)
+	{
+		FullMatrixView v = FullMatrix.viewOf(m);
+		if (v != null)
+		{
+			return multiply(this, v, BlockedMultiply.defaultNumTasks(nRows, nCols, v.nCols));
+		}
+		else
+		{
+			return super.multiply(m);
+		}
+	}
+	
+	/**
+	 * Multiplies two views into a new matrix.
+	 * 
+	 * @param a The left operand.
+	 * @param b The right operand.
+	 * @param nTasks The number of tasks to split the work into.
+	 * @return The product of a and b.
+	 */
+	static FullMatrix multiply(final FullMatrixView a, final FullMatrixView b, final int nTasks)
+	{
+		if (b.nRows != a.nCols)
+		{
+			throw new IllegalArgumentException("Argument not compatable for matrix multiply.");
+		}
+		
+		FullMatrix ret = new FullMatrix(a.nRows, b.nCols);
+		BlockedMultiply.multiplyAdd(a.nRows, a.nCols, b.nCols,
+				a.data, a.offset, a.rowStride, a.colStride,
+				b.data, b.offset, b.rowStride, b.colStride,
+				ret.asView().data, 0, b.nCols, nTasks);
+		return ret;
+	}
+	
+	@Override
+	public Matrix add(Matrix m)
+	{
+		FullMatrixView v = sameSizeView(m);
+		if (v == null) { return super.add(m); }
+		
+		FullMatrix ret = new FullMatrix(this);
+		ret.asView().combine(v, 1.0);
+		return ret;
+	}
+	
+	@Override
+	public Matrix subtract(Matrix m)
+	{
+		FullMatrixView v = sameSizeView(m);
+		if (v == null) { return super.subtract(m); }
+		
+		FullMatrix ret = new FullMatrix(this);
+		ret.asView().combine(v, -1.0);
+		return ret;
+	}
+	
+	/**
+	 * Adds another matrix into this one.  If it is a view of the same array, it must
+	 * either be this or not overlap this.
+	 */
+	@Override
+	public void inPlaceAdd(final Matrix m)
+	{
+		FullMatrixView v = sameSizeView(m);
+		if (v == null)
+		{
+			super.inPlaceAdd(m);
+		}
+		else
+		{
+			combine(v, 1.0);
+		}
+	}
+	
+	/**
+	 * Subtracts another matrix from this one.  If it is a view of the same array, it
+	 * must either be this or not overlap this.
+	 */
+	@Override
+	public void inPlaceSubtract(final Matrix m)
+	{
+		FullMatrixView v = sameSizeView(m);
+		if (v == null)
+		{
+			super.inPlaceSubtract(m);
+		}
+		else
+		{
+			combine(v, -1.0);
+		}
+	}
+	
+	/**
+	 * Gets a view of another dense matrix the same size as this, or null if it isn't one.
+	 */
+	private FullMatrixView sameSizeView(final Matrix m)
+	{
+		FullMatrixView v = FullMatrix.viewOf(m);
+		return (v != null && v.nRows == nRows && v.nCols == nCols) ? v : null;
+	}
+	
+	/**
+	 * Adds a multiple of another view the same size to this, row by row.
+	 * 
+	 * @param v The view to add.
+	 * @param scale The multiple of <code>v</code>, which is 1 or -1.
+	 */
+	private void combine(final FullMatrixView v, final double scale)
+	{
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			final int to = offset + j * rowStride;
+			final int from = v.offset + j * v.rowStride;
+			if (colStride == 1 && v.colStride == 1)
+			{
+				if (scale > 0)
+				{
+					DenseKernels.add(nCols, data, to, v.data, from, data, to);
+				}
+				else
+				{
+					DenseKernels.subtract(nCols, data, to, v.data, from, data, to);
+				}
+			}
+			else
+			{
+				for (int k = 0 ; k < nCols ; ++k)
+				{
+					data[to + k * colStride] += scale * v.data[from + k * v.colStride];
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void inPlaceMultiply(double scalar)
+	{
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			scaleRow(j, scalar);
+		}
+	}
+	
+	@Override
+	public void rowOperation(int from, int to, double c)
+	{
+		if (from >= nRows || to >= nRows || from < 0 || to < 0)
+		{
+			throw new IllegalArgumentException("Invalid row.");
+		}
+		
+		// Elimination often has nothing to eliminate.
+		if (c == 0.0) { return; }
+		
+		final int fromStart = offset + from * rowStride;
+		final int toStart = offset + to * rowStride;
+		if (colStride == 1)
+		{
+			DenseKernels.axpy(nCols, c, data, fromStart, data, toStart);
+		}
+		else
+		{
+			for (int k = 0 ; k < nCols ; ++k)
+			{
+				data[toStart + k * colStride] += c * data[fromStart + k * colStride];
+			}
+		}
+	}
+	
+	@Override
+	public void swapRows(int from, int to)
+	{
+		if (from >= nRows || to >= nRows || from < 0 || to < 0)
+		{
+			throw new IllegalArgumentException("Invalid row.");
+		}
+		
+		// If the from and to indices are the same, do nothing.
+		if (from == to) { return; }
+		
+		final int fromStart = offset + from * rowStride;
+		final int toStart = offset + to * rowStride;
+		for (int k = 0 ; k < nCols ; ++k)
+		{
+			double x = data[fromStart + k * colStride];
+			data[fromStart + k * colStride] = data[toStart + k * colStride];
+			data[toStart + k * colStride] = x;
+		}
+	}
+	
+	@Override
+	public void scaleRow(int row, double c)
+	{
+		if (row >= nRows || row < 0)
+		{
+			throw new IllegalArgumentException("Invalid row.");
+		}
+		
+		final int rowStart = offset + row * rowStride;
+		if (colStride == 1)
+		{
+			DenseKernels.scale(nCols, c, data, rowStart);
+		}
+		else
+		{
+			for (int k = 0 ; k < nCols ; ++k)
+			{
+				data[rowStart + k * colStride] *= c;
+			}
+		}
+	}
+	
+	/**
+	 * Checks that indices are valid, and throw if they are not.
+	 */
+	private void checkIndices(final int row, final int col)
+	{
+		if (row < 0 || col < 0)
+		{
+			throw new IllegalArgumentException("row and col must be non-negative.");
+		}
+		
+		if (row >= nRows || col >= nCols)
+		{
+			throw new IllegalArgumentException("row or col outside of matrix range.");
+		}
+	}
+	
+	@Override
+	public Iterator<Element> iterator()
+	{
+		return new FullMatrixIterator(this);
+	}
+}
@@ -88,7 +88,7 @@ public final class MatrixView extends AbstractMatrix
 	 */
 	private void checkIndices(final int row, final int col)
 	{
-		if (row < startRow || col < endCol)
+		if (row < startRow || col < startCol)
 		{
 			throw new IllegalArgumentException("row and col must be non-negative.");
 		}
@@ -107,7 +107,7 @@ public final class MatrixView extends AbstractMatrix
 		{
 			for (int col = startCol ; col < endCol ; ++col)
 			{
-				ret.set(row-startRow, col-startCol, mat.get(row, col));
+				ret.set(row-startRow, col-startCol, scalar * mat.get(row, col));
 			}
 		}
 		return ret;
@@ -0,0 +1,753 @@
+/*
+ *  Implementation of a full matrix stored outside of the Java heap.
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A full matrix whose elements live outside of the Java heap, either in direct
+ * buffers or in a memory mapped file.  Elements are indexed by <code>long</code>, in
+ * row major order, and held in chunks of 2^27 (1GiB), so the matrix can have any
+ * number of rows and columns that fit in an <code>int</code>, and more than 2^31
+ * elements in all.
+ * <p>
+ * The memory is released by <code>close()</code>, rather than whenever the garbage
+ * collector gets round to it, after which the matrix can't be used.  Closing must
+ * not race with any other use of the matrix.
+ * <p>
+ * A file made by <code>create()</code> starts with a 64 byte header recording the
+ * shape of the matrix, followed by the elements as little endian doubles.
+ */
+public final class OffHeapMatrix extends AbstractMutableMatrix implements Closeable
+{
+	// Identifies a matrix file, and the version of the format.
+	static final int MAGIC = 0x4D545258; // "MTRX"
+	static final int VERSION = 1;
+	
+	// The size of the header in bytes.
+	static final int HEADER_BYTES = 64;
+	
+	// Offsets of the fields in the header.
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int NROWS_OFFSET = 8;
+	private static final int NCOLS_OFFSET = 12;
+	
+	// The number of elements in a chunk, by default.
+	static final int CHUNK_SHIFT = 27;
+	
+	private final int nRows;
+	private final int nCols;
+	
+	// The number of elements in a chunk is 2^chunkShift.
+	private final int chunkShift;
+	private final int chunkMask;
+	
+	// The file's header, or null if this isn't mapped.
+	private MappedByteBuffer header;
+	
+	// The memory, and views of it as doubles.  Both are null once this is closed.
+	private ByteBuffer[] buffers;
+	private DoubleBuffer[] chunks;
+	
+	/**
+	 * Creates a new instance full of zeros in direct memory.
+	 * 
+	 * @param nRows The number of rows.
+	 * @param nCols The number of columns.
+	 */
+	public OffHeapMatrix(final int nRows, final int nCols)
+	{
+		this(nRows, nCols, CHUNK_SHIFT);
+	}
+	
+	/**
+	 * Creates a new instance in direct memory that copies another matrix.
+	 * 
+	 * @param m The matrix to copy.
+	 */
+	public OffHeapMatrix(final Matrix m)
+	{
+		this(m.getNRows(), m.getNCols());
+		copyFrom(m);
+	}
+	
+	/**
+	 * Creates a new instance full of zeros in direct memory, with a given chunk size.
+	 * 
+	 * @param nRows The number of rows.
+	 * @param nCols The number of columns.
+	 * @param chunkShift The number of elements in a chunk is 2^chunkShift.
+	 */
+	OffHeapMatrix(final int nRows, final int nCols, final int chunkShift)
+	{
+		this(nRows, nCols, chunkShift, null);
+		
+		for (int j = 0 ; j < buffers.length ; ++j)
+		{
+			buffers[j] = ByteBuffer.allocateDirect(chunkLength(j) * 8).order(ByteOrder.nativeOrder());
+			chunks[j] = buffers[j].asDoubleBuffer();
+		}
+	}
+	
+	/**
+	 * Creates a new instance with its chunks still to be filled in.
+	 */
+	private OffHeapMatrix(final int nRows, final int nCols, final int chunkShift, final MappedByteBuffer header)
+	{
+		if (nRows < 0 || nCols < 0)
+		{
+			throw new IllegalArgumentException("nRows and nCols must be non-negative.");
+		}
+		
+		this.nRows = nRows;
+		this.nCols = nCols;
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1 << chunkShift) - 1;
+		this.header = header;
+		
+		long nElements = (long) nRows * nCols;
+		int nChunks = (int) ((nElements + chunkMask) >>> chunkShift);
+		this.buffers = new ByteBuffer[nChunks];
+		this.chunks = new DoubleBuffer[nChunks];
+	}
+	
+	/**
+	 * Creates a new file holding a matrix full of zeros, and maps it.  Any existing
+	 * file is overwritten.  Changes are written through to the file as they are made,
+	 * and it can be mapped again later with <code>open()</code>.
+	 * 
+	 * @param file The file to create.
+	 * @param nRows The number of rows.
+	 * @param nCols The number of columns.
+	 * @return The mapped matrix.
+	 * @throws IOException If the file cannot be created or mapped.
+	 */
+	public static OffHeapMatrix create(final File file, final int nRows, final int nCols) throws IOException
+	{
+		return create(file, nRows, nCols, CHUNK_SHIFT);
+	}
+	
+	/**
+	 * Creates a new file holding a matrix full of zeros, with a given chunk size.
+	 * 
+	 * @param file The file to create.
+	 * @param nRows The number of rows.
+	 * @param nCols The number of columns.
+	 * @param chunkShift The number of elements in a chunk is 2^chunkShift.
+	 * @return The mapped matrix.
+	 * @throws IOException If the file cannot be created or mapped.
+	 */
+	static OffHeapMatrix create(final File file, final int nRows, final int nCols, final int chunkShift)
+			throws IOException
+	{
+		if (file == null) { throw new NullPointerException("file may not be null."); }
+		if (nRows < 0 || nCols < 0)
+		{
+			throw new IllegalArgumentException("nRows and nCols must be non-negative.");
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			// Truncating first zeroes any data left over from a previous file.
+			raf.setLength(0);
+			raf.setLength(HEADER_BYTES + (long) nRows * nCols * 8);
+			
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC_OFFSET, MAGIC);
+			header.putInt(VERSION_OFFSET, VERSION);
+			header.putInt(NROWS_OFFSET, nRows);
+			header.putInt(NCOLS_OFFSET, nCols);
+			
+			return map(channel, nRows, nCols, chunkShift, header);
+		}
+		finally
+		{
+			// The mappings remain valid after the file is closed.
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Maps a file made by <code>create()</code>.  Nothing is read until it is used, so
+	 * opening is fast regardless of the size of the matrix, and any changes are written
+	 * back to the file.
+	 * 
+	 * @param file The file to open.
+	 * @return The mapped matrix.
+	 * @throws IOException If the file cannot be read, or doesn't hold a matrix.
+	 */
+	public static OffHeapMatrix open(final File file) throws IOException
+	{
+		return open(file, CHUNK_SHIFT);
+	}
+	
+	/**
+	 * Maps a file made by <code>create()</code>, with a given chunk size.
+	 * 
+	 * @param file The file to open.
+	 * @param chunkShift The number of elements in a chunk is 2^chunkShift.
+	 * @return The mapped matrix.
+	 * @throws IOException If the file cannot be read, or doesn't hold a matrix.
+	 */
+	static OffHeapMatrix open(final File file, final int chunkShift) throws IOException
+	{
+		if (file == null) { throw new NullPointerException("file may not be null."); }
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			if (raf.length() < HEADER_BYTES) { throw new IOException(file + " is not a matrix file."); }
+			
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(MAGIC_OFFSET) != MAGIC) { throw new IOException(file + " is not a matrix file."); }
+			if (header.getInt(VERSION_OFFSET) != VERSION) {
+				throw new IOException("Unsupported matrix file version " + header.getInt(VERSION_OFFSET)); }
+			
+			int nRows = header.getInt(NROWS_OFFSET);
+			int nCols = header.getInt(NCOLS_OFFSET);
+			if (nRows < 0 || nCols < 0 || raf.length() < HEADER_BYTES + (long) nRows * nCols * 8)
+			{
+				throw new IOException("Matrix in " + file + " is corrupt or truncated.");
+			}
+			
+			return map(channel, nRows, nCols, chunkShift, header);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Maps the elements of a file that already has a header.
+	 */
+	private static OffHeapMatrix map(final FileChannel channel, final int nRows, final int nCols,
+			final int chunkShift, final MappedByteBuffer header) throws IOException
+	{
+		OffHeapMatrix ret = new OffHeapMatrix(nRows, nCols, chunkShift, header);
+		for (int j = 0 ; j < ret.buffers.length ; ++j)
+		{
+			long position = HEADER_BYTES + ((long) j << chunkShift) * 8;
+			ret.buffers[j] = channel.map(FileChannel.MapMode.READ_WRITE, position, ret.chunkLength(j) * 8L);
+			ret.buffers[j].order(ByteOrder.LITTLE_ENDIAN);
+			ret.chunks[j] = ret.buffers[j].asDoubleBuffer();
+		}
+		return ret;
+	}
+	
+	/**
+	 * Gets the number of elements in a chunk.
+	 * 
+	 * @param chunk The chunk.
+	 * @return The number of elements.
+	 */
+	private int chunkLength(final int chunk)
+	{
+		long first = (long) chunk << chunkShift;
+		return (int) Math.min((long) nRows * nCols - first, 1L << chunkShift);
+	}
+	
+	/**
+	 * Tells if this is backed by a file.
+	 * 
+	 * @return <code>true</code> iff this was made by <code>create()</code> or
+	 * <code>open()</code>.
+	 */
+	public boolean isMapped()
+	{
+		return header != null;
+	}
+	
+	/**
+	 * Writes any changes through to the file, if this is backed by one.
+	 */
+	public void flush()
+	{
+		checkOpen();
+		if (header == null) { return; }
+		
+		header.force();
+		for (ByteBuffer buf : buffers)
+		{
+			((MappedByteBuffer) buf).force();
+		}
+	}
+	
+	/**
+	 * Releases the memory, or unmaps the file, straight away.  Changes to a file are
+	 * not forced out first; call <code>flush()</code> for that.  Closing more than once
+	 * does nothing.
+	 */
+	@Override
+	public void close()
+	{
+		if (buffers == null) { return; }
+		
+		ByteBuffer[] toRelease = buffers;
+		buffers = null;
+		chunks = null;
+		for (ByteBuffer buf : toRelease)
+		{
+			release(buf);
+		}
+		if (header != null)
+		{
+			release(header);
+			header = null;
+		}
+	}
+	
+	/**
+	 * Checks that this hasn't been closed, and throw if it has.
+	 */
+	private void checkOpen()
+	{
+		if (chunks == null) { throw new IllegalStateException("Matrix has been closed."); }
+	}
+	
+	@Override
+	public int getNRows()
+	{
+		return nRows;
+	}
+	
+	@Override
+	public int getNCols()
+	{
+		return nCols;
+	}
+	
+	@Override
+	public double get(int row, int col)
+	{
+		checkIndices(row, col);
+		return getElement((long) row * nCols + col);
+	}
+	
+	@Override
+	public void set(int row, int col, double val)
+	{
+		checkIndices(row, col);
+		setElement((long) row * nCols + col, val);
+	}
+	
+	/**
+	 * Gets an element by its index in row major order.
+	 */
+	private double getElement(final long index)
+	{
+		return chunks[(int) (index >>> chunkShift)].get((int) index & chunkMask);
+	}
+	
+	/**
+	 * Sets an element by its index in row major order.
+	 */
+	private void setElement(final long index, final double val)
+	{
+		chunks[(int) (index >>> chunkShift)].put((int) index & chunkMask, val);
+	}
+	
+	/**
+	 * Copies the elements of another matrix the same size as this.
+	 */
+	private void copyFrom(final Matrix m)
+	{
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			final long rowStart = (long) j * nCols;
+			for (int k = 0 ; k < nCols ; ++k)
+			{
+				setElement(rowStart + k, m.get(j, k));
+			}
+		}
+	}
+	
+	/**
+	 * Gets a copy of this in direct memory.  A large matrix may not fit on the heap,
+	 * so this is what the arithmetic returns, rather than a <code>FullMatrix</code>.
+	 * 
+	 * @return The copy.
+	 */
+	public OffHeapMatrix copy()
+	{
+		checkOpen();
+		OffHeapMatrix ret = new OffHeapMatrix(nRows, nCols, chunkShift);
+		for (int j = 0 ; j < chunks.length ; ++j)
+		{
+			ret.chunks[j].duplicate().put(chunks[j].duplicate());
+		}
+		return ret;
+	}
+	
+	@Override
+	public Matrix multiply(double scalar)
+	{
+		OffHeapMatrix ret = copy();
+		ret.inPlaceMultiply(scalar);
+		return ret;
+	}
+	
+	/**
+	 * Multiplies this by another matrix, into a new matrix in direct memory, so the
+	 * product may be too big for the heap.  Each row of the product is made in an array,
+	 * by adding multiples of the rows of <code>m</code>, and then written out, so only a
+	 * few rows are ever on the heap.
+	 */
+	@Override
+	public Matrix multiply(Matrix m)
+	{
+		if (m == null) { throw new NullPointerException("m may not be null."); }
+		
+		if (m.getNRows() != nCols)
+		{
+			throw new IllegalArgumentException("Argument not compatable for matrix multiply.");
+		}
+		checkOpen();
+		
+		final int n = m.getNCols();
+		final OffHeapMatrix other = (m instanceof OffHeapMatrix) ? (OffHeapMatrix) m : null;
+		if (other != null) { other.checkOpen(); }
+		
+		OffHeapMatrix ret = new OffHeapMatrix(nRows, n, chunkShift);
+		final double[] row = new double[nCols];
+		final double[] otherRow = new double[n];
+		final double[] out = new double[n];
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			readRow(j, row);
+			Arrays.fill(out, 0.0);
+			for (int i = 0 ; i < nCols ; ++i)
+			{
+				if (row[i] == 0.0) { continue; }
+				
+				if (other != null)
+				{
+					other.readRow(i, otherRow);
+				}
+				else
+				{
+					for (int k = 0 ; k < n ; ++k)
+					{
+						otherRow[k] = m.get(i, k);
+					}
+				}
+				DenseKernels.axpy(n, row[i], otherRow, 0, out, 0);
+			}
+			ret.writeRow(j, out);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Copies a row into an array, a chunk at a time.
+	 * 
+	 * @param row The row.
+	 * @param dst The array, at least as long as a row.
+	 */
+	private void readRow(final int row, final double[] dst)
+	{
+		long index = (long) row * nCols;
+		int pos = 0;
+		while (pos < nCols)
+		{
+			DoubleBuffer chunk = chunks[(int) (index >>> chunkShift)].duplicate();
+			int start = (int) index & chunkMask;
+			int len = Math.min(nCols - pos, chunk.capacity() - start);
+			chunk.position(start);
+			chunk.get(dst, pos, len);
+			pos += len;
+			index += len;
+		}
+	}
+	
+	/**
+	 * Copies an array into a row, a chunk at a time.
+	 * 
+	 * @param row The row.
+	 * @param src The array, at least as long as a row.
+	 */
+	private void writeRow(final int row, final double[] src)
+	{
+		long index = (long) row * nCols;
+		int pos = 0;
+		while (pos < nCols)
+		{
+			DoubleBuffer chunk = chunks[(int) (index >>> chunkShift)].duplicate();
+			int start = (int) index & chunkMask;
+			int len = Math.min(nCols - pos, chunk.capacity() - start);
+			chunk.position(start);
+			chunk.put(src, pos, len);
+			pos += len;
+			index += len;
+		}
+	}
+	
+	@Override
+	public Matrix add(Matrix m)
+	{
+		checkSameSize(m);
+		OffHeapMatrix ret = copy();
+		ret.inPlaceAdd(m);
+		return ret;
+	}
+	
+	@Override
+	public Matrix subtract(Matrix m)
+	{
+		checkSameSize(m);
+		OffHeapMatrix ret = copy();
+		ret.inPlaceSubtract(m);
+		return ret;
+	}
+	
+	@Override
+	public void inPlaceMultiply(double scalar)
+	{
+		checkOpen();
+		for (DoubleBuffer chunk : chunks)
+		{
+			final int n = chunk.capacity();
+			for (int j = 0 ; j < n ; ++j)
+			{
+				chunk.put(j, chunk.get(j) * scalar);
+			}
+		}
+	}
+	
+	@Override
+	public void inPlaceAdd(final Matrix m)
+	{
+		combine(m, 1.0);
+	}
+	
+	@Override
+	public void inPlaceSubtract(final Matrix m)
+	{
+		combine(m, -1.0);
+	}
+	
+	/**
+	 * Adds a multiple of another matrix the same size to this.
+	 * 
+	 * @param m The matrix to add.
+	 * @param scale The multiple of <code>m</code>, which is 1 or -1.
+	 */
+	private void combine(final Matrix m, final double scale)
+	{
+		checkSameSize(m);
+		checkOpen();
+		
+		if (m instanceof OffHeapMatrix && ((OffHeapMatrix) m).chunkShift == chunkShift)
+		{
+			// The chunks line up, so go through them in step.
+			OffHeapMatrix o = (OffHeapMatrix) m;
+			o.checkOpen();
+			for (int c = 0 ; c < chunks.length ; ++c)
+			{
+				final DoubleBuffer to = chunks[c];
+				final DoubleBuffer from = o.chunks[c];
+				final int n = to.capacity();
+				for (int j = 0 ; j < n ; ++j)
+				{
+					to.put(j, to.get(j) + scale * from.get(j));
+				}
+			}
+		}
+		else
+		{
+			for (int j = 0 ; j < nRows ; ++j)
+			{
+				final long rowStart = (long) j * nCols;
+				for (int k = 0 ; k < nCols ; ++k)
+				{
+					setElement(rowStart + k, getElement(rowStart + k) + scale * m.get(j, k));
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void rowOperation(int from, int to, double c)
+	{
+		if (from >= nRows || to >= nRows || from < 0 || to < 0)
+		{
+			throw new IllegalArgumentException("Invalid row.");
+		}
+		
+		// Elimination often has nothing to eliminate.
+		if (c == 0.0) { return; }
+		
+		final long fromStart = (long) from * nCols;
+		final long toStart = (long) to * nCols;
+		for (int k = 0 ; k < nCols ; ++k)
+		{
+			setElement(toStart + k, getElement(toStart + k) + c * getElement(fromStart + k));
+		}
+	}
+	
+	@Override
+	public void swapRows(int from, int to)
+	{
+		if (from >= nRows || to >= nRows || from < 0 || to < 0)
+		{
+			throw new IllegalArgumentException("Invalid row.");
+		}
+		
+		// If the from and to indices are the same, do nothing.
+		if (from == to) { return; }
+		
+		final long fromStart = (long) from * nCols;
+		final long toStart = (long) to * nCols;
+		for (int k = 0 ; k < nCols ; ++k)
+		{
+			double x = getElement(fromStart + k);
+			setElement(fromStart + k, getElement(toStart + k));
+			setElement(toStart + k, x);
+		}
+	}
+	
+	@Override
+	public void scaleRow(int row, double c)
+	{
+		if (row >= nRows || row < 0)
+		{
+			throw new IllegalArgumentException("Invalid row.");
+		}
+		
+		final long rowStart = (long) row * nCols;
+		for (int k = 0 ; k < nCols ; ++k)
+		{
+			setElement(rowStart + k, getElement(rowStart + k) * c);
+		}
+	}
+	
+	/**
+	 * Checks that indices are valid, and that this is open, and throw if not.
+	 */
+	private void checkIndices(final int row, final int col)
+	{
+		checkOpen();
+		
+		if (row < 0 || col < 0)
+		{
+			throw new IllegalArgumentException("row and col must be non-negative.");
+		}
+		
+		if (row >= nRows || col >= nCols)
+		{
+			throw new IllegalArgumentException("row or col outside of matrix range.");
+		}
+	}
+	
+	/**
+	 * Checks that another matrix is the same size as this, and throw if it is not.
+	 */
+	private void checkSameSize(final Matrix m)
+	{
+		if (m == null) { throw new NullPointerException("m may not be null."); }
+		
+		if (m.getNRows() != nRows || m.getNCols() != nCols)
+		{
+			throw new IllegalArgumentException("m not compatable for addition.");
+		}
+	}
+	
+	@Override
+	public Iterator<Element> iterator()
+	{
+		return new FullMatrixIterator(this);
+	}
+	
+	// Frees a direct or mapped buffer: Unsafe.invokeCleaner() from Java 9, or the
+	// buffer's own cleaner before that.  Null if neither can be found, in which case
+	// the memory goes when the buffer is garbage collected.
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	
+	static
+	{
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+		}
+		catch (Exception e)
+		{
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	
+	/**
+	 * Frees the memory of a direct or mapped buffer straight away, if the JVM allows it.
+	 * The buffer must never be used again.
+	 * 
+	 * @param buf The buffer.
+	 */
+	private static void release(final ByteBuffer buf)
+	{
+		if (!buf.isDirect()) { return; }
+		
+		try
+		{
+			if (INVOKE_CLEANER != null)
+			{
+				INVOKE_CLEANER.invoke(UNSAFE, buf);
+			}
+			else
+			{
+				Method cleanerMethod = buf.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buf);
+				if (cleaner != null)
+				{
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			// Leave it to the garbage collector.
+		}
+	}
+}
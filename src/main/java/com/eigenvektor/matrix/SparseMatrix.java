@@ -98,6 +98,18 @@ public final class SparseMatrix extends AbstractMutableMatrix
 		}
 	}
 	
+	/**
+	 * Gets the map from row to column to value, without copying it, so that
+	 * <code>CsrMatrix</code> can convert this without going through the iterator.
+	 * It must not be modified.
+	 * 
+	 * @return The map of the represented values.
+	 */
+	Map<Integer, Map<Integer, Double>> getRowMaps()
+	{
+		return values;
+	}
+	
 	@Override
 	public int getNRows()
 	{
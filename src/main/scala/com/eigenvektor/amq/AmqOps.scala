@@ -18,6 +18,8 @@
 
 package com.eigenvektor.amq
 
+import scala.collection.JavaConverters._
+
 /** A wrapper for scala-fication of ApproxMemQuery instances. */
 final class AmqOps[T](private val amq:ApproxMemQuery[T]) {
 
@@ -28,5 +30,5 @@ final class AmqOps[T](private val amq:ApproxMemQuery[T]) {
   def +=(x:T) = { amq.add(x) ; amq }
   
   /** Add a set of elements to this amq. */
-  def ++=(x:Traversable[T]) = { x.foreach(amq.add(_)) ; amq}
+  def ++=(x:Traversable[T]) = { amq.addAll(x.toIterable.asJava) ; amq}
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestApproxMemQuery
+{
+	/**
+	 * An implementation with just <code>add()</code> and <code>contains()</code> gets
+	 * the bulk operations from the interface.
+	 */
+	@Test
+	public void testDefaultBulkOperations()
+	{
+		final Set<Integer> set = new HashSet<Integer>();
+		ApproxMemQuery<Integer> amq = new ApproxMemQuery<Integer>()
+		{
+			@Override
+			public void add(Integer x)
+			{
+				set.add(x);
+			}
+			
+			@Override
+			public boolean contains(Integer x)
+			{
+				return set.contains(x);
+			}
+		};
+		
+		amq.addAll(new Integer[] { 1, 2, 3 });
+		amq.addAll(Arrays.asList(4, 5));
+		
+		Integer[] queries = { 0, 1, 2, 3, 4, 5, 6 };
+		boolean[] out = new boolean[queries.length];
+		amq.containsAll(queries, out);
+		assertTrue(Arrays.equals(new boolean[] { false, true, true, true, true, true, false }, out));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testContainsAllShortOutput()
+	{
+		ApproxMemQuery<Integer> amq = new QuotientFilter<Integer>(8);
+		amq.containsAll(new Integer[] { 1, 2 }, new boolean[1]);
+	}
+}
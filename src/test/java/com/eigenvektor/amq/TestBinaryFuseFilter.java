@@ -0,0 +1,142 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestBinaryFuseFilter
+{
+	/**
+	 * The bytes of a string.
+	 */
+	private static final KeyBytes<String> STRING_BYTES = new KeyBytes<String>()
+	{
+		@Override
+		public byte[] getBytes(String x)
+		{
+			return x.getBytes(StandardCharsets.UTF_8);
+		}
+	};
+
+	/**
+	 * Every key is found, about one in 256 others are, and the size is about nine
+	 * bits a key.
+	 */
+	@Test
+	public void testLarge()
+	{
+		final int nKeys = 200000;
+		List<String> keys = new ArrayList<String>();
+		for (int j = 0 ; j < nKeys ; ++j)
+		{
+			keys.add("key " + j);
+		}
+		BinaryFuseFilter<String> bff = BinaryFuseFilter.build(keys, STRING_BYTES);
+
+		assertEquals(nKeys, bff.getNumKeys());
+		assertTrue(bff.getNumBits() < 10.0 * nKeys);
+		for (String key : keys)
+		{
+			assertTrue(bff.contains(key));
+		}
+
+		int falsePositives = 0;
+		final int nQueries = 200000;
+		for (int j = 0 ; j < nQueries ; ++j)
+		{
+			if (bff.contains("other " + j)) { falsePositives++; }
+		}
+		assertTrue(falsePositives > nQueries / 512);
+		assertTrue(falsePositives < nQueries / 128);
+	}
+
+	/**
+	 * Small sets, including empty ones and ones with duplicates.
+	 */
+	@Test
+	public void testSmall()
+	{
+		Random rnd = new Random(1);
+		for (int n = 0 ; n < 200 ; ++n)
+		{
+			List<Integer> keys = new ArrayList<Integer>();
+			Set<Integer> distinct = new HashSet<Integer>();
+			for (int j = 0 ; j < n ; ++j)
+			{
+				int x = rnd.nextInt(2 * n + 1);
+				keys.add(x);
+				distinct.add(x);
+			}
+			BinaryFuseFilter<Integer> bff = BinaryFuseFilter.build(keys);
+
+			assertEquals(distinct.size(), bff.getNumKeys());
+			for (int x : keys)
+			{
+				assertTrue(bff.contains(x));
+			}
+		}
+	}
+
+	/**
+	 * The bulk query agrees with the single one.
+	 */
+	@Test
+	public void testContainsAll()
+	{
+		Random rnd = new Random(2);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int j = 0 ; j < 5000 ; ++j)
+		{
+			keys.add(rnd.nextInt());
+		}
+		BinaryFuseFilter<Integer> bff = BinaryFuseFilter.build(keys);
+
+		Integer[] queries = new Integer[20000];
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			queries[j] = (j < keys.size()) ? keys.get(j) : rnd.nextInt();
+		}
+		boolean[] out = new boolean[queries.length];
+		bff.containsAll(queries, out);
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			assertEquals(bff.contains(queries[j]), out[j]);
+			if (j < keys.size()) { assertTrue(out[j]); }
+		}
+	}
+
+	/**
+	 * The filter can't be added to.
+	 */
+	@Test(expected=UnsupportedOperationException.class)
+	public void testImmutable()
+	{
+		BinaryFuseFilter<Integer> bff = BinaryFuseFilter.build(Collections.singletonList(7));
+		bff.add(8);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestBlockedBloomFilter
+{
+	@Test
+	public void test()
+	{
+		BlockedBloomFilter<String> bf = new BlockedBloomFilter<String>(10000, 5);
+		assertEquals(10240, bf.getNumBits());
+		
+		for (int j = 0 ; j < 100 ; ++j)
+		{
+			bf.add("Test String " + j);
+		}
+		
+		for (int j = 0 ; j < 100 ; ++j)
+		{
+			assertTrue(bf.contains("Test String " + j));
+		}
+		assertTrue(!bf.contains("Another String"));
+	}
+	
+	/**
+	 * Compares the false positive rate with a standard Bloom filter using the same
+	 * amount of memory.  Blocking costs a little accuracy, but not much.
+	 */
+	@Test
+	public void testFalsePositiveRate()
+	{
+		final int numBits = 100000;
+		final int numKeys = 10000;
+		final int numQueries = 100000;
+		
+		BloomFilter<String> bloom = new BloomFilter<String>(numBits, 7);
+		BlockedBloomFilter<String> blocked = new BlockedBloomFilter<String>(numBits, 7);
+		for (int j = 0 ; j < numKeys ; ++j)
+		{
+			bloom.add("key " + j);
+			blocked.add("key " + j);
+		}
+		
+		int bloomFalsePositives = 0;
+		int blockedFalsePositives = 0;
+		for (int j = numKeys ; j < numKeys + numQueries ; ++j)
+		{
+			if (bloom.contains("key " + j)) { bloomFalsePositives++; }
+			if (blocked.contains("key " + j)) { blockedFalsePositives++; }
+		}
+		
+		// At 10 bits per key an ideal filter has about a 0.8% false positive rate.
+		double bloomRate = (double) bloomFalsePositives / numQueries;
+		double blockedRate = (double) blockedFalsePositives / numQueries;
+		assertTrue(blockedRate < 0.02);
+		assertTrue(blockedRate < 4 * Math.max(bloomRate, 0.005));
+	}
+	
+	/**
+	 * Tests that the bulk operations agree with adding and querying one at a time.
+	 */
+	@Test
+	public void testBulk()
+	{
+		BlockedBloomFilter<String> single = new BlockedBloomFilter<String>(10000, 5);
+		BlockedBloomFilter<String> fromArray = new BlockedBloomFilter<String>(10000, 5);
+		BlockedBloomFilter<String> fromIterable = new BlockedBloomFilter<String>(10000, 5);
+		
+		String[] added = new String[600];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = "key " + (j % 500);
+			single.add(added[j]);
+		}
+		fromArray.addAll(added);
+		fromIterable.addAll(Arrays.asList(added));
+		assertEquals(single.getNumAdds(), fromArray.getNumAdds());
+		assertEquals(single.getNumAdds(), fromIterable.getNumAdds());
+		
+		String[] queries = new String[1000];
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			queries[j] = "key " + j;
+		}
+		boolean[] out = new boolean[queries.length];
+		fromArray.containsAll(queries, out);
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			assertEquals(single.contains(queries[j]), out[j]);
+			if (j < 500) { assertTrue(out[j]); }
+		}
+	}
+	
+	/**
+	 * Tests that the vector probes set and find the same bits as the scalar ones.
+	 */
+	@Test
+	public void testVectorMatchesScalar()
+	{
+		BlockProbes.Impl scalar = BlockProbes.get(BlockProbes.SCALAR);
+		BlockProbes.Impl vector = BlockProbes.get(BlockProbes.VECTOR);
+		assertTrue(scalar instanceof BlockProbes.Scalar);
+		assertTrue(BlockProbes.getName().equals(vector == null ? BlockProbes.SCALAR : BlockProbes.VECTOR));
+		if (vector == null)
+		{
+			// Not built, or run without the vector module.
+			return;
+		}
+		
+		// Two blocks, so a probe that strays out of its block shows up.
+		Random rand = new Random(1);
+		for (int numHashes = 1 ; numHashes <= 16 ; ++numHashes)
+		{
+			long[] expected = new long[2 * BlockProbes.BLOCK_WORDS];
+			long[] actual = new long[2 * BlockProbes.BLOCK_WORDS];
+			for (int j = 0 ; j < 40 ; ++j)
+			{
+				int base = rand.nextInt(2) * BlockProbes.BLOCK_WORDS;
+				int h1 = rand.nextInt();
+				int h2 = rand.nextInt() | 1;
+				assertEquals(scalar.test(expected, base, h1, h2, numHashes), 
+						vector.test(actual, base, h1, h2, numHashes));
+				
+				scalar.set(expected, base, h1, h2, numHashes);
+				vector.set(actual, base, h1, h2, numHashes);
+				assertTrue(Arrays.equals(expected, actual));
+				assertTrue(vector.test(actual, base, h1, h2, numHashes));
+			}
+		}
+	}
+}
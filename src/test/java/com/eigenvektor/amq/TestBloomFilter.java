@@ -19,12 +19,33 @@ package com.eigenvektor.amq;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 public class TestBloomFilter
 {
+	/**
+	 * The bytes of a string.
+	 */
+	private static final KeyBytes<String> STRING_BYTES = new KeyBytes<String>()
+	{
+		@Override
+		public byte[] getBytes(String x)
+		{
+			return x.getBytes(StandardCharsets.UTF_8);
+		}
+	};
+	
 	private ApproxMemQuery<String> bf = new BloomFilter<String>(10000, 5);
 	
 	private String ts1 = "Test String 1";
@@ -65,5 +86,547 @@ public class TestBloomFilter
 		assertTrue(!bf.contains(ts8));
 		assertTrue(!bf.contains(ts9));
 	}
+	
+	@Test
+	public void testHashes()
+	{
+		BloomFilter<String> filter = new BloomFilter<String>(10000, 5);
+		
+		Random rnd = new Random(1337);
+		long[] added = new long[100];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = rnd.nextLong();
+			filter.addHash(added[j]);
+		}
+		
+		for (long hash : added)
+		{
+			assertTrue(filter.containsHash(hash));
+		}
+		assertTrue(filter.getNumAdds() == 100);
+		
+		// Not a guarantee, but very likely at this load.
+		int falsePositives = 0;
+		for (int j = 0 ; j < 1000 ; ++j)
+		{
+			if (filter.containsHash(rnd.nextLong())) { falsePositives++; }
+		}
+		assertTrue(falsePositives < 10);
+	}
+	
+	/**
+	 * Tests that the bulk operations agree with adding and querying one at a time.
+	 */
+	@Test
+	public void testBulk()
+	{
+		BloomFilter<String> single = new BloomFilter<String>(10000, 5);
+		BloomFilter<String> fromArray = new BloomFilter<String>(10000, 5);
+		BloomFilter<String> fromIterable = new BloomFilter<String>(10000, 5);
+		
+		String[] added = new String[600];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = "key " + (j % 500);
+			single.add(added[j]);
+		}
+		fromArray.addAll(added);
+		fromIterable.addAll(Arrays.asList(added));
+		assertEquals(single.getNumAdds(), fromArray.getNumAdds());
+		assertEquals(single.getNumAdds(), fromIterable.getNumAdds());
+		
+		String[] queries = new String[1000];
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			queries[j] = "key " + j;
+		}
+		boolean[] out = new boolean[queries.length];
+		fromArray.containsAll(queries, out);
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			assertEquals(single.contains(queries[j]), out[j]);
+			if (j < 500) { assertTrue(out[j]); }
+		}
+	}
+	
+	/**
+	 * Tests writing a filter to a channel and reading it back.
+	 */
+	@Test
+	public void testSerialization() throws IOException
+	{
+		BloomFilter<String> filter = new BloomFilter<String>(10000, 5);
+		for (int j = 0 ; j < 500 ; ++j)
+		{
+			filter.add("key " + j);
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		filter.writeTo(Channels.newChannel(bytes));
+		BloomFilter<String> read = BloomFilter.readFrom(
+				Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+		
+		assertEquals(filter.getNumAdds(), read.getNumAdds());
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			assertEquals(filter.contains("key " + j), read.contains("key " + j));
+		}
+		
+		// Anything that isn't a Bloom filter is refused.
+		byte[] data = bytes.toByteArray();
+		data[0] ^= 1;
+		try
+		{
+			BloomFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(data)));
+			fail("Read a corrupt stream.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+	}
+	
+	/**
+	 * Tests that a filter's hashing is recorded by scheme, ID and seed rather than by
+	 * class, so it reads back with a lambda or a different class that hashes the same.
+	 */
+	@Test
+	public void testSerializationHashIdentity() throws IOException
+	{
+		BloomFilter<String> created = BloomFilter.create(1000, 0.01, s -> s.getBytes(StandardCharsets.UTF_8), 42);
+		BloomFilter<String> withHasher = new BloomFilter<String>(10000, 5, new HashExtender<String>(), 7);
+		for (int j = 0 ; j < 500 ; ++j)
+		{
+			created.add("key " + j);
+			withHasher.add("key " + j);
+		}
+		
+		// Read back with the key bytes as another class, and the seed from the stream.
+		byte[] data = toBytes(created);
+		BloomFilter<String> read = BloomFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(data)), STRING_BYTES);
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			assertEquals(created.contains("key " + j), read.contains("key " + j));
+		}
+		assertTrue(read.containsHash(XxHash64.hash("key 7".getBytes(StandardCharsets.UTF_8), 42)));
+		read.union(created);
+		assertIncompatible(created, BloomFilter.create(1000, 0.01, STRING_BYTES, 43));
+		
+		// Read back with the hasher as a lambda, but only under the same ID.
+		MultiHash<String> lambda = (obj, num) -> new HashExtender<String>().getHashes(obj, num);
+		data = toBytes(withHasher);
+		read = BloomFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(data)), lambda, 7);
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			assertEquals(withHasher.contains("key " + j), read.contains("key " + j));
+		}
+		try
+		{
+			BloomFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(data)), lambda, 8);
+			fail("Read a filter with the wrong hasher ID.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+		try
+		{
+			BloomFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(data)), STRING_BYTES);
+			fail("Read a filter with the wrong hashing scheme.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+	}
+	
+	/**
+	 * Tests the running metrics against what was actually done to a filter.
+	 */
+	@Test
+	public void testMetrics()
+	{
+		BloomFilter<String> filter = new BloomFilter<String>(20000, 4);
+		String[] keys = new String[2000];
+		for (int j = 0 ; j < keys.length ; ++j)
+		{
+			keys[j] = "key " + j;
+		}
+		filter.addAll(keys);
+		filter.add("key 0");
+		FilterMetricsMXBean metrics = filter.getMetrics();
+		assertEquals(keys.length + 1, metrics.getNumAdds());
+		
+		// Every added element reads all its bits.
+		boolean[] out = new boolean[keys.length];
+		filter.containsAll(keys, out);
+		for (String key : keys)
+		{
+			assertTrue(filter.contains(key));
+		}
+		assertEquals(2 * keys.length, metrics.getNumQueries());
+		assertEquals(2 * keys.length, metrics.getNumPositives());
+		assertEquals(4.0, metrics.getMeanProbeLength(), 1e-9);
+		assertEquals(2 * keys.length, metrics.getProbeLengthHistogram()[2]);
+		
+		metrics.resetCounters();
+		assertEquals(0, metrics.getNumAdds());
+		assertEquals(0, metrics.getNumQueries());
+		assertEquals(0.0, metrics.getMeanProbeLength(), 0.0);
+	}
+	
+	/**
+	 * Tests the estimated false positive rate against the measured one.
+	 */
+	@Test
+	public void testEstimatedFalsePositiveRate()
+	{
+		// Random 64 bit hashes choose close to independent bits, as the estimate assumes.
+		BloomFilter<String> filter = new BloomFilter<String>(20000, 4);
+		Random rnd = new Random(3);
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			filter.addHash(rnd.nextLong());
+		}
+		FilterMetricsMXBean metrics = filter.getMetrics();
+		
+		// About 1 - e^-0.4 of the bits are set, and the running count of them agrees with
+		// a count of the bits read back.
+		assertEquals(0.33, metrics.getFillRatio(), 0.02);
+		assertEquals(copy(filter).getMetrics().getFillRatio(), metrics.getFillRatio(), 0.0);
+		
+		final int nQueries = 200000;
+		int falsePositives = 0;
+		for (int j = 0 ; j < nQueries ; ++j)
+		{
+			if (filter.containsHash(rnd.nextLong())) { falsePositives++; }
+		}
+		assertEquals(nQueries, metrics.getNumQueries());
+		assertEquals(falsePositives, metrics.getNumPositives());
+		
+		// Most queries stop at the first or second bit.
+		assertTrue(metrics.getMeanProbeLength() > 1.0);
+		assertTrue(metrics.getMeanProbeLength() < 1.6);
+		
+		double measured = (double) falsePositives / nQueries;
+		assertEquals(measured, metrics.getEstimatedFalsePositiveRate(), measured * 0.2);
+	}
+	
+	/**
+	 * Tests union, intersection and the cardinality estimate.
+	 */
+	@Test
+	public void testSetOperations()
+	{
+		// Two partitions of 3000 keys each, with 1000 in common.  Random 64 bit hashes
+		// set close to independent bits, as the estimate assumes.
+		long[] keys = new long[5000];
+		Random rnd = new Random(5);
+		for (int j = 0 ; j < keys.length ; ++j)
+		{
+			keys[j] = rnd.nextLong();
+		}
+		BloomFilter<String> a = new BloomFilter<String>(1 << 16, 5);
+		BloomFilter<String> b = new BloomFilter<String>(1 << 16, 5);
+		BloomFilter<String> all = new BloomFilter<String>(1 << 16, 5);
+		for (int j = 0 ; j < keys.length ; ++j)
+		{
+			if (j < 3000) { a.addHash(keys[j]); }
+			if (j >= 2000) { b.addHash(keys[j]); }
+			all.addHash(keys[j]);
+		}
+		assertEquals(3000, a.getEstimatedCardinality(), 150);
+		
+		// The union has exactly the bits of a filter built from all the keys.
+		BloomFilter<String> union = copy(a);
+		union.union(b);
+		for (long key : keys)
+		{
+			assertTrue(union.containsHash(key));
+		}
+		for (int j = 0 ; j < 20000 ; ++j)
+		{
+			long key = rnd.nextLong();
+			assertEquals(all.containsHash(key), union.containsHash(key));
+		}
+		assertEquals(all.getEstimatedCardinality(), union.getEstimatedCardinality(), 0.0);
+		assertEquals(all.getMetrics().getFillRatio(), union.getMetrics().getFillRatio(), 0.0);
+		assertEquals(5000, union.getEstimatedCardinality(), 250);
+		assertEquals(Math.round(union.getEstimatedCardinality()), union.getNumAdds());
+		
+		// The intersection holds everything in common, and its estimate runs high.
+		BloomFilter<String> intersection = copy(a);
+		intersection.intersect(b);
+		for (int j = 2000 ; j < 3000 ; ++j)
+		{
+			assertTrue(intersection.containsHash(keys[j]));
+		}
+		assertTrue(intersection.getEstimatedCardinality() > 950);
+		assertTrue(intersection.getEstimatedCardinality() < 1500);
+		assertEquals(intersection.getMetrics().getFillRatio(), copy(intersection).getMetrics().getFillRatio(), 0.0);
+		
+		// A full filter has no estimate.
+		BloomFilter<String> full = new BloomFilter<String>(64, 1);
+		for (int j = 0 ; j < 10000 ; ++j)
+		{
+			full.add("key " + j);
+		}
+		assertTrue(Double.isInfinite(full.getEstimatedCardinality()));
+	}
+	
+	/**
+	 * Tests that only filters whose bits line up can be combined.
+	 */
+	@Test
+	public void testIncompatibleSetOperations()
+	{
+		BloomFilter<String> a = new BloomFilter<String>(1000, 5);
+		assertIncompatible(a, new BloomFilter<String>(1001, 5));
+		assertIncompatible(a, new BloomFilter<String>(1000, 4));
+		assertIncompatible(a, new BloomFilter<String>(1000, 5, new MultiHash<String>()
+		{
+			@Override
+			public int[] getHashes(String obj, int num)
+			{
+				return new int[num];
+			}
 
+			@Override
+			public void getHashes(String obj, int[] hashes)
+			{
+			}
+		}));
+	}
+	
+	/**
+	 * Tests that filters combine when they hash the same way, however they were made,
+	 * and not when their unnamed hashers differ.
+	 */
+	@Test
+	public void testDefaultHasherIds()
+	{
+		// The hash extender has the same ID whether it is given or not.
+		BloomFilter<String> a = new BloomFilter<String>(1000, 5);
+		BloomFilter<String> b = new BloomFilter<String>(1000, 5, new HashExtender<String>());
+		b.add("key");
+		a.union(b);
+		assertTrue(a.contains("key"));
+		b.intersect(a);
+		assertTrue(b.contains("key"));
+		
+		// Unnamed hashers of different classes don't combine, the same class does.
+		MultiHash<String> zeros = new MultiHash<String>()
+		{
+			@Override
+			public int[] getHashes(String obj, int num)
+			{
+				return new int[num];
+			}
+		};
+		MultiHash<String> constants = new MultiHash<String>()
+		{
+			@Override
+			public int[] getHashes(String obj, int num)
+			{
+				int[] ret = new int[num];
+				Arrays.fill(ret, 17);
+				return ret;
+			}
+		};
+		BloomFilter<String> c = new BloomFilter<String>(1000, 5, zeros);
+		assertIncompatible(c, new BloomFilter<String>(1000, 5, constants));
+		c.union(new BloomFilter<String>(1000, 5, zeros));
+		
+		// Named hashers combine by ID, whatever their class.
+		new BloomFilter<String>(1000, 5, zeros, 9).union(new BloomFilter<String>(1000, 5, constants, 9));
+	}
+	
+	/**
+	 * Asserts that two filters can't be combined either way.
+	 * 
+	 * @param a One filter.
+	 * @param b The other.
+	 */
+	private static void assertIncompatible(BloomFilter<String> a, BloomFilter<String> b)
+	{
+		try
+		{
+			a.union(b);
+			fail("Combined incompatible filters.");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+		try
+		{
+			a.intersect(b);
+			fail("Combined incompatible filters.");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+	}
+	
+	/**
+	 * Writes a filter to an array.
+	 * 
+	 * @param filter The filter to write.
+	 * @return Its serialized bytes.
+	 */
+	private static byte[] toBytes(BloomFilter<String> filter) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		filter.writeTo(Channels.newChannel(bytes));
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Copies a filter through serialization.
+	 * 
+	 * @param filter The filter to copy.
+	 * @return The copy.
+	 */
+	private static BloomFilter<String> copy(BloomFilter<String> filter)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			filter.writeTo(Channels.newChannel(bytes));
+			return BloomFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+		}
+		catch (IOException e)
+		{
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * Tests a filter sized from its capacity and false positive rate.
+	 */
+	@Test
+	public void testCreate() throws IOException
+	{
+		// About 9.6 bits and 7 hashes per element for 1%.
+		BloomFilter<String> filter = BloomFilter.create(20000, 0.01, STRING_BYTES);
+		assertEquals(191702, filter.getNumBits());
+		assertEquals(7, filter.getNumHashes());
+		
+		for (int j = 0 ; j < 20000 ; ++j)
+		{
+			filter.add("key " + j);
+		}
+		for (int j = 0 ; j < 20000 ; ++j)
+		{
+			assertTrue(filter.contains("key " + j));
+		}
+		
+		// Adding an element is the same as adding its hash.
+		assertTrue(filter.containsHash(XxHash64.hash("key 7".getBytes(StandardCharsets.UTF_8), 0)));
+		
+		int falsePositives = 0;
+		final int nQueries = 200000;
+		for (int j = 0 ; j < nQueries ; ++j)
+		{
+			if (filter.contains("other " + j)) { falsePositives++; }
+		}
+		assertTrue(falsePositives > nQueries * 0.007);
+		assertTrue(falsePositives < nQueries * 0.013);
+		
+		// It goes through a channel, but only read back with the same key bytes.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		filter.writeTo(Channels.newChannel(bytes));
+		BloomFilter<String> read = BloomFilter.readFrom(
+				Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), STRING_BYTES);
+		assertEquals(filter.getNumAdds(), read.getNumAdds());
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			assertEquals(filter.contains("other " + j), read.contains("other " + j));
+		}
+		try
+		{
+			BloomFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+			fail("Read a filter with the wrong hasher.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+		
+		// It only combines with filters hashed the same way.
+		read.union(filter);
+		assertIncompatible(filter, new BloomFilter<String>(191702, 7));
+	}
+	
+	/**
+	 * Tests the arguments to the sizing factory.
+	 */
+	@Test
+	public void testCreateArguments()
+	{
+		// Anything needing more than the largest filter is refused.
+		double bitsPerElement = -Math.log(1e-3) / (Math.log(2) * Math.log(2));
+		long nTooMany = (long) (BloomFilter.MAX_NUM_BITS / bitsPerElement) + 1000;
+		long[] insertions = { 0, -1, 100, 100, nTooMany };
+		double[] rates = { 0.01, 0.01, 0.0, 1.0, 1e-3 };
+		for (int j = 0 ; j < insertions.length ; ++j)
+		{
+			try
+			{
+				BloomFilter.create(insertions[j], rates[j], STRING_BYTES);
+				fail("Created a filter for " + insertions[j] + " at " + rates[j]);
+			}
+			catch (IllegalArgumentException e)
+			{
+				// Expected.
+			}
+		}
+	}
+	
+	/**
+	 * Queries from several threads at once only read the filter, so they must all
+	 * give the same answers as queries from one thread.
+	 */
+	@Test
+	public void testConcurrentQueries() throws InterruptedException
+	{
+		final BloomFilter<Integer> filter = new BloomFilter<Integer>(20000, 5);
+		for (int j = 0 ; j < 1000 ; ++j)
+		{
+			filter.add(j);
+		}
+		
+		final boolean[] expected = new boolean[4000];
+		for (int j = 0 ; j < expected.length ; ++j)
+		{
+			expected[j] = filter.contains(j);
+		}
+		
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		Thread[] threads = new Thread[4];
+		for (int t = 0 ; t < threads.length ; ++t)
+		{
+			threads[t] = new Thread() {
+				@Override
+				public void run()
+				{
+					for (int iter = 0 ; iter < 50 ; ++iter)
+					{
+						for (int j = 0 ; j < expected.length ; ++j)
+						{
+							if (filter.contains(j) != expected[j]) { failed.set(true); }
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertFalse(failed.get());
+	}
 }
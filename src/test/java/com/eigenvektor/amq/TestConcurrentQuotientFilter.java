@@ -0,0 +1,222 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class TestConcurrentQuotientFilter
+{
+	/**
+	 * Single threaded behaviour should match the plain quotient filter.
+	 */
+	@Test
+	public void testMatchesQuotientFilter()
+	{
+		for (int iter = 0 ; iter < 20 ; ++iter)
+		{
+			QuotientFilter<Integer> qf = new QuotientFilter<Integer>(10);
+			ConcurrentQuotientFilter<Integer> cqf = new ConcurrentQuotientFilter<Integer>(
+					new HashQuotientingStrategy<Integer>(10), 6);
+			
+			Random rnd = new Random(iter);
+			for (int j = 0 ; j < 1000 ; ++j)
+			{
+				int test = rnd.nextInt();
+				qf.add(test);
+				cqf.add(test);
+			}
+			
+			assertEquals(qf.getNumOccupied(), cqf.getNumOccupied());
+			for (int j = 0 ; j < 2000 ; ++j)
+			{
+				int test = rnd.nextInt();
+				assertEquals(qf.contains(test), cqf.contains(test));
+			}
+		}
+	}
+	
+	/**
+	 * Several writers and readers at once.  Everything a writer has finished adding
+	 * must be visible to every reader.
+	 */
+	@Test
+	public void testConcurrentAdds() throws InterruptedException
+	{
+		final int nThreads = 4;
+		final int perThread = 3000;
+		final ConcurrentQuotientFilter<Integer> cqf = new ConcurrentQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(14), 6);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0 ; t < nThreads ; ++t)
+		{
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run()
+				{
+					Random rnd = new Random(seed);
+					int[] added = new int[perThread];
+					for (int j = 0 ; j < perThread ; ++j)
+					{
+						added[j] = rnd.nextInt();
+						cqf.add(added[j]);
+						
+						// Everything added so far by this thread must still be there.
+						if (!cqf.contains(added[rnd.nextInt(j + 1)])) { failed.set(true); }
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertTrue(!failed.get());
+		
+		Set<Integer> all = new HashSet<Integer>();
+		for (int t = 0 ; t < nThreads ; ++t)
+		{
+			Random rnd = new Random(t);
+			for (int j = 0 ; j < perThread ; ++j)
+			{
+				int x = rnd.nextInt();
+				rnd.nextInt(j + 1);
+				all.add(x);
+				assertTrue(cqf.contains(x));
+			}
+		}
+		
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(14);
+		for (int x : all)
+		{
+			qf.add(x);
+		}
+		assertEquals(qf.getNumOccupied(), cqf.getNumOccupied());
+	}
+	
+	/**
+	 * Stripes smaller than a word would let writers under different locks overwrite
+	 * each other's changes to the word they share.
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testStripeTooSmall()
+	{
+		new ConcurrentQuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(10), 5);
+	}
+	
+	/**
+	 * A null strategy is refused before the default stripe size is worked out from it.
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testNullStrategy()
+	{
+		new ConcurrentQuotientFilter<Integer>((QuotientingStrategy<Integer>) null);
+	}
+	
+	/**
+	 * A table with just one stripe may be smaller than a word.
+	 */
+	@Test
+	public void testSmallTable()
+	{
+		ConcurrentQuotientFilter<Integer> cqf = new ConcurrentQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(4), 4);
+		for (int j = 0 ; j < 10 ; ++j)
+		{
+			cqf.add(j);
+			assertTrue(cqf.contains(j));
+		}
+	}
+	
+	/**
+	 * Many writers filling a small table with the smallest stripes, so that neighbouring
+	 * stripes are written at the same time.  No insertion may be lost.
+	 */
+	@Test
+	public void testNoLostInserts() throws InterruptedException
+	{
+		final int nThreads = 4;
+		final int perThread = 900;
+		for (int iter = 0 ; iter < 50 ; ++iter)
+		{
+			final ConcurrentQuotientFilter<Integer> cqf = new ConcurrentQuotientFilter<Integer>(
+					new HashQuotientingStrategy<Integer>(12), 6);
+			final int[][] keys = new int[nThreads][perThread];
+			Random rnd = new Random(iter);
+			for (int t = 0 ; t < nThreads ; ++t)
+			{
+				for (int j = 0 ; j < perThread ; ++j)
+				{
+					keys[t][j] = rnd.nextInt();
+				}
+			}
+			
+			Thread[] threads = new Thread[nThreads];
+			for (int t = 0 ; t < nThreads ; ++t)
+			{
+				final int[] mine = keys[t];
+				threads[t] = new Thread() {
+					@Override
+					public void run()
+					{
+						for (int x : mine)
+						{
+							cqf.add(x);
+						}
+					}
+				};
+			}
+			for (Thread thread : threads)
+			{
+				thread.start();
+			}
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+			
+			QuotientFilter<Integer> qf = new QuotientFilter<Integer>(12);
+			for (int t = 0 ; t < nThreads ; ++t)
+			{
+				for (int x : keys[t])
+				{
+					qf.add(x);
+					assertTrue(cqf.contains(x));
+				}
+			}
+			assertEquals(qf.getNumOccupied(), cqf.getNumOccupied());
+			
+			// What is in the table must be exactly what a single thread would make.
+			for (int j = 0 ; j < 5000 ; ++j)
+			{
+				int x = rnd.nextInt();
+				assertEquals(qf.contains(x), cqf.contains(x));
+			}
+		}
+	}
+}
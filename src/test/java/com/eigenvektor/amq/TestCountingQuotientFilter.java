@@ -0,0 +1,223 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestCountingQuotientFilter
+{
+	/**
+	 * Adding and removing should always leave the same counts as a map would.
+	 */
+	@Test
+	public void testMatchesMap()
+	{
+		for (int rBits : new int[] { 1, 2, 5, 12 })
+		{
+			for (int iter = 0 ; iter < 20 ; ++iter)
+			{
+				CountingQuotientFilter<Integer> cqf = new CountingQuotientFilter<Integer>(
+						new HashQuotientingStrategy<Integer>(6, rBits));
+				Map<Long, Long> counts = new HashMap<Long, Long>();
+
+				// Few distinct fingerprints, so there are plenty of repeats.
+				Random rnd = new Random(iter);
+				long nFingerprints = Math.min(1L << (6 + rBits), 80);
+				long[] fingerprints = new long[(int) nFingerprints];
+				for (int j = 0 ; j < fingerprints.length ; ++j)
+				{
+					fingerprints[j] = rnd.nextLong() & ((1L << (6 + rBits)) - 1);
+				}
+
+				for (int j = 0 ; j < 3000 ; ++j)
+				{
+					long fingerprint = fingerprints[rnd.nextInt(fingerprints.length)];
+					long count = counts.containsKey(fingerprint) ? counts.get(fingerprint) : 0;
+					if (rnd.nextInt(3) == 0)
+					{
+						assertEquals(count > 0, cqf.removeHash(fingerprint));
+						if (count > 0) { counts.put(fingerprint, count - 1); }
+					}
+					else
+					{
+						try
+						{
+							cqf.addHash(fingerprint);
+							counts.put(fingerprint, count + 1);
+						}
+						catch (IllegalStateException e)
+						{
+							// Full.  Nothing should have changed.
+							assertTrue(cqf.getNumOccupied() >= cqf.getNumSlots() - 3);
+						}
+					}
+
+					assertEquals(counts.containsKey(fingerprint) ? counts.get(fingerprint) : 0,
+							cqf.countHash(fingerprint));
+				}
+
+				long total = 0;
+				int distinct = 0;
+				int occupied = 0;
+				for (long fingerprint : fingerprints)
+				{
+					long count = counts.containsKey(fingerprint) ? counts.get(fingerprint) : 0;
+					assertEquals(count, cqf.countHash(fingerprint));
+				}
+				for (long count : counts.values())
+				{
+					total += count;
+					if (count > 0) { distinct++; }
+					occupied += slotsFor(count, rBits);
+				}
+				assertEquals(total, cqf.getTotalCount());
+				assertEquals(distinct, cqf.getNumDistinct());
+				assertEquals(occupied, cqf.getNumOccupied());
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of slots a fingerprint should take.
+	 * 
+	 * @param count The fingerprint's count.
+	 * @param rBits The number of remainder bits.
+	 * @return One slot for the remainder and one per digit of the count less one.
+	 */
+	private static int slotsFor(long count, int rBits)
+	{
+		if (count == 0) { return 0; }
+		
+		int n = 1;
+		for (long extra = count - 1 ; extra != 0 ; extra >>>= rBits)
+		{
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Removing everything should leave the filter empty.
+	 */
+	@Test
+	public void testRemoveAll()
+	{
+		CountingQuotientFilter<Integer> cqf = new CountingQuotientFilter<Integer>(10);
+		Random rnd = new Random(1);
+		int[] added = new int[700];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = rnd.nextInt();
+			cqf.add(added[j]);
+			assertTrue(cqf.contains(added[j]));
+		}
+		assertEquals(added.length, cqf.getTotalCount());
+
+		for (int j = added.length - 1 ; j >= 0 ; --j)
+		{
+			assertTrue(cqf.remove(added[j]));
+		}
+		assertEquals(0, cqf.getNumOccupied());
+		assertEquals(0, cqf.getTotalCount());
+		for (int x : added)
+		{
+			assertFalse(cqf.contains(x));
+			assertFalse(cqf.remove(x));
+		}
+	}
+
+	/**
+	 * A heavily repeated element should take a few counter slots, not a slot per copy.
+	 */
+	@Test
+	public void testSkewed()
+	{
+		CountingQuotientFilter<Integer> cqf = new CountingQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(8, 8));
+
+		final int copies = 100000;
+		for (int j = 0 ; j < copies ; ++j)
+		{
+			cqf.add(42);
+		}
+		cqf.add(7);
+
+		assertEquals(copies, cqf.count(42));
+		assertEquals(1, cqf.count(7));
+		assertEquals(0, cqf.count(8));
+		assertEquals(2, cqf.getNumDistinct());
+		assertEquals(5, cqf.getNumOccupied());
+	}
+
+	/**
+	 * Clusters that wrap around the end of the table.
+	 */
+	@Test
+	public void testWrapAround()
+	{
+		CountingQuotientFilter<Integer> cqf = new CountingQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(3, 4));
+
+		// Everything canonically in the last slot, with counts taking one, two and
+		// three slots.
+		long last = 7L << 4;
+		int[] counts = { 1, 4, 20 };
+		for (int r = 0 ; r < 3 ; ++r)
+		{
+			for (int j = 0 ; j < counts[r] ; ++j)
+			{
+				cqf.addHash(last | r);
+			}
+		}
+		cqf.addHash(1L << 4);
+
+		assertEquals(7, cqf.getNumOccupied());
+		for (int r = 0 ; r < 3 ; ++r)
+		{
+			assertEquals(counts[r], cqf.countHash(last | r));
+		}
+		assertEquals(1, cqf.countHash(1L << 4));
+		assertEquals(0, cqf.countHash(0));
+
+		while (cqf.removeHash(last | 1)) { }
+		assertEquals(1, cqf.countHash(last));
+		assertEquals(20, cqf.countHash(last | 2));
+		assertEquals(1, cqf.countHash(1L << 4));
+	}
+
+	/**
+	 * The filter throws rather than using its last slot.
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testFull()
+	{
+		CountingQuotientFilter<Integer> cqf = new CountingQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(3, 4));
+
+		for (long fingerprint = 0 ; fingerprint < 8 ; ++fingerprint)
+		{
+			cqf.addHash(fingerprint << 4);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestCuckooFilter
+{
+	/**
+	 * Everything added is found, and few things that weren't are.
+	 */
+	@Test
+	public void testNoFalseNegatives()
+	{
+		CuckooFilter<Integer> cf = new CuckooFilter<Integer>(12, 8);
+		Random rnd = new Random(1);
+		int[] added = new int[14000];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = rnd.nextInt();
+			cf.add(added[j]);
+		}
+		assertEquals(added.length, cf.getNumOccupied());
+		for (int x : added)
+		{
+			assertTrue(cf.contains(x));
+		}
+
+		// About 8 / 256 at this load.
+		int falsePositives = 0;
+		final int nQueries = 100000;
+		for (int j = 0 ; j < nQueries ; ++j)
+		{
+			if (cf.contains(rnd.nextInt())) { falsePositives++; }
+		}
+		assertTrue(falsePositives < nQueries * 0.04);
+	}
+
+	/**
+	 * With 12 bit fingerprints the filter has fewer false positives than a Bloom filter
+	 * of the same size.
+	 */
+	@Test
+	public void testBeatsBloom()
+	{
+		CuckooFilter<Integer> cf = new CuckooFilter<Integer>(12, 12);
+		int numBits = cf.getNumSlots() * 12;
+		int nKeys = 15500;
+		BloomFilter<Integer> bf = new BloomFilter<Integer>(numBits,
+				(int) Math.round((double) numBits / nKeys * Math.log(2)));
+		Random rnd = new Random(2);
+		for (int j = 0 ; j < nKeys ; ++j)
+		{
+			int x = rnd.nextInt();
+			cf.add(x);
+			bf.add(x);
+		}
+
+		int cuckooPositives = 0;
+		int bloomPositives = 0;
+		for (int j = 0 ; j < 200000 ; ++j)
+		{
+			int x = rnd.nextInt();
+			if (cf.contains(x)) { cuckooPositives++; }
+			if (bf.contains(x)) { bloomPositives++; }
+		}
+		assertTrue(cuckooPositives < bloomPositives);
+	}
+
+	/**
+	 * Sequential keys with the plain hash code still spread out.
+	 */
+	@Test
+	public void testSequentialKeys()
+	{
+		CuckooFilter<Integer> cf = new CuckooFilter<Integer>(10, 12);
+		for (int j = 0 ; j < 3800 ; ++j)
+		{
+			cf.add(j);
+		}
+		for (int j = 0 ; j < 3800 ; ++j)
+		{
+			assertTrue(cf.contains(j));
+		}
+	}
+
+	/**
+	 * Removing everything empties the filter, and removing one copy leaves the other.
+	 */
+	@Test
+	public void testRemove()
+	{
+		CuckooFilter<String> cf = new CuckooFilter<String>(8, 12);
+		List<String> added = new ArrayList<String>();
+		for (int j = 0 ; j < 900 ; ++j)
+		{
+			added.add("key " + j);
+			cf.add("key " + j);
+		}
+		cf.add("key 0");
+		assertEquals(901, cf.getNumOccupied());
+
+		for (String x : added)
+		{
+			assertTrue(cf.remove(x));
+		}
+		assertEquals(1, cf.getNumOccupied());
+		assertTrue(cf.contains("key 0"));
+		assertTrue(cf.remove("key 0"));
+		assertEquals(0, cf.getNumOccupied());
+		for (String x : added)
+		{
+			assertFalse(cf.contains(x));
+			assertFalse(cf.remove(x));
+		}
+	}
+
+	/**
+	 * A full filter refuses more, keeps everything it took, and has room again after
+	 * a removal.
+	 */
+	@Test
+	public void testFull()
+	{
+		CuckooFilter<Integer> cf = new CuckooFilter<Integer>(6, 16);
+		Random rnd = new Random(2);
+		List<Integer> added = new ArrayList<Integer>();
+		try
+		{
+			while (true)
+			{
+				int x = rnd.nextInt();
+				cf.add(x);
+				added.add(x);
+			}
+		}
+		catch (IllegalStateException e)
+		{
+			// Expected.
+		}
+
+		assertTrue(added.size() > 0.85 * cf.getNumSlots());
+		for (int x : added)
+		{
+			assertTrue(cf.contains(x));
+		}
+
+		assertTrue(cf.remove(added.get(0)));
+		cf.add(added.get(0));
+		for (int x : added)
+		{
+			assertTrue(cf.contains(x));
+		}
+	}
+}
@@ -19,6 +19,8 @@ package com.eigenvektor.amq;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -61,5 +63,48 @@ public class TestHashExtender
 			assertTrue(hashes3[j] != hashes3[0]);
 		}
 	}
+	
+	@Test
+	public void testBuffer()
+	{
+		int[] hashes = he.getHashes(t1, 7);
+		int[] buffer = new int[7];
+		he.getHashes(t1, buffer);
+		
+		for (int j = 0 ; j < 7 ; ++j)
+		{
+			assertTrue(hashes[j] == buffer[j]);
+		}
+	}
+	
+	@Test
+	public void testHashPair()
+	{
+		int[] hashes = he.getHashes(t2, 2);
+		long pair = he.getHashPair(t2);
+		assertTrue((int) (pair >>> 32) == hashes[0]);
+		assertTrue((int) pair == hashes[1]);
+	}
+	
+	/**
+	 * A hasher that only makes arrays still fills buffers and makes pairs.
+	 */
+	@Test
+	public void testDefaults()
+	{
+		MultiHash<String> legacy = new MultiHash<String>()
+		{
+			@Override
+			public int[] getHashes(String obj, int num)
+			{
+				return he.getHashes(obj, num);
+			}
+		};
+		
+		int[] buffer = new int[6];
+		legacy.getHashes(t3, buffer);
+		assertTrue(Arrays.equals(he.getHashes(t3, 6), buffer));
+		assertTrue(legacy.getHashPair(t3) == he.getHashPair(t3));
+	}
 
 }
@@ -19,12 +19,24 @@ package com.eigenvektor.amq;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -561,4 +573,550 @@ public class TestQuotientFilter
 			}
 		}
 	}
+	
+	/**
+	 * Tests that a file backed filter can be reopened with its contents intact.
+	 */
+	@Test
+	public void mappedTest() throws IOException
+	{
+		File file = File.createTempFile("quotient", ".qf");
+		file.deleteOnExit();
+		
+		QuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(10);
+		QuotientFilter<Integer> qf = QuotientFilter.create(file, quot);
+		
+		Set<Integer> nums = new HashSet<Integer>();
+		Random rnd = new Random(1337);
+		for (int j = 0 ; j < 800 ; ++j)
+		{
+			int test = rnd.nextInt();
+			qf.add(test);
+			nums.add(test);
+		}
+		qf.flush();
+		
+		QuotientFilter<Integer> reopened = QuotientFilter.open(file, quot);
+		assertEquals(qf.getNumOccupied(), reopened.getNumOccupied());
+		for (int x : nums)
+		{
+			assertTrue(reopened.contains(x));
+		}
+		
+		// A heap copy should behave the same and be independent of the file.
+		QuotientFilter<Integer> copy = new QuotientFilter<Integer>(reopened);
+		reopened.add(12345);
+		assertTrue(reopened.contains(12345));
+		assertEquals(reopened.getNumOccupied(), QuotientFilter.open(file, quot).getNumOccupied());
+		for (int x : nums)
+		{
+			assertTrue(copy.contains(x));
+		}
+	}
+	
+	/**
+	 * Tests that a file reopens with a new instance of its strategy, as it would after
+	 * a restart, including one whose hash code is its identity but that gives its own ID.
+	 */
+	@Test
+	public void mappedFreshStrategyTest() throws IOException
+	{
+		assertReopens(new XxHashQuotientingStrategy<Integer>(10, 20, x -> Integer.toString(x).getBytes(), 5),
+				new XxHashQuotientingStrategy<Integer>(10, 20, x -> Integer.toString(x).getBytes(), 5));
+		assertReopens(new HashQuotientingStrategy<Integer>(12, 10), new HashQuotientingStrategy<Integer>(12, 10));
+		assertReopens(new NamedStrategy(), new NamedStrategy());
+	}
+	
+	/**
+	 * Asserts that a file made with one strategy reopens with another, holding the same.
+	 * 
+	 * @param made The strategy the file is made with.
+	 * @param reopenedWith The strategy it is reopened with.
+	 */
+	private static void assertReopens(QuotientingStrategy<Integer> made, QuotientingStrategy<Integer> reopenedWith)
+			throws IOException
+	{
+		File file = File.createTempFile("quotient", ".qf");
+		file.deleteOnExit();
+		
+		QuotientFilter<Integer> qf = QuotientFilter.create(file, made);
+		for (int j = 0 ; j < 500 ; ++j)
+		{
+			qf.add(j);
+		}
+		qf.flush();
+		
+		QuotientFilter<Integer> reopened = QuotientFilter.open(file, reopenedWith);
+		assertEquals(qf.getNumOccupied(), reopened.getNumOccupied());
+		for (int j = 0 ; j < 500 ; ++j)
+		{
+			assertTrue(reopened.contains(j));
+		}
+	}
+	
+	/**
+	 * A strategy with the default, identity based hash code, that gives its own ID.
+	 */
+	private static final class NamedStrategy implements QuotientingStrategy<Integer>
+	{
+		private final HashQuotientingStrategy<Integer> strat = new HashQuotientingStrategy<Integer>(10, 12);
+		
+		@Override
+		public int getQuotientBits()
+		{
+			return strat.getQuotientBits();
+		}
+		
+		@Override
+		public int getRemainderBits()
+		{
+			return strat.getRemainderBits();
+		}
+		
+		@Override
+		public QuotientAndRemainder getQuotientAndRemainder(Integer x)
+		{
+			return strat.getQuotientAndRemainder(x);
+		}
+		
+		@Override
+		public QuotientingStrategy<Integer> getDoubledStrategy(int numDoublings)
+		{
+			return strat.getDoubledStrategy(numDoublings);
+		}
+		
+		@Override
+		public long getStrategyId()
+		{
+			return 0x4E414D4544L;
+		}
+	}
+	
+	/**
+	 * Tests that a file can't be reopened with a different strategy.
+	 */
+	@Test(expected = IOException.class)
+	public void mappedWrongStrategyTest() throws IOException
+	{
+		File file = File.createTempFile("quotient", ".qf");
+		file.deleteOnExit();
+		
+		QuotientFilter.create(file, new HashQuotientingStrategy<Integer>(10, 12));
+		QuotientFilter.open(file, new HashQuotientingStrategy<Integer>(10, 22));
+	}
+	
+	/**
+	 * Tests writing a filter to a channel and reading it back.
+	 */
+	@Test
+	public void serializationTest() throws IOException
+	{
+		QuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(12, 15);
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(quot);
+		Random rnd = new Random(1337);
+		for (int j = 0 ; j < 3000 ; ++j)
+		{
+			qf.add(rnd.nextInt());
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		qf.writeTo(Channels.newChannel(bytes));
+		assertEquals(64 + (4096 * 18) / 8, bytes.size());
+		
+		QuotientFilter<Integer> read = QuotientFilter.readFrom(
+				Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), quot);
+		assertSameSlots(qf, read);
+		
+		// The stream is a valid file, and a file backed filter writes the same stream.
+		File file = File.createTempFile("quotient", ".qf");
+		file.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			qf.writeTo(fos.getChannel());
+		}
+		finally
+		{
+			fos.close();
+		}
+		QuotientFilter<Integer> mapped = QuotientFilter.open(file, quot);
+		assertSameSlots(qf, mapped);
+		
+		ByteArrayOutputStream mappedBytes = new ByteArrayOutputStream();
+		mapped.writeTo(Channels.newChannel(mappedBytes));
+		assertTrue(Arrays.equals(bytes.toByteArray(), mappedBytes.toByteArray()));
+	}
+	
+	/**
+	 * Tests that reading checks the strategy and the length of the stream.
+	 */
+	@Test
+	public void serializationErrorTest() throws IOException
+	{
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(10, 12));
+		qf.add(42);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		qf.writeTo(Channels.newChannel(bytes));
+		byte[] data = bytes.toByteArray();
+		
+		try
+		{
+			QuotientFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(data)), 
+					new HashQuotientingStrategy<Integer>(10, 22));
+			fail("Read with the wrong strategy.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+		
+		try
+		{
+			QuotientFilter.readFrom(Channels.newChannel(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 1))), 
+					new HashQuotientingStrategy<Integer>(10, 12));
+			fail("Read a truncated stream.");
+		}
+		catch (EOFException e)
+		{
+			// Expected.
+		}
+	}
+	
+	/**
+	 * Tests that adding by fingerprint is the same as adding the object.
+	 */
+	@Test
+	public void fingerprintTest()
+	{
+		QuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(10, 12);
+		QuotientFilter<Integer> byObject = new QuotientFilter<Integer>(quot);
+		QuotientFilter<Integer> byHash = new QuotientFilter<Integer>(quot);
+		
+		Random rnd = new Random(1337);
+		for (int j = 0 ; j < 800 ; ++j)
+		{
+			int test = rnd.nextInt();
+			byObject.add(test);
+			byHash.addHash(quot.getFingerprint(test));
+		}
+		
+		assertEquals(byObject.getNumOccupied(), byHash.getNumOccupied());
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			int test = rnd.nextInt();
+			assertEquals(byObject.contains(test), byHash.containsHash(quot.getFingerprint(test)));
+		}
+	}
+	
+	/**
+	 * Tests a filter with a remainder too wide for a 32 bit hash.
+	 */
+	@Test
+	public void wideRemainderTest()
+	{
+		QuotientingStrategy<String> quot = XxHashQuotientingStrategy.forStrings(12, 48);
+		QuotientFilter<String> qf = new QuotientFilter<String>(quot);
+		
+		for (int j = 0 ; j < 3500 ; ++j)
+		{
+			qf.add("key " + j);
+		}
+		assertEquals(3500, qf.getNumOccupied());
+		
+		for (int j = 0 ; j < 3500 ; ++j)
+		{
+			assertTrue(qf.contains("key " + j));
+		}
+		
+		// With 48 remainder bits a false positive would be astonishing.
+		for (int j = 3500 ; j < 100000 ; ++j)
+		{
+			assertTrue(!qf.contains("key " + j));
+		}
+		
+		// Fingerprints survive the trip through the iterator and a doubling.
+		QuotientFilter<String> doubled = qf.getDoubled(2);
+		assertEquals(3500, doubled.getNumOccupied());
+		for (int j = 0 ; j < 3500 ; ++j)
+		{
+			assertTrue(doubled.contains("key " + j));
+		}
+	}
+	
+	/**
+	 * Tests that the bulk operations agree with adding and querying one at a time.
+	 */
+	@Test
+	public void bulkTest()
+	{
+		QuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(10, 12);
+		QuotientFilter<Integer> single = new QuotientFilter<Integer>(quot);
+		QuotientFilter<Integer> fromArray = new QuotientFilter<Integer>(quot);
+		QuotientFilter<Integer> fromIterable = new QuotientFilter<Integer>(quot);
+		
+		Random rnd = new Random(1337);
+		Integer[] added = new Integer[800];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			// Some duplicates, which must only be counted once.
+			added[j] = rnd.nextInt(5000);
+			single.add(added[j]);
+		}
+		fromArray.addAll(added);
+		fromIterable.addAll(Arrays.asList(added));
+		assertEquals(single.getNumOccupied(), fromArray.getNumOccupied());
+		assertEquals(single.getNumOccupied(), fromIterable.getNumOccupied());
+		
+		Integer[] queries = new Integer[2000];
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			queries[j] = (j % 2 == 0) ? added[rnd.nextInt(added.length)] : rnd.nextInt();
+		}
+		boolean[] out = new boolean[queries.length];
+		fromArray.containsAll(queries, out);
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			assertEquals(single.contains(queries[j]), out[j]);
+			if (j % 2 == 0) { assertTrue(out[j]); }
+		}
+	}
+	
+	/**
+	 * Tests the bulk operations on a filter big enough that they read each batch's
+	 * slots before probing, with more keys than fit in one batch.
+	 */
+	@Test
+	public void bulkLargeTest()
+	{
+		QuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(23, 8);
+		QuotientFilter<Integer> single = new QuotientFilter<Integer>(quot);
+		QuotientFilter<Integer> bulk = new QuotientFilter<Integer>(quot);
+		
+		Random rnd = new Random(1338);
+		Integer[] added = new Integer[3000];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = rnd.nextInt();
+			single.add(added[j]);
+		}
+		bulk.addAll(added);
+		assertEquals(single.getNumOccupied(), bulk.getNumOccupied());
+		
+		Integer[] queries = new Integer[3000];
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			queries[j] = (j % 2 == 0) ? added[j] : rnd.nextInt();
+		}
+		boolean[] out = new boolean[queries.length];
+		bulk.containsAll(queries, out);
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			assertEquals(single.contains(queries[j]), out[j]);
+			if (j % 2 == 0) { assertTrue(out[j]); }
+		}
+	}
+	
+	/**
+	 * Tests that doubling and merging lay the slots out exactly as inserting the
+	 * fingerprints one at a time would, whether or not the work is split up.
+	 */
+	@Test
+	public void bulkRebuildTest()
+	{
+		QuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(10, 12);
+		QuotientingStrategy<Integer> doubled = quot.getDoubledStrategy(1);
+		for (int j = 0 ; j < 200 ; ++j)
+		{
+			Random rnd = new Random(j);
+			
+			// Heavily loaded, so that clusters are long and wrap around, and sometimes full.
+			QuotientFilter<Integer> qf1 = new QuotientFilter<Integer>(quot);
+			QuotientFilter<Integer> qf2 = new QuotientFilter<Integer>(quot);
+			QuotientFilter<Integer> both = new QuotientFilter<Integer>(quot);
+			QuotientFilter<Integer> expectedDoubled = new QuotientFilter<Integer>(doubled);
+			int n = (j % 10 == 0) ? 1024 : 450 + rnd.nextInt(60);
+			while (qf1.getNumOccupied() < n)
+			{
+				long fingerprint = rnd.nextInt(1 << 22);
+				qf1.addHash(fingerprint);
+				both.addHash(fingerprint);
+				expectedDoubled.addHash(fingerprint);
+			}
+			while (qf2.getNumOccupied() < 1024 - n && qf2.getNumOccupied() < 450)
+			{
+				long fingerprint = rnd.nextInt(1 << 22);
+				qf2.addHash(fingerprint);
+				both.addHash(fingerprint);
+			}
+			
+			for (int nTasks : new int[] { 1, 3, 16 })
+			{
+				assertSameSlots(expectedDoubled, qf1.getDoubled(1, nTasks));
+				
+				QuotientFilter<Integer> merged = new QuotientFilter<Integer>(qf1);
+				merged.merge(qf2, nTasks);
+				assertSameSlots(both, merged);
+			}
+		}
+	}
+	
+	/**
+	 * Tests the running metrics against what was actually done to a filter.
+	 */
+	@Test
+	public void metricsTest() throws Exception
+	{
+		// 4096 slots and 8 bit remainders, three quarters full.
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(12, 8));
+		Random rnd = new Random(17);
+		Set<Long> added = new HashSet<Long>();
+		for (int j = 0 ; j < 3072 ; ++j)
+		{
+			long fingerprint = rnd.nextInt(1 << 20);
+			qf.addHash(fingerprint);
+			added.add(fingerprint);
+		}
+		FilterMetricsMXBean metrics = qf.getMetrics();
+		assertEquals(3072, metrics.getNumAdds());
+		assertEquals(added.size() / 4096.0, metrics.getFillRatio(), 1e-9);
+		
+		final int nQueries = 200000;
+		int falsePositives = 0;
+		for (int j = 0 ; j < nQueries ; ++j)
+		{
+			long fingerprint = rnd.nextInt(1 << 20);
+			boolean found = qf.containsHash(fingerprint);
+			assertEquals(added.contains(fingerprint), found);
+			if (found) { falsePositives++; }
+		}
+		assertEquals(nQueries, metrics.getNumQueries());
+		assertEquals(falsePositives, metrics.getNumPositives());
+		
+		// Every query reads its canonical slot, and most read more at this load.
+		assertTrue(metrics.getMeanProbeLength() > 1.5);
+		assertTrue(metrics.getMeanProbeLength() < 10);
+		long total = 0;
+		for (long count : metrics.getProbeLengthHistogram())
+		{
+			total += count;
+		}
+		assertEquals(nQueries, total);
+		
+		// Every fingerprint was drawn from the same space, so the estimate is just the
+		// chance of hitting one that was added.
+		double measured = (double) falsePositives / nQueries;
+		assertEquals(measured, metrics.getEstimatedFalsePositiveRate(), measured * 0.1);
+		
+		// The cluster histogram accounts for every cluster.
+		QuotientFilter.Stats stats = qf.getStats();
+		total = 0;
+		for (long count : stats.getClusterLengthHistogram())
+		{
+			total += count;
+		}
+		assertEquals(stats.getNumClusters(), total);
+		
+		// The metrics can be published over JMX.
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.eigenvektor.amq:type=QuotientFilter,name=metricsTest");
+		server.registerMBean(metrics, name);
+		try
+		{
+			assertEquals((long) nQueries, server.getAttribute(name, "NumQueries"));
+			server.invoke(name, "resetCounters", null, null);
+			assertEquals(0L, server.getAttribute(name, "NumQueries"));
+		}
+		finally
+		{
+			server.unregisterMBean(name);
+		}
+	}
+	
+	/**
+	 * Tests that queries made from several threads at once are all counted.
+	 */
+	@Test
+	public void metricsConcurrentTest() throws InterruptedException
+	{
+		final QuotientFilter<Integer> qf = new QuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(12, 8));
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			qf.add(j);
+		}
+		
+		final int perThread = 50000;
+		long positives = 0;
+		for (int j = 0 ; j < perThread ; ++j)
+		{
+			if (qf.contains(j)) { positives++; }
+		}
+		qf.getMetrics().resetCounters();
+		
+		Thread[] threads = new Thread[4];
+		for (int t = 0 ; t < threads.length ; ++t)
+		{
+			threads[t] = new Thread() {
+				@Override
+				public void run()
+				{
+					for (int j = 0 ; j < perThread ; ++j)
+					{
+						qf.contains(j);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		
+		FilterMetricsMXBean metrics = qf.getMetrics();
+		assertEquals((long) threads.length * perThread, metrics.getNumQueries());
+		assertEquals(positives * threads.length, metrics.getNumPositives());
+	}
+	
+	/**
+	 * Tests that a cluster wrapping around the end of the table is counted once, at its
+	 * full length.
+	 */
+	@Test
+	public void clusterHistogramWrappedTest()
+	{
+		// 16 slots, with three remainders in the last one and one at the start.
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(4, 4));
+		qf.addHash((15 << 4) | 1);
+		qf.addHash((15 << 4) | 2);
+		qf.addHash((15 << 4) | 3);
+		qf.addHash((0 << 4) | 4);
+		qf.addHash((8 << 4) | 5);
+		
+		QuotientFilter.Stats stats = qf.getStats();
+		assertEquals(2, stats.getNumClusters());
+		long[] histogram = stats.getClusterLengthHistogram();
+		assertEquals(1, histogram[0]);
+		assertEquals(0, histogram[1]);
+		assertEquals(1, histogram[2]);
+	}
+	
+	/**
+	 * Asserts that two filters have the same contents in every slot.
+	 * 
+	 * @param expected The expected filter.
+	 * @param actual The actual filter.
+	 */
+	private static void assertSameSlots(QuotientFilter<?> expected, QuotientFilter<?> actual)
+	{
+		assertEquals(expected.getNumOccupied(), actual.getNumOccupied());
+		int nSlots = expected.getStats().getNumSlots();
+		for (int slot = 0 ; slot < nSlots ; ++slot)
+		{
+			assertEquals(expected.isOccupied(slot), actual.isOccupied(slot));
+			assertEquals(expected.isContinuation(slot), actual.isContinuation(slot));
+			assertEquals(expected.isShifted(slot), actual.isShifted(slot));
+			assertEquals(expected.getRemainder(slot), actual.getRemainder(slot));
+		}
+	}
+
 }
@@ -19,6 +19,9 @@ package com.eigenvektor.amq;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -87,5 +90,92 @@ public class TestQuotientingStrategy
 		assertTrue(countBits(qr1.getRemainder()) == 24);
 		
 	}
+	
+	@Test
+	public void testFingerprint()
+	{
+		QuotientingStrategy<Integer> qs = new HashQuotientingStrategy<Integer>(7, 20);
+		QuotientingStrategy<Integer> d = qs.getDoubledStrategy(3);
+		
+		Random rnd = new Random(1337);
+		for (int j = 0 ; j < 1000 ; ++j)
+		{
+			int test = rnd.nextInt();
+			
+			for (QuotientingStrategy<Integer> strat : Arrays.asList(qs, d))
+			{
+				QuotientingStrategy.QuotientAndRemainder qr = strat.getQuotientAndRemainder(test);
+				long fingerprint = strat.getFingerprint(test);
+				assertEquals(qr.getRemainder(), fingerprint & ((1L << strat.getRemainderBits()) - 1));
+				assertEquals(qr.getQuotient(), fingerprint >>> strat.getRemainderBits());
+			}
+			
+			// Doubling moves the boundary but not the bits.
+			assertEquals(qs.getFingerprint(test), d.getFingerprint(test));
+		}
+	}
+	
+	@Test
+	public void testXxHashStrategy()
+	{
+		// With all 64 bits in use the fingerprint is the xxHash64 itself.
+		QuotientingStrategy<String> qs = XxHashQuotientingStrategy.forStrings(10, 54);
+		assertEquals(0xEF46DB3751D8E999L, qs.getFingerprint(""));
+		assertEquals(0x44BC2CF5AD770999L, qs.getFingerprint("abc"));
+		assertEquals(0xFBCEA83C8A378BF1L, qs.getFingerprint("Nobody inspects the spammish repetition"));
+		
+		QuotientingStrategy.QuotientAndRemainder qr = qs.getQuotientAndRemainder("abc");
+		assertEquals(0x44BC2CF5AD770999L >>> 54, qr.getQuotient());
+		assertEquals(0x44BC2CF5AD770999L & ((1L << 54) - 1), qr.getLongRemainder());
+		
+		// Fewer bits take the top of the hash, and doubling keeps the same bits.
+		QuotientingStrategy<String> small = XxHashQuotientingStrategy.forStrings(10, 30);
+		assertEquals(0x44BC2CF5AD770999L >>> 24, small.getFingerprint("abc"));
+		assertEquals(small.getFingerprint("abc"), small.getDoubledStrategy(4).getFingerprint("abc"));
+		assertEquals(XxHashQuotientingStrategy.forStrings(14, 26), small.getDoubledStrategy(4));
+	}
+	
+	/**
+	 * A strategy written before fingerprints still works, getting them from the
+	 * quotient and remainder.
+	 */
+	@Test
+	public void testDefaultFingerprint()
+	{
+		final HashQuotientingStrategy<Integer> hqs = new HashQuotientingStrategy<Integer>(10, 20);
+		QuotientingStrategy<Integer> legacy = new QuotientingStrategy<Integer>()
+		{
+			@Override
+			public int getQuotientBits()
+			{
+				return hqs.getQuotientBits();
+			}
+			
+			@Override
+			public int getRemainderBits()
+			{
+				return hqs.getRemainderBits();
+			}
+			
+			@Override
+			public QuotientAndRemainder getQuotientAndRemainder(Integer x)
+			{
+				return hqs.getQuotientAndRemainder(x);
+			}
+			
+			@Override
+			public QuotientingStrategy<Integer> getDoubledStrategy(int numDoublings)
+			{
+				return new DoublingQuotientingStrategy<Integer>(this, numDoublings);
+			}
+		};
+		
+		Random rnd = new Random(3);
+		for (int j = 0 ; j < 1000 ; ++j)
+		{
+			int x = rnd.nextInt();
+			assertEquals(hqs.getFingerprint(x), legacy.getFingerprint(x));
+		}
+	}
 
 }
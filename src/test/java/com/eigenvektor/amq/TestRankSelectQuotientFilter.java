@@ -0,0 +1,120 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestRankSelectQuotientFilter
+{
+	/**
+	 * Should answer exactly as a plain quotient filter with the same strategy does.
+	 */
+	@Test
+	public void testMatchesQuotientFilter()
+	{
+		for (int rBits : new int[] { 1, 3, 8, 20 })
+		{
+			for (int iter = 0 ; iter < 5 ; ++iter)
+			{
+				HashQuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(10, rBits);
+				RankSelectQuotientFilter<Integer> rsqf = new RankSelectQuotientFilter<Integer>(quot);
+				QuotientFilter<Integer> qf = new QuotientFilter<Integer>(quot);
+
+				// Fill to a high load, where the clusters are long.
+				Random rnd = new Random(iter);
+				int[] added = new int[950];
+				for (int j = 0 ; j < added.length ; ++j)
+				{
+					added[j] = rnd.nextInt();
+					rsqf.add(added[j]);
+					qf.add(added[j]);
+				}
+
+				assertEquals(qf.getNumOccupied(), rsqf.getNumOccupied());
+				for (int x : added)
+				{
+					assertTrue(rsqf.contains(x));
+				}
+				for (int j = 0 ; j < 20000 ; ++j)
+				{
+					int x = rnd.nextInt();
+					assertEquals(qf.contains(x), rsqf.contains(x));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs reaching across several blocks, so the block offsets are more than a word.
+	 */
+	@Test
+	public void testLongCluster()
+	{
+		RankSelectQuotientFilter<Integer> rsqf = new RankSelectQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(10, 4));
+
+		// Fingerprints counting up from zero give each of the first quotients sixteen
+		// remainders, and they all pile up in one cluster.  Add them out of order so
+		// that remainders go into the middle of runs.
+		int n = 900;
+		for (int j = 0 ; j < n ; ++j)
+		{
+			rsqf.addHash((j * 7) % n);
+		}
+
+		assertEquals(n, rsqf.getNumOccupied());
+		for (int j = 0 ; j < 2 * n ; ++j)
+		{
+			assertEquals(j < n, rsqf.containsHash(j));
+		}
+	}
+
+	/**
+	 * Adding the same thing twice takes one slot.
+	 */
+	@Test
+	public void testDuplicates()
+	{
+		RankSelectQuotientFilter<Integer> rsqf = new RankSelectQuotientFilter<Integer>(8);
+		rsqf.add(12345);
+		rsqf.add(12345);
+		rsqf.add(54321);
+		assertEquals(2, rsqf.getNumOccupied());
+		assertTrue(rsqf.contains(12345));
+		assertTrue(rsqf.contains(54321));
+	}
+
+	/**
+	 * Runs spill past the last canonical slot until there is nowhere left to go.
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testFull()
+	{
+		RankSelectQuotientFilter<Integer> rsqf = new RankSelectQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(4, 8));
+
+		for (long remainder = 0 ; remainder < 256 ; ++remainder)
+		{
+			rsqf.addHash((15L << 8) | remainder);
+		}
+	}
+}
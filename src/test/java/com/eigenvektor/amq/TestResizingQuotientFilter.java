@@ -0,0 +1,318 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class TestResizingQuotientFilter
+{
+	/**
+	 * Runs doublings straight away on the adding thread.
+	 */
+	private static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	/**
+	 * The filter should grow well past its starting size without losing anything.
+	 */
+	@Test
+	public void testGrowsPastCapacity()
+	{
+		ResizingQuotientFilter<Integer> rqf = new ResizingQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(6, 20), 0.75, 8.0, DIRECT);
+
+		Random rnd = new Random(1);
+		int[] added = new int[5000];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = rnd.nextInt();
+			rqf.add(added[j]);
+		}
+
+		assertTrue(rqf.getNumSlots() > added.length);
+		assertTrue(rqf.getNumDoublings() > 0);
+		assertTrue(rqf.getNumOccupied() <= 0.75 * rqf.getNumSlots());
+		assertFalse(rqf.isGrowing());
+		for (int x : added)
+		{
+			assertTrue(rqf.contains(x));
+		}
+	}
+
+	/**
+	 * With a direct executor every doubling is the same as doubling a plain filter.
+	 */
+	@Test
+	public void testMatchesQuotientFilter()
+	{
+		HashQuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(8, 16);
+		ResizingQuotientFilter<Integer> rqf = new ResizingQuotientFilter<Integer>(quot, 0.5, 100.0, DIRECT);
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(quot.getDoubledStrategy(4));
+
+		Random rnd = new Random(2);
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			int x = rnd.nextInt();
+			rqf.add(x);
+			qf.add(x);
+		}
+
+		assertEquals(1 << 12, rqf.getNumSlots());
+		assertEquals(qf.getNumOccupied(), rqf.getNumOccupied());
+		for (int j = 0 ; j < 10000 ; ++j)
+		{
+			int x = rnd.nextInt();
+			assertEquals(qf.contains(x), rqf.contains(x));
+		}
+	}
+
+	/**
+	 * Long clusters should trigger growth even at a low load factor.
+	 */
+	@Test
+	public void testGrowsOnClusterLength()
+	{
+		ResizingQuotientFilter<Integer> rqf = new ResizingQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(10, 20), 0.99, 1.5, DIRECT);
+
+		Random rnd = new Random(3);
+		for (int j = 0 ; j < 600 ; ++j)
+		{
+			rqf.add(rnd.nextInt());
+		}
+
+		assertTrue(rqf.getNumDoublings() > 0);
+	}
+
+	/**
+	 * Once the remainder runs out the filter fills up like a plain one.
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testStopsGrowing()
+	{
+		ResizingQuotientFilter<Integer> rqf = new ResizingQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(4, 3), 0.75, 8.0, DIRECT);
+
+		Random rnd = new Random(4);
+		for (int j = 0 ; j < 1000 ; ++j)
+		{
+			rqf.add(rnd.nextInt());
+		}
+	}
+
+	/**
+	 * Elements added while a doubling waits to run are found throughout, and all end up
+	 * in the doubled table.
+	 */
+	@Test
+	public void testAddsDuringGrowth()
+	{
+		final List<Runnable> deferred = new ArrayList<Runnable>();
+		Executor later = new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				deferred.add(command);
+			}
+		};
+		HashQuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(10, 16);
+		ResizingQuotientFilter<Integer> rqf = new ResizingQuotientFilter<Integer>(quot, 0.5, 100.0, later);
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(quot.getDoubledStrategy(1));
+
+		Random rnd = new Random(6);
+		int[] added = new int[900];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = rnd.nextInt();
+			rqf.add(added[j]);
+			qf.add(added[j]);
+			assertTrue(rqf.contains(added[j]));
+		}
+		assertTrue(rqf.isGrowing());
+		assertEquals(1, deferred.size());
+		assertEquals(qf.getNumOccupied(), rqf.getNumOccupied());
+
+		deferred.remove(0).run();
+		assertFalse(rqf.isGrowing());
+		assertEquals(1, rqf.getNumDoublings());
+		assertEquals(qf.getNumOccupied(), rqf.getNumOccupied());
+		for (int x : added)
+		{
+			assertTrue(rqf.contains(x));
+		}
+		for (int j = 0 ; j < 10000 ; ++j)
+		{
+			int x = rnd.nextInt();
+			assertEquals(qf.contains(x), rqf.contains(x));
+		}
+	}
+
+	/**
+	 * Adds and queries from several threads while the doublings run on another.
+	 */
+	@Test
+	public void testBackgroundGrowth() throws Exception
+	{
+		ExecutorService background = Executors.newSingleThreadExecutor();
+		try
+		{
+			final ResizingQuotientFilter<Integer> rqf = new ResizingQuotientFilter<Integer>(
+					new HashQuotientingStrategy<Integer>(8, 24), 0.75, 8.0, background);
+
+			final int nThreads = 4;
+			final int perThread = 20000;
+			final List<Throwable> failures = new ArrayList<Throwable>();
+			List<Thread> threads = new ArrayList<Thread>();
+			final int[] added = new int[nThreads * perThread];
+			Random rnd = new Random(5);
+			for (int j = 0 ; j < added.length ; ++j)
+			{
+				added[j] = rnd.nextInt();
+			}
+			for (int t = 0 ; t < nThreads ; ++t)
+			{
+				final int base = t * perThread;
+				threads.add(new Thread()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							for (int j = base ; j < base + perThread ; ++j)
+							{
+								rqf.add(added[j]);
+								// Everything added so far must be visible, whichever table holds it.
+								if (!rqf.contains(added[j]) || !rqf.contains(added[base + (j - base) / 2]))
+								{
+									throw new AssertionError("Lost " + added[j]);
+								}
+							}
+						}
+						catch (Throwable e)
+						{
+							synchronized (failures) { failures.add(e); }
+						}
+					}
+				});
+			}
+			for (Thread thread : threads) { thread.start(); }
+			for (Thread thread : threads) { thread.join(); }
+
+			assertTrue(failures.toString(), failures.isEmpty());
+			rqf.awaitGrowth();
+			assertTrue(rqf.getNumDoublings() > 0);
+			for (int x : added)
+			{
+				assertTrue(rqf.contains(x));
+			}
+		}
+		finally
+		{
+			background.shutdown();
+		}
+	}
+
+	/**
+	 * A doubling that can't be run leaves the filter answering for everything it was
+	 * given, and filling up in the side table without growing.
+	 */
+	@Test
+	public void testFailedGrowth()
+	{
+		Executor rejecting = new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				throw new RejectedExecutionException("No room.");
+			}
+		};
+		ResizingQuotientFilter<Integer> rqf = new ResizingQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(8, 16), 0.75, 100.0, rejecting);
+
+		Random rnd = new Random(7);
+		List<Integer> added = new ArrayList<Integer>();
+		boolean rejected = false;
+		for (int j = 0 ; j < 300 ; ++j)
+		{
+			added.add(rnd.nextInt());
+			try
+			{
+				rqf.add(added.get(j));
+			}
+			catch (RejectedExecutionException e)
+			{
+				// The executor's own failure comes out, once.
+				assertFalse(rejected);
+				rejected = true;
+			}
+		}
+
+		assertTrue(rejected);
+		assertFalse(rqf.isGrowing());
+		assertEquals(0, rqf.getNumDoublings());
+		assertEquals(256, rqf.getNumSlots());
+		for (int x : added)
+		{
+			assertTrue(rqf.contains(x));
+		}
+	}
+
+	/**
+	 * Adding from fork-join workers doesn't deadlock waiting for a doubling, either on
+	 * the default growth threads or when the doublings share the workers' pool.
+	 */
+	@Test(timeout=60000)
+	public void testAddsFromForkJoinPool()
+	{
+		List<ResizingQuotientFilter<Integer>> filters = new ArrayList<ResizingQuotientFilter<Integer>>();
+		filters.add(new ResizingQuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(6, 24)));
+		filters.add(new ResizingQuotientFilter<Integer>(new HashQuotientingStrategy<Integer>(6, 24),
+				0.75, 8.0, ForkJoinPool.commonPool()));
+
+		for (final ResizingQuotientFilter<Integer> rqf : filters)
+		{
+			IntStream.range(0, 200000).parallel().forEach(j -> rqf.add(j * 0x9E3779B9));
+			for (int j = 0 ; j < 200000 ; ++j)
+			{
+				assertTrue(rqf.contains(j * 0x9E3779B9));
+			}
+			assertTrue(rqf.getNumDoublings() > 0);
+		}
+	}
+}
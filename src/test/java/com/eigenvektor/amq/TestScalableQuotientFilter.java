@@ -0,0 +1,201 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class TestScalableQuotientFilter
+{
+	/**
+	 * Runs compactions straight away on the adding thread.
+	 */
+	private static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	/**
+	 * Makes a filter for strings with a 64 bit hash.
+	 * 
+	 * @param executor Runs the compactions.
+	 * @return The filter.
+	 */
+	private static ScalableQuotientFilter<String> makeFilter(Executor executor)
+	{
+		return new ScalableQuotientFilter<String>(XxHashQuotientingStrategy.forStrings(32, 32), 
+				8, 8, 0.75, executor);
+	}
+
+	/**
+	 * The filter grows far past its first layer with no false negatives, and a false
+	 * positive rate within the bound.
+	 */
+	@Test
+	public void testGrowth()
+	{
+		ScalableQuotientFilter<String> sqf = makeFilter(DIRECT);
+		
+		final int n = 50000;
+		for (int j = 0 ; j < n ; ++j)
+		{
+			sqf.add("in" + j);
+		}
+		for (int j = 0 ; j < n ; ++j)
+		{
+			assertTrue(sqf.contains("in" + j));
+		}
+		
+		int nFalse = 0;
+		final int nTests = 200000;
+		for (int j = 0 ; j < nTests ; ++j)
+		{
+			if (sqf.contains("out" + j)) { nFalse++; }
+		}
+		
+		// Twice the first layer's design rate, allowing for compaction.
+		double bound = 2 * 0.75 * Math.pow(2.0, -8) * 3.0;
+		assertTrue(sqf.getFalsePositiveRate() < bound);
+		assertTrue((double) nFalse / nTests < bound);
+	}
+	
+	/**
+	 * Compaction roughly halves the number of layers.
+	 */
+	@Test
+	public void testCompaction()
+	{
+		ScalableQuotientFilter<String> sqf = makeFilter(DIRECT);
+		ScalableQuotientFilter<String> uncompacted = new ScalableQuotientFilter<String>(
+				XxHashQuotientingStrategy.forStrings(32, 32), 8, 8, 0.75, new Executor()
+				{
+					@Override
+					public void execute(Runnable command) { }
+				});
+		
+		for (int j = 0 ; j < 50000 ; ++j)
+		{
+			sqf.add("in" + j);
+			uncompacted.add("in" + j);
+		}
+		
+		assertTrue(uncompacted.getNumLayers() >= 8);
+		assertTrue(sqf.getNumLayers() <= uncompacted.getNumLayers() / 2 + 1);
+		assertTrue(sqf.getFalsePositiveRate() < 3.0 * uncompacted.getFalsePositiveRate());
+	}
+	
+	/**
+	 * Without enough hash bits to tighten, the layers keep the same remainder.
+	 */
+	@Test
+	public void testNarrowHash()
+	{
+		// Without compaction, so every layer is one that seal() made.
+		ScalableQuotientFilter<Integer> sqf = new ScalableQuotientFilter<Integer>(
+				new HashQuotientingStrategy<Integer>(16, 16), 6, 20, 0.75, new Executor()
+				{
+					@Override
+					public void execute(Runnable command) { }
+				});
+		
+		for (int j = 0 ; j < 20000 ; ++j)
+		{
+			sqf.add(j * 0x9E3779B9);
+		}
+		for (int j = 0 ; j < 20000 ; ++j)
+		{
+			assertTrue(sqf.contains(j * 0x9E3779B9));
+		}
+		
+		// The hash runs out of bits at q9/r23, after which the remainder holds.
+		int[] rBits = sqf.getLayerRemainderBits();
+		assertTrue(rBits.length > 5);
+		assertEquals(20, rBits[0]);
+		for (int j = 1 ; j < rBits.length ; ++j)
+		{
+			assertTrue(rBits[j] >= rBits[j - 1]);
+		}
+		assertEquals(23, rBits[rBits.length - 1]);
+	}
+	
+	/**
+	 * The hash code constructor builds its strategy from the bits asked for.
+	 */
+	@Test
+	public void testHashCodeConstructor()
+	{
+		ScalableQuotientFilter<Integer> sqf = new ScalableQuotientFilter<Integer>(10, 20);
+		assertEquals(20, sqf.getLayerRemainderBits()[0]);
+		for (int j = 0 ; j < 5000 ; ++j)
+		{
+			sqf.add(j * 0x9E3779B9);
+		}
+		for (int j = 0 ; j < 5000 ; ++j)
+		{
+			assertTrue(sqf.contains(j * 0x9E3779B9));
+		}
+		
+		// A hash code has 32 bits.
+		try
+		{
+			new ScalableQuotientFilter<Integer>(20, 14);
+			fail("Made a first layer wider than a hash code.");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+	}
+	
+	/**
+	 * Compacting on another thread never loses anything.
+	 */
+	@Test
+	public void testBackgroundCompaction() throws Exception
+	{
+		ExecutorService background = Executors.newSingleThreadExecutor();
+		try
+		{
+			ScalableQuotientFilter<String> sqf = makeFilter(background);
+			for (int j = 0 ; j < 50000 ; ++j)
+			{
+				sqf.add("in" + j);
+				assertTrue(sqf.contains("in" + j / 2));
+			}
+			
+			sqf.awaitCompaction();
+			for (int j = 0 ; j < 50000 ; ++j)
+			{
+				assertTrue(sqf.contains("in" + j));
+			}
+		}
+		finally
+		{
+			background.shutdown();
+		}
+	}
+}
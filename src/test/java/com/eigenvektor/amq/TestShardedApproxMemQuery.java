@@ -0,0 +1,220 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestShardedApproxMemQuery
+{
+	/**
+	 * The bytes of a string.
+	 */
+	private static final KeyBytes<String> STRING_BYTES = new KeyBytes<String>()
+	{
+		@Override
+		public byte[] getBytes(String x)
+		{
+			return x.getBytes(StandardCharsets.UTF_8);
+		}
+	};
+
+	/**
+	 * Quotient filter shards hold exactly what one big quotient filter would.
+	 */
+	@Test
+	public void testMatchesQuotientFilter()
+	{
+		HashQuotientingStrategy<Integer> quot = new HashQuotientingStrategy<Integer>(14, 10);
+		QuotientFilter<Integer> qf = new QuotientFilter<Integer>(quot);
+		ShardedApproxMemQuery<Integer> sharded = ShardedApproxMemQuery.ofQuotientFilters(quot, 4);
+		assertEquals(16, sharded.getNumShards());
+
+		Random rnd = new Random(1);
+		Integer[] added = new Integer[8000];
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = rnd.nextInt();
+			qf.add(added[j]);
+		}
+		sharded.addAll(added);
+
+		Integer[] queries = new Integer[30000];
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			queries[j] = (j < added.length) ? added[j] : rnd.nextInt();
+		}
+		boolean[] out = new boolean[queries.length];
+		sharded.containsAll(queries, out);
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			assertEquals(qf.contains(queries[j]), out[j]);
+			assertEquals(out[j], sharded.contains(queries[j]));
+		}
+	}
+
+	/**
+	 * Bloom filter shards have no false negatives, and the bulk operations agree with
+	 * the single ones.
+	 */
+	@Test
+	public void testBloomFilters()
+	{
+		ShardedApproxMemQuery<String> sharded = ShardedApproxMemQuery.ofBloomFilters(3, 4096, 5, STRING_BYTES);
+		ShardedApproxMemQuery<String> single = ShardedApproxMemQuery.ofBloomFilters(3, 4096, 5, STRING_BYTES);
+
+		List<String> added = new ArrayList<String>();
+		for (int j = 0 ; j < 2000 ; ++j)
+		{
+			added.add("key " + j);
+			single.add("key " + j);
+		}
+		sharded.addAll(added);
+
+		String[] queries = new String[10000];
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			queries[j] = "key " + j;
+		}
+		boolean[] out = new boolean[queries.length];
+		sharded.containsAll(queries, out);
+
+		int falsePositives = 0;
+		for (int j = 0 ; j < queries.length ; ++j)
+		{
+			assertEquals(single.contains(queries[j]), out[j]);
+			if (j < added.size()) { assertTrue(out[j]); }
+			else if (out[j]) { falsePositives++; }
+		}
+		assertTrue(falsePositives < 400);
+	}
+
+	/**
+	 * Adds from several threads at once, in bulk and one at a time.
+	 */
+	@Test
+	public void testConcurrent() throws Exception
+	{
+		final ShardedApproxMemQuery<Integer> sharded = ShardedApproxMemQuery.ofQuotientFilters(
+				new HashQuotientingStrategy<Integer>(18, 12), 6);
+
+		final int nThreads = 4;
+		final int perThread = 20000;
+		final Integer[] added = new Integer[nThreads * perThread];
+		Random rnd = new Random(2);
+		for (int j = 0 ; j < added.length ; ++j)
+		{
+			added[j] = rnd.nextInt();
+		}
+
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0 ; t < nThreads ; ++t)
+		{
+			final int base = t * perThread;
+			final boolean bulk = (t % 2 == 0);
+			threads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						Integer[] mine = Arrays.copyOfRange(added, base, base + perThread);
+						if (bulk)
+						{
+							sharded.addAll(mine);
+						}
+						else
+						{
+							for (Integer x : mine)
+							{
+								sharded.add(x);
+								if (!sharded.contains(x)) { throw new AssertionError("Lost " + x); }
+							}
+						}
+					}
+					catch (Throwable e)
+					{
+						synchronized (failures) { failures.add(e); }
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) { thread.start(); }
+		for (Thread thread : threads) { thread.join(); }
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		boolean[] out = new boolean[added.length];
+		sharded.containsAll(added, out);
+		for (boolean b : out)
+		{
+			assertTrue(b);
+		}
+	}
+
+	/**
+	 * There can't be more shards than quotients.
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testTooManyShards()
+	{
+		ShardedApproxMemQuery.ofQuotientFilters(new HashQuotientingStrategy<Integer>(4, 10), 5);
+	}
+
+	/**
+	 * Nulls are refused the same way as by the other filters, singly and in bulk.
+	 */
+	@Test
+	public void testNulls()
+	{
+		ShardedApproxMemQuery<String> sharded = ShardedApproxMemQuery.ofBloomFilters(3, 4096, 5, STRING_BYTES);
+		String[] withNull = { "a", null, "b" };
+
+		assertRefused(() -> sharded.add(null));
+		assertRefused(() -> sharded.contains(null));
+		assertRefused(() -> sharded.addAll(withNull));
+		assertRefused(() -> sharded.addAll(Arrays.asList(withNull)));
+		assertRefused(() -> sharded.containsAll(withNull, new boolean[withNull.length]));
+	}
+
+	/**
+	 * Asserts that an operation throws <code>IllegalArgumentException</code>.
+	 *
+	 * @param op The operation.
+	 */
+	private static void assertRefused(Runnable op)
+	{
+		try
+		{
+			op.run();
+			fail("Accepted a null element.");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+	}
+}
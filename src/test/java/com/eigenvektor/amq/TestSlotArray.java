@@ -0,0 +1,84 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.amq;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSlotArray
+{
+	/**
+	 * Writes random values into every slot and reads them back, for slot widths that
+	 * do and don't divide evenly into a word.
+	 */
+	@Test
+	public void testRoundTrip()
+	{
+		Random rnd = new Random(1337);
+		for (int slotBits = 1 ; slotBits <= 64 ; ++slotBits)
+		{
+			long mask = (slotBits == 64) ? -1L : (1L << slotBits) - 1;
+			SlotArray slots = new HeapSlotArray(100, slotBits);
+			long[] expected = new long[100];
+			
+			for (int j = 0 ; j < 100 ; ++j)
+			{
+				expected[j] = rnd.nextLong() & mask;
+				slots.set(j, expected[j]);
+			}
+			
+			// Overwrite every other slot so that neighbours are rewritten in place.
+			for (int j = 0 ; j < 100 ; j += 2)
+			{
+				expected[j] = rnd.nextLong() & mask;
+				slots.set(j, expected[j]);
+			}
+			
+			for (int j = 0 ; j < 100 ; ++j)
+			{
+				assertEquals(expected[j], slots.get(j));
+			}
+		}
+	}
+	
+	/**
+	 * Tests single bit access within slots.
+	 */
+	@Test
+	public void testBits()
+	{
+		SlotArray slots = new HeapSlotArray(10, 13);
+		slots.set(4, 0x1FFF);
+		slots.setBit(4, 1, false);
+		assertEquals(0x1FFD, slots.get(4));
+		assertTrue(slots.getBit(4, 0));
+		assertTrue(!slots.getBit(4, 1));
+		assertEquals(0, slots.get(3));
+		assertEquals(0, slots.get(5));
+		
+		slots.setBit(5, 12, true);
+		assertEquals(1 << 12, slots.get(5));
+		
+		SlotArray copy = slots.copy();
+		slots.set(5, 0);
+		assertEquals(1 << 12, copy.get(5));
+	}
+}
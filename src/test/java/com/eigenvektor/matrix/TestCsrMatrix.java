@@ -0,0 +1,228 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCsrMatrix
+{
+	private SparseMatrix s1 = new SparseMatrix(9, 7);
+	private SparseMatrix s2 = new SparseMatrix(7, 3);
+	private FullMatrix f1 = new FullMatrix(7, 3);
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		s1.set(4, 4, 3);
+		s1.set(6, 2, 8);
+		s1.set(6, 1, 7);
+		s1.set(2, 5, 0); // Represented, but zero.
+		
+		s2.set(4, 1, 5);
+		s2.set(5, 2, 1);
+		s2.set(1, 0, 33);
+		
+		f1.set(4, 1, 5);
+		f1.set(5, 2, 1);
+		f1.set(1, 0, 33);
+	}
+	
+	@Test
+	public void test()
+	{
+		CsrMatrix c1 = new CsrMatrix(s1);
+		assertTrue(c1.getNRows() == 9);
+		assertTrue(c1.getNCols() == 7);
+		assertTrue(c1.getNumNonZeros() == 3);
+		assertTrue(c1.equals(s1));
+		assertTrue(s1.equals(c1));
+		assertTrue(c1.hashCode() == s1.hashCode());
+		
+		// Converting a full matrix gives the same thing.
+		CsrMatrix c2 = new CsrMatrix(s2);
+		assertTrue(new CsrMatrix(f1).equals(c2));
+		assertTrue(new CsrMatrix(f1).getNumNonZeros() == 3);
+		assertTrue(new CsrMatrix(c2).equals(c2));
+		
+		// Test a scalar multiply.
+		Matrix c1Times6 = c1.multiply(6);
+		assertTrue(c1Times6 instanceof CsrMatrix);
+		for (int j = 0 ; j < c1.getNRows() ; ++j)
+		{
+			for (int k = 0 ; k < c1.getNCols() ; ++k)
+			{
+				assertTrue(c1Times6.get(j, k) == s1.get(j, k) * 6.0);
+			}
+		}
+		assertTrue(((CsrMatrix) c1.multiply(0)).getNumNonZeros() == 0);
+		
+		// Test a matrix multiply.
+		Matrix p1 = c1.multiply(c2);
+		Matrix p2 = c1.multiply(f1);
+		assertTrue(p1.getNRows() == 9);
+		assertTrue(p1.getNCols() == 3);
+		assertTrue(p1.equals(p2));
+		assertTrue(p1.equals(s1.multiply(s2)));
+		
+		// One should be sparse, and the other full.
+		assertTrue(p1 instanceof CsrMatrix);
+		assertTrue(p2 instanceof FullMatrix);
+	}
+	
+	@Test
+	public void testIterator()
+	{
+		List<Matrix.Element> l = new ArrayList<Matrix.Element>();
+		for (Matrix.Element x : new CsrMatrix(s1))
+		{
+			l.add(x);
+		}
+		
+		// Only the non-zeros, in row major order.
+		assertTrue(l.size() == 3);
+		assertEquals(new DefaultMatrixElement(4, 4, 3), l.get(0));
+		assertEquals(new DefaultMatrixElement(6, 1, 7), l.get(1));
+		assertEquals(new DefaultMatrixElement(6, 2, 8), l.get(2));
+		
+		assertFalse(new CsrMatrix(new SparseMatrix(3, 3)).iterator().hasNext());
+	}
+	
+	@Test
+	public void testAddSubtract()
+	{
+		CsrMatrix c1 = new CsrMatrix(s1);
+		SparseMatrix s = new SparseMatrix(9, 7);
+		s.set(6, 1, -7);
+		s.set(6, 3, 2);
+		s.set(0, 0, 1);
+		CsrMatrix c = new CsrMatrix(s);
+		
+		Matrix sum = c1.add(c);
+		assertTrue(sum instanceof CsrMatrix);
+		assertTrue(sum.equals(new FullMatrix(s1).add(s)));
+		// The elements that cancel are gone.
+		assertTrue(((CsrMatrix) sum).getNumNonZeros() == 4);
+		
+		Matrix diff = c1.subtract(c);
+		assertTrue(diff instanceof CsrMatrix);
+		assertTrue(diff.equals(new FullMatrix(s1).subtract(s)));
+		assertTrue(((CsrMatrix) c1.subtract(c1)).getNumNonZeros() == 0);
+		
+		// Anything else gives a full matrix.
+		assertTrue(c1.add(s).equals(sum));
+		assertTrue(c1.subtract(s).equals(diff));
+		
+		try
+		{
+			c1.add(new CsrMatrix(s2));
+			fail("Should not add matrices of different sizes.");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+	
+	@Test
+	public void testRandom()
+	{
+		Random rand = new Random(17);
+		SparseMatrix a = randomSparse(rand, 60, 40, 0.05);
+		SparseMatrix b = randomSparse(rand, 40, 50, 0.05);
+		CsrMatrix ca = new CsrMatrix(a);
+		CsrMatrix cb = new CsrMatrix(b);
+		
+		Matrix expected = new FullMatrix(a).multiply(new FullMatrix(b));
+		assertTrue(Matrices.areClose(ca.multiply(cb), expected, 1e-12));
+		assertTrue(Matrices.areClose(ca.multiply(new FullMatrix(b)), expected, 1e-12));
+		
+		// A matrix vector product.
+		double[] x = new double[40];
+		FullMatrix xm = new FullMatrix(40, 1);
+		for (int j = 0 ; j < x.length ; ++j)
+		{
+			x[j] = rand.nextGaussian();
+			xm.set(j, 0, x[j]);
+		}
+		double[] y = ca.multiply(x);
+		Matrix ym = a.multiply(xm);
+		for (int j = 0 ; j < y.length ; ++j)
+		{
+			assertEquals(ym.get(j, 0), y[j], 1e-12);
+		}
+	}
+	
+	@Test
+	public void testArrays()
+	{
+		// [1 0 2; 0 0 0; 0 3 0], with an explicit zero that is dropped.
+		CsrMatrix c = new CsrMatrix(3, 3, new int[] { 0, 2, 3, 4 }, new int[] { 0, 2, 1, 1 },
+				new double[] { 1, 2, 0, 3 });
+		assertTrue(c.getNumNonZeros() == 3);
+		assertTrue(c.get(0, 0) == 1);
+		assertTrue(c.get(0, 2) == 2);
+		assertTrue(c.get(1, 1) == 0);
+		assertTrue(c.get(2, 1) == 3);
+		assertTrue(c.get(2, 2) == 0);
+		
+		assertInvalid(3, 3, new int[] { 0, 2, 3 }, new int[] { 0, 2, 1 }, new double[] { 1, 2, 3 });
+		assertInvalid(3, 3, new int[] { 0, 2, 1, 3 }, new int[] { 0, 2, 1 }, new double[] { 1, 2, 3 });
+		assertInvalid(3, 3, new int[] { 0, 2, 2, 3 }, new int[] { 2, 0, 1 }, new double[] { 1, 2, 3 });
+		assertInvalid(3, 3, new int[] { 0, 2, 2, 3 }, new int[] { 0, 3, 1 }, new double[] { 1, 2, 3 });
+	}
+	
+	/**
+	 * Checks that a set of arrays is refused.
+	 */
+	private static void assertInvalid(int nRows, int nCols, int[] rowPtr, int[] colIdx, double[] values)
+	{
+		try
+		{
+			new CsrMatrix(nRows, nCols, rowPtr, colIdx, values);
+			fail("Should not accept invalid arrays.");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+	
+	/**
+	 * Makes a random sparse matrix.
+	 */
+	private static SparseMatrix randomSparse(Random rand, int nRows, int nCols, double density)
+	{
+		SparseMatrix ret = new SparseMatrix(nRows, nCols);
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			for (int k = 0 ; k < nCols ; ++k)
+			{
+				if (rand.nextDouble() < density)
+				{
+					ret.set(j, k, rand.nextGaussian());
+				}
+			}
+		}
+		return ret;
+	}
+}
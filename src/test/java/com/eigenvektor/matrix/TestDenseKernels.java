@@ -0,0 +1,136 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestDenseKernels
+{
+	private final DenseKernels.Impl scalar = DenseKernels.get(DenseKernels.SCALAR);
+	
+	@Test
+	public void testGet()
+	{
+		assertTrue(scalar instanceof DenseKernels.Scalar);
+		assertTrue(DenseKernels.getName().equals(
+				DenseKernels.get(DenseKernels.VECTOR) == null ? DenseKernels.SCALAR : DenseKernels.VECTOR));
+		
+		try
+		{
+			DenseKernels.get("simd");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+	}
+	
+	@Test
+	public void testScalar()
+	{
+		double[] x = { 1, 2, 3, 4, 5 };
+		double[] y = { 10, 20, 30, 40, 50 };
+		double[] out = new double[5];
+		
+		scalar.axpy(3, 2.0, x, 1, y, 2);
+		assertTrue(Arrays.equals(y, new double[] { 10, 20, 34, 46, 58 }));
+		
+		scalar.scale(2, -1.0, x, 3);
+		assertTrue(Arrays.equals(x, new double[] { 1, 2, 3, -4, -5 }));
+		
+		scalar.add(4, x, 0, y, 1, out, 1);
+		assertTrue(Arrays.equals(out, new double[] { 0, 21, 36, 49, 54 }));
+		
+		scalar.subtract(5, y, 0, x, 0, out, 0);
+		assertTrue(Arrays.equals(out, new double[] { 9, 18, 31, 50, 63 }));
+	}
+	
+	@Test
+	public void testVectorMatchesScalar()
+	{
+		DenseKernels.Impl vector = DenseKernels.get(DenseKernels.VECTOR);
+		if (vector == null)
+		{
+			// Not built, or run without the vector module.
+			return;
+		}
+		
+		// Lengths either side of the vector widths, at offsets that aren't aligned.
+		Random rand = new Random(1);
+		for (int n = 0 ; n < 70 ; ++n)
+		{
+			int xOff = rand.nextInt(5);
+			int yOff = rand.nextInt(5);
+			double alpha = rand.nextGaussian();
+			double[] x = randomArray(rand, n + 5);
+			double[] y = randomArray(rand, n + 5);
+			
+			double[] expected = y.clone();
+			double[] actual = y.clone();
+			scalar.axpy(n, alpha, x, xOff, expected, yOff);
+			vector.axpy(n, alpha, x, xOff, actual, yOff);
+			assertTrue(Arrays.equals(expected, actual));
+			
+			// A row operation, with both runs in the same array.
+			expected = y.clone();
+			actual = y.clone();
+			scalar.axpy(n / 2, alpha, expected, 0, expected, n / 2);
+			vector.axpy(n / 2, alpha, actual, 0, actual, n / 2);
+			assertTrue(Arrays.equals(expected, actual));
+			
+			expected = x.clone();
+			actual = x.clone();
+			scalar.scale(n, alpha, expected, xOff);
+			vector.scale(n, alpha, actual, xOff);
+			assertTrue(Arrays.equals(expected, actual));
+			
+			expected = new double[n + 5];
+			actual = new double[n + 5];
+			scalar.add(n, x, xOff, y, yOff, expected, 5 - xOff);
+			vector.add(n, x, xOff, y, yOff, actual, 5 - xOff);
+			assertTrue(Arrays.equals(expected, actual));
+			
+			scalar.subtract(n, x, xOff, y, yOff, expected, yOff);
+			vector.subtract(n, x, xOff, y, yOff, actual, yOff);
+			assertTrue(Arrays.equals(expected, actual));
+			
+			// In place, as the matrices use them.
+			expected = x.clone();
+			actual = x.clone();
+			scalar.add(n, expected, xOff, y, yOff, expected, xOff);
+			vector.add(n, actual, xOff, y, yOff, actual, xOff);
+			assertTrue(Arrays.equals(expected, actual));
+		}
+	}
+	
+	private static double[] randomArray(final Random rand, final int n)
+	{
+		double[] ret = new double[n];
+		for (int j = 0 ; j < n ; ++j)
+		{
+			ret[j] = rand.nextGaussian();
+		}
+		return ret;
+	}
+}
@@ -21,6 +21,7 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
@@ -152,4 +153,117 @@ public class TestFullMatrix
 			assertTrue(m.get(2, j) == m1.get(2, j) + m1.get(1, j)*5);
 		}
 	}
+
+	@Test
+	public void testBlockedMultiply()
+	{
+		// Sizes that don't fit the blocks or the row groups exactly.
+		Random rand = new Random(5);
+		FullMatrix a = randomFull(rand, 131, BlockedMultiply.KC + 45);
+		FullMatrix b = randomFull(rand, BlockedMultiply.KC + 45, BlockedMultiply.NC + 14);
+		
+		// The generic multiply, element by element.
+		Matrix expected = new SparseMatrix(a).multiply(b);
+		
+		for (int nTasks = 1 ; nTasks <= 5 ; nTasks += 2)
+		{
+			FullMatrix p = a.multiply(b, nTasks);
+			assertTrue(p.getNRows() == 131);
+			assertTrue(p.getNCols() == BlockedMultiply.NC + 14);
+			assertTrue(Matrices.areClose(expected, p, 1e-9));
+		}
+		assertTrue(Matrices.areClose(expected, a.multiply((Matrix) b), 1e-9));
+		
+		// The transpose of b times the transpose of a, reading both with swapped strides.
+		int m = b.getNCols();
+		int k = b.getNRows();
+		int n = a.getNRows();
+		double[] aData = new double[a.getNRows() * a.getNCols()];
+		double[] bData = new double[b.getNRows() * b.getNCols()];
+		for (Matrix.Element e : a) { aData[e.getRow() * a.getNCols() + e.getCol()] = e.getValue(); }
+		for (Matrix.Element e : b) { bData[e.getRow() * b.getNCols() + e.getCol()] = e.getValue(); }
+		double[] c = new double[m * n];
+		BlockedMultiply.multiplyAdd(m, k, n, bData, 0, 1, b.getNCols(), aData, 0, 1, a.getNCols(), c, 0, n, 3);
+		for (int j = 0 ; j < m ; ++j)
+		{
+			for (int i = 0 ; i < n ; ++i)
+			{
+				assertEquals(expected.get(i, j), c[j * n + i], 1e-9);
+			}
+		}
+		
+		try
+		{
+			a.multiply(a);
+			fail("Should not multiply incompatible matrices.");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+	
+	@Test
+	public void testArithmetic()
+	{
+		Random rand = new Random(11);
+		FullMatrix a = randomFull(rand, 7, 9);
+		FullMatrix b = randomFull(rand, 7, 9);
+		SparseMatrix bSparse = new SparseMatrix(b);
+		
+		// The same arithmetic with a full matrix, straight on the arrays, and with a
+		// sparse one, element by element, must agree exactly.
+		assertTrue(a.add(b) instanceof FullMatrix);
+		assertEquals(a.add(bSparse), a.add(b));
+		assertEquals(a.subtract(bSparse), a.subtract(b));
+		
+		FullMatrix sum = new FullMatrix(a);
+		sum.inPlaceAdd(b);
+		assertEquals(a.add(b), sum);
+		FullMatrix diff = new FullMatrix(a);
+		diff.inPlaceSubtract(b);
+		assertEquals(a.subtract(b), diff);
+		for (int j = 0 ; j < a.getNRows() ; ++j)
+		{
+			for (int k = 0 ; k < a.getNCols() ; ++k)
+			{
+				assertTrue(sum.get(j, k) == a.get(j, k) + b.get(j, k));
+				assertTrue(diff.get(j, k) == a.get(j, k) - b.get(j, k));
+			}
+		}
+		
+		// Adding to itself.
+		FullMatrix twice = new FullMatrix(a);
+		twice.inPlaceAdd(twice);
+		assertEquals(a.multiply(2), twice);
+		
+		try
+		{
+			a.inPlaceAdd(new FullMatrix(9, 7));
+			fail("Should not add matrices of different sizes.");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		
+		// A row operation with nothing to do.
+		FullMatrix m = new FullMatrix(a);
+		m.rowOperation(1, 2, 0);
+		assertEquals(a, m);
+	}
+	
+	/**
+	 * Makes a matrix of random values.
+	 */
+	private static FullMatrix randomFull(Random rand, int nRows, int nCols)
+	{
+		FullMatrix ret = new FullMatrix(nRows, nCols);
+		for (int j = 0 ; j < nRows ; ++j)
+		{
+			for (int k = 0 ; k < nCols ; ++k)
+			{
+				ret.set(j, k, rand.nextGaussian());
+			}
+		}
+		return ret;
+	}
 }
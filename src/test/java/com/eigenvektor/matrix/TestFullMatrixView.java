@@ -0,0 +1,180 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFullMatrixView
+{
+	private FullMatrix m1 = new FullMatrix(6, 8);
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		for (int j = 0 ; j < 6 ; ++j)
+		{
+			for (int k = 0 ; k < 8 ; ++k)
+			{
+				m1.set(j, k, 10 * j + k);
+			}
+		}
+	}
+	
+	@Test
+	public void test()
+	{
+		FullMatrixView sub = m1.submatrix(1, 4, 2, 7);
+		assertTrue(sub.getNRows() == 3);
+		assertTrue(sub.getNCols() == 5);
+		assertTrue(sub.getOffset() == 10);
+		assertTrue(sub.getRowStride() == 8);
+		assertTrue(sub.getColStride() == 1);
+		assertTrue(sub.equals(new MatrixView(m1, 1, 4, 2, 7)));
+		for (int j = 0 ; j < 3 ; ++j)
+		{
+			for (int k = 0 ; k < 5 ; ++k)
+			{
+				assertTrue(sub.get(j, k) == m1.get(j + 1, k + 2));
+			}
+		}
+		
+		// The transpose, and a view of a view.
+		FullMatrixView t = m1.transpose();
+		assertTrue(t.getNRows() == 8);
+		assertTrue(t.getNCols() == 6);
+		assertTrue(t.getRowStride() == 1);
+		assertTrue(t.getColStride() == 8);
+		FullMatrixView tSub = t.submatrix(2, 7, 1, 4);
+		assertTrue(tSub.equals(sub.transpose()));
+		assertTrue(t.transpose().equals(m1));
+		
+		// Rows and columns.
+		assertTrue(m1.row(3).getNRows() == 1);
+		assertTrue(m1.column(5).getNCols() == 1);
+		for (int k = 0 ; k < 8 ; ++k)
+		{
+			assertTrue(m1.row(3).get(0, k) == m1.get(3, k));
+		}
+		for (int j = 0 ; j < 6 ; ++j)
+		{
+			assertTrue(m1.column(5).get(j, 0) == m1.get(j, 5));
+		}
+		assertTrue(m1.column(5).equals(t.row(5).transpose()));
+		
+		// Views don't copy, either way.
+		FullMatrix m = new FullMatrix(m1);
+		FullMatrixView v = m.submatrix(1, 4, 2, 7);
+		v.set(0, 0, -1);
+		assertTrue(m.get(1, 2) == -1);
+		m.set(3, 6, -2);
+		assertTrue(v.get(2, 4) == -2);
+		assertTrue(m.transpose().get(6, 3) == -2);
+		
+		try
+		{
+			m1.submatrix(1, 7, 0, 8);
+			fail("Should not view outside the matrix.");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		
+		try
+		{
+			sub.get(3, 0);
+			fail("Should not get outside the view.");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+	
+	@Test
+	public void testArithmetic()
+	{
+		FullMatrixView sub = m1.submatrix(1, 4, 2, 7);
+		FullMatrix copy = new FullMatrix(sub);
+		Matrix generic = new MatrixView(m1, 1, 4, 2, 7);
+		
+		assertTrue(sub.multiply(3).equals(generic.multiply(3)));
+		assertTrue(sub.add(copy).equals(copy.multiply(2)));
+		assertTrue(copy.add(sub).equals(copy.multiply(2)));
+		assertTrue(sub.subtract(copy).equals(new FullMatrix(3, 5)));
+		assertTrue(sub.transpose().add(copy.transpose()).equals(((FullMatrix) copy.multiply(2)).transpose()));
+		
+		// Products with views of every shape match products of copies.
+		Random rand = new Random(3);
+		FullMatrix a = new FullMatrix(40, 30);
+		FullMatrix b = new FullMatrix(30, 50);
+		for (Matrix.Element e : a) { a.set(e.getRow(), e.getCol(), rand.nextGaussian()); }
+		for (Matrix.Element e : b) { b.set(e.getRow(), e.getCol(), rand.nextGaussian()); }
+		FullMatrixView aSub = a.submatrix(5, 35, 3, 23);
+		FullMatrixView bSub = b.submatrix(7, 27, 10, 45);
+		Matrix expected = new FullMatrix(aSub).multiply(new FullMatrix(bSub));
+		assertTrue(Matrices.areClose(expected, aSub.multiply(bSub), 1e-12));
+		assertTrue(Matrices.areClose(expected, new FullMatrix(aSub).multiply(bSub), 1e-12));
+		assertTrue(Matrices.areClose(expected, aSub.multiply(new FullMatrix(bSub)), 1e-12));
+		assertTrue(Matrices.areClose(((FullMatrix) expected).transpose(),
+				bSub.transpose().multiply(aSub.transpose()), 1e-12));
+		assertTrue(Matrices.areClose(a.transpose().multiply(a), new FullMatrix(a.transpose()).multiply(a), 1e-12));
+		
+		// Operating on part of a matrix in place.
+		FullMatrix m = new FullMatrix(m1);
+		FullMatrixView v = m.submatrix(2, 5, 1, 6);
+		v.inPlaceAdd(v);
+		v.rowOperation(0, 2, 1);
+		v.scaleRow(1, 0.5);
+		v.swapRows(0, 1);
+		FullMatrixView c = m.column(7);
+		c.inPlaceMultiply(-1);
+		c.rowOperation(0, 5, 2);
+		for (int j = 0 ; j < 6 ; ++j)
+		{
+			for (int k = 0 ; k < 8 ; ++k)
+			{
+				double expect = m1.get(j, k);
+				if (j >= 2 && j < 5 && k >= 1 && k < 6)
+				{
+					if (j == 2) { expect = m1.get(3, k); }
+					else if (j == 3) { expect = 2 * m1.get(2, k); }
+					else { expect = 2 * m1.get(4, k) + 2 * m1.get(2, k); }
+				}
+				if (k == 7)
+				{
+					expect = (j == 5) ? -m1.get(5, 7) - 2 * m1.get(0, 7) : -m1.get(j, 7);
+				}
+				assertTrue(m.get(j, k) == expect);
+			}
+		}
+	}
+	
+	@Test
+	public void testMatrixView()
+	{
+		// The generic view checks its indices against the view, and scales.
+		MatrixView v = new MatrixView(m1, 1, 4, 2, 7);
+		assertTrue(v.get(0, 0) == m1.get(1, 2));
+		assertTrue(v.get(2, 4) == m1.get(3, 6));
+		assertTrue(v.multiply(2).get(2, 4) == 2 * m1.get(3, 6));
+	}
+}
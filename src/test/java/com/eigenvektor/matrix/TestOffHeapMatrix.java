@@ -0,0 +1,191 @@
+/*
+ *  Copyright (C) 2013 Michael Thorsley
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see [http://www.gnu.org/licenses/].
+ */
+
+package com.eigenvektor.matrix;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOffHeapMatrix
+{
+	// Small chunks, so that rows straddle them.
+	private static final int CHUNK_SHIFT = 4;
+	
+	private FullMatrix f1 = new FullMatrix(7, 5);
+	private FullMatrix f2 = new FullMatrix(7, 5);
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		Random rand = new Random(7);
+		for (int j = 0 ; j < 7 ; ++j)
+		{
+			for (int k = 0 ; k < 5 ; ++k)
+			{
+				f1.set(j, k, rand.nextGaussian());
+				f2.set(j, k, rand.nextGaussian());
+			}
+		}
+	}
+	
+	@Test
+	public void test()
+	{
+		OffHeapMatrix m = new OffHeapMatrix(7, 5, CHUNK_SHIFT);
+		assertTrue(m.getNRows() == 7);
+		assertTrue(m.getNCols() == 5);
+		assertFalse(m.isMapped());
+		assertTrue(m.equals(new FullMatrix(7, 5)));
+		
+		for (Matrix.Element e : f1)
+		{
+			m.set(e.getRow(), e.getCol(), e.getValue());
+		}
+		assertTrue(m.equals(f1));
+		assertTrue(m.hashCode() == f1.hashCode());
+		assertTrue(new OffHeapMatrix(f1).equals(f1));
+		
+		// The arithmetic gives the same as for a full matrix, off the heap.
+		Matrix scaled = m.multiply(3);
+		assertTrue(scaled instanceof OffHeapMatrix);
+		assertTrue(scaled.equals(f1.multiply(3)));
+		OffHeapMatrix m2 = new OffHeapMatrix(7, 5, CHUNK_SHIFT);
+		m2.inPlaceAdd(f2);
+		assertTrue(m.add(m2).equals(f1.add(f2)));
+		assertTrue(m.subtract(f2).equals(f1.subtract(f2)));
+		assertTrue(m.multiply(f2.transpose()).equals(f1.multiply(f2.transpose())));
+		
+		// Row operations.
+		FullMatrix f = new FullMatrix(f1);
+		m.rowOperation(1, 4, 2.5);
+		f.rowOperation(1, 4, 2.5);
+		m.swapRows(0, 6);
+		f.swapRows(0, 6);
+		m.scaleRow(3, -2);
+		f.scaleRow(3, -2);
+		assertTrue(m.equals(f));
+		
+		// Once closed it can't be used, but can be closed again.
+		m.close();
+		m.close();
+		try
+		{
+			m.get(0, 0);
+			fail("Should not get from a closed matrix.");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+		m2.close();
+	}
+	
+	@Test
+	public void testMapped() throws IOException
+	{
+		File file = File.createTempFile("matrix", ".mtx");
+		file.deleteOnExit();
+		
+		OffHeapMatrix m = OffHeapMatrix.create(file, 7, 5, CHUNK_SHIFT);
+		assertTrue(m.isMapped());
+		m.inPlaceAdd(f1);
+		m.flush();
+		m.close();
+		assertTrue(file.length() == OffHeapMatrix.HEADER_BYTES + 7 * 5 * 8);
+		
+		// Reopen it, with a different chunk size.
+		OffHeapMatrix reopened = OffHeapMatrix.open(file);
+		assertTrue(reopened.getNRows() == 7);
+		assertTrue(reopened.getNCols() == 5);
+		assertTrue(reopened.equals(f1));
+		
+		// Changes are written back.
+		reopened.set(6, 4, 42);
+		reopened.close();
+		reopened = OffHeapMatrix.open(file, CHUNK_SHIFT);
+		assertTrue(reopened.get(6, 4) == 42);
+		reopened.close();
+		
+		// Something that isn't a matrix.
+		File other = File.createTempFile("matrix", ".mtx");
+		other.deleteOnExit();
+		try
+		{
+			OffHeapMatrix.open(other);
+			fail("Should not open an empty file.");
+		}
+		catch (IOException e)
+		{
+		}
+	}
+	
+	@Test
+	public void testMultiply()
+	{
+		// A column times a row, so the product is far bigger than either.
+		OffHeapMatrix col = new OffHeapMatrix(f1.column(2));
+		OffHeapMatrix row = new OffHeapMatrix(f2.row(3));
+		col.set(4, 0, 0);
+		Matrix product = col.multiply(row);
+		assertTrue(product instanceof OffHeapMatrix);
+		assertTrue(product.getNRows() == 7);
+		assertTrue(product.getNCols() == 5);
+		assertTrue(product.equals(new FullMatrix(col).multiply(new FullMatrix(row))));
+		
+		// Rows that straddle chunks, on both sides and in the product.
+		OffHeapMatrix m1 = new OffHeapMatrix(7, 5, CHUNK_SHIFT);
+		m1.inPlaceAdd(f1);
+		OffHeapMatrix m2 = new OffHeapMatrix(5, 7, CHUNK_SHIFT);
+		m2.inPlaceAdd(f2.transpose());
+		assertTrue(m1.multiply(m2) instanceof OffHeapMatrix);
+		assertTrue(m1.multiply(m2).equals(f1.multiply(f2.transpose())));
+		assertTrue(m2.multiply(m1).equals(f2.transpose().multiply(f1)));
+		assertTrue(m2.multiply(f1).equals(f2.transpose().multiply(f1)));
+		
+		try
+		{
+			m1.multiply(f1);
+			fail("Should not multiply matrices of the wrong shape.");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		
+		col.close();
+		row.close();
+		m1.close();
+		m2.close();
+	}
+	
+	@Test
+	public void testTooBigForFullMatrix()
+	{
+		try
+		{
+			new FullMatrix(50000, 50000);
+			fail("Should not make a FullMatrix with more than 2^31 elements.");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+}